@@ -0,0 +1,631 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import sasc.emv.ApplicationElementaryFile;
+import sasc.emv.ApplicationInterchangeProfile;
+import sasc.emv.CA;
+import sasc.emv.EMVAPDUCommands;
+import sasc.emv.EMVApplication;
+import sasc.emv.EMVUtil;
+import sasc.emv.ICCPublicKeyCertificate;
+import sasc.emv.IssuerPublicKeyCertificate;
+import sasc.emv.Record;
+import sasc.emv.SW;
+import sasc.emv.SignedStaticApplicationData;
+import sasc.iso7816.AID;
+import sasc.terminal.CardResponse;
+import sasc.terminal.TerminalException;
+import sasc.util.Util;
+
+/**
+ * Re-verifies the offline data authentication certificate chains of recorded card dumps
+ * (the XML files loaded by CardEmulator) against the currently loaded CA public keys.
+ *
+ * Each dump is replayed through a CardEmulator (SELECT, GET PROCESSING OPTIONS and READ RECORD only,
+ * without logging and without touching the static terminal state), and the certificate chain is validated:
+ * the Signed Static Application Data for SDA, the ICC Public Key Certificate for DDA/CDA
+ * (the dynamic signature itself needs the card, so it is not verified).
+ *
+ * Dumps are verified in parallel on a fixed thread pool. Input files are streamed: at most
+ * maxPending files are queued or being verified at any time, so the input can be arbitrarily large.
+ *
+ * @author sasc
+ */
+public class BulkOfflineVerifier {
+
+    public enum Status {
+        VALID, FAILED, NO_OFFLINE_DATA_AUTHENTICATION, ERROR
+    }
+
+    /**
+     * The verification result of one application on a card
+     */
+    public static final class ApplicationResult {
+
+        private final AID aid;
+        private final String method;
+        private final Status status;
+        private final String message;
+
+        ApplicationResult(AID aid, String method, Status status, String message) {
+            this.aid = aid;
+            this.method = method;
+            this.status = status;
+            this.message = message;
+        }
+
+        public AID getAID() {
+            return aid;
+        }
+
+        /**
+         * @return "SDA", "DDA", "CDA" or "-" (none, or not known because reading failed)
+         */
+        public String getMethod() {
+            return method;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return the reason for FAILED or ERROR, otherwise null
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return Util.byteArrayToHexString(aid.getAIDBytes()) + " " + method + " " + status + (message != null ? " (" + message + ")" : "");
+        }
+    }
+
+    /**
+     * The verification result of one card dump
+     */
+    public static final class CardResult {
+
+        private final String name;
+        private final List<ApplicationResult> applications;
+        private final String error;
+        private final long elapsedNanos;
+
+        CardResult(String name, List<ApplicationResult> applications, String error, long elapsedNanos) {
+            this.name = name;
+            this.applications = Collections.unmodifiableList(applications);
+            this.error = error;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<ApplicationResult> getApplications() {
+            return applications;
+        }
+
+        /**
+         * @return the reason the dump could not be loaded, otherwise null
+         */
+        public String getError() {
+            return error;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * @return the worst status of the card (ERROR if the dump could not be loaded)
+         */
+        public Status getStatus() {
+            if (error != null) {
+                return Status.ERROR;
+            }
+            Status worst = Status.NO_OFFLINE_DATA_AUTHENTICATION;
+            for (ApplicationResult app : applications) {
+                Status status = app.getStatus();
+                if (status == Status.ERROR) {
+                    return Status.ERROR;
+                }
+                if (status == Status.FAILED || (status == Status.VALID && worst != Status.FAILED)) {
+                    worst = status;
+                }
+            }
+            return worst;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder buf = new StringBuilder();
+            buf.append(name).append('\t').append(getStatus());
+            if (error != null) {
+                buf.append('\t').append(error);
+            }
+            for (ApplicationResult app : applications) {
+                buf.append('\t').append(app);
+            }
+            return buf.toString();
+        }
+    }
+
+    /**
+     * Receives the result of each card. Called concurrently from the verifier threads.
+     */
+    public interface ResultListener {
+
+        void cardVerified(CardResult result);
+    }
+
+    /**
+     * Throughput statistics of a run
+     */
+    public static final class Stats {
+
+        private final AtomicLong cards = new AtomicLong();
+        private final AtomicLong applications = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong[] statusCounts = new AtomicLong[Status.values().length];
+        private final AtomicLong verificationNanos = new AtomicLong();
+        private final long startNanos = System.nanoTime();
+        private volatile long endNanos = 0;
+
+        Stats() {
+            for (int i = 0; i < statusCounts.length; i++) {
+                statusCounts[i] = new AtomicLong();
+            }
+        }
+
+        void add(CardResult result, long fileBytes) {
+            cards.incrementAndGet();
+            applications.addAndGet(result.getApplications().size());
+            bytes.addAndGet(fileBytes);
+            statusCounts[result.getStatus().ordinal()].incrementAndGet();
+            verificationNanos.addAndGet(result.getElapsedNanos());
+        }
+
+        void finish() {
+            endNanos = System.nanoTime();
+        }
+
+        public long getCardCount() {
+            return cards.get();
+        }
+
+        public long getApplicationCount() {
+            return applications.get();
+        }
+
+        public long getByteCount() {
+            return bytes.get();
+        }
+
+        /**
+         * @return the number of cards with the given (worst) status
+         */
+        public long getCardCount(Status status) {
+            return statusCounts[status.ordinal()].get();
+        }
+
+        /**
+         * @return wall clock time of the run (so far, if still running)
+         */
+        public long getElapsedNanos() {
+            long end = endNanos;
+            return (end != 0 ? end : System.nanoTime()) - startNanos;
+        }
+
+        /**
+         * @return the sum of the per-card verification times (across all threads)
+         */
+        public long getVerificationNanos() {
+            return verificationNanos.get();
+        }
+
+        public double getCardsPerSecond() {
+            long elapsed = getElapsedNanos();
+            return elapsed > 0 ? cards.get() * 1e9 / elapsed : 0;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder buf = new StringBuilder();
+            buf.append(String.format(Locale.ENGLISH, "%d cards (%d applications, %d bytes) in %.3f s",
+                    getCardCount(), getApplicationCount(), getByteCount(), getElapsedNanos() / 1e9));
+            for (Status status : Status.values()) {
+                buf.append(", ").append(status).append('=').append(getCardCount(status));
+            }
+            double perSecond = getCardsPerSecond();
+            buf.append(String.format(Locale.ENGLISH, ", %.1f cards/s (%.0f cards/h)", perSecond, perSecond * 3600));
+            return buf.toString();
+        }
+    }
+
+    public static final int DEFAULT_PENDING_PER_THREAD = 4;
+
+    private final int threads;
+    private final int maxPending;
+
+    /**
+     * @param threads the number of verifier threads
+     * @param maxPending the maximum number of files queued or being verified
+     */
+    public BulkOfflineVerifier(int threads, int maxPending) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Param threads must be > 0: " + threads);
+        }
+        if (maxPending < threads) {
+            throw new IllegalArgumentException("Param maxPending must be >= threads: " + maxPending);
+        }
+        this.threads = threads;
+        this.maxPending = maxPending;
+    }
+
+    public BulkOfflineVerifier(int threads) {
+        this(threads, threads * DEFAULT_PENDING_PER_THREAD);
+    }
+
+    /**
+     * Verifies all files, blocking until done
+     *
+     * @param files the dump files (consumed lazily, on the calling thread)
+     * @param listener receives the result of each card (may be null)
+     * @return the statistics of the run
+     */
+    public Stats verify(Iterator<File> files, final ResultListener listener) throws InterruptedException {
+        if (files == null) {
+            throw new IllegalArgumentException("Param files cannot be null");
+        }
+        final Stats stats = new Stats();
+        final Semaphore pending = new Semaphore(maxPending);
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "sasc-verifier-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            while (files.hasNext()) {
+                final File file = files.next();
+                pending.acquire();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            CardResult result = verifyFile(file);
+                            stats.add(result, file.length());
+                            if (listener != null) {
+                                listener.cardVerified(result);
+                            }
+                        } finally {
+                            pending.release();
+                        }
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                //Wait for the queued files
+            }
+            stats.finish();
+        }
+        return stats;
+    }
+
+    /**
+     * Verifies a dump file
+     */
+    public static CardResult verifyFile(File file) {
+        long start = System.nanoTime();
+        Reader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            return verifyCard(file.getPath(), reader);
+        } catch (IOException ex) {
+            return new CardResult(file.getPath(), new ArrayList<ApplicationResult>(), ex.toString(), System.nanoTime() - start);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ex) {
+                    //Ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Verifies a dump read from the reader (the reader is not closed)
+     *
+     * @param name the name of the card in the result
+     */
+    public static CardResult verifyCard(String name, Reader reader) {
+        long start = System.nanoTime();
+        CardEmulator emulator;
+        try {
+            emulator = new CardEmulator(reader);
+        } catch (TerminalException ex) {
+            return new CardResult(name, new ArrayList<ApplicationResult>(), ex.toString(), System.nanoTime() - start);
+        } catch (RuntimeException ex) {
+            return new CardResult(name, new ArrayList<ApplicationResult>(), ex.toString(), System.nanoTime() - start);
+        }
+        List<ApplicationResult> results = new ArrayList<ApplicationResult>();
+        for (AID aid : emulator.getApplicationAIDs()) {
+            results.add(verifyApplication(emulator, aid));
+        }
+        return new CardResult(name, results, null, System.nanoTime() - start);
+    }
+
+    private static ApplicationResult verifyApplication(CardEmulator emulator, AID aid) {
+        EMVApplication app = new EMVApplication();
+        app.setAID(aid);
+        try {
+            CardResponse response = transmit(emulator, EMVAPDUCommands.selectByDFName(aid.getAIDBytes()), "SELECT");
+            EMVUtil.parseFCIADF(response.getData(), app);
+
+            //The recorded card answers regardless of the PDOL data, so none is built
+            //(building it would use the shared terminal state)
+            response = transmit(emulator, EMVAPDUCommands.getProcessingOpts(null, app), "GET PROCESSING OPTIONS");
+            EMVUtil.parseProcessingOpts(response.getData(), app);
+            if (app.getApplicationInterchangeProfile() == null || app.getApplicationFileLocator() == null) {
+                return new ApplicationResult(aid, "-", Status.ERROR, "GPO response did not contain AIP and AFL");
+            }
+            app.setInitializedOnICC();
+
+            for (ApplicationElementaryFile aef : app.getApplicationFileLocator().getApplicationElementaryFiles()) {
+                int startRecordNumber = aef.getStartRecordNumber();
+                int sfi = aef.getSFI().getValue();
+                for (int recordNum = startRecordNumber; recordNum <= aef.getEndRecordNumber(); recordNum++) {
+                    response = transmit(emulator, EMVAPDUCommands.readRecord(recordNum, sfi), "READ RECORD SFI " + sfi + " record " + recordNum);
+                    EMVUtil.parseAppRecord(response.getData(), app);
+                    boolean isInvolvedInOfflineDataAuthentication = (recordNum - startRecordNumber + 1) <= aef.getNumRecordsInvolvedInOfflineDataAuthentication();
+                    aef.setRecord(recordNum, new Record(response.getData(), recordNum, isInvolvedInOfflineDataAuthentication));
+                }
+            }
+            app.setAllAppRecordsInAFLRead();
+        } catch (TerminalException ex) {
+            return new ApplicationResult(aid, "-", Status.ERROR, ex.getMessage());
+        } catch (RuntimeException ex) {
+            return new ApplicationResult(aid, "-", Status.ERROR, ex.toString());
+        }
+        return verifyCertificates(app);
+    }
+
+    private static CardResponse transmit(CardEmulator emulator, byte[] command, String description) throws TerminalException {
+        CardResponse response = emulator.transmit(command);
+        if (response.getSW() != SW.SUCCESS.getSW()) {
+            throw new TerminalException(description + " failed: SW=" + String.format("%04X", response.getSW() & 0xFFFF));
+        }
+        return response;
+    }
+
+    private static ApplicationResult verifyCertificates(EMVApplication app) {
+        AID aid = app.getAID();
+        ApplicationInterchangeProfile aip = app.getApplicationInterchangeProfile();
+        String method;
+        if (aip.isCDASupported()) {
+            method = "CDA";
+        } else if (aip.isDDASupported()) {
+            method = "DDA";
+        } else if (aip.isSDASupported()) {
+            method = "SDA";
+        } else {
+            return new ApplicationResult(aid, "-", Status.NO_OFFLINE_DATA_AUTHENTICATION, null);
+        }
+        IssuerPublicKeyCertificate issuerCert = app.getIssuerPublicKeyCertificate();
+        if (issuerCert == null) {
+            return new ApplicationResult(aid, method, Status.FAILED, "Issuer Public Key Certificate missing");
+        }
+        try {
+            boolean valid;
+            if ("SDA".equals(method)) {
+                SignedStaticApplicationData ssad = app.getSignedStaticApplicationData();
+                if (ssad == null) {
+                    return new ApplicationResult(aid, method, Status.FAILED, "Signed Static Application Data missing");
+                }
+                valid = ssad.validate();
+            } else {
+                ICCPublicKeyCertificate iccCert = app.getICCPublicKeyCertificate();
+                if (iccCert == null) {
+                    return new ApplicationResult(aid, method, Status.FAILED, "ICC Public Key Certificate missing");
+                }
+                valid = iccCert.validate();
+            }
+            if (valid) {
+                return new ApplicationResult(aid, method, Status.VALID, null);
+            }
+            if (!issuerCert.validate()) {
+                return new ApplicationResult(aid, method, Status.FAILED, "Issuer Public Key Certificate not valid (CA Public Key missing?)");
+            }
+            return new ApplicationResult(aid, method, Status.FAILED, "SDA".equals(method)
+                    ? "Signed Static Application Data not valid" : "ICC Public Key Certificate not valid");
+        } catch (RuntimeException ex) {
+            return new ApplicationResult(aid, method, Status.FAILED, ex.getMessage());
+        }
+    }
+
+    /**
+     * Iterates the *.xml files of the given files and directories (recursively).
+     * Directories are listed one at a time, as the iteration reaches them.
+     */
+    public static Iterator<File> dumpFiles(List<File> roots) {
+        return new DumpFileIterator(roots);
+    }
+
+    private static final class DumpFileIterator implements Iterator<File> {
+
+        private static final FileFilter FILTER = new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isDirectory() || file.getName().toLowerCase(Locale.ENGLISH).endsWith(".xml");
+            }
+        };
+        private final Deque<File> stack = new ArrayDeque<File>();
+        private File next = null;
+
+        DumpFileIterator(List<File> roots) {
+            for (int i = roots.size() - 1; i >= 0; i--) {
+                stack.push(roots.get(i));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !stack.isEmpty()) {
+                File file = stack.pop();
+                if (file.isDirectory()) {
+                    File[] children = file.listFiles(FILTER);
+                    if (children != null) {
+                        Arrays.sort(children);
+                        for (int i = children.length - 1; i >= 0; i--) {
+                            stack.push(children[i]);
+                        }
+                    }
+                } else {
+                    next = file;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public File next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            File file = next;
+            next = null;
+            return file;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Not supported.");
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        String caFile = null;
+
+        Option helpOption = new Option("help", "print this message");
+        Option threadsOption = new Option("threads", true, "the number of verifier threads (default: number of processors)");
+        Option caOption = new Option("ca", true, "the CA public keys XML resource, or a CA XML file to add to the default CAs (default: /certificationauthorities.xml)");
+
+        Options options = new Options();
+        options.addOption(helpOption);
+        options.addOption(threadsOption);
+        options.addOption(caOption);
+
+        List<File> roots = new ArrayList<File>();
+        CommandLineParser parser = new GnuParser();
+        try {
+            CommandLine line = parser.parse(options, args);
+            if (line.hasOption("help") || line.getArgs().length == 0) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp("BulkOfflineVerifier [options] <dump file or directory>...", options);
+                System.exit(0);
+            }
+            if (line.hasOption("threads")) {
+                threads = Integer.parseInt(line.getOptionValue("threads"));
+            }
+            if (line.hasOption("ca")) {
+                caFile = line.getOptionValue("ca");
+            }
+            for (String arg : line.getArgs()) {
+                roots.add(new File(arg));
+            }
+        } catch (ParseException ex) {
+            System.err.println("Parsing failed.  Reason: " + ex.getMessage());
+            System.exit(-1);
+        } catch (NumberFormatException ex) {
+            System.err.println("Invalid number of threads: " + ex.getMessage());
+            System.exit(-1);
+        }
+
+        if (caFile != null && new File(caFile).isFile()) {
+            try {
+                Reader caReader = new InputStreamReader(new FileInputStream(caFile), "UTF-8");
+                try {
+                    CA.addFromXml(caReader);
+                } finally {
+                    caReader.close();
+                }
+            } catch (IOException ex) {
+                System.err.println("Could not read " + caFile + ": " + ex);
+                System.exit(-1);
+            }
+        } else if (caFile != null) {
+            CA.initFromFile(caFile);
+        }
+
+        final PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+        Stats stats = new BulkOfflineVerifier(threads).verify(dumpFiles(roots), new ResultListener() {
+            @Override
+            public void cardVerified(CardResult result) {
+                synchronized (out) {
+                    out.println(result);
+                }
+            }
+        });
+        synchronized (out) {
+            out.flush();
+        }
+        System.err.println(stats);
+    }
+}
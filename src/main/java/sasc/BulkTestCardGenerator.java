@@ -0,0 +1,626 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.crypto.Cipher;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import sasc.emv.CA;
+import sasc.emv.EMVTags;
+import sasc.iso7816.TLVWriter;
+import sasc.util.RSAKeyGenerator;
+import sasc.util.RSAKeyGenerator.RSAKeyPair;
+import sasc.util.Util;
+
+/**
+ * Generates personalized test cards for load testing: a CA key, and for each card an issuer key and an ICC key
+ * with the certificates binding them (the same structures as GenerateIssuerAndICCCertsMain creates one at a time).
+ *
+ * Each card is written as a CardEmulator profile (SDA and DDA, with the ICC private key so the emulator can
+ * answer INTERNAL AUTHENTICATE), and the CA key is written as a CA XML file (like certificationauthorities_mock.xml).
+ * Cards are generated in parallel and written as they are completed.
+ * Key generation dominates; with key pools the cards share a fixed set of pre-generated keys (but not certificates).
+ *
+ * @author sasc
+ */
+public class BulkTestCardGenerator {
+
+    public static final byte[] DEFAULT_RID = Util.fromHexString("a1 23 45 67 89");
+    public static final byte[] DEFAULT_AID = Util.fromHexString("a1 23 45 67 89 10 10");
+    public static final int DEFAULT_CA_INDEX = 0xF1;
+    public static final int DEFAULT_CA_KEY_BITS = 1152;
+    public static final int DEFAULT_ISSUER_KEY_BITS = 1024;
+    public static final int DEFAULT_ICC_KEY_BITS = 768;
+    public static final int PUBLIC_EXPONENT = 3;
+    public static final String CA_FILE_NAME = "certificationauthorities_generated.xml";
+
+    private static final byte[] PUBLIC_EXPONENT_BYTES = new byte[]{PUBLIC_EXPONENT};
+    private static final byte[] AIP = Util.fromHexString("7c 00"); //SDA, DDA, cardholder verification, terminal risk management, issuer authentication
+    private static final byte[] EXPIRATION_DATE_MMYY = Util.fromHexString("12 49");
+
+    /**
+     * Counters of a run
+     */
+    public static final class Stats {
+
+        private final AtomicLong cards = new AtomicLong();
+        private final AtomicLong keys = new AtomicLong();
+        private final long startNanos = System.nanoTime();
+        private volatile long endNanos = 0;
+
+        void finish() {
+            endNanos = System.nanoTime();
+        }
+
+        void addKeys(int count) {
+            keys.addAndGet(count);
+        }
+
+        public long getCardCount() {
+            return cards.get();
+        }
+
+        /**
+         * @return the number of RSA key pairs generated (including the CA key and the key pools)
+         */
+        public long getKeyCount() {
+            return keys.get();
+        }
+
+        public long getElapsedNanos() {
+            long end = endNanos;
+            return (end != 0 ? end : System.nanoTime()) - startNanos;
+        }
+
+        public double getKeysPerSecond() {
+            long elapsed = getElapsedNanos();
+            return elapsed > 0 ? keys.get() * 1e9 / elapsed : 0;
+        }
+
+        public double getCardsPerSecond() {
+            long elapsed = getElapsedNanos();
+            return elapsed > 0 ? cards.get() * 1e9 / elapsed : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "%d cards, %d keys in %.3f s: %.1f keys/s, %.1f cards/s",
+                    getCardCount(), getKeyCount(), getElapsedNanos() / 1e9, getKeysPerSecond(), getCardsPerSecond());
+        }
+    }
+
+    private final RSAKeyPair caKey;
+    private final byte[] rid;
+    private final int caIndex;
+    private final int issuerKeyBits;
+    private final int iccKeyBits;
+
+    /**
+     * @param caKey the CA key pair that signs the issuer certificates (public exponent 3)
+     * @param rid the RID of the CA (also the first 5 bytes of the AID of the generated cards)
+     */
+    public BulkTestCardGenerator(RSAKeyPair caKey, byte[] rid, int caIndex, int issuerKeyBits, int iccKeyBits) {
+        if (caKey == null || rid == null) {
+            throw new IllegalArgumentException("Params caKey and rid cannot be null");
+        }
+        if (rid.length != 5) {
+            throw new IllegalArgumentException("RID must be 5 bytes: " + Util.prettyPrintHexNoWrap(rid));
+        }
+        int caKeyLength = modulusLength(caKey);
+        //The issuer certificate validation does not support a padded Issuer Public Key, so it must fill the certificate
+        if (issuerKeyBits / 8 < caKeyLength - 36 || issuerKeyBits / 8 > caKeyLength) {
+            throw new IllegalArgumentException("Issuer key length must be between " + (caKeyLength - 36) * 8 + " and " + caKeyLength * 8 + " bits: " + issuerKeyBits);
+        }
+        if (iccKeyBits > issuerKeyBits) {
+            throw new IllegalArgumentException("ICC key length cannot exceed the issuer key length: " + iccKeyBits);
+        }
+        this.caKey = caKey;
+        this.rid = Util.copyByteArray(rid);
+        this.caIndex = caIndex;
+        this.issuerKeyBits = issuerKeyBits;
+        this.iccKeyBits = iccKeyBits;
+    }
+
+    public int getIssuerKeyBits() {
+        return issuerKeyBits;
+    }
+
+    public int getICCKeyBits() {
+        return iccKeyBits;
+    }
+
+    /**
+     * Writes the CA public key in the format of certificationauthorities.xml
+     */
+    public void writeCAXml(Writer out) throws IOException {
+        byte[] modulus = modulusBytes(caKey);
+        byte[] checksum = CA.calculateCAPublicKeyCheckSum(rid, Util.intToByteArray(caIndex), modulus, PUBLIC_EXPONENT_BYTES);
+        SimpleDateFormat dateFormat = new SimpleDateFormat("dd MMM yyyy", Locale.ENGLISH);
+        Date expirationDate = new GregorianCalendar(2049, 11, 31).getTime();
+        out.write("<CertificationAuthorities>\n");
+        out.write("    <CA RID=\"" + Util.prettyPrintHexNoWrap(rid) + "\">\n");
+        out.write("        <Name>Generated Test CA</Name>\n");
+        out.write("        <Description>Generated by BulkTestCardGenerator. For testing only</Description>\n");
+        out.write("        <PublicKeys>\n");
+        out.write("            <PublicKey index=\"" + caIndex + "\"> <!-- 0x" + Util.int2Hex(caIndex) + " -->\n");
+        out.write("                <Description>Test key</Description>\n");
+        out.write("                <ExpirationDate>" + dateFormat.format(expirationDate) + "</ExpirationDate>\n");
+        out.write("                <Exponent>" + Util.prettyPrintHexNoWrap(PUBLIC_EXPONENT_BYTES) + "</Exponent>\n");
+        out.write("                <Modulus>\n");
+        out.write("                    " + Util.prettyPrintHex(modulus, 20) + "\n");
+        out.write("                </Modulus>\n");
+        out.write("                <HashAlgorithmIndicator>01</HashAlgorithmIndicator>\n");
+        out.write("                <Hash>\n");
+        out.write("                    " + Util.prettyPrintHex(checksum, 20) + "\n");
+        out.write("                </Hash>\n");
+        out.write("                <PublicKeyAlgorithmIndicator>01</PublicKeyAlgorithmIndicator>\n");
+        out.write("            </PublicKey>\n");
+        out.write("        </PublicKeys>\n");
+        out.write("    </CA>\n");
+        out.write("</CertificationAuthorities>\n");
+    }
+
+    /**
+     * Writes the CardEmulator profile of one card
+     *
+     * @param cardNumber makes the PAN and certificate serial numbers of the card unique
+     */
+    public void writeCardProfile(Writer out, long cardNumber, RSAKeyPair issuerKey, RSAKeyPair iccKey) throws IOException, GeneralSecurityException {
+        byte[] aid = new byte[DEFAULT_AID.length];
+        System.arraycopy(rid, 0, aid, 0, rid.length);
+        System.arraycopy(DEFAULT_AID, rid.length, aid, rid.length, aid.length - rid.length);
+        String panDigits = createPAN(cardNumber);
+        byte[] pan = Util.fromHexString(panDigits);
+        byte[] serialNumber = Util.resizeArray(Util.intToByteArray((int) (cardNumber & 0xFFFFFF)), 3);
+
+        byte[] issuerModulus = modulusBytes(issuerKey);
+        byte[] iccModulus = modulusBytes(iccKey);
+        int caKeyLength = modulusLength(caKey);
+
+        //Records involved in offline data authentication
+        TLVWriter writer = new TLVWriter(1024);
+        writer.startConstructed(EMVTags.RECORD_TEMPLATE)
+                .write(EMVTags.APP_EXPIRATION_DATE, Util.fromHexString("49 12 31"))
+                .write(EMVTags.APP_EFFECTIVE_DATE, Util.fromHexString("09 02 05"))
+                .write(EMVTags.PAN, pan)
+                .write(EMVTags.PAN_SEQUENCE_NUMBER, new byte[]{0x01})
+                .write(EMVTags.APP_USAGE_CONTROL, Util.fromHexString("ff 00"))
+                .write(EMVTags.CVM_LIST, Util.fromHexString("00 00 00 00 00 00 00 00 42 01 41 03 5e 03 42 03 1f 00"))
+                .write(EMVTags.ISSUER_ACTION_CODE_DEFAULT, Util.fromHexString("f0 20 24 28 00"))
+                .write(EMVTags.ISSUER_ACTION_CODE_DENIAL, Util.fromHexString("00 50 80 00 00"))
+                .write(EMVTags.ISSUER_ACTION_CODE_ONLINE, Util.fromHexString("f0 28 3c f8 00"))
+                .write(EMVTags.ISSUER_COUNTRY_CODE, Util.fromHexString("05 78"))
+                .endConstructed();
+        byte[] record2 = writer.toByteArray();
+        writer.reset();
+        writer.startConstructed(EMVTags.RECORD_TEMPLATE)
+                .write(EMVTags.APPLICATION_CURRENCY_CODE, Util.fromHexString("05 78"))
+                .write(EMVTags.APP_CURRENCY_EXPONENT, new byte[]{0x02})
+                .write(EMVTags.APP_VERSION_NUMBER_CARD, Util.fromHexString("00 8c"))
+                .write(EMVTags.CDOL1, Util.fromHexString("9f 02 06 9f 03 06 9f 1a 02 95 05 5f 2a 02 9a 03 9c 01 9f 37 04"))
+                .write(EMVTags.CDOL2, Util.fromHexString("8a 02 9f 02 06 9f 03 06 9f 1a 02 95 05 5f 2a 02 9a 03 9c 01 9f 37 04"))
+                .write(EMVTags.SERVICE_CODE, Util.fromHexString("02 01"))
+                .write(EMVTags.DDOL, Util.fromHexString("9f 37 04"))
+                .write(EMVTags.SDA_TAG_LIST, new byte[]{(byte) 0x82}) //AIP
+                .endConstructed();
+        byte[] record3 = writer.toByteArray();
+
+        //Static data to be authenticated: the records without tag and length, and the AIP (SDA Tag List)
+        ByteArrayOutputStream staticData = new ByteArrayOutputStream(record2.length + record3.length + AIP.length);
+        appendRecordValue(staticData, record2);
+        appendRecordValue(staticData, record3);
+        staticData.write(AIP, 0, AIP.length);
+        byte[] staticDataToBeAuthenticated = staticData.toByteArray();
+
+        //Issuer Public Key Certificate (EMV Book 2, table 6)
+        int issuerModulusInCert = caKeyLength - 36;
+        byte[] issuerIdentifier = Util.fromHexString(panDigits.substring(0, 6) + "FF");
+        ByteArrayOutputStream cert = new ByteArrayOutputStream(caKeyLength);
+        cert.write(0x02);
+        cert.write(issuerIdentifier, 0, issuerIdentifier.length);
+        cert.write(EXPIRATION_DATE_MMYY, 0, EXPIRATION_DATE_MMYY.length);
+        cert.write(serialNumber, 0, serialNumber.length);
+        cert.write(0x01); //Hash Algorithm Indicator
+        cert.write(0x01); //Issuer Public Key Algorithm Indicator
+        cert.write(issuerModulus.length);
+        cert.write(PUBLIC_EXPONENT_BYTES.length);
+        byte[] issuerCertBody = cert.toByteArray();
+        MessageDigest sha1 = Util.getSHA1Digest();
+        sha1.update(issuerCertBody);
+        sha1.update(issuerModulus);
+        sha1.update(PUBLIC_EXPONENT_BYTES);
+        byte[] issuerCert = sign(caKey, issuerCertBody, issuerModulus, issuerModulusInCert, sha1.digest());
+        byte[] issuerRemainder = Arrays.copyOfRange(issuerModulus, issuerModulusInCert, issuerModulus.length);
+
+        //ICC Public Key Certificate (EMV Book 2, table 14)
+        int iccModulusInCert = issuerModulus.length - 42;
+        byte[] panField = Util.fromHexString(panDigits + "FFFF"); //16 digit PAN, padded to 10 bytes
+        cert.reset();
+        cert.write(0x04);
+        cert.write(panField, 0, panField.length);
+        cert.write(EXPIRATION_DATE_MMYY, 0, EXPIRATION_DATE_MMYY.length);
+        cert.write(serialNumber, 0, serialNumber.length);
+        cert.write(0x01);
+        cert.write(0x01);
+        cert.write(iccModulus.length);
+        cert.write(PUBLIC_EXPONENT_BYTES.length);
+        byte[] iccCertBody = cert.toByteArray();
+        sha1.reset();
+        sha1.update(iccCertBody);
+        sha1.update(iccModulus);
+        for (int i = iccModulus.length; i < iccModulusInCert; i++) {
+            sha1.update((byte) 0xbb);
+        }
+        sha1.update(PUBLIC_EXPONENT_BYTES);
+        sha1.update(staticDataToBeAuthenticated);
+        byte[] iccCert = sign(issuerKey, iccCertBody, iccModulus, iccModulusInCert, sha1.digest());
+        byte[] iccRemainder = iccModulus.length > iccModulusInCert
+                ? Arrays.copyOfRange(iccModulus, iccModulusInCert, iccModulus.length) : new byte[0];
+
+        //Signed Static Application Data (EMV Book 2, table 7)
+        byte[] ssadBody = Util.fromHexString("03 01 " + Util.prettyPrintHexNoWrap(serialNumber, 1, 2)); //Data Authentication Code
+        sha1.reset();
+        sha1.update(ssadBody);
+        for (int i = ssadBody.length; i < issuerModulus.length - 22; i++) {
+            sha1.update((byte) 0xbb);
+        }
+        sha1.update(staticDataToBeAuthenticated);
+        byte[] ssad = sign(issuerKey, ssadBody, new byte[0], issuerModulus.length - 22 - ssadBody.length, sha1.digest());
+
+        writer.reset();
+        writer.startConstructed(EMVTags.RECORD_TEMPLATE)
+                .write(EMVTags.CA_PUBLIC_KEY_INDEX_CARD, new byte[]{(byte) caIndex})
+                .write(EMVTags.ISSUER_PUBLIC_KEY_CERT, issuerCert)
+                .write(EMVTags.ISSUER_PUBLIC_KEY_EXP, PUBLIC_EXPONENT_BYTES)
+                .write(EMVTags.ISSUER_PUBLIC_KEY_REMAINDER, issuerRemainder)
+                .endConstructed();
+        byte[] record4 = writer.toByteArray();
+        writer.reset();
+        writer.startConstructed(EMVTags.RECORD_TEMPLATE)
+                .write(EMVTags.SIGNED_STATIC_APP_DATA, ssad)
+                .endConstructed();
+        byte[] record5 = writer.toByteArray();
+        writer.reset();
+        writer.startConstructed(EMVTags.RECORD_TEMPLATE)
+                .write(EMVTags.ICC_PUBLIC_KEY_CERT, iccCert)
+                .write(EMVTags.ICC_PUBLIC_KEY_EXP, PUBLIC_EXPONENT_BYTES);
+        if (iccRemainder.length > 0) {
+            writer.write(EMVTags.ICC_PUBLIC_KEY_REMAINDER, iccRemainder);
+        }
+        writer.endConstructed();
+        byte[] record6 = writer.toByteArray();
+        writer.reset();
+        writer.startConstructed(EMVTags.RECORD_TEMPLATE)
+                .write(EMVTags.TRACK_2_EQV_DATA, Util.fromHexString(panDigits + "D4912201000000000F"))
+                .write(EMVTags.CARDHOLDER_NAME, ("TEST/CARD " + cardNumber).getBytes("US-ASCII"))
+                .endConstructed();
+        byte[] record1 = writer.toByteArray();
+
+        writer.reset();
+        writer.startConstructed(EMVTags.FCI_TEMPLATE)
+                .write(EMVTags.DEDICATED_FILE_NAME, aid)
+                .startConstructed(EMVTags.FCI_PROPRIETARY_TEMPLATE)
+                .write(EMVTags.APPLICATION_LABEL, "TEST".getBytes("US-ASCII"))
+                .write(EMVTags.APPLICATION_PRIORITY_INDICATOR, new byte[]{0x01})
+                .endConstructed()
+                .endConstructed();
+        byte[] adf = writer.toByteArray();
+
+        //AFL: record 1, records 2-3 (both used in offline data authentication), records 4-6
+        byte[] gpo = Util.fromHexString("80 0e " + Util.prettyPrintHexNoWrap(AIP) + " 08 01 01 00 08 02 03 02 08 04 06 00");
+
+        RSAPrivateKey iccPrivateKey = iccKey.getPrivateKey();
+        out.write("<!-- Generated test card " + cardNumber + ". For testing only -->\n");
+        out.write("<EMVCard>\n");
+        out.write("    <ATR>3B 67 00 00 A6 40 40 00 09 90 00</ATR>\n");
+        out.write("    <Applications>\n");
+        out.write("        <Application AID=\"" + Util.prettyPrintHexNoWrap(aid) + "\">\n");
+        out.write("            <PIN>1234</PIN>\n");
+        writeHexElement(out, "ApplicationDefinitionFile", adf, 12);
+        out.write("            <Files>\n");
+        out.write("                <ElementaryFile sfi=\"1\">\n");
+        byte[][] records = {record1, record2, record3, record4, record5, record6};
+        for (int i = 0; i < records.length; i++) {
+            out.write("                    <Record number=\"" + (i + 1) + "\">\n");
+            out.write("                        " + Util.prettyPrintHexNoWrap(records[i]) + "\n");
+            out.write("                    </Record>\n");
+        }
+        out.write("                </ElementaryFile>\n");
+        out.write("            </Files>\n");
+        out.write("            <GetDataElements>\n");
+        out.write("                <ATC>00 01</ATC>\n");
+        out.write("                <LastOnlineATC>00 01</LastOnlineATC>\n");
+        out.write("                <PINTryCounter>03</PINTryCounter>\n");
+        out.write("            </GetDataElements>\n");
+        writeHexElement(out, "GetProcessingOptions", gpo, 12);
+        out.write("            <ICCPrivateKey>\n");
+        writeHexElement(out, "Modulus", iccModulus, 16);
+        writeHexElement(out, "PrivateExponent", Util.resizeArray(toUnsignedBytes(iccPrivateKey.getPrivateExponent()), iccModulus.length), 16);
+        out.write("            </ICCPrivateKey>\n");
+        out.write("        </Application>\n");
+        out.write("    </Applications>\n");
+        out.write("</EMVCard>\n");
+    }
+
+    /**
+     * Generates 'count' cards into the directory, in parallel
+     *
+     * @param issuerPool the issuer keys to use, or null to generate a new issuer key for each card
+     * @param iccPool the ICC keys to use, or null to generate a new ICC key for each card
+     * @return the counters of the run (keys in the pools are not counted)
+     * @throws IllegalArgumentException if the keys of a pool do not have the issuer/ICC key length of this generator
+     */
+    public Stats generate(long count, File dir, int threads, final RSAKeyGenerator.KeyPool issuerPool, final RSAKeyGenerator.KeyPool iccPool) throws IOException, InterruptedException, GeneralSecurityException {
+        if (issuerPool != null && issuerPool.getNumBits() != issuerKeyBits) {
+            throw new IllegalArgumentException("Issuer key pool has " + issuerPool.getNumBits() + " bit keys, expected " + issuerKeyBits + " bits");
+        }
+        if (iccPool != null && iccPool.getNumBits() != iccKeyBits) {
+            throw new IllegalArgumentException("ICC key pool has " + iccPool.getNumBits() + " bit keys, expected " + iccKeyBits + " bits");
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory " + dir);
+        }
+        return generate(count, dir, threads, issuerPool, iccPool, new Stats());
+    }
+
+    private Stats generate(long count, final File dir, int threads, final RSAKeyGenerator.KeyPool issuerPool, final RSAKeyGenerator.KeyPool iccPool, final Stats stats) throws IOException, InterruptedException, GeneralSecurityException {
+        Writer caOut = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(dir, CA_FILE_NAME)), "UTF-8"));
+        try {
+            writeCAXml(caOut);
+        } finally {
+            caOut.close();
+        }
+
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        final Semaphore pending = new Semaphore(threads * 4);
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "sasc-cardgen-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            for (long i = 1; i <= count && failure.get() == null; i++) {
+                final long cardNumber = i;
+                pending.acquire();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            RSAKeyPair issuerKey;
+                            if (issuerPool != null) {
+                                issuerKey = issuerPool.next();
+                            } else {
+                                issuerKey = RSAKeyGenerator.generateRSAKeys(issuerKeyBits, PUBLIC_EXPONENT);
+                                stats.addKeys(1);
+                            }
+                            RSAKeyPair iccKey;
+                            if (iccPool != null) {
+                                iccKey = iccPool.next();
+                            } else {
+                                iccKey = RSAKeyGenerator.generateRSAKeys(iccKeyBits, PUBLIC_EXPONENT);
+                                stats.addKeys(1);
+                            }
+                            File file = new File(dir, String.format(Locale.ENGLISH, "card-%08d.xml", cardNumber));
+                            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+                            try {
+                                writeCardProfile(out, cardNumber, issuerKey, iccKey);
+                            } finally {
+                                out.close();
+                            }
+                            stats.cards.incrementAndGet();
+                        } catch (Exception ex) {
+                            failure.compareAndSet(null, ex);
+                        } finally {
+                            pending.release();
+                        }
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                //Wait for the queued cards
+            }
+            stats.finish();
+        }
+        Exception ex = failure.get();
+        if (ex instanceof IOException) {
+            throw (IOException) ex;
+        }
+        if (ex instanceof GeneralSecurityException) {
+            throw (GeneralSecurityException) ex;
+        }
+        if (ex != null) {
+            throw new RuntimeException(ex);
+        }
+        return stats;
+    }
+
+    //Signs header(6A) + body + key bytes (padded with BB) + hash + trailer(BC) with the private key
+    private static byte[] sign(RSAKeyPair signer, byte[] body, byte[] key, int keyFieldLength, byte[] hash) throws GeneralSecurityException {
+        int length = modulusLength(signer);
+        byte[] data = new byte[length];
+        int pos = 0;
+        data[pos++] = 0x6a;
+        System.arraycopy(body, 0, data, pos, body.length);
+        pos += body.length;
+        int keyBytes = Math.min(key.length, keyFieldLength);
+        System.arraycopy(key, 0, data, pos, keyBytes);
+        Arrays.fill(data, pos + keyBytes, pos + keyFieldLength, (byte) 0xbb);
+        pos += keyFieldLength;
+        System.arraycopy(hash, 0, data, pos, hash.length);
+        pos += hash.length;
+        data[pos++] = (byte) 0xbc;
+        if (pos != length) {
+            throw new IllegalStateException("Signed data length " + pos + " != key length " + length);
+        }
+        Cipher cipher = Cipher.getInstance("RSA/ECB/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, signer.getPrivateKey());
+        return Util.resizeArray(cipher.doFinal(data), length);
+    }
+
+    private static void appendRecordValue(ByteArrayOutputStream out, byte[] record) {
+        //Record template tag (70) and length are not included
+        int lengthBytes = (record[1] & 0x80) != 0 ? 1 + (record[1] & 0x7F) : 1;
+        out.write(record, 1 + lengthBytes, record.length - 1 - lengthBytes);
+    }
+
+    private static void writeHexElement(Writer out, String name, byte[] data, int indent) throws IOException {
+        String spaces = Util.getSpaces(indent);
+        out.write(spaces + "<" + name + ">\n");
+        out.write(spaces + "    " + Util.prettyPrintHex(data, indent + 4) + "\n");
+        out.write(spaces + "</" + name + ">\n");
+    }
+
+    private static String createPAN(long cardNumber) {
+        String digits = "5411" + String.format(Locale.ENGLISH, "%011d", cardNumber % 100000000000L);
+        int sum = 0;
+        for (int i = 0; i < digits.length(); i++) {
+            int digit = digits.charAt(digits.length() - 1 - i) - '0';
+            if (i % 2 == 0) {
+                digit *= 2;
+                if (digit > 9) {
+                    digit -= 9;
+                }
+            }
+            sum += digit;
+        }
+        return digits + ((10 - sum % 10) % 10); //Luhn check digit
+    }
+
+    private static int modulusLength(RSAKeyPair keyPair) {
+        return (keyPair.getPublicKey().getModulus().bitLength() + 7) / 8;
+    }
+
+    private static byte[] modulusBytes(RSAKeyPair keyPair) {
+        RSAPublicKey publicKey = keyPair.getPublicKey();
+        return Util.resizeArray(toUnsignedBytes(publicKey.getModulus()), modulusLength(keyPair));
+    }
+
+    private static byte[] toUnsignedBytes(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        if (bytes.length > 1 && bytes[0] == 0) {
+            return Arrays.copyOfRange(bytes, 1, bytes.length);
+        }
+        return bytes;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long count = 100;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int poolSize = 0;
+        File dir = new File("generated-cards");
+
+        Option helpOption = new Option("help", "print this message");
+        Option countOption = new Option("count", true, "the number of cards to generate (default: 100)");
+        Option threadsOption = new Option("threads", true, "the number of generator threads (default: number of processors)");
+        Option poolOption = new Option("pool", true, "share a pool of this many pre-generated issuer and ICC keys among the cards (default: new keys for each card)");
+        Option dirOption = new Option("dir", true, "the output directory (default: generated-cards)");
+
+        Options options = new Options();
+        options.addOption(helpOption);
+        options.addOption(countOption);
+        options.addOption(threadsOption);
+        options.addOption(poolOption);
+        options.addOption(dirOption);
+
+        CommandLineParser parser = new GnuParser();
+        try {
+            CommandLine line = parser.parse(options, args);
+            if (line.hasOption("help")) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp("BulkTestCardGenerator", options, true);
+                System.exit(0);
+            }
+            if (line.hasOption("count")) {
+                count = Long.parseLong(line.getOptionValue("count"));
+            }
+            if (line.hasOption("threads")) {
+                threads = Integer.parseInt(line.getOptionValue("threads"));
+            }
+            if (line.hasOption("pool")) {
+                poolSize = Integer.parseInt(line.getOptionValue("pool"));
+            }
+            if (line.hasOption("dir")) {
+                dir = new File(line.getOptionValue("dir"));
+            }
+        } catch (ParseException ex) {
+            System.err.println("Parsing failed.  Reason: " + ex.getMessage());
+            System.exit(-1);
+        } catch (NumberFormatException ex) {
+            System.err.println("Invalid number: " + ex.getMessage());
+            System.exit(-1);
+        }
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory " + dir);
+        }
+        Stats stats = new Stats();
+        RSAKeyPair caKey = RSAKeyGenerator.generateRSAKeys(DEFAULT_CA_KEY_BITS, PUBLIC_EXPONENT);
+        stats.addKeys(1);
+        BulkTestCardGenerator generator = new BulkTestCardGenerator(caKey, DEFAULT_RID, DEFAULT_CA_INDEX, DEFAULT_ISSUER_KEY_BITS, DEFAULT_ICC_KEY_BITS);
+        RSAKeyGenerator.KeyPool issuerPool = null;
+        RSAKeyGenerator.KeyPool iccPool = null;
+        if (poolSize > 0) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                issuerPool = RSAKeyGenerator.KeyPool.generate(poolSize, DEFAULT_ISSUER_KEY_BITS, PUBLIC_EXPONENT, executor);
+                iccPool = RSAKeyGenerator.KeyPool.generate(poolSize, DEFAULT_ICC_KEY_BITS, PUBLIC_EXPONENT, executor);
+                stats.addKeys(poolSize * 2);
+            } finally {
+                executor.shutdown();
+            }
+        }
+        generator.generate(count, dir, threads, issuerPool, iccPool, stats);
+        System.out.println(stats);
+        System.out.println("CA keys: " + new File(dir, CA_FILE_NAME));
+    }
+}
@@ -18,12 +18,19 @@ package sasc;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import nanoxml.XMLElement;
 import sasc.iso7816.AID;
 import sasc.emv.EMVSession;
+import sasc.emv.EMVTags;
+import sasc.iso7816.TLVWriter;
 import sasc.util.Log;
 import sasc.emv.SW;
 import sasc.smartcard.common.SessionProcessingEnv;
@@ -50,6 +57,20 @@ public class CardEmulator implements CardConnection {
         _initFromFile(filename);
     }
 
+    /**
+     * Loads the card from XML read from the reader (the reader is not closed)
+     */
+    public CardEmulator(Reader reader) throws TerminalException {
+        _init(reader);
+    }
+
+    /**
+     * @return the AIDs of the applications on the emulated card, in file order
+     */
+    public List<AID> getApplicationAIDs() {
+        return new ArrayList<AID>(card.applicationsMap.keySet());
+    }
+
     @Override
     public void resetCard() throws TerminalException {
         throw new UnsupportedOperationException("Not supported yet.");
@@ -86,6 +107,8 @@ public class CardEmulator implements CardConnection {
         byte[] logFormat = null;
         byte[] getProcessingOpts = null;
         byte[] adf = null;
+        byte[] iccPrivateKeyModulus = null; //Only needed to emulate INTERNAL AUTHENTICATE (DDA)
+        byte[] iccPrivateKeyExponent = null;
         Map<Integer, File> filesMap = null;
     }
 
@@ -101,9 +124,13 @@ public class CardEmulator implements CardConnection {
     }
 
     private void _initFromFile(String filename) {
+        _init(new InputStreamReader(Util.loadResource(CardEmulator.class, filename)));
+    }
+
+    private void _init(Reader reader) {
         try {
             XMLElement emvCardElement = new XMLElement();
-            emvCardElement.parseFromReader(new InputStreamReader(Util.loadResource(CardEmulator.class, filename)));
+            emvCardElement.parseFromReader(reader);
 
             if (!"EMVCard".equalsIgnoreCase(emvCardElement.getName())) {
                 throw new RuntimeException("Unexpected Root Element: <" + emvCardElement.getName() + "> . Expected <EMVCard>");
@@ -182,6 +209,8 @@ public class CardEmulator implements CardConnection {
                         app.getProcessingOpts = Util.fromHexString(Util.removeCRLFTab(appChildElement.getContent().trim()));
                     } else if ("Files".equalsIgnoreCase(appChildElementName)) {
                         app.filesMap = parseFilesElement(appChildElement);
+                    } else if ("ICCPrivateKey".equalsIgnoreCase(appChildElementName)) {
+                        parseICCPrivateKeyElement(appChildElement, app);
                     } else {
                         throw new RuntimeException("Unexpected XML Element: <" + appChildElementName + "> : " + appChildElement);
                     }
@@ -193,6 +222,20 @@ public class CardEmulator implements CardConnection {
         return map;
     }
 
+    private void parseICCPrivateKeyElement(XMLElement keyElement, Application app) {
+        for (Object keyChildObject : keyElement.getChildren()) {
+            XMLElement keyChildElement = (XMLElement) keyChildObject;
+            String keyChildElementName = keyChildElement.getName();
+            if ("Modulus".equalsIgnoreCase(keyChildElementName)) {
+                app.iccPrivateKeyModulus = Util.fromHexString(Util.removeCRLFTab(keyChildElement.getContent().trim()));
+            } else if ("PrivateExponent".equalsIgnoreCase(keyChildElementName)) {
+                app.iccPrivateKeyExponent = Util.fromHexString(Util.removeCRLFTab(keyChildElement.getContent().trim()));
+            } else {
+                throw new RuntimeException("Unexpected XML Element: <" + keyChildElementName + "> : " + keyChildElement);
+            }
+        }
+    }
+
     private void parseGetDataElement(XMLElement getDataElement, Application app) {
         for (Object getDataChildObject : getDataElement.getChildren()) {
             XMLElement getDataChildElement = (XMLElement) getDataChildObject;
@@ -243,7 +286,7 @@ public class CardEmulator implements CardConnection {
         byte p1 = cmd[2];
         byte p2 = cmd[3];
 
-        Log.debug("Emulator.transmit() cmdStr: " + cmdStr);
+        Log.debug("Emulator.transmit() cmdStr: %s", cmdStr);
 
         byte[] responseBytes = null;
 
@@ -259,6 +302,9 @@ public class CardEmulator implements CardConnection {
                     case (byte) 0x20: //VERIFY
                         responseBytes = processVerify(cmd);
                         break;
+                    case (byte) 0x88: //INTERNAL AUTHENTICATE
+                        responseBytes = processInternalAuthenticate(cmd);
+                        break;
                     default:
                         throw new RuntimeException("INS " + Util.byte2Hex(ins) + " not implemented yet. cmd=" + cmdStr);
                 }
@@ -292,7 +338,7 @@ public class CardEmulator implements CardConnection {
             throw new RuntimeException("No response found for cmd: " + cmdStr + ". AID=" + card.selectedApp.aid);
         }
 
-        Log.debug("Emulator response:: " + Util.prettyPrintHex(responseBytes));
+        Log.debug("Emulator response:: %s", Log.prettyHex(responseBytes));
 
         response = new CardResponseImpl(responseBytes);
 
@@ -419,6 +465,46 @@ public class CardEmulator implements CardConnection {
         return createResponse(card.selectedApp.getProcessingOpts, SW.SUCCESS);
     }
 
+    //Responds with the Signed Dynamic Application Data in format 1 (EMV Book 2, table 17)
+    private byte[] processInternalAuthenticate(byte[] cmd) {
+        if (card.selectedApp == null) {
+            return createResponse(null, SW.COMMAND_NOT_ALLOWED_CONDITIONS_OF_USE_NOT_SATISFIED);
+        }
+        byte[] modulus = card.selectedApp.iccPrivateKeyModulus;
+        if (modulus == null || card.selectedApp.iccPrivateKeyExponent == null) {
+            return createResponse(null, SW.INSTRUCTION_CODE_NOT_SUPPORTED_OR_INVALID);
+        }
+        byte[] terminalDynamicData = getDataBytes(cmd);
+        byte[] iccDynamicNumber = Util.generateRandomBytes(2);
+
+        ByteArrayOutputStream sdad = new ByteArrayOutputStream(modulus.length);
+        sdad.write(0x6a); //Header
+        sdad.write(0x05); //Signed Data Format
+        sdad.write(0x01); //Hash Algorithm Indicator (SHA-1)
+        sdad.write(iccDynamicNumber.length + 1); //ICC Dynamic Data Length
+        sdad.write(iccDynamicNumber.length);
+        sdad.write(iccDynamicNumber, 0, iccDynamicNumber.length);
+        while (sdad.size() < modulus.length - 21) {
+            sdad.write(0xbb); //Padding
+        }
+        byte[] unsigned = sdad.toByteArray();
+        MessageDigest sha1;
+        try {
+            sha1 = Util.getSHA1Digest();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException("SHA-1 hash algorithm not available", ex);
+        }
+        sha1.update(unsigned, 1, unsigned.length - 1); //Header not included in hash
+        sha1.update(terminalDynamicData);
+        sdad.write(sha1.digest(), 0, 20);
+        sdad.write(0xbc); //Trailer
+
+        byte[] signed = Util.resizeArray(Util.performRSA(sdad.toByteArray(), card.selectedApp.iccPrivateKeyExponent, modulus), modulus.length);
+        TLVWriter writer = new TLVWriter(signed.length + 4);
+        writer.write(EMVTags.RESPONSE_MESSAGE_TEMPLATE_1, signed);
+        return createResponse(writer.toByteArray(), SW.SUCCESS);
+    }
+
     private byte[] processVerify(byte[] cmd) {
         if (card.selectedApp == null) {
             return createResponse(null, SW.COMMAND_NOT_ALLOWED_CONDITIONS_OF_USE_NOT_SATISFIED); //TODO check correct SW
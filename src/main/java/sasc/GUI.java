@@ -40,6 +40,7 @@ import sasc.smartcard.common.CardExplorer;
 import sasc.smartcard.common.SmartCard;
 import sasc.emv.EMVTerminal;
 import sasc.util.Log;
+import sasc.util.AsyncLogWriter;
 
 /**
  *
@@ -112,6 +113,8 @@ public class GUI extends SingleFrameApplication {
         };
 
         Log.setPrintWriter(new PrintWriter(new PrintStream(out, true)));
+        //Don't let the text area slow down the card communication
+        Log.enableAsync(AsyncLogWriter.DEFAULT_CAPACITY, AsyncLogWriter.OverflowPolicy.DROP_DEBUG);
         System.setOut(new PrintStream(out, true));
         System.setErr(new PrintStream(out, true));
 
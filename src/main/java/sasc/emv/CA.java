@@ -18,8 +18,10 @@ package sasc.emv;
 import sasc.iso7816.SmartCardException;
 import sasc.iso7816.AID;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -30,6 +32,8 @@ import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import nanoxml.XMLElement;
 import sasc.util.ByteArrayWrapper;
 import sasc.util.Util;
@@ -65,26 +69,55 @@ import sasc.util.Util;
  */
 public class CA {
 
-    private static final Map<ByteArrayWrapper, CA> certificationAuthorities = new LinkedHashMap<ByteArrayWrapper, CA>();
+    //Replaced as a whole (never modified after publication), so a reload is atomic for readers.
+    //Writers copy, change and publish it while holding the CA.class lock, so concurrent updates are not lost
+    private static volatile Map<ByteArrayWrapper, CA> certificationAuthorities = new LinkedHashMap<ByteArrayWrapper, CA>();
+    private static volatile CAKeyStore currentKeyStore = null;
     private byte[] rid;
     private String name;
     private String description;
     private Map<Integer, CAPublicKey> publicKeys = publicKeys = new LinkedHashMap<Integer, CAPublicKey>();
+    //Set for CAs loaded from a key store: the keys are resolved from the mapped file on first use, and cached
+    private CAKeyStore keyStore = null;
+    private final ConcurrentMap<Integer, CAPublicKey> resolvedKeys = new ConcurrentHashMap<Integer, CAPublicKey>();
     private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("dd MMM yyyy", Locale.ENGLISH);
 
+    /**
+     * System property with the path of a binary CA key store (see CAKeyStore) to load instead of the XML file
+     */
+    public static final String KEY_STORE_PROPERTY = "sasc.ca.keystore";
+
     static {
-        _initFromFile("/certificationauthorities.xml");
+        String keyStoreFile = System.getProperty(KEY_STORE_PROPERTY);
+        if (keyStoreFile != null) {
+            initFromKeyStore(new File(keyStoreFile));
+        } else {
+            _initFromFile("/certificationauthorities.xml");
+        }
     }
 
-    private static void _initFromFile(String filename) {
-        certificationAuthorities.clear();
-        addFromXmlFile(filename);
+    private static synchronized void _initFromFile(String filename) {
+        Map<ByteArrayWrapper, CA> cas = new LinkedHashMap<ByteArrayWrapper, CA>();
+        addFromXml(loadXml(filename), cas);
+        currentKeyStore = null;
+        certificationAuthorities = cas;
     }
 
     private CA() {
         //Private constructor
     }
 
+    private CA copy() {
+        CA ca = new CA();
+        ca.rid = rid;
+        ca.name = name;
+        ca.description = description;
+        for (CAPublicKey publicKey : getCAPublicKeys()) {
+            ca.publicKeys.put(Integer.valueOf(publicKey.getIndex()), publicKey);
+        }
+        return ca;
+    }
+
     public static byte[] calculateCAPublicKeyCheckSum(byte[] rid, byte[] caPublicKeyIndex, byte[] caPublicKeyMod, byte[] caPublicKeyExp) {
         ByteArrayOutputStream stream = new ByteArrayOutputStream(rid.length + caPublicKeyIndex.length + caPublicKeyMod.length + caPublicKeyExp.length);
         stream.write(rid, 0, rid.length);
@@ -101,13 +134,36 @@ public class CA {
     }
 
     public Collection<CAPublicKey> getCAPublicKeys() {
-        return Collections.unmodifiableCollection(publicKeys.values());
+        CAKeyStore store = keyStore;
+        if (store == null) {
+            return Collections.unmodifiableCollection(publicKeys.values());
+        }
+        Map<Integer, CAPublicKey> keys = new LinkedHashMap<Integer, CAPublicKey>();
+        for (Integer index : store.getIndexes(rid)) {
+            keys.put(index, getPublicKey(index.intValue()));
+        }
+        return Collections.unmodifiableCollection(keys.values());
     }
 
     //The RID and the Certification Public Key Index together uniquely identify the
     //Certification Authority Public Key and associate it with the proper Payment System
     public CAPublicKey getPublicKey(int index) {
-        return publicKeys.get(new Integer(index));
+        CAKeyStore store = keyStore;
+        if (store == null) {
+            return publicKeys.get(new Integer(index));
+        }
+        Integer idx = Integer.valueOf(index);
+        CAPublicKey publicKey = resolvedKeys.get(idx);
+        if (publicKey == null) {
+            publicKey = store.getPublicKey(rid, index); //The checksum is verified here, once per key
+            if (publicKey != null) {
+                CAPublicKey existing = resolvedKeys.putIfAbsent(idx, publicKey);
+                if (existing != null) {
+                    publicKey = existing;
+                }
+            }
+        }
+        return publicKey;
     }
 
     public byte[] getRID() {
@@ -163,10 +219,83 @@ public class CA {
         _initFromFile(fileName);
     }
 
+    /**
+     * Replaces all CAs with the CAs of a binary key store (see CAKeyStore).
+     * Only the CA entries are read here. Each key is looked up in the memory-mapped file (and its checksum
+     * verified) on first use, and then cached, so loading does not depend on the number of keys.
+     * The replacement is atomic: lookups see either the old or the new CAs.
+     */
+    public static synchronized void initFromKeyStore(File file) {
+        CAKeyStore store;
+        try {
+            store = CAKeyStore.open(file);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        Map<ByteArrayWrapper, CA> cas = new LinkedHashMap<ByteArrayWrapper, CA>();
+        for (int i = 0; i < store.getCACount(); i++) {
+            CA ca = new CA();
+            ca.setRID(store.getRID(i));
+            ca.setName(store.getName(i));
+            ca.setDescription(store.getDescription(i));
+            ca.keyStore = store;
+            cas.put(ByteArrayWrapper.wrapperAround(ca.getRID()), ca);
+        }
+        currentKeyStore = store;
+        certificationAuthorities = cas;
+    }
+
+    /**
+     * Reloads the CAs if the key store file loaded with initFromKeyStore(File) has been replaced or modified
+     *
+     * @return true if the CAs were reloaded
+     */
+    public static synchronized boolean reloadKeyStoreIfModified() {
+        CAKeyStore store = currentKeyStore;
+        if (store == null || !store.isModified()) {
+            return false;
+        }
+        initFromKeyStore(store.getFile());
+        return true;
+    }
+
     public static void addFromXmlFile(String fileName) {
+        addFromXml(loadXml(fileName));
+    }
+
+    /**
+     * Adds the CAs (or keys of known CAs) of an XML document, such as a file written by BulkTestCardGenerator
+     */
+    public static synchronized void addFromXml(Reader reader) {
+        Map<ByteArrayWrapper, CA> cas = new LinkedHashMap<ByteArrayWrapper, CA>();
+        for (Map.Entry<ByteArrayWrapper, CA> entry : certificationAuthorities.entrySet()) {
+            cas.put(entry.getKey(), entry.getValue().copy());
+        }
+        addFromXml(reader, cas);
+        certificationAuthorities = cas;
+    }
+
+    /**
+     * Parses CAs from XML (without adding them)
+     */
+    static Collection<CA> parseXml(Reader reader) {
+        Map<ByteArrayWrapper, CA> cas = new LinkedHashMap<ByteArrayWrapper, CA>();
+        addFromXml(reader, cas);
+        return cas.values();
+    }
+
+    private static Reader loadXml(String fileName) {
+        try {
+            return new InputStreamReader(Util.loadResource(CA.class, fileName), "UTF-8");
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static void addFromXml(Reader reader, Map<ByteArrayWrapper, CA> target) {
         try {
             XMLElement certificationAuthoritiesElement = new XMLElement();
-            certificationAuthoritiesElement.parseFromReader(new InputStreamReader(Util.loadResource(CA.class, fileName), "UTF-8"));
+            certificationAuthoritiesElement.parseFromReader(reader);
             
             if (!"CertificationAuthorities".equalsIgnoreCase(certificationAuthoritiesElement.getName())) {
                 throw new RuntimeException("Unexpected Root Element: <" + certificationAuthoritiesElement.getName() + "> . Expected <CertificationAuthorities>");
@@ -178,11 +307,11 @@ public class CA {
                     throw new SmartCardException("Unexpected RID length: " + rid.length + ". Length must be 5 bytes. RID=" + Util.prettyPrintHexNoWrap(rid));
                 }
 
-                CA ca = CA.getCA(rid);
+                CA ca = target.get(ByteArrayWrapper.wrapperAround(rid));
                 if(ca == null){
                     ca = new CA();
                     ca.setRID(rid);
-                    certificationAuthorities.put(ByteArrayWrapper.wrapperAround(ca.getRID()), ca);
+                    target.put(ByteArrayWrapper.wrapperAround(ca.getRID()), ca);
                 }
                 for (Object caChild : caElement.getChildren()) {
                     XMLElement caChildElement = (XMLElement) caChild;
@@ -256,7 +385,8 @@ public class CA {
         sb.append(",RID=");
         sb.append(Util.byteArrayToHexString(rid));
         sb.append(",NumPublicKeys=");
-        sb.append(publicKeys.size());
+        CAKeyStore store = keyStore;
+        sb.append(store != null ? store.getIndexes(rid).size() : publicKeys.size());
         sb.append(")");
         return sb.toString();
     }
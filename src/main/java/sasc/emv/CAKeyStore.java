@@ -0,0 +1,474 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import sasc.iso7816.SmartCardException;
+import sasc.util.Util;
+
+/**
+ * A compact, read-only binary store of CA public keys, memory-mapped from file.
+ *
+ * Keys are indexed by (RID, CA Public Key Index) in a sorted table and are looked up with a binary search
+ * directly in the mapped file; a CAPublicKey object is created (and its checksum verified) by each lookup.
+ * Since lookups read the mapping, the file must not be modified while a CAKeyStore reads it
+ * (a file that is rewritten or truncated in place changes or invalidates the mapped bytes).
+ *
+ * The store is written from the CAs loaded from XML with {@link #write(Collection, File)} (or {@link #main(String[])}),
+ * which replaces the file by renaming a new file into place, so an open mapping keeps the old file.
+ * It is loaded with CA.initFromKeyStore(File), which keeps the store and resolves each key on first use
+ * (see CA.reloadKeyStoreIfModified() to pick up a replaced file).
+ *
+ * File format (big endian):
+ * <pre>
+ * Header      magic(4) version(2) reserved(2) caCount(4) keyCount(4) caTableOffset(4) keyTableOffset(4)
+ * CA entry    rid(5) reserved(3) nameOffset(4) descriptionOffset(4)
+ * Key entry   rid(5) index(1) modulusLength(2) exponentLength(1) hashAlgorithmIndicator(1)
+ *             publicKeyAlgorithmIndicator(1) reserved(1) dataOffset(4)
+ * Key data    expirationDate(8, ms since epoch) descriptionOffset(4) checksum(20) exponent modulus
+ * String      length(2) UTF-8 bytes
+ * </pre>
+ * The key entries are sorted by RID and index. A string offset of -1 means null.
+ * All offsets, lengths and the sort order are checked when the store is opened, so a truncated or
+ * corrupt file is rejected by open(File) (and by a reload); only the key checksums are verified lazily.
+ *
+ * @author sasc
+ */
+public final class CAKeyStore {
+
+    public static final int MAGIC = 0x5343414B; //SCAK
+    public static final short VERSION = 1;
+    static final int HEADER_SIZE = 24;
+    static final int CA_ENTRY_SIZE = 16;
+    static final int KEY_ENTRY_SIZE = 16;
+    private static final int CHECKSUM_LENGTH = 20;
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    private final File file;
+    private final long lastModified;
+    private final long length;
+    private final ByteBuffer buffer;
+    private final int caCount;
+    private final int keyCount;
+    private final int caTableOffset;
+    private final int keyTableOffset;
+
+    private CAKeyStore(File file, ByteBuffer buffer, long lastModified, long length) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        this.lastModified = lastModified;
+        this.length = length;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a CA key store: " + file);
+        }
+        if (buffer.getShort(4) != VERSION) {
+            throw new IOException("Unsupported CA key store version " + buffer.getShort(4) + ": " + file);
+        }
+        caCount = buffer.getInt(8);
+        keyCount = buffer.getInt(12);
+        caTableOffset = buffer.getInt(16);
+        keyTableOffset = buffer.getInt(20);
+        if (caCount < 0 || keyCount < 0 || caTableOffset < HEADER_SIZE || keyTableOffset < HEADER_SIZE
+                || (long) caTableOffset + (long) caCount * CA_ENTRY_SIZE > buffer.capacity()
+                || (long) keyTableOffset + (long) keyCount * KEY_ENTRY_SIZE > buffer.capacity()) {
+            throw new IOException("Corrupt CA key store header: " + file);
+        }
+        validateEntries();
+    }
+
+    /**
+     * Checks that all offsets and lengths in the tables are inside the file, and that the keys are sorted,
+     * so lookups never read outside the mapping. The key checksums are verified when a key is read
+     */
+    private void validateEntries() throws IOException {
+        for (int i = 0; i < caCount; i++) {
+            int entryOffset = caTableOffset + i * CA_ENTRY_SIZE;
+            checkString(buffer.getInt(entryOffset + 8), "CA entry " + i);
+            checkString(buffer.getInt(entryOffset + 12), "CA entry " + i);
+        }
+        for (int i = 0; i < keyCount; i++) {
+            int entryOffset = keyEntryOffset(i);
+            int modulusLength = buffer.getShort(entryOffset + 6) & 0xFFFF;
+            int exponentLength = buffer.get(entryOffset + 8) & 0xFF;
+            long dataOffset = buffer.getInt(entryOffset + 12);
+            if (dataOffset < HEADER_SIZE || dataOffset + 12 + CHECKSUM_LENGTH + exponentLength + modulusLength > buffer.capacity()) {
+                throw new IOException("Corrupt CA key store: key entry " + i + " data outside the file: " + file);
+            }
+            checkString(buffer.getInt((int) dataOffset + 8), "key entry " + i);
+            if (i > 0 && compareKeyEntries(i - 1, i) >= 0) {
+                throw new IOException("Corrupt CA key store: key entries not sorted at entry " + i + ": " + file);
+            }
+        }
+    }
+
+    private void checkString(int offset, String entry) throws IOException {
+        if (offset == -1) {
+            return;
+        }
+        if (offset < HEADER_SIZE || (long) offset + 2 > buffer.capacity()
+                || (long) offset + 2 + (buffer.getShort(offset) & 0xFFFF) > buffer.capacity()) {
+            throw new IOException("Corrupt CA key store: " + entry + " string outside the file: " + file);
+        }
+    }
+
+    //Compares the (RID, index) of two key entries
+    private int compareKeyEntries(int entry1, int entry2) {
+        int offset1 = keyEntryOffset(entry1);
+        int offset2 = keyEntryOffset(entry2);
+        for (int i = 0; i < 6; i++) {
+            int cmp = (buffer.get(offset1 + i) & 0xFF) - (buffer.get(offset2 + i) & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Maps the key store file (read-only)
+     */
+    public static CAKeyStore open(File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("Param file cannot be null");
+        }
+        long lastModified = file.lastModified();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("CA key store too large: " + file);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return new CAKeyStore(file, buffer, lastModified, size);
+        } finally {
+            in.close(); //The mapping stays valid
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return true if the file has been replaced or modified since it was opened
+     */
+    public boolean isModified() {
+        return file.lastModified() != lastModified || file.length() != length;
+    }
+
+    public int getCACount() {
+        return caCount;
+    }
+
+    public int getKeyCount() {
+        return keyCount;
+    }
+
+    public byte[] getRID(int caEntry) {
+        return getBytes(caTableOffset + caEntry * CA_ENTRY_SIZE, 5);
+    }
+
+    public String getName(int caEntry) {
+        return getString(buffer.getInt(caTableOffset + caEntry * CA_ENTRY_SIZE + 8));
+    }
+
+    public String getDescription(int caEntry) {
+        return getString(buffer.getInt(caTableOffset + caEntry * CA_ENTRY_SIZE + 12));
+    }
+
+    /**
+     * @return the key indexes of the CA, in ascending order
+     */
+    public List<Integer> getIndexes(byte[] rid) {
+        List<Integer> indexes = new ArrayList<Integer>();
+        int entry = findFirst(rid);
+        while (entry < keyCount && compareRID(entry, rid) == 0) {
+            indexes.add(Integer.valueOf(buffer.get(keyEntryOffset(entry) + 5) & 0xFF));
+            entry++;
+        }
+        return indexes;
+    }
+
+    /**
+     * Looks up and materializes a key. The checksum is verified.
+     *
+     * @return the key, or null if not found
+     */
+    public CAPublicKey getPublicKey(byte[] rid, int index) {
+        if (rid == null) {
+            throw new IllegalArgumentException("Param rid cannot be null");
+        }
+        if (rid.length != 5 || index < 0 || index > 0xFF) {
+            return null;
+        }
+        int low = 0;
+        int high = keyCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareRID(mid, rid);
+            if (cmp == 0) {
+                cmp = (buffer.get(keyEntryOffset(mid) + 5) & 0xFF) - index;
+            }
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return readKey(mid, rid, index);
+            }
+        }
+        return null;
+    }
+
+    private CAPublicKey readKey(int entry, byte[] rid, int index) {
+        int entryOffset = keyEntryOffset(entry);
+        int modulusLength = buffer.getShort(entryOffset + 6) & 0xFFFF;
+        int exponentLength = buffer.get(entryOffset + 8) & 0xFF;
+        int hashAlgorithmIndicator = toIndicator(buffer.get(entryOffset + 9));
+        int publicKeyAlgorithmIndicator = toIndicator(buffer.get(entryOffset + 10));
+        int dataOffset = buffer.getInt(entryOffset + 12);
+
+        long expiration = buffer.getLong(dataOffset);
+        String description = getString(buffer.getInt(dataOffset + 8));
+        byte[] checksum = getBytes(dataOffset + 12, CHECKSUM_LENGTH);
+        byte[] exponent = getBytes(dataOffset + 12 + CHECKSUM_LENGTH, exponentLength);
+        byte[] modulus = getBytes(dataOffset + 12 + CHECKSUM_LENGTH + exponentLength, modulusLength);
+
+        byte[] sha1ChecksumResult = CA.calculateCAPublicKeyCheckSum(rid, Util.intToByteArray(index), modulus, exponent);
+        if (!Arrays.equals(checksum, sha1ChecksumResult)) {
+            throw new SmartCardException("Checksum not correct for key index " + index + " for CA RID " + Util.prettyPrintHexNoWrap(rid) + ". Expected " + Util.byteArrayToHexString(checksum) + " but was " + Util.byteArrayToHexString(sha1ChecksumResult));
+        }
+        return new CAPublicKey(index, exponent, modulus, sha1ChecksumResult, publicKeyAlgorithmIndicator, hashAlgorithmIndicator,
+                description, expiration == NO_DATE ? null : new Date(expiration));
+    }
+
+    private static int toIndicator(byte b) {
+        return b == (byte) 0xFF ? -1 : b & 0xFF;
+    }
+
+    private int keyEntryOffset(int entry) {
+        return keyTableOffset + entry * KEY_ENTRY_SIZE;
+    }
+
+    private int compareRID(int entry, byte[] rid) {
+        int offset = keyEntryOffset(entry);
+        for (int i = 0; i < 5; i++) {
+            int cmp = (buffer.get(offset + i) & 0xFF) - (rid[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    //The first key entry with a RID >= rid
+    private int findFirst(byte[] rid) {
+        int low = 0;
+        int high = keyCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareRID(mid, rid) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private byte[] getBytes(int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate(); //Absolute bulk get without touching the shared position
+        view.position(offset);
+        view.get(bytes);
+        return bytes;
+    }
+
+    private String getString(int offset) {
+        if (offset == -1) {
+            return null;
+        }
+        int length = buffer.getShort(offset) & 0xFFFF;
+        try {
+            return new String(getBytes(offset + 2, length), "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Writes the keys of the CAs to a key store file. The file is written to a temporary file and then renamed,
+     * so a key store opened from the same path is never seen half written.
+     */
+    public static void write(Collection<CA> cas, File file) throws IOException {
+        if (cas == null || file == null) {
+            throw new IllegalArgumentException("Params cas and file cannot be null");
+        }
+        List<CA> sortedCAs = new ArrayList<CA>(cas);
+        Collections.sort(sortedCAs, new Comparator<CA>() {
+            @Override
+            public int compare(CA ca1, CA ca2) {
+                return compareBytes(ca1.getRID(), ca2.getRID());
+            }
+        });
+        int keyCount = 0;
+        for (CA ca : sortedCAs) {
+            keyCount += ca.getCAPublicKeys().size();
+        }
+        int caTableOffset = HEADER_SIZE;
+        int keyTableOffset = caTableOffset + sortedCAs.size() * CA_ENTRY_SIZE;
+        int dataStart = keyTableOffset + keyCount * KEY_ENTRY_SIZE;
+
+        ByteArrayOutputStream tables = new ByteArrayOutputStream();
+        DataOutputStream tableOut = new DataOutputStream(tables);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        DataOutputStream dataOut = new DataOutputStream(data);
+
+        for (CA ca : sortedCAs) {
+            tableOut.write(ca.getRID());
+            tableOut.write(new byte[3]);
+            tableOut.writeInt(writeString(dataOut, dataStart, ca.getName()));
+            tableOut.writeInt(writeString(dataOut, dataStart, ca.getDescription()));
+        }
+        for (CA ca : sortedCAs) {
+            List<CAPublicKey> keys = new ArrayList<CAPublicKey>(ca.getCAPublicKeys());
+            Collections.sort(keys, new Comparator<CAPublicKey>() {
+                @Override
+                public int compare(CAPublicKey pk1, CAPublicKey pk2) {
+                    return pk1.getIndex() - pk2.getIndex();
+                }
+            });
+            for (CAPublicKey pk : keys) {
+                byte[] exponent = pk.getExponent();
+                byte[] modulus = pk.getModulus();
+                if (pk.getIndex() < 0 || pk.getIndex() > 0xFF || exponent.length > 0xFF || modulus.length > 0xFFFF) {
+                    throw new SmartCardException("Key index " + pk.getIndex() + " for CA RID " + Util.prettyPrintHexNoWrap(ca.getRID()) + " cannot be stored");
+                }
+                int descriptionOffset = writeString(dataOut, dataStart, pk.getDescription());
+                int dataOffset = dataStart + dataOut.size();
+                dataOut.writeLong(pk.getExpirationDate() != null ? pk.getExpirationDate().getTime() : NO_DATE);
+                dataOut.writeInt(descriptionOffset);
+                dataOut.write(CA.calculateCAPublicKeyCheckSum(ca.getRID(), Util.intToByteArray(pk.getIndex()), modulus, exponent));
+                dataOut.write(exponent);
+                dataOut.write(modulus);
+
+                tableOut.write(ca.getRID());
+                tableOut.writeByte(pk.getIndex());
+                tableOut.writeShort(modulus.length);
+                tableOut.writeByte(exponent.length);
+                tableOut.writeByte(pk.getHashAlgorithmIndicator());
+                tableOut.writeByte(pk.getPublicKeyAlgorithmIndicator());
+                tableOut.writeByte(0);
+                tableOut.writeInt(dataOffset);
+            }
+        }
+        tableOut.flush();
+        dataOut.flush();
+
+        File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(0);
+            out.writeInt(sortedCAs.size());
+            out.writeInt(keyCount);
+            out.writeInt(caTableOffset);
+            out.writeInt(keyTableOffset);
+            tables.writeTo(out);
+            data.writeTo(out);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            //Rename does not replace an existing file on all platforms
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Could not rename " + tmp + " to " + file);
+            }
+        }
+    }
+
+    private static int writeString(DataOutputStream out, int dataStart, String s) throws IOException {
+        if (s == null) {
+            return -1;
+        }
+        byte[] bytes = s.getBytes("UTF-8");
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("String too long: " + bytes.length + " bytes");
+        }
+        int offset = dataStart + out.size();
+        out.writeShort(bytes.length);
+        out.write(bytes);
+        return offset;
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Converts a CA XML file to a key store.
+     * Usage: CAKeyStore &lt;xml file or classpath resource&gt; &lt;key store file&gt;
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: CAKeyStore <xml file or classpath resource> <key store file>");
+            System.exit(-1);
+        }
+        File xmlFile = new File(args[0]);
+        Reader reader;
+        if (xmlFile.isFile()) {
+            reader = new InputStreamReader(new FileInputStream(xmlFile), "UTF-8");
+        } else {
+            reader = new InputStreamReader(Util.loadResource(CAKeyStore.class, args[0]), "UTF-8");
+        }
+        Collection<CA> cas;
+        try {
+            cas = CA.parseXml(reader);
+        } finally {
+            reader.close();
+        }
+        File out = new File(args[1]);
+        write(cas, out);
+        CAKeyStore store = open(out);
+        System.out.println("Wrote " + store.getCACount() + " CAs and " + store.getKeyCount() + " keys to " + out);
+    }
+}
@@ -24,6 +24,7 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.Locale;
 import sasc.util.Log;
+import sasc.util.RSAPublicKeyEngine;
 import sasc.util.Util;
 
 /**
@@ -47,6 +48,7 @@ public class CAPublicKey {
     //- Certification Authority Public Key Exponent
     //using SHA-1
     private byte[] sha1CheckSum = null;
+    private volatile RSAPublicKeyEngine rsaEngine = null;
 
     public CAPublicKey(int index, byte[] exponent, byte[] modulus, byte[] sha1CheckSum, int publicKeyAlgorithmIndicator, int hashAlgorithmIndicator, String description, Date expirationDate){
         this.index = index;
@@ -75,6 +77,18 @@ public class CAPublicKey {
         return Util.copyByteArray(modulus);
     }
 
+    /**
+     * @return the RSA engine for this key (created on first use and cached with the key)
+     */
+    public RSAPublicKeyEngine getRSAEngine(){
+        RSAPublicKeyEngine engine = rsaEngine;
+        if(engine == null){
+            engine = new RSAPublicKeyEngine(exponent, modulus);
+            rsaEngine = engine;
+        }
+        return engine;
+    }
+
     public byte[] getCertificationAuthorityPublicKeyCheckSum(){
         return Util.copyByteArray(sha1CheckSum);
     }
@@ -108,11 +122,17 @@ public class CAPublicKey {
 
         pw.println(indentStr + "Size: "+getKeyLengthInBytes()*8+"-bit");
         pw.println(indentStr + "Exponent:");
-        pw.println(indentStr + "   " + Util.prettyPrintHex(Util.byteArrayToHexString(exponent), indent+Log.INDENT_SIZE*2));
+        pw.print(indentStr + "   ");
+        Util.printPrettyHex(pw, exponent, indent+Log.INDENT_SIZE*2, true);
+        pw.println();
         pw.println(indentStr + "Modulus:");
-        pw.println(indentStr + "   " + Util.prettyPrintHex(Util.byteArrayToHexString(modulus), indent+Log.INDENT_SIZE*2));
+        pw.print(indentStr + "   ");
+        Util.printPrettyHex(pw, modulus, indent+Log.INDENT_SIZE*2, true);
+        pw.println();
         pw.println(indentStr + "Checksum:");
-        pw.println(indentStr + "   " + Util.prettyPrintHex(Util.byteArrayToHexString(sha1CheckSum), indent+Log.INDENT_SIZE*2));
+        pw.print(indentStr + "   ");
+        Util.printPrettyHex(pw, sha1CheckSum, indent+Log.INDENT_SIZE*2, true);
+        pw.println();
     }
 
 }
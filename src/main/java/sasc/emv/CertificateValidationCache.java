@@ -0,0 +1,151 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import sasc.util.ByteArrayWrapper;
+import sasc.util.Util;
+
+/**
+ * Bounded (LRU) thread safe cache of public key certificate validation results.
+ *
+ * The key is a SHA-1 digest over everything the RSA recovery depends on
+ * (eg RID, CA Public Key Index, certificate, remainder and exponent), so a
+ * certificate seen before (the same Issuer Public Key Certificate is presented by
+ * every card in a BIN range) is validated without RSA recovery.
+ * Checks on data outside the key (such as the ICC Public Key Certificate hash
+ * over the card records) are left to the caller.
+ *
+ * @author sasc
+ */
+public final class CertificateValidationCache<V> {
+
+    public static final int DEFAULT_MAX_SIZE = 1024;
+
+    private final Map<ByteArrayWrapper, V> cache;
+    private volatile int maxSize;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    @SuppressWarnings("serial") //The LRU map is never serialized
+    public CertificateValidationCache(int maxSize) {
+        setMaxSize(maxSize);
+        cache = new LinkedHashMap<ByteArrayWrapper, V>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, V> eldest) {
+                if (size() > CertificateValidationCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Create a cache key from the parts (each part is length prefixed, null is permitted)
+     */
+    public static ByteArrayWrapper createKey(byte[]... parts) {
+        MessageDigest sha1;
+        try {
+            sha1 = Util.getSHA1Digest();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new SignedDataException("SHA-1 hash algorithm not available", ex);
+        }
+        for (byte[] part : parts) {
+            int length = part == null ? -1 : part.length;
+            sha1.update((byte) (length >>> 24));
+            sha1.update((byte) (length >>> 16));
+            sha1.update((byte) (length >>> 8));
+            sha1.update((byte) length);
+            if (part != null) {
+                sha1.update(part);
+            }
+        }
+        return ByteArrayWrapper.wrapperAround(sha1.digest());
+    }
+
+    /**
+     * @return the cached result, or null (counted as a miss)
+     */
+    public V get(ByteArrayWrapper key) {
+        V value;
+        synchronized (cache) {
+            value = cache.get(key);
+        }
+        if (value == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return value;
+    }
+
+    public void put(ByteArrayWrapper key, V value) {
+        if (key == null || value == null) {
+            throw new IllegalArgumentException("Params key and value cannot be null");
+        }
+        synchronized (cache) {
+            cache.put(key, value);
+        }
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public final void setMaxSize(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Param maxSize cannot be negative: " + maxSize);
+        }
+        this.maxSize = maxSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "CertificateValidationCache[size=" + size() + ", maxSize=" + maxSize + ", hits=" + getHitCount()
+                + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+    }
+}
@@ -81,11 +81,31 @@ public class DOL {
 
     private Type type;
     private List<TagAndLength> tagAndLengthList = new ArrayList<TagAndLength>();
+    private byte[] dolBytes;
 
     public DOL(Type type, byte[] data){
+        this(type, data, null);
+    }
+
+    /**
+     * @param tags used to resolve proprietary tags (see EMVTags.getDictionary(app)). May be null
+     */
+    public DOL(Type type, byte[] data, TagDictionary tags){
         //Parse tags and lengths
         this.type = type;
-        this.tagAndLengthList = TLVUtil.parseTagAndLength(data);
+        this.tagAndLengthList = TLVUtil.parseTagAndLength(data, tags);
+        this.dolBytes = Util.copyByteArray(data);
+    }
+
+    public Type getType(){
+        return type;
+    }
+
+    /**
+     * @return the encoded DOL (a copy)
+     */
+    public byte[] getBytes(){
+        return Util.copyByteArray(dolBytes);
     }
 
     public List<TagAndLength> getTagAndLengthList(){
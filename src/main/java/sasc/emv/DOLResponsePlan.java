@@ -0,0 +1,126 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.nio.ByteBuffer;
+import sasc.iso7816.TLVWriter;
+import sasc.iso7816.TagAndLength;
+import sasc.iso7816.TagValueType;
+
+/**
+ * A DOL compiled by EMVTerminal into a reusable response plan.
+ *
+ * Every data element has a fixed offset in the response. Static terminal
+ * values (from terminal.properties etc) are resolved, decoded and padded
+ * once, into a response template. Only the values that may change between
+ * transactions (unpredictable number, date, TVR, and values taken from the
+ * card) are resolved when the response is written.
+ *
+ * Plans are immutable once compiled, and shared between threads.
+ *
+ * @author sasc
+ */
+public class DOLResponsePlan {
+
+    /**
+     * Values resolved each time a response is written
+     */
+    enum Source {
+        UNPREDICTABLE_NUMBER,
+        TRANSACTION_DATE,
+        TERMINAL_VERIFICATION_RESULTS,
+        TERMINAL_COUNTRY_CODE,
+        TRANSACTION_CURRENCY_CODE
+    }
+
+    private final byte[] template;
+    private final int[] slotOffsets;
+    private final TagAndLength[] slotTagAndLengths;
+    private final Source[] slotSources;
+    private int numSlots = 0;
+
+    DOLResponsePlan(int length, int maxSlots) {
+        template = new byte[length];
+        slotOffsets = new int[maxSlots];
+        slotTagAndLengths = new TagAndLength[maxSlots];
+        slotSources = new Source[maxSlots];
+    }
+
+    void setStaticValue(int offset, TagAndLength tal, byte[] value) {
+        writeValue(tal, value, new TLVWriter(ByteBuffer.wrap(template, offset, tal.getLength())));
+    }
+
+    void addSlot(int offset, TagAndLength tal, Source source) {
+        slotOffsets[numSlots] = offset;
+        slotTagAndLengths[numSlots] = tal;
+        slotSources[numSlots] = source;
+        numSlots++;
+    }
+
+    /**
+     * Writes 'value' padded or truncated to the length in the DOL.
+     * EMV Book 3, 5.4: numeric values are padded with leading zeros (or truncated on the left),
+     * other values are padded with trailing zeros (or truncated on the right)
+     */
+    static void writeValue(TagAndLength tal, byte[] value, TLVWriter out) {
+        int length = tal.getLength();
+        if (value.length == length) {
+            out.writeBytes(value);
+        } else if (tal.getTag().getTagValueType() == TagValueType.NUMERIC) {
+            for (int i = value.length; i < length; i++) {
+                out.writeByte(0x00);
+            }
+            int skip = Math.max(0, value.length - length);
+            out.writeBytes(value, skip, value.length - skip);
+        } else {
+            out.writeBytes(value, 0, Math.min(value.length, length));
+            for (int i = value.length; i < length; i++) {
+                out.writeByte(0x00);
+            }
+        }
+    }
+
+    /**
+     * @return the length of the response
+     */
+    public int getLength() {
+        return template.length;
+    }
+
+    /**
+     * @return the number of values resolved per response
+     */
+    public int getNumDynamicValues() {
+        return numSlots;
+    }
+
+    public void writeResponse(EMVApplication app, TLVWriter out) {
+        int pos = 0;
+        for (int i = 0; i < numSlots; i++) {
+            out.writeBytes(template, pos, slotOffsets[i] - pos);
+            TagAndLength tal = slotTagAndLengths[i];
+            writeValue(tal, EMVTerminal.getDynamicValue(slotSources[i], tal.getLength(), app), out);
+            pos = slotOffsets[i] + tal.getLength();
+        }
+        out.writeBytes(template, pos, template.length - pos);
+    }
+
+    public byte[] createResponse(EMVApplication app) {
+        byte[] response = new byte[template.length];
+        writeResponse(app, new TLVWriter(response));
+        return response;
+    }
+}
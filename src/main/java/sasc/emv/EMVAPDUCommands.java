@@ -18,6 +18,7 @@ package sasc.emv;
 import sasc.iso7816.SmartCardException;
 import java.util.Arrays;
 import sasc.iso7816.Iso7816Commands;
+import sasc.iso7816.TLVWriter;
 import sasc.util.Util;
 
 /**
@@ -70,22 +71,39 @@ public class EMVAPDUCommands {
         return Iso7816Commands.readRecord(recordNum, sfi);
     }
 
+    //Max length of a short C-APDU: CLA INS P1 P2 Lc Data(255) Le
+    private static final int MAX_COMMAND_LENGTH = 261;
+
+    private static final ThreadLocal<TLVWriter> COMMAND_WRITER = new ThreadLocal<TLVWriter>() {
+        @Override
+        protected TLVWriter initialValue() {
+            return new TLVWriter(MAX_COMMAND_LENGTH);
+        }
+    };
+
+    /**
+     * @return a (reset) writer with a buffer reused by all commands built on the current thread
+     */
+    static TLVWriter getCommandWriter() {
+        TLVWriter writer = COMMAND_WRITER.get();
+        writer.reset();
+        return writer;
+    }
+
     /*
      *
      * Case 4s C-APDU
      */
     public static byte[] getProcessingOpts(DOL pdol, EMVApplication app) {
-        String command;
+        TLVWriter writer = getCommandWriter();
+        writer.startCommand(0x80, 0xA8, 0x00, 0x00);
+        writer.startConstructed(EMVTags.COMMAND_TEMPLATE);
         if (pdol != null && pdol.getTagAndLengthList().size() > 0) {
-            byte[] pdolResponseData = EMVTerminal.constructDOLResponse(pdol, app);
-            command = "80 A8 00 00";
-            command += " " + Util.int2Hex(pdolResponseData.length + 2) + " 83 " + Util.int2Hex(pdolResponseData.length);
-            command += " " + Util.prettyPrintHexNoWrap(pdolResponseData);
-            command += " 00"; // Le
-        } else {
-            command = "80 A8 00 00 02 83 00 00"; //Last 00 is Le
+            EMVTerminal.writeDOLResponse(pdol, app, writer);
         }
-        return Util.fromHexString(command);
+        writer.endConstructed();
+        writer.endCommand((byte) 0x00); // Le
+        return writer.toByteArray();
     }
 
     public static byte[] getApplicationTransactionCounter() {
@@ -131,15 +149,38 @@ public class EMVAPDUCommands {
         if(transactionRelatedData == null) {
             throw new IllegalArgumentException("Param 'transactionRelatedData' cannot be null");
         }
-        byte[] cmd = new byte[5+transactionRelatedData.length+1];
-        cmd[0] = (byte)0x80;
-        cmd[1] = (byte)0xAE;
-        cmd[2] = referenceControlParameterP1;
-        cmd[3] = 0x00;
-        cmd[4] = (byte)transactionRelatedData.length;
-        System.arraycopy(transactionRelatedData, 0, cmd, 5, transactionRelatedData.length);
-        cmd[cmd.length-1] = 0x00; //Le
-        return cmd;
+        return startGenerateAC(referenceControlParameterP1)
+                .writeBytes(transactionRelatedData)
+                .endCommand((byte) 0x00) //Le
+                .toByteArray();
+    }
+
+    /**
+     * Case 4s C-APDU, with the data field built directly from the CDOL
+     *
+     * @param referenceControlParameterP1
+     * @param cdol CDOL1 or CDOL2
+     * @param app
+     * @return
+     */
+    public static byte[] generateAC(byte referenceControlParameterP1, DOL cdol, EMVApplication app) {
+        if(cdol == null) {
+            throw new IllegalArgumentException("Param 'cdol' cannot be null");
+        }
+        TLVWriter writer = startGenerateAC(referenceControlParameterP1);
+        EMVTerminal.writeDOLResponse(cdol, app, writer);
+        return writer.endCommand((byte) 0x00).toByteArray(); //Le
+    }
+
+    /**
+     * Starts a GENERATE AC command in the command writer of the current thread.
+     * The caller appends the data field and ends the command with endCommand((byte) 0x00) (Le)
+     *
+     * @param referenceControlParameterP1 the type of cryptogram requested (and whether a CDA signature is requested)
+     * @return the writer
+     */
+    static TLVWriter startGenerateAC(byte referenceControlParameterP1) {
+        return getCommandWriter().startCommand(0x80, 0xAE, referenceControlParameterP1, 0x00);
     }
 
     /**
@@ -20,10 +20,10 @@ import sasc.iso7816.Tag;
 import sasc.iso7816.SmartCardException;
 import sasc.iso7816.BERTLV;
 import sasc.iso7816.AID;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
@@ -32,6 +32,8 @@ import java.util.Date;
 import java.util.List;
 import sasc.smartcard.common.SmartCard;
 import sasc.iso7816.Application;
+import sasc.iso7816.TLVCursor;
+import sasc.iso7816.TLVIndex;
 import sasc.iso7816.TLVUtil;
 import sasc.lookup.IIN_DB;
 import sasc.util.ISO3166_1;
@@ -111,9 +113,75 @@ public class EMVApplication implements Application {
     private List<BERTLV> unprocessedRecords = new ArrayList<BERTLV>();
     private SmartCard card = null;
 
+    //Values read from the card that are decoded on first access (see putLazyValue)
+    private final TLVIndex lazyValues = new TLVIndex();
+
     public EMVApplication() {
     }
 
+    /**
+     * Stores the value of the data object the cursor is positioned on,
+     * to be decoded the first time the corresponding getter is called.
+     * The buffer of the cursor is retained, not copied.
+     * A value already decoded for the same tag is discarded, so the last data object read wins.
+     */
+    void putLazyValue(TLVCursor tlv) {
+        lazyValues.put(tlv);
+        clearDecodedValue(tlv);
+    }
+
+    private void clearDecodedValue(TLVCursor tlv) {
+        if (tlv.isTag(EMVTags.PAN)) {
+            pan = null;
+        } else if (tlv.isTag(EMVTags.APP_EXPIRATION_DATE)) {
+            applicationExpirationDate = null;
+        } else if (tlv.isTag(EMVTags.APP_EFFECTIVE_DATE)) {
+            applicationEffectiveDate = null;
+        } else if (tlv.isTag(EMVTags.TRACK_2_EQV_DATA)) {
+            track2EquivalentData = null;
+        } else if (tlv.isTag(EMVTags.CVM_LIST)) {
+            cvmList = null;
+        } else if (tlv.isTag(EMVTags.CDOL1)) {
+            cdol1 = null;
+        } else if (tlv.isTag(EMVTags.CDOL2)) {
+            cdol2 = null;
+        } else if (tlv.isTag(EMVTags.SDA_TAG_LIST)) {
+            staticDataAuthTagList = null;
+        } else if (tlv.isTag(EMVTags.IBAN)) {
+            iban = null;
+        } else if (tlv.isTag(EMVTags.BANK_IDENTIFIER_CODE)) {
+            bic = null;
+        } else if (tlv.isTag(EMVTags.LANGUAGE_PREFERENCE)) {
+            languagePreference = null;
+        }
+    }
+
+    boolean hasLazyValue(Tag tag) {
+        return lazyValues.contains(tag);
+    }
+
+    /**
+     * Removes and returns (a copy of) the undecoded value of 'tag', or null if there is none
+     */
+    private byte[] takeLazyValue(Tag tag) {
+        if (lazyValues.size() == 0) {
+            return null;
+        }
+        int i = lazyValues.indexOf(tag);
+        if (i < 0) {
+            return null;
+        }
+        byte[] value = lazyValues.getValueBytes(i);
+        lazyValues.remove(lazyValues.getTagKey(i));
+        return value;
+    }
+
+    private void removeLazyValue(Tag tag) {
+        if (lazyValues.size() > 0) {
+            lazyValues.remove(TLVUtil.getTagKey(tag.getTagBytes()));
+        }
+    }
+
     public void setAID(AID _aid) {
         if (this.aid != null && !Arrays.equals(this.aid.getAIDBytes(), _aid.getAIDBytes())) {
             throw new SmartCardException("Attempting to assign a different AID value. Current: " + Util.prettyPrintHexNoWrap(this.aid.getAIDBytes()) + " new: " + Util.prettyPrintHexNoWrap(_aid.getAIDBytes()));
@@ -195,9 +263,16 @@ public class EMVApplication implements Application {
 
     public void setPAN(PAN pan) {
         this.pan = pan;
+        removeLazyValue(EMVTags.PAN);
     }
 
     public PAN getPAN() {
+        if (pan == null) {
+            byte[] value = takeLazyValue(EMVTags.PAN);
+            if (value != null) {
+                pan = new PAN(value);
+            }
+        }
         return pan;
     }
 
@@ -355,19 +430,33 @@ public class EMVApplication implements Application {
     }
     
     public IBAN getIBAN() {
+        if (iban == null) {
+            byte[] value = takeLazyValue(EMVTags.IBAN);
+            if (value != null) {
+                iban = new IBAN(value);
+            }
+        }
         return iban;
     }
     
     public void setIBAN(IBAN iban) {
         this.iban = iban;
+        removeLazyValue(EMVTags.IBAN);
     }
     
     public BankIdentifierCode getBIC() {
+        if (bic == null) {
+            byte[] value = takeLazyValue(EMVTags.BANK_IDENTIFIER_CODE);
+            if (value != null) {
+                bic = new BankIdentifierCode(value);
+            }
+        }
         return bic;
     }
     
     public void setBIC(BankIdentifierCode bic){
         this.bic = bic;
+        removeLazyValue(EMVTags.BANK_IDENTIFIER_CODE);
     }
     
     public byte[] getDiscretionaryData() {
@@ -420,10 +509,32 @@ public class EMVApplication implements Application {
 
     public void setCDOL1(DOL cdol1) {
         this.cdol1 = cdol1;
+        removeLazyValue(EMVTags.CDOL1);
+    }
+
+    public DOL getCDOL1() {
+        if (cdol1 == null) {
+            byte[] value = takeLazyValue(EMVTags.CDOL1);
+            if (value != null) {
+                cdol1 = new DOL(DOL.Type.CDOL1, value, EMVTags.getDictionary(this));
+            }
+        }
+        return cdol1;
     }
 
     public void setCDOL2(DOL cdol2) {
         this.cdol2 = cdol2;
+        removeLazyValue(EMVTags.CDOL2);
+    }
+
+    public DOL getCDOL2() {
+        if (cdol2 == null) {
+            byte[] value = takeLazyValue(EMVTags.CDOL2);
+            if (value != null) {
+                cdol2 = new DOL(DOL.Type.CDOL2, value, EMVTags.getDictionary(this));
+            }
+        }
+        return cdol2;
     }
 
     public void setExpirationDate(byte[] dateBytes) {
@@ -437,11 +548,16 @@ public class EMVApplication implements Application {
         cal.set(2000 + YY, MM - 1, DD, 0, 0, 0);
         cal.set(Calendar.MILLISECOND, 0);
         this.applicationExpirationDate = cal.getTime();
+        removeLazyValue(EMVTags.APP_EXPIRATION_DATE);
     }
 
     public Date getExpirationDate() {
-        if (applicationExpirationDate==null) {
-            return null;
+        if (applicationExpirationDate == null) {
+            byte[] value = takeLazyValue(EMVTags.APP_EXPIRATION_DATE);
+            if (value == null) {
+                return null;
+            }
+            setExpirationDate(value);
         }
         return (Date) applicationExpirationDate.clone();
     }
@@ -457,11 +573,16 @@ public class EMVApplication implements Application {
         cal.set(2000 + YY, MM - 1, DD, 0, 0, 0);
         cal.set(Calendar.MILLISECOND, 0);
         this.applicationEffectiveDate = cal.getTime();
+        removeLazyValue(EMVTags.APP_EFFECTIVE_DATE);
     }
 
     public Date getEffectiveDate() {
-        if(applicationEffectiveDate == null) {
-            return null;
+        if (applicationEffectiveDate == null) {
+            byte[] value = takeLazyValue(EMVTags.APP_EFFECTIVE_DATE);
+            if (value == null) {
+                return null;
+            }
+            setEffectiveDate(value);
         }
         return (Date) applicationEffectiveDate.clone();
     }
@@ -492,9 +613,16 @@ public class EMVApplication implements Application {
 
     void setTrack2EquivalentData(Track2EquivalentData track2EquivalentData) {
         this.track2EquivalentData = track2EquivalentData;
+        removeLazyValue(EMVTags.TRACK_2_EQV_DATA);
     }
 
     public Track2EquivalentData getTrack2EquivalentData() {
+        if (track2EquivalentData == null) {
+            byte[] value = takeLazyValue(EMVTags.TRACK_2_EQV_DATA);
+            if (value != null) {
+                track2EquivalentData = new Track2EquivalentData(value);
+            }
+        }
         return track2EquivalentData;
     }
 
@@ -508,17 +636,31 @@ public class EMVApplication implements Application {
 
     void setCVMList(CVMList cvmList) {
         this.cvmList = cvmList;
+        removeLazyValue(EMVTags.CVM_LIST);
     }
 
     public CVMList getCVMList() {
+        if (cvmList == null) {
+            byte[] value = takeLazyValue(EMVTags.CVM_LIST);
+            if (value != null) {
+                cvmList = new CVMList(value);
+            }
+        }
         return cvmList;
     }
 
     void setStaticDataAuthenticationTagList(StaticDataAuthenticationTagList staticDataAuthTagList) {
         this.staticDataAuthTagList = staticDataAuthTagList;
+        removeLazyValue(EMVTags.SDA_TAG_LIST);
     }
 
     public StaticDataAuthenticationTagList getStaticDataAuthenticationTagList() {
+        if (staticDataAuthTagList == null) {
+            byte[] value = takeLazyValue(EMVTags.SDA_TAG_LIST);
+            if (value != null) {
+                staticDataAuthTagList = new StaticDataAuthenticationTagList(value);
+            }
+        }
         return staticDataAuthTagList;
     }
 
@@ -530,14 +672,27 @@ public class EMVApplication implements Application {
         return this.panSequenceNumber;
     }
 
+    /**
+     * @return true if a Language Preference has been set, or read and not yet decoded
+     */
+    boolean hasLanguagePreference() {
+        return this.languagePreference != null || hasLazyValue(EMVTags.LANGUAGE_PREFERENCE);
+    }
+
     void setLanguagePreference(LanguagePreference languagePreference) {
-        if (this.languagePreference != null) {
+        if (hasLanguagePreference()) {
             throw new RuntimeException("JavaEMVReader currently does not support multiple LanguagePreference. Must create method 'ADD LanguagePreference', not SET");
         }
         this.languagePreference = languagePreference;
     }
 
     public LanguagePreference getLanguagePreference() {
+        if (languagePreference == null) {
+            byte[] value = takeLazyValue(EMVTags.LANGUAGE_PREFERENCE);
+            if (value != null) {
+                languagePreference = new LanguagePreference(value);
+            }
+        }
         return this.languagePreference;
     }
 
@@ -586,7 +741,37 @@ public class EMVApplication implements Application {
     }
 
     public byte[] getOfflineDataAuthenticationRecords() {
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        writeOfflineDataAuthenticationRecords(new OfflineDataAuthenticationSink() {
+
+            @Override
+            public void write(byte[] data, int offset, int length) {
+                stream.write(data, offset, length);
+            }
+        });
+        return stream.toByteArray();
+    }
+
+    /**
+     * Feed the offline data authentication input (see getOfflineDataAuthenticationRecords())
+     * into the digest, directly from the record data (without concatenating the records)
+     */
+    public void updateOfflineDataAuthenticationDigest(final MessageDigest digest) {
+        writeOfflineDataAuthenticationRecords(new OfflineDataAuthenticationSink() {
+
+            @Override
+            public void write(byte[] data, int offset, int length) {
+                digest.update(data, offset, length);
+            }
+        });
+    }
+
+    private interface OfflineDataAuthenticationSink {
+
+        void write(byte[] data, int offset, int length);
+    }
+
+    private void writeOfflineDataAuthenticationRecords(OfflineDataAuthenticationSink sink) {
         for (ApplicationElementaryFile aef : this.getApplicationFileLocator().getApplicationElementaryFiles()) {
 
             //Only those records identified in the AFL as participating in offline data authentication are to be processed.
@@ -623,13 +808,14 @@ public class EMVApplication implements Application {
                     //data field of the response to the READ RECORD command (excluding SW1 SW2) is included.
 
                     //Get the 'valueBytes'
-                    BERTLV tlv = TLVUtil.getNextTLV(new ByteArrayInputStream(fileRawData));
-                    stream.write(tlv.getValueBytes(), 0, tlv.getValueBytes().length);
+                    TLVCursor tlv = new TLVCursor(fileRawData);
+                    tlv.next();
+                    sink.write(tlv.getData(), tlv.getValueOffset(), tlv.getValueLength());
                 } else {
                     //For files with SFI in the range 11 to 30, the record tag ('70') and the record length
                     //are not excluded from the offline data authentication process. Thus all data in the
                     //data field of the response to the READ RECORD command (excluding SW1 SW2) is included
-                    stream.write(fileRawData, 0, fileRawData.length);
+                    sink.write(fileRawData, 0, fileRawData.length);
                 }
             }
 
@@ -649,12 +835,10 @@ public class EMVApplication implements Application {
                     throw new SmartCardException("SDA Tag list must contain only the 'Application Interchange Profile' tag: " + sdaTagList);
                 } else {
                     byte[] aipBytes = this.getApplicationInterchangeProfile().getBytes();
-                    stream.write(aipBytes, 0, aipBytes.length);
+                    sink.write(aipBytes, 0, aipBytes.length);
                 }
             }
         }
-
-        return stream.toByteArray();
     }
 
     //The initializedOnICC methods are only used to indicate that the
@@ -706,10 +890,10 @@ public class EMVApplication implements Application {
         if (issuerUrl != null){
             pw.println(indentStr + "Issuer URL: " + issuerUrl);
         }
-        if (applicationEffectiveDate != null) {
+        if (getEffectiveDate() != null) {
             pw.println(indentStr + "Application Effective Date: " + applicationEffectiveDate);
         }
-        if (applicationExpirationDate != null) {
+        if (getExpirationDate() != null) {
             pw.println(indentStr + "Application Expiration Date: " + applicationExpirationDate);
         }
         if (applicationVersionNumber != -1) {
@@ -766,8 +950,8 @@ public class EMVApplication implements Application {
         if (cardholderName != null) {
             pw.println(indentStr + "Cardholder Name: " + cardholderName);
         }
-        if (pan != null) {
-            pan.dump(pw, indent + Log.INDENT_SIZE);
+        if (getPAN() != null) {
+            getPAN().dump(pw, indent + Log.INDENT_SIZE);
         }
         if (panSequenceNumber != -1) {
             pw.println(indentStr + "PAN Sequence Number: " + panSequenceNumber);
@@ -802,11 +986,11 @@ public class EMVApplication implements Application {
         if (iccPinEnciphermentCert != null) {
             iccPinEnciphermentCert.dump(pw, indent + Log.INDENT_SIZE);
         }
-        if (cdol1 != null) {
-            cdol1.dump(pw, indent + Log.INDENT_SIZE);
+        if (getCDOL1() != null) {
+            getCDOL1().dump(pw, indent + Log.INDENT_SIZE);
         }
-        if (cdol2 != null) {
-            cdol2.dump(pw, indent + Log.INDENT_SIZE);
+        if (getCDOL2() != null) {
+            getCDOL2().dump(pw, indent + Log.INDENT_SIZE);
         }
         if (signedStaticAppData != null) {
             signedStaticAppData.dump(pw, indent + Log.INDENT_SIZE);
@@ -814,11 +998,11 @@ public class EMVApplication implements Application {
         if (signedDynamicAppData != null) {
             signedDynamicAppData.dump(pw, indent + Log.INDENT_SIZE);
         }
-        if (cvmList != null) {
-            cvmList.dump(pw, indent + Log.INDENT_SIZE);
+        if (getCVMList() != null) {
+            getCVMList().dump(pw, indent + Log.INDENT_SIZE);
         }
-        if (staticDataAuthTagList != null) {
-            staticDataAuthTagList.dump(pw, indent + Log.INDENT_SIZE);
+        if (getStaticDataAuthenticationTagList() != null) {
+            getStaticDataAuthenticationTagList().dump(pw, indent + Log.INDENT_SIZE);
         }
         if (track1DiscretionaryData != null) {
             pw.println(indentStr + "Track 1 Discretionary Data:");
@@ -828,20 +1012,20 @@ public class EMVApplication implements Application {
             pw.println(indentStr + "Track 2 Discretionary Data:");
             pw.println(indentStr + "   " + Util.byteArrayToHexString(track2DiscretionaryData) + " (ASCII: " + Util.getSafePrintChars(track2DiscretionaryData) + ")");
         }
-        if (track2EquivalentData != null) {
-            track2EquivalentData.dump(pw, indent + Log.INDENT_SIZE);
+        if (getTrack2EquivalentData() != null) {
+            getTrack2EquivalentData().dump(pw, indent + Log.INDENT_SIZE);
         }
-        if (iban != null) {
-            iban.dump(pw, indent + Log.INDENT_SIZE);
+        if (getIBAN() != null) {
+            getIBAN().dump(pw, indent + Log.INDENT_SIZE);
         }
-        if (bic != null) {
-            bic.dump(pw, indent + Log.INDENT_SIZE);
+        if (getBIC() != null) {
+            getBIC().dump(pw, indent + Log.INDENT_SIZE);
         }
         if (serviceCode != null) {
             serviceCode.dump(pw, indent + Log.INDENT_SIZE);
         }
-        if (languagePreference != null) {
-            languagePreference.dump(pw, indent + Log.INDENT_SIZE);
+        if (getLanguagePreference() != null) {
+            getLanguagePreference().dump(pw, indent + Log.INDENT_SIZE);
         }
         if (issuerCodeTableIndex != -1) {
             pw.println(indentStr + "Issuer Code Table Index: " + issuerCodeTableIndex + " (ISO-8859-" + issuerCodeTableIndex + ")");
@@ -22,10 +22,10 @@ import sasc.iso7816.SmartCardException;
 import sasc.iso7816.BERTLV;
 import sasc.iso7816.AID;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 import javax.security.auth.callback.PasswordCallback;
 import sasc.smartcard.common.CardScanner;
 import sasc.iso7816.ShortFileIdentifier;
@@ -46,6 +46,8 @@ public class EMVSession {
     private SmartCard card = null;
     private CardConnection terminal;
     private boolean contextInitialized = false;
+    private ExecutorService offlineDataAuthenticationExecutor = null;
+    private OfflineDataAuthenticationPipeline offlineDataAuthenticationPipeline = null;
 
     public static EMVSession startSession(SmartCard card, CardConnection terminal) {
         if (card == null || terminal == null) {
@@ -63,6 +65,19 @@ public class EMVSession {
         return card;
     }
 
+    /**
+     * Enables pipelined offline data authentication: the certificates are recovered on the executor
+     * while the application records are still being read, and joined before offline data authentication.
+     * Off (null) by default. The executor is not shut down by the session.
+     */
+    public void setOfflineDataAuthenticationExecutor(ExecutorService executor) {
+        this.offlineDataAuthenticationExecutor = executor;
+    }
+
+    public ExecutorService getOfflineDataAuthenticationExecutor() {
+        return offlineDataAuthenticationExecutor;
+    }
+
     /**
      * Initializes the card by reading all Global data and FCI/DDF
      * "1PAY.SYS.DDF01" (and some other data outside of the EMV spec)
@@ -129,7 +144,9 @@ public class EMVSession {
                     readPSERecords(pseDDF.getSFI());
                 }
             }catch(TLVException tlvex){
-                Log.debug(Util.getStackTrace(tlvex));
+                if (Log.isDebugEnabled()) {
+                    Log.debug(Util.getStackTrace(tlvex));
+                }
             }
         } 
 
@@ -156,7 +173,9 @@ public class EMVSession {
                         readPSERecords(ppseDDF.getSFI());
                     }
                 }catch(TLVException tlvex){
-                    Log.debug(Util.getStackTrace(tlvex));
+                    if (Log.isDebugEnabled()) {
+                        Log.debug(Util.getStackTrace(tlvex));
+                    }
                 }
 
             }
@@ -225,7 +244,9 @@ public class EMVSession {
             } while (SW1 == (byte) 0x90 && SW2 == (byte) 0x00); //while SW1SW2 != 6a83
 
         } catch(TLVException tlvex) {
-            Log.debug(Util.getStackTrace(tlvex));
+            if (Log.isDebugEnabled()) {
+                Log.debug(Util.getStackTrace(tlvex));
+            }
         }
 
         
@@ -359,6 +380,10 @@ public class EMVSession {
             
             app.setInitializedOnICC();
 
+            if (offlineDataAuthenticationExecutor != null) {
+                offlineDataAuthenticationPipeline = new OfflineDataAuthenticationPipeline(offlineDataAuthenticationExecutor, app);
+            }
+
             //read all the records indicated in the AFL
             for (ApplicationElementaryFile aef : app.getApplicationFileLocator().getApplicationElementaryFiles()) {
                 int startRecordNumber = aef.getStartRecordNumber();
@@ -380,6 +405,9 @@ public class EMVSession {
                         boolean isInvolvedInOfflineDataAuthentication = (recordNum - startRecordNumber + 1) <= aef.getNumRecordsInvolvedInOfflineDataAuthentication();
                         Record record = new Record(readAppDataResponse.getData(), recordNum, isInvolvedInOfflineDataAuthentication);
                         aef.setRecord(recordNum, record);
+                        if (offlineDataAuthenticationPipeline != null) {
+                            offlineDataAuthenticationPipeline.recordRead();
+                        }
                     } else {
                         //Any SW1 SW2 other than '9000' passed to the application layer as a result
                         //of reading any record shall cause the transaction to be terminated [spec]
@@ -431,6 +459,10 @@ public class EMVSession {
         verifyProcessingStateExact(app, State.APPLICATION_PROCESSING_INITIATED);
         
         //10.3 Offline Data Authentication
+        if (offlineDataAuthenticationPipeline != null) {
+            offlineDataAuthenticationPipeline.join();
+            offlineDataAuthenticationPipeline = null;
+        }
         performOfflineDataAuthentication(app);
         
         //10.4 Processing restrictions
@@ -1017,7 +1049,7 @@ public class EMVSession {
         SW2 = (byte) getDataATCResponse.getSW2();
 
         if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
-            BERTLV tlv = TLVUtil.getNextTLV(new ByteArrayInputStream(getDataATCResponse.getData()));
+            BERTLV tlv = TLVUtil.getNextTLV(new ByteArrayInputStream(getDataATCResponse.getData()), EMVTags.getDictionary(app));
             app.setATC(Util.byteToInt(tlv.getValueBytes()[0], tlv.getValueBytes()[1]));
         }
 
@@ -1029,7 +1061,7 @@ public class EMVSession {
         SW2 = (byte) getDataLastOnlineATCRegisterResponse.getSW2();
 
         if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
-            BERTLV tlv = TLVUtil.getNextTLV(new ByteArrayInputStream(getDataLastOnlineATCRegisterResponse.getData()));
+            BERTLV tlv = TLVUtil.getNextTLV(new ByteArrayInputStream(getDataLastOnlineATCRegisterResponse.getData()), EMVTags.getDictionary(app));
             app.setLastOnlineATC(Util.byteToInt(tlv.getValueBytes()[0],
                     tlv.getValueBytes()[1]));
         }
@@ -1167,7 +1199,7 @@ public class EMVSession {
         SW2 = (byte) getDataPINTryCounterResponse.getSW2();
 
         if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
-            BERTLV tlv = TLVUtil.getNextTLV(new ByteArrayInputStream(getDataPINTryCounterResponse.getData()));
+            BERTLV tlv = TLVUtil.getNextTLV(new ByteArrayInputStream(getDataPINTryCounterResponse.getData()), EMVTags.getDictionary(app));
             app.setPINTryCounter(tlv.getValueBytes()[0]);
         } else {
             app.setPINTryCounter(-2);
@@ -1320,7 +1352,6 @@ public class EMVSession {
 
         Log.commandHeader("Send GENERATE APPLICATION CRYPTOGRAM command");
 
-        ByteArrayOutputStream buf = new ByteArrayOutputStream();
         byte[] authorizedAmount = Util.fromHexString("00 00 00 00 00 01");
         byte[] secondaryAmount = Util.fromHexString("00 00 00 00 00 00");
         byte[] tvr = Util.fromHexString("00 00 00 00 00");
@@ -1331,19 +1362,20 @@ public class EMVSession {
         //iccDynamicNumber
         byte[] dataAuthCode = app.getSignedStaticApplicationData().getDataAuthenticationCode();
 
-        buf.write(authorizedAmount, 0, authorizedAmount.length);
-        buf.write(secondaryAmount, 0, secondaryAmount.length);
-        buf.write(tvr, 0, tvr.length);
-        buf.write(transactionCurrencyCode, 0, transactionCurrencyCode.length);
-        buf.write(transactionDate, 0, transactionDate.length);
-        buf.write(transactionType, 0, transactionType.length);
-        buf.write(terminalUnpredictableNumber, 0, terminalUnpredictableNumber.length);
-        buf.write(iccDynamicNumber, 0, iccDynamicNumber.length);
-        buf.write(dataAuthCode, 0, dataAuthCode.length);
-
         //0x40 = TC
         //0x80 = ARQC
-        command = EMVAPDUCommands.generateAC((byte) 0x40, buf.toByteArray());
+        command = EMVAPDUCommands.startGenerateAC((byte) 0x40)
+                .writeBytes(authorizedAmount)
+                .writeBytes(secondaryAmount)
+                .writeBytes(tvr)
+                .writeBytes(transactionCurrencyCode)
+                .writeBytes(transactionDate)
+                .writeBytes(transactionType)
+                .writeBytes(terminalUnpredictableNumber)
+                .writeBytes(iccDynamicNumber)
+                .writeBytes(dataAuthCode)
+                .endCommand((byte) 0x00) //Le
+                .toByteArray();
         CardResponse generateACResponse = EMVUtil.sendCmd(terminal, command);
         //'9000' indicates a successful execution of the command.
 
@@ -1389,8 +1421,9 @@ public class EMVSession {
         SW2 = (byte) getDataLogFormatResponse.getSW2();
 
         if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
-            BERTLV tlv = TLVUtil.getNextTLV(new ByteArrayInputStream(getDataLogFormatResponse.getData()));
-            app.setLogFormat(new LogFormat(tlv.getValueBytes()));
+            TagDictionary tags = EMVTags.getDictionary(app);
+            BERTLV tlv = TLVUtil.getNextTLV(new ByteArrayInputStream(getDataLogFormatResponse.getData()), tags);
+            app.setLogFormat(new LogFormat(tlv.getValueBytes(), tags));
 
             //Log Entry data element should be located in the FCI Issuer Discretionary Data
             //If it is not, then the app does not support transaction logging.
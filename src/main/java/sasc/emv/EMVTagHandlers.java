@@ -0,0 +1,489 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import sasc.emv.system.visa.VISATags;
+import sasc.iso7816.AID;
+import sasc.iso7816.ShortFileIdentifier;
+import sasc.iso7816.TLVCursor;
+import sasc.util.Log;
+import sasc.util.Util;
+
+/**
+ * The tag dispatch tables used by EMVUtil when parsing the templates
+ * returned by the card.
+ *
+ * The tables are built once at class initialization. Payment system
+ * specific handlers can be added at runtime, eg:
+ * <pre>
+ * EMVTagHandlers.RECORD_TEMPLATE.registerPaymentSystemHandler(rid, tag, handler);
+ * </pre>
+ *
+ * @author sasc
+ */
+public final class EMVTagHandlers {
+
+    /**
+     * Data objects in an Application Template ('61') of a PSE record or a PPSE FCI
+     */
+    public static final TagDispatchTable<EMVApplication> APPLICATION_TEMPLATE = new TagDispatchTable<EMVApplication>("Application Template");
+
+    /**
+     * Data objects in an Application Template ('61') of a PPSE FCI.
+     * Only the AID, label and priority are read here, other data objects are added to the unhandled records of the card
+     */
+    public static final TagDispatchTable<EMVApplication> PPSE_APPLICATION_TEMPLATE = new TagDispatchTable<EMVApplication>("PPSE Application Template");
+
+    /**
+     * Data objects in the FCI Proprietary Template ('A5') of an ADF
+     */
+    public static final TagDispatchTable<EMVApplication> FCI_PROPRIETARY_TEMPLATE = new TagDispatchTable<EMVApplication>("FCI Proprietary Template");
+
+    /**
+     * Data objects in the FCI Issuer Discretionary Data ('BF0C') of an ADF
+     */
+    public static final TagDispatchTable<EMVApplication> FCI_ISSUER_DISCRETIONARY_DATA = new TagDispatchTable<EMVApplication>("FCI Issuer Discretionary Data");
+
+    /**
+     * Data objects in the Response Message Template Format 2 ('77') returned by GET PROCESSING OPTIONS
+     */
+    public static final TagDispatchTable<EMVApplication> RESPONSE_MESSAGE_TEMPLATE_2 = new TagDispatchTable<EMVApplication>("Response Message Template Format 2");
+
+    /**
+     * Data objects in the Record Template ('70') returned by READ RECORD
+     */
+    public static final TagDispatchTable<EMVApplication> RECORD_TEMPLATE = new TagDispatchTable<EMVApplication>("Record Template");
+
+    /**
+     * Data objects in the FCI Proprietary Template ('A5') of a DDF
+     */
+    public static final TagDispatchTable<DDF> DDF_FCI_PROPRIETARY_TEMPLATE = new TagDispatchTable<DDF>("DDF FCI Proprietary Template");
+
+    /**
+     * Adds the data object to the unprocessed or unknown records of the application
+     */
+    public static final TagHandler<EMVApplication> UNHANDLED = new TagHandler<EMVApplication>() {
+        @Override
+        public void handle(TLVCursor tlv, EMVApplication app) {
+            EMVUtil.checkForProprietaryTagOrAddToUnhandled(app, tlv.toBERTLV(EMVTags.getDictionary(app)));
+        }
+    };
+
+    private static String getSafePrintChars(TLVCursor tlv) {
+        return Util.getSafePrintChars(tlv.getData(), tlv.getValueOffset(), tlv.getValueLength());
+    }
+
+    private static int getBinaryHexCodedDecimalValue(TLVCursor tlv) {
+        return Util.binaryHexCodedDecimalToInt(Util.byteArrayToHexString(tlv.getData(), tlv.getValueOffset(), tlv.getValueLength()));
+    }
+
+    private static IssuerPublicKeyCertificate getOrCreateIssuerPublicKeyCertificate(EMVApplication app) {
+        IssuerPublicKeyCertificate issuerCert = app.getIssuerPublicKeyCertificate();
+        if (issuerCert == null) {
+            issuerCert = new IssuerPublicKeyCertificate(CA.getCA(app.getAID()));
+            app.setIssuerPublicKeyCertificate(issuerCert);
+        }
+        return issuerCert;
+    }
+
+    private static ICCPublicKeyCertificate getOrCreateICCPublicKeyCertificate(EMVApplication app) {
+        ICCPublicKeyCertificate iccCert = app.getICCPublicKeyCertificate();
+        if (iccCert == null) {
+            iccCert = new ICCPublicKeyCertificate(app, app.getIssuerPublicKeyCertificate());
+            app.setICCPublicKeyCertificate(iccCert);
+        }
+        return iccCert;
+    }
+
+    private static ICCPinEnciphermentPublicKeyCertificate getOrCreateICCPinEnciphermentPublicKeyCertificate(EMVApplication app) {
+        ICCPinEnciphermentPublicKeyCertificate iccPinEnciphermentCert = app.getICCPinEnciphermentPublicKeyCertificate();
+        if (iccPinEnciphermentCert == null) {
+            iccPinEnciphermentCert = new ICCPinEnciphermentPublicKeyCertificate(app, app.getIssuerPublicKeyCertificate());
+            app.setICCPinEnciphermentPublicKeyCertificate(iccPinEnciphermentCert);
+        }
+        return iccPinEnciphermentCert;
+    }
+
+    //Handlers shared by several templates
+
+    private static final TagHandler<EMVApplication> IGNORE = new TagHandler<EMVApplication>() {
+        @Override
+        public void handle(TLVCursor tlv, EMVApplication app) {
+        }
+    };
+
+    private static final TagHandler<EMVApplication> AID_CARD = new TagHandler<EMVApplication>() {
+        @Override
+        public void handle(TLVCursor tlv, EMVApplication app) {
+            app.setAID(new AID(tlv.getValueBytes()));
+        }
+    };
+
+    private static final TagHandler<EMVApplication> APPLICATION_LABEL = new TagHandler<EMVApplication>() {
+        @Override
+        public void handle(TLVCursor tlv, EMVApplication app) {
+            app.setLabel(getSafePrintChars(tlv)); //Use only safe print chars, just in case
+        }
+    };
+
+    private static final TagHandler<EMVApplication> APP_PREFERRED_NAME = new TagHandler<EMVApplication>() {
+        @Override
+        public void handle(TLVCursor tlv, EMVApplication app) {
+            //TODO: "Use Issuer Code Table Index"
+            app.setPreferredName(getSafePrintChars(tlv)); //Use only safe print chars, just in case
+        }
+    };
+
+    private static final TagHandler<EMVApplication> APPLICATION_PRIORITY_INDICATOR = new TagHandler<EMVApplication>() {
+        @Override
+        public void handle(TLVCursor tlv, EMVApplication app) {
+            app.setApplicationPriorityIndicator(new ApplicationPriorityIndicator(tlv.getValueByte(0)));
+        }
+    };
+
+    private static final TagHandler<EMVApplication> ISSUER_CODE_TABLE_INDEX = new TagHandler<EMVApplication>() {
+        @Override
+        public void handle(TLVCursor tlv, EMVApplication app) {
+            app.setIssuerCodeTableIndex(tlv.getValueAsInt());
+        }
+    };
+
+    private static final TagHandler<EMVApplication> LANGUAGE_PREFERENCE = new TagHandler<EMVApplication>() {
+        @Override
+        public void handle(TLVCursor tlv, EMVApplication app) {
+            if (app.hasLanguagePreference()) {
+                throw new RuntimeException("JavaEMVReader currently does not support multiple LanguagePreference. Must create method 'ADD LanguagePreference', not SET");
+            }
+            app.putLazyValue(tlv);
+        }
+    };
+
+    /**
+     * Stores the value in place, to be decoded by the EMVApplication getter on first access
+     */
+    private static final TagHandler<EMVApplication> LAZY = new TagHandler<EMVApplication>() {
+        @Override
+        public void handle(TLVCursor tlv, EMVApplication app) {
+            app.putLazyValue(tlv);
+        }
+    };
+
+    static {
+        APPLICATION_TEMPLATE
+                .register(EMVTags.AID_CARD, AID_CARD)
+                .register(EMVTags.APPLICATION_LABEL, APPLICATION_LABEL)
+                .register(EMVTags.APP_PREFERRED_NAME, APP_PREFERRED_NAME)
+                .register(EMVTags.APPLICATION_PRIORITY_INDICATOR, APPLICATION_PRIORITY_INDICATOR)
+                .register(EMVTags.ISSUER_CODE_TABLE_INDEX, ISSUER_CODE_TABLE_INDEX)
+                .register(EMVTags.LANGUAGE_PREFERENCE, LANGUAGE_PREFERENCE);
+
+        PPSE_APPLICATION_TEMPLATE
+                .register(EMVTags.AID_CARD, AID_CARD)
+                .register(EMVTags.APPLICATION_LABEL, APPLICATION_LABEL)
+                .register(EMVTags.APPLICATION_PRIORITY_INDICATOR, APPLICATION_PRIORITY_INDICATOR);
+
+        FCI_PROPRIETARY_TEMPLATE
+                .register(EMVTags.APPLICATION_LABEL, APPLICATION_LABEL)
+                .register(EMVTags.PDOL, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        app.setPDOL(new DOL(DOL.Type.PDOL, tlv.getValueBytes(), EMVTags.getDictionary(app)));
+                    }
+                })
+                .register(EMVTags.LANGUAGE_PREFERENCE, LANGUAGE_PREFERENCE)
+                .register(EMVTags.APP_PREFERRED_NAME, APP_PREFERRED_NAME)
+                .register(EMVTags.ISSUER_CODE_TABLE_INDEX, ISSUER_CODE_TABLE_INDEX)
+                .register(EMVTags.APPLICATION_PRIORITY_INDICATOR, APPLICATION_PRIORITY_INDICATOR)
+                .register(EMVTags.FCI_ISSUER_DISCRETIONARY_DATA, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        FCI_ISSUER_DISCRETIONARY_DATA.dispatchAll(tlv.getValueCursor(), app, app.getAID(), UNHANDLED);
+                    }
+                });
+
+        FCI_ISSUER_DISCRETIONARY_DATA
+                .register(EMVTags.LOG_ENTRY, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        app.setLogEntry(new LogEntry(tlv.getValueByte(0), tlv.getValueByte(1)));
+                    }
+                })
+                .register(EMVTags.ISSUER_URL, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        app.setIssuerUrl(getSafePrintChars(tlv));
+                    }
+                })
+                .register(EMVTags.ISSUER_IDENTIFICATION_NUMBER, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        app.setIssuerIdentificationNumber(new IssuerIdentificationNumber(tlv.getValueBytes()));
+                    }
+                })
+                .register(EMVTags.ISSUER_COUNTRY_CODE_ALPHA3, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        app.setIssuerCountryCodeAlpha3(getSafePrintChars(tlv));
+                    }
+                })
+                //'DF60' is ignored for every RID (not only VISA)
+                //TODO add this to VISAApp
+                //app.setVisaLogEntry(new LogEntry(tlv.getValueBytes()[0], tlv.getValueBytes()[1]));
+                .register(VISATags.VISA_LOG_ENTRY, IGNORE);
+
+        RESPONSE_MESSAGE_TEMPLATE_2
+                .register(EMVTags.APPLICATION_INTERCHANGE_PROFILE, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        app.setApplicationInterchangeProfile(new ApplicationInterchangeProfile(tlv.getValueByte(0), tlv.getValueByte(1)));
+                    }
+                })
+                .register(EMVTags.APPLICATION_FILE_LOCATOR, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        app.setApplicationFileLocator(new ApplicationFileLocator(tlv.getValueBytes()));
+                    }
+                });
+
+        RECORD_TEMPLATE
+                .register(EMVTags.CARDHOLDER_NAME, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        app.setCardholderName(getSafePrintChars(tlv));
+                    }
+                })
+                .register(EMVTags.TRACK1_DISCRETIONARY_DATA, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        app.setTrack1DiscretionaryData(tlv.getValueBytes());
+                    }
+                })
+                .register(EMVTags.TRACK2_DISCRETIONARY_DATA, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        app.setTrack2DiscretionaryData(tlv.getValueBytes());
+                    }
+                })
+                .register(EMVTags.TRACK_2_EQV_DATA, LAZY)
+                .register(EMVTags.APP_EXPIRATION_DATE, LAZY)
+                .register(EMVTags.APP_EFFECTIVE_DATE, LAZY)
+                .register(EMVTags.PAN, LAZY)
+                .register(EMVTags.PAN_SEQUENCE_NUMBER, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        app.setPANSequenceNumber(tlv.getValueByte(0));
+                    }
+                })
+                .register(EMVTags.APP_USAGE_CONTROL, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        app.setApplicationUsageControl(new ApplicationUsageControl(tlv.getValueByte(0), tlv.getValueByte(1)));
+                    }
+                })
+                .register(EMVTags.CVM_LIST, LAZY)
+                .register(EMVTags.LANGUAGE_PREFERENCE, LANGUAGE_PREFERENCE)
+                .register(EMVTags.ISSUER_ACTION_CODE_DEFAULT, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        app.setIssuerActionCodeDefault(tlv.getValueBytes());
+                    }
+                })
+                .register(EMVTags.ISSUER_ACTION_CODE_DENIAL, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        app.setIssuerActionCodeDenial(tlv.getValueBytes());
+                    }
+                })
+                .register(EMVTags.ISSUER_ACTION_CODE_ONLINE, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        app.setIssuerActionCodeOnline(tlv.getValueBytes());
+                    }
+                })
+                .register(EMVTags.ISSUER_COUNTRY_CODE, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        app.setIssuerCountryCode(getBinaryHexCodedDecimalValue(tlv));
+                    }
+                })
+                .register(EMVTags.APPLICATION_CURRENCY_CODE, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        app.setApplicationCurrencyCode(getBinaryHexCodedDecimalValue(tlv));
+                    }
+                })
+                .register(EMVTags.APP_CURRENCY_EXPONENT, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        app.setApplicationCurrencyExponent(getBinaryHexCodedDecimalValue(tlv));
+                    }
+                })
+                .register(EMVTags.APP_VERSION_NUMBER_CARD, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        app.setApplicationVersionNumber(tlv.getValueAsInt());
+                    }
+                })
+                .register(EMVTags.CDOL1, LAZY)
+                .register(EMVTags.CDOL2, LAZY)
+                .register(EMVTags.LOWER_CONSEC_OFFLINE_LIMIT, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        app.setLowerConsecutiveOfflineLimit(tlv.getValueAsInt());
+                    }
+                })
+                .register(EMVTags.UPPER_CONSEC_OFFLINE_LIMIT, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        app.setUpperConsecutiveOfflineLimit(tlv.getValueAsInt());
+                    }
+                })
+                .register(EMVTags.SERVICE_CODE, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        app.setServiceCode(getBinaryHexCodedDecimalValue(tlv));
+                    }
+                })
+                .register(EMVTags.SDA_TAG_LIST, LAZY)
+                .register(EMVTags.CA_PUBLIC_KEY_INDEX_CARD, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        IssuerPublicKeyCertificate issuerCert = app.getIssuerPublicKeyCertificate();
+                        if (issuerCert == null) {
+                            CA ca = CA.getCA(app.getAID());
+
+                            if (ca == null) {
+                                //ca == null is permitted (we might not have the CA public keys for every exotic CA)
+                                Log.info("No CA configured for AID: " + app.getAID().toString());
+                            }
+                            issuerCert = new IssuerPublicKeyCertificate(ca);
+                            app.setIssuerPublicKeyCertificate(issuerCert);
+                        }
+                        issuerCert.setCAPublicKeyIndex(tlv.getValueAsInt());
+                    }
+                })
+                .register(EMVTags.ISSUER_PUBLIC_KEY_CERT, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        getOrCreateIssuerPublicKeyCertificate(app).setSignedBytes(tlv.getValueBytes());
+                    }
+                })
+                .register(EMVTags.ISSUER_PUBLIC_KEY_EXP, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        getOrCreateIssuerPublicKeyCertificate(app).getIssuerPublicKey().setExponent(tlv.getValueBytes());
+                    }
+                })
+                .register(EMVTags.ISSUER_PUBLIC_KEY_REMAINDER, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        getOrCreateIssuerPublicKeyCertificate(app).getIssuerPublicKey().setRemainder(tlv.getValueBytes());
+                    }
+                })
+                .register(EMVTags.SIGNED_STATIC_APP_DATA, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        SignedStaticApplicationData ssad = app.getSignedStaticApplicationData();
+                        if (ssad == null) {
+                            ssad = new SignedStaticApplicationData(app);
+                            app.setSignedStaticApplicationData(ssad);
+                        }
+                        ssad.setSignedBytes(tlv.getValueBytes());
+                    }
+                })
+                .register(EMVTags.ICC_PUBLIC_KEY_CERT, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        getOrCreateICCPublicKeyCertificate(app).setSignedBytes(tlv.getValueBytes());
+                    }
+                })
+                .register(EMVTags.ICC_PUBLIC_KEY_EXP, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        getOrCreateICCPublicKeyCertificate(app).getICCPublicKey().setExponent(tlv.getValueBytes());
+                    }
+                })
+                .register(EMVTags.ICC_PUBLIC_KEY_REMAINDER, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        getOrCreateICCPublicKeyCertificate(app).getICCPublicKey().setRemainder(tlv.getValueBytes());
+                    }
+                })
+                .register(EMVTags.ICC_PIN_ENCIPHERMENT_PUBLIC_KEY_CERT, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        getOrCreateICCPinEnciphermentPublicKeyCertificate(app).setSignedBytes(tlv.getValueBytes());
+                    }
+                })
+                .register(EMVTags.ICC_PIN_ENCIPHERMENT_PUBLIC_KEY_EXP, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        getOrCreateICCPinEnciphermentPublicKeyCertificate(app).getICCPublicKey().setExponent(tlv.getValueBytes());
+                    }
+                })
+                .register(EMVTags.ICC_PIN_ENCIPHERMENT_PUBLIC_KEY_REM, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        getOrCreateICCPinEnciphermentPublicKeyCertificate(app).getICCPublicKey().setRemainder(tlv.getValueBytes());
+                    }
+                })
+                .register(EMVTags.DDOL, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        app.setDDOL(new DOL(DOL.Type.DDOL, tlv.getValueBytes(), EMVTags.getDictionary(app)));
+                    }
+                })
+                .register(EMVTags.IBAN, LAZY)
+                .register(EMVTags.BANK_IDENTIFIER_CODE, LAZY)
+                .register(EMVTags.APP_DISCRETIONARY_DATA, new TagHandler<EMVApplication>() {
+                    @Override
+                    public void handle(TLVCursor tlv, EMVApplication app) {
+                        app.setDiscretionaryData(tlv.getValueBytes());
+                    }
+                });
+
+        DDF_FCI_PROPRIETARY_TEMPLATE
+                .register(EMVTags.SFI, new TagHandler<DDF>() {
+                    @Override
+                    public void handle(TLVCursor tlv, DDF ddf) {
+                        ddf.setSFI(new ShortFileIdentifier(tlv.getValueAsInt()));
+                    }
+                })
+                .register(EMVTags.LANGUAGE_PREFERENCE, new TagHandler<DDF>() {
+                    @Override
+                    public void handle(TLVCursor tlv, DDF ddf) {
+                        ddf.setLanguagePreference(new LanguagePreference(tlv.getValueBytes()));
+                    }
+                })
+                .register(EMVTags.ISSUER_CODE_TABLE_INDEX, new TagHandler<DDF>() {
+                    @Override
+                    public void handle(TLVCursor tlv, DDF ddf) {
+                        ddf.setIssuerCodeTableIndex(tlv.getValueAsInt());
+                    }
+                })
+                .register(EMVTags.APPLICATION_LABEL, new TagHandler<DDF>() {
+                    @Override
+                    public void handle(TLVCursor tlv, DDF ddf) {
+                        //TODO is this tag expected at this point? Should be located in APP_TEMPLATE! Are there any info in book 1?
+                        //ddf.setApplicationLabel(label);
+                    }
+                });
+    }
+
+    private EMVTagHandlers() {
+        throw new UnsupportedOperationException("Not allowed to instantiate");
+    }
+}
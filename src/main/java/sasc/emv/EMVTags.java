@@ -21,9 +21,12 @@ import sasc.iso7816.Tag;
 import java.lang.reflect.Field;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.Map;
+import sasc.iso7816.AID;
+import sasc.iso7816.TLVUtil;
 import sasc.emv.system.mastercard.MCTags;
 import sasc.emv.system.visa.VISATags;
-import sasc.util.ByteArrayWrapper;
+import sasc.util.LongObjectMap;
 import sasc.util.Util;
 
 /**
@@ -37,10 +40,67 @@ import sasc.util.Util;
  */
 public class EMVTags {
 
-    private static LinkedHashMap<IssuerIdentificationNumber, LinkedHashMap<ByteArrayWrapper, Tag>> issuerToTagsMap = new LinkedHashMap<IssuerIdentificationNumber, LinkedHashMap<ByteArrayWrapper, Tag>>();
-    private static LinkedHashMap<ByteArrayWrapper, LinkedHashMap<ByteArrayWrapper, Tag>> paymentSystemToTagsMap = new LinkedHashMap<ByteArrayWrapper, LinkedHashMap<ByteArrayWrapper, Tag>>();
+    //All maps are keyed by primitive longs: tags by TLVUtil.getTagKey(), 
+    //payment systems by AID.getRIDKey() and issuers by the packed IIN bytes
+    private static final LongObjectMap<LongObjectMap<Tag>> issuerToTagsMap = new LongObjectMap<LongObjectMap<Tag>>();
+    private static final LongObjectMap<LongObjectMap<Tag>> paymentSystemToTagsMap = new LongObjectMap<LongObjectMap<Tag>>();
 
-    private static LinkedHashMap<ByteArrayWrapper, Tag> tags = new LinkedHashMap<ByteArrayWrapper, Tag>();
+    private static final LongObjectMap<Tag> tags = new LongObjectMap<Tag>();
+
+    private static final TagDictionary DEFAULT_DICTIONARY = new TagDictionary("EMV", tags);
+
+    //Merged dictionaries keyed by (RID key, IIN key), least recently used evicted first
+    private static final int MAX_CACHED_DICTIONARIES = 64;
+    @SuppressWarnings("serial") //The LRU map is never serialized
+    private static final Map<DictionaryKey, TagDictionary> dictionaryCache = new LinkedHashMap<DictionaryKey, TagDictionary>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<DictionaryKey, TagDictionary> eldest) {
+            return size() > MAX_CACHED_DICTIONARIES;
+        }
+    };
+
+    //The RID (5 bytes) and IIN (up to 6 bytes) keys do not fit together in one long
+    private static final class DictionaryKey {
+
+        final long ridKey;
+        final long iinKey;
+
+        DictionaryKey(long ridKey, long iinKey) {
+            this.ridKey = ridKey;
+            this.iinKey = iinKey;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof DictionaryKey)) {
+                return false;
+            }
+            DictionaryKey that = (DictionaryKey) other;
+            return this.ridKey == that.ridKey && this.iinKey == that.iinKey;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = ridKey * 31 + iinKey;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    private static final class CachedDictionary {
+
+        final long ridKey;
+        final long iinKey;
+        final TagDictionary dictionary;
+
+        CachedDictionary(long ridKey, long iinKey, TagDictionary dictionary) {
+            this.ridKey = ridKey;
+            this.iinKey = iinKey;
+            this.dictionary = dictionary;
+        }
+    }
+
+    //The dictionary used last (usually the same card and application), checked before the cache
+    private static volatile CachedDictionary lastDictionary = null;
     //One byte tags
     //7816-4 Interindustry data object for tag allocation authority
     public static final Tag UNIVERSAL_TAG_FOR_OID                   = new TagImpl("06", TagValueType.BINARY, "Object Identifier (OID)", "Universal tag for OID");
@@ -237,6 +297,10 @@ public class EMVTags {
         return tag;
     }
     
+    public static Tag getNotNull(EMVApplication app, byte[] tagBytes) {
+        return getDictionary(app).getNotNull(tagBytes);
+    }
+
     public static Tag getNotNull(EMVApplication app, Tag tag) {
         Tag tagFound = get(app, tag);
         if (tagFound == null) {
@@ -253,16 +317,48 @@ public class EMVTags {
      * Returns null if Tag not found
      */
     public static Tag find(byte[] tagBytes) {
-        return tags.get(ByteArrayWrapper.wrapperAround(tagBytes));
+        return find(TLVUtil.getTagKey(tagBytes));
+    }
+
+    /**
+     * Returns null if Tag not found
+     * 
+     * @param tagKey the tag bytes packed into an int (see TLVUtil.getTagKey)
+     */
+    public static Tag find(int tagKey) {
+        if (tagKey == TLVUtil.NO_TAG_KEY) {
+            return null;
+        }
+        return tags.get(tagKey);
+    }
+
+    private static int getKeyForTag(Tag tag) {
+        int key = TLVUtil.getTagKey(tag.getTagBytes());
+        if (key == TLVUtil.NO_TAG_KEY) {
+            throw new IllegalArgumentException("Tag must be 1 to 4 bytes long " + tag);
+        }
+        return key;
+    }
+
+    private static long getKeyForIIN(IssuerIdentificationNumber iin) {
+        return toLongKey(iin.iinBytes);
+    }
+
+    //Packs up to 8 bytes (big-endian) into a long
+    private static long toLongKey(byte[] bytes) {
+        long key = 0;
+        for (byte b : bytes) {
+            key = (key << 8) | (b & 0xFF);
+        }
+        return key;
     }
 
     private static void addTag(Tag tag) {
-        //Use 'wrapper around', since the underlaying byte-array will not be changed in this case
-        ByteArrayWrapper baw = ByteArrayWrapper.wrapperAround(tag.getTagBytes());
-        if (tags.containsKey(baw)) {
+        int key = getKeyForTag(tag);
+        if (tags.containsKey(key)) {
             throw new IllegalArgumentException("Tag already added " + tag);
         }
-        tags.put(baw, tag);
+        tags.put(key, tag);
     }
 
     static {
@@ -306,49 +402,91 @@ public class EMVTags {
     }
         
     private static void addIssuerTag(IssuerIdentificationNumber iin, Tag tag) {
-        //Use 'wrapper around', since the underlaying byte-array will not be changed in this case
-        ByteArrayWrapper tagBytesWrapped = ByteArrayWrapper.wrapperAround(tag.getTagBytes());
-        LinkedHashMap<ByteArrayWrapper, Tag> issuerTags = issuerToTagsMap.get(iin);
-        if (issuerTags == null) {
-            issuerTags = new LinkedHashMap<ByteArrayWrapper, Tag>();
-            issuerToTagsMap.put(iin, issuerTags);
-        }
-        if (issuerTags.containsKey(tagBytesWrapped)) {
-            throw new IllegalArgumentException("Tag already added " + tag);
-        }
-        issuerTags.put(tagBytesWrapped, tag);
+        addOverlayTag(issuerToTagsMap, getKeyForIIN(iin), tag);
     }
     
     private static void addPaymentSystemTag(byte[] ridBytes, Tag tag) {
-        //Use 'wrapper around', since the underlaying byte-array will not be changed in this case
-        ByteArrayWrapper tagBytesWrapped = ByteArrayWrapper.wrapperAround(tag.getTagBytes());
-        ByteArrayWrapper ridBytesWrapped = ByteArrayWrapper.wrapperAround(ridBytes);
-        LinkedHashMap<ByteArrayWrapper, Tag> paymentSystemTags = paymentSystemToTagsMap.get(ridBytesWrapped);
-        if (paymentSystemTags == null) {
-            paymentSystemTags = new LinkedHashMap<ByteArrayWrapper, Tag>();
-            paymentSystemToTagsMap.put(ridBytesWrapped, paymentSystemTags);
+        addOverlayTag(paymentSystemToTagsMap, toLongKey(ridBytes), tag);
+    }
+
+    private static void addOverlayTag(LongObjectMap<LongObjectMap<Tag>> overlays, long overlayKey, Tag tag) {
+        int tagKey = getKeyForTag(tag);
+        LongObjectMap<Tag> overlayTags = overlays.get(overlayKey);
+        if (overlayTags == null) {
+            overlayTags = new LongObjectMap<Tag>();
+            overlays.put(overlayKey, overlayTags);
         }
-        if (paymentSystemTags.containsKey(tagBytesWrapped)) {
+        if (overlayTags.containsKey(tagKey)) {
             throw new IllegalArgumentException("Tag already added " + tag);
         }
-        paymentSystemTags.put(tagBytesWrapped, tag);
+        overlayTags.put(tagKey, tag);
+        synchronized (dictionaryCache) {
+            dictionaryCache.clear();
+            lastDictionary = null;
+        }
     }
     
+    /**
+     * Issuer specific tags take precedence over payment system specific tags, 
+     * which take precedence over the EMV tags.
+     * Returns null if Tag not found
+     */
     public static Tag get(EMVApplication app, Tag tag){
-        ByteArrayWrapper tagBytesWrapped = ByteArrayWrapper.wrapperAround(tag.getTagBytes());
-        IssuerIdentificationNumber iin = app.getIssuerIdentificationNumber();
-        if(iin != null){
-            if(issuerToTagsMap.containsKey(iin) && issuerToTagsMap.get(iin).containsKey(tagBytesWrapped)){
-                return issuerToTagsMap.get(iin).get(tagBytesWrapped);
-            }
+        return getDictionary(app).find(TLVUtil.getTagKey(tag.getTagBytes()));
+    }
+
+    /**
+     * @return the tags known in the context of the application (its RID and IIN)
+     */
+    public static TagDictionary getDictionary(EMVApplication app) {
+        if (app == null) {
+            return DEFAULT_DICTIONARY;
         }
-        if(app.getAID() != null) {
-            ByteArrayWrapper ridBytesWrapped = ByteArrayWrapper.wrapperAround(app.getAID().getRIDBytes());
-            if(paymentSystemToTagsMap.containsKey(ridBytesWrapped) && paymentSystemToTagsMap.get(ridBytesWrapped).containsKey(tagBytesWrapped)){
-                    return paymentSystemToTagsMap.get(ridBytesWrapped).get(tagBytesWrapped);
+        return getDictionary(app.getAID(), app.getIssuerIdentificationNumber());
+    }
+
+    /**
+     * Returns the EMV tags merged with the tags of the payment system (RID) and issuer.
+     * Merged dictionaries are built on first use, and cached
+     *
+     * @param aid may be null
+     * @param iin may be null
+     */
+    public static TagDictionary getDictionary(AID aid, IssuerIdentificationNumber iin) {
+        long ridKey = aid != null ? aid.getRIDKey() : 0;
+        long iinKey = iin != null ? getKeyForIIN(iin) : 0;
+        CachedDictionary last = lastDictionary;
+        if (last != null && last.ridKey == ridKey && last.iinKey == iinKey) {
+            return last.dictionary;
+        }
+        DictionaryKey key = new DictionaryKey(ridKey, iinKey);
+        TagDictionary dictionary;
+        synchronized (dictionaryCache) {
+            dictionary = dictionaryCache.get(key);
+            if (dictionary == null) {
+                dictionary = createDictionary(ridKey, iinKey);
+                dictionaryCache.put(key, dictionary);
             }
         }
-        return find(tag.getTagBytes());
+        lastDictionary = new CachedDictionary(ridKey, iinKey, dictionary);
+        return dictionary;
+    }
+
+    private static TagDictionary createDictionary(long ridKey, long iinKey) {
+        LongObjectMap<Tag> paymentSystemTags = ridKey != 0 ? paymentSystemToTagsMap.get(ridKey) : null;
+        LongObjectMap<Tag> issuerTags = iinKey != 0 ? issuerToTagsMap.get(iinKey) : null;
+        if (paymentSystemTags == null && issuerTags == null) {
+            return DEFAULT_DICTIONARY;
+        }
+        LongObjectMap<Tag> merged = new LongObjectMap<Tag>();
+        merged.putAll(tags);
+        if (paymentSystemTags != null) {
+            merged.putAll(paymentSystemTags);
+        }
+        if (issuerTags != null) {
+            merged.putAll(issuerTags);
+        }
+        return new TagDictionary(Long.toHexString(ridKey) + "/" + Long.toHexString(iinKey), merged);
     }
 
     public static void main(String[] args) {
@@ -15,7 +15,6 @@
  */
 package sasc.emv;
 
-import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.Arrays;
@@ -23,14 +22,18 @@ import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.CallbackHandler;
 import javax.security.auth.callback.PasswordCallback;
 import javax.security.auth.callback.UnsupportedCallbackException;
+import sasc.iso7816.TLVWriter;
 import sasc.iso7816.Tag;
 import sasc.iso7816.TagAndLength;
 import sasc.iso7816.TagImpl;
 import sasc.iso7816.TagValueType;
+import sasc.util.ByteArrayWrapper;
 import sasc.util.ISO4217_Numeric;
 import sasc.util.Log;
 import sasc.util.Util;
@@ -47,6 +50,8 @@ public class EMVTerminal {
     private final static Properties defaultTerminalProperties = new Properties();
     private final static Properties runtimeTerminalProperties = new Properties();
     private final static TerminalVerificationResults terminalVerificationResults = new TerminalVerificationResults();
+    private final static int MAX_CACHED_DOL_RESPONSE_PLANS = 256;
+    private final static ConcurrentMap<ByteArrayWrapper, DOLResponsePlan> dolResponsePlanCache = new ConcurrentHashMap<ByteArrayWrapper, DOLResponsePlan>();
     
     private static CallbackHandler pinCallbackHandler;
     
@@ -102,9 +107,28 @@ public class EMVTerminal {
 //         9a 03 -- Transaction Date
 //         9c 01 -- Transaction Type
 //         9f 37 04 -- Unpredictable Number
-    private static byte[] getTerminalResidentData(TagAndLength tal, EMVApplication app) {
-        //Check if the value is specified in the runtime properties file
-        String propertyValueStr = runtimeTerminalProperties.getProperty(Util.byteArrayToHexString(tal.getTag().getTagBytes()).toLowerCase());
+    /**
+     * Resolves the value of each element of the DOL, as far as possible without a transaction or card
+     */
+    private static DOLResponsePlan compileDOL(DOL dol) {
+        List<TagAndLength> tagAndLengthList = dol.getTagAndLengthList();
+        DOLResponsePlan plan = new DOLResponsePlan(getDOLResponseLength(dol), tagAndLengthList.size());
+        int offset = 0;
+        for (TagAndLength tal : tagAndLengthList) {
+            DOLResponsePlan.Source source = findDynamicSource(tal);
+            if (source != null) {
+                plan.addSlot(offset, tal, source);
+            } else {
+                plan.setStaticValue(offset, tal, getStaticTerminalResidentData(tal));
+            }
+            offset += tal.getLength();
+        }
+        return plan;
+    }
+
+    private static byte[] getPropertyValue(Properties properties, TagAndLength tal) {
+        //Check if the value is specified in the properties file
+        String propertyValueStr = properties.getProperty(Util.byteArrayToHexString(tal.getTag().getTagBytes()).toLowerCase());
 
         if(propertyValueStr != null) {
             byte[] propertyValue = Util.fromHexString(propertyValueStr);
@@ -113,37 +137,54 @@ public class EMVTerminal {
                 return propertyValue;
             }
         }
-        
+        return null;
+    }
+
+    /**
+     * @return the source of a value that must be resolved per response, or null if the value is static
+     */
+    private static DOLResponsePlan.Source findDynamicSource(TagAndLength tal) {
+        //Values in the runtime properties file take precedence
+        if (getPropertyValue(runtimeTerminalProperties, tal) != null) {
+            return null;
+        }
+
         if (tal.getTag().equals(EMVTags.TERMINAL_COUNTRY_CODE) && tal.getLength() == 2) {
-            return findCountryCode(app);
+            return DOLResponsePlan.Source.TERMINAL_COUNTRY_CODE;
         } else if (tal.getTag().equals(EMVTags.TRANSACTION_CURRENCY_CODE) && tal.getLength() == 2) {
-            return findCurrencyCode(app);
+            return DOLResponsePlan.Source.TRANSACTION_CURRENCY_CODE;
         }
-        
+
         //Now check for default values
-        propertyValueStr = defaultTerminalProperties.getProperty(Util.byteArrayToHexString(tal.getTag().getTagBytes()).toLowerCase());
+        if (getPropertyValue(defaultTerminalProperties, tal) != null) {
+            return null;
+        }
 
-        if(propertyValueStr != null) {
-            byte[] propertyValue = Util.fromHexString(propertyValueStr);
+        if (tal.getTag().equals(EMVTags.UNPREDICTABLE_NUMBER)) {
+            return DOLResponsePlan.Source.UNPREDICTABLE_NUMBER;
+        } else if (tal.getTag().equals(EMVTags.TERMINAL_VERIFICATION_RESULTS) && tal.getLength() == 5) {
+            return DOLResponsePlan.Source.TERMINAL_VERIFICATION_RESULTS;
+        } else if (tal.getTag().equals(EMVTags.TRANSACTION_DATE) && tal.getLength() == 3) {
+            return DOLResponsePlan.Source.TRANSACTION_DATE;
+        }
+        return null;
+    }
 
-            if (propertyValue.length == tal.getLength()) {
-                return propertyValue;
-            }
+    private static byte[] getStaticTerminalResidentData(TagAndLength tal) {
+        byte[] propertyValue = getPropertyValue(runtimeTerminalProperties, tal);
+        if (propertyValue == null) {
+            propertyValue = getPropertyValue(defaultTerminalProperties, tal);
+        }
+        if (propertyValue != null) {
+            return propertyValue;
         }
 
-        if (tal.getTag().equals(EMVTags.UNPREDICTABLE_NUMBER)) {
-            return Util.generateRandomBytes(tal.getLength());
-        } else if (tal.getTag().equals(EMVTags.TERMINAL_TRANSACTION_QUALIFIERS) && tal.getLength() == 4) {
+        if (tal.getTag().equals(EMVTags.TERMINAL_TRANSACTION_QUALIFIERS) && tal.getLength() == 4) {
             //This seems only to be used in contactless mode. Construct accordingly
             TerminalTransactionQualifiers ttq = new TerminalTransactionQualifiers();
             ttq.setContactlessEMVmodeSupported(true);
             ttq.setReaderIsOfflineOnly(true);
             return ttq.getBytes();
-        } else if (tal.getTag().equals(EMVTags.TERMINAL_VERIFICATION_RESULTS) && tal.getLength() == 5) {
-            //All bits set to '0'
-            return terminalVerificationResults.toByteArray();
-        } else if (tal.getTag().equals(EMVTags.TRANSACTION_DATE) && tal.getLength() == 3) {
-            return Util.getCurrentDateAsNumericEncodedByteArray();
         } else if (tal.getTag().equals(EMVTags.TRANSACTION_TYPE) && tal.getLength() == 1) {
             //transactionTypes = {     0:  "Payment",     1:  "Withdrawal", } 
             //http://www.codeproject.com/Articles/100084/Introduction-to-ISO-8583
@@ -156,6 +197,41 @@ public class EMVTerminal {
         return defaultResponse;
     }
 
+    static byte[] getDynamicValue(DOLResponsePlan.Source source, int length, EMVApplication app) {
+        switch (source) {
+            case UNPREDICTABLE_NUMBER:
+                return Util.generateRandomBytes(length);
+            case TRANSACTION_DATE:
+                return Util.getCurrentDateAsNumericEncodedByteArray();
+            case TERMINAL_VERIFICATION_RESULTS:
+                return terminalVerificationResults.toByteArray();
+            case TERMINAL_COUNTRY_CODE:
+                return findCountryCode(app);
+            case TRANSACTION_CURRENCY_CODE:
+                return findCurrencyCode(app);
+            default:
+                throw new IllegalArgumentException("Unknown source: " + source);
+        }
+    }
+
+    /**
+     * Returns the compiled response plan for the DOL.
+     * Plans are cached by DOL bytes, so DOLs seen before (eg from cards of the same issuer)
+     * are not resolved again
+     */
+    public static DOLResponsePlan getDOLResponsePlan(DOL dol) {
+        ByteArrayWrapper key = ByteArrayWrapper.wrapperAround(dol.getBytes());
+        DOLResponsePlan plan = dolResponsePlanCache.get(key);
+        if (plan == null) {
+            plan = compileDOL(dol);
+            if (dolResponsePlanCache.size() >= MAX_CACHED_DOL_RESPONSE_PLANS) {
+                dolResponsePlanCache.clear();
+            }
+            dolResponsePlanCache.put(key, plan);
+        }
+        return plan;
+    }
+
     public static TerminalVerificationResults getTerminalVerificationResults() {
         return terminalVerificationResults;
     }
@@ -170,6 +246,8 @@ public class EMVTerminal {
     
     public static void setProperty(Tag tag, byte[] value){
         runtimeTerminalProperties.setProperty(Util.byteArrayToHexString(tag.getTagBytes()).toLowerCase(Locale.US), Util.byteArrayToHexString(value));
+        //The compiled plans might contain the old value
+        dolResponsePlanCache.clear();
     }
     
     public static boolean isCDASupported(EMVApplication app) {
@@ -318,12 +396,25 @@ public class EMVTerminal {
     }
 
     public static byte[] constructDOLResponse(DOL dol, EMVApplication app) {
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        return getDOLResponsePlan(dol).createResponse(app);
+    }
+
+    /**
+     * @return the number of bytes in the response to 'dol' (the sum of the lengths in the DOL)
+     */
+    public static int getDOLResponseLength(DOL dol) {
+        int length = 0;
         for (TagAndLength tagAndLength : dol.getTagAndLengthList()) {
-            byte[] data = getTerminalResidentData(tagAndLength, app);
-            stream.write(data, 0, data.length);
+            length += tagAndLength.getLength();
         }
-        return stream.toByteArray();
+        return length;
+    }
+
+    /**
+     * Writes the DOL response directly to 'out' (eg into the data field of a command)
+     */
+    public static void writeDOLResponse(DOL dol, EMVApplication app, TLVWriter out) {
+        getDOLResponsePlan(dol).writeResponse(app, out);
     }
 
     //The ICC may contain the DDOL, but there shall be a default DDOL in the terminal, 
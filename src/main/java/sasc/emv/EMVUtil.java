@@ -15,7 +15,6 @@
  */
 package sasc.emv;
 
-import sasc.iso7816.ShortFileIdentifier;
 import sasc.smartcard.common.SmartCard;
 import sasc.iso7816.TagValueType;
 import sasc.iso7816.TagAndLength;
@@ -28,8 +27,8 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.List;
-import sasc.emv.system.visa.VISATags;
 import sasc.iso7816.ATR;
+import sasc.iso7816.TLVCursor;
 import sasc.iso7816.TLVException;
 import sasc.iso7816.TLVUtil;
 import sasc.terminal.CardResponse;
@@ -71,7 +70,7 @@ public class EMVUtil {
     //TODO move this to generic ISO7816 routine?
     private static CardResponse sendCmdInternal(CardConnection terminal, byte[] cmd, boolean doParseTLVData) throws TerminalException {
         byte[] cmdBytes = checkAndAddLeIfMissing(cmd);
-        Log.command(Util.prettyPrintHex(cmdBytes));
+        Log.command("%s", Log.prettyHex(cmdBytes));
         long startTime = System.nanoTime();
         CardResponse response = terminal.transmit(cmdBytes);
 
@@ -81,17 +80,19 @@ public class EMVUtil {
         byte sw1 = (byte) response.getSW1();
         byte sw2 = (byte) response.getSW2();
         byte[] data = response.getData(); //Copy
-        Log.debug("Received data+SW1+SW2: " + Util.byteArrayToHexString(data) + " " + Util.byte2Hex(sw1) + " " + Util.byte2Hex((byte) sw2));
-        Log.debug("data.length: 0x"+Util.int2Hex(data.length) + " ("+data.length+")");
+        if (Log.isDebugEnabled()) {
+            Log.debug("Received data+SW1+SW2: " + Util.byteArrayToHexString(data) + " " + Util.byte2Hex(sw1) + " " + Util.byte2Hex((byte) sw2));
+            Log.debug("data.length: 0x"+Util.int2Hex(data.length) + " ("+data.length+")");
+        }
         if (sw1 == (byte) 0x6c) { //"Wrong length" (resend last command with correct length)
             //Re-issue command with correct length
             cmdBytes[4] = sw2;
-            Log.procedureByte("Received procedure byte SW1=0x6c. Re-issuing command with correct length (" + Util.byte2Hex(sw2)+"): "+ Util.byteArrayToHexString(cmdBytes));
+            Log.procedureByte("Received procedure byte SW1=0x6c. Re-issuing command with correct length (%02x): %s", sw2, Log.hex(cmdBytes));
             response = terminal.transmit(cmdBytes);
             sw1 = (byte) response.getSW1();
             sw2 = (byte) response.getSW2();
             data = response.getData(); //Copy
-            Log.procedureByte("Received data+SW1+SW2: " + Util.byteArrayToHexString(data) + " " + Util.byte2Hex(sw1) + " " + Util.byte2Hex(sw2));
+            Log.procedureByte("Received data+SW1+SW2: %s %02x %02x", Log.hex(data), sw1, sw2);
         }
 
         //Note some non-EMV cards (and terminal software) seem to re-issue the last command with length=SW2 when getting SW1=61
@@ -103,7 +104,7 @@ public class EMVUtil {
             }else{
                 cmdBytes = new byte[]{cmdBytes[0], (byte) 0xC0, (byte) 0x00, (byte) 0x00, (byte) sw2};
             }
-            Log.procedureByte("Received procedure byte SW1=0x61. Sending GET RESPONSE command: " + Util.byteArrayToHexString(cmdBytes));
+            Log.procedureByte("Received procedure byte SW1=0x61. Sending GET RESPONSE command: %s", Log.hex(cmdBytes));
             response = terminal.transmit(cmdBytes);
             byte[] newData = response.getData();
             byte[] tmpData = new byte[data.length + newData.length];
@@ -111,14 +112,16 @@ public class EMVUtil {
             System.arraycopy(newData, 0, tmpData, data.length, newData.length);
             sw1 = (byte) response.getSW1();
             sw2 = (byte) response.getSW2();
-            Log.procedureByte("Received newData+SW1+SW2: " + Util.byteArrayToHexString(newData) + " " + Util.byte2Hex(sw1) + " " + Util.byte2Hex(sw2));
+            Log.procedureByte("Received newData+SW1+SW2: %s %02x %02x", Log.hex(newData), sw1, sw2);
             data = tmpData;
         }
 
 
         long endTime = System.nanoTime();
         printResponse(response, doParseTLVData);
-        Log.debug("Time: " + Util.getFormattedNanoTime(endTime - startTime));
+        if (Log.isDebugEnabled()) {
+            Log.debug("Time: " + Util.getFormattedNanoTime(endTime - startTime));
+        }
         return response;
     }
 
@@ -171,6 +174,9 @@ public class EMVUtil {
     }
 
     public static void printResponse(byte[] data, byte sw1, byte sw2, short sw, boolean doParseTLVData) {
+        if (!Log.isEnabled(Log.Level.INFO)) {
+            return;
+        }
         Log.info("response hex    :\n" + Util.prettyPrintHex(data));
 
         String swDescription = "";
@@ -204,61 +210,33 @@ public class EMVUtil {
 
         DDF ddf = new DDF();
 
-        BERTLV tlv = TLVUtil.getNextTLV(new ByteArrayInputStream(data));
-
-        if (tlv.getTag().equals(EMVTags.FCI_TEMPLATE)) {
-            ByteArrayInputStream templateStream = tlv.getValueStream();
-
-            while (templateStream.available() >= 2) {
-                tlv = TLVUtil.getNextTLV(templateStream);
-                if (tlv.getTag().equals(EMVTags.DEDICATED_FILE_NAME)) {
-                    ddf.setName(tlv.getValueBytes());
-                } else if (tlv.getTag().equals(EMVTags.FCI_PROPRIETARY_TEMPLATE)) {
-                    ByteArrayInputStream bis2 = new ByteArrayInputStream(tlv.getValueBytes());
-                    int totalLen = bis2.available();
-                    int templateLen = tlv.getLength();
-                    while (bis2.available() > (totalLen - templateLen)) {
-                        tlv = TLVUtil.getNextTLV(bis2);
-
-                        if (tlv.getTag().equals(EMVTags.SFI)) {
-                            ShortFileIdentifier sfi = new ShortFileIdentifier(Util.byteArrayToInt(tlv.getValueBytes()));
-                            ddf.setSFI(sfi);
-                        } else if (tlv.getTag().equals(EMVTags.LANGUAGE_PREFERENCE)) {
-                            LanguagePreference languagePreference = new LanguagePreference(tlv.getValueBytes());
-                            ddf.setLanguagePreference(languagePreference);
-                        } else if (tlv.getTag().equals(EMVTags.ISSUER_CODE_TABLE_INDEX)) {
-                            int index = Util.byteArrayToInt(tlv.getValueBytes());
-                            ddf.setIssuerCodeTableIndex(index);
-                        } else if (tlv.getTag().equals(EMVTags.APPLICATION_LABEL)) {
-							//TODO is this tag expected at this point? Should be located in APP_TEMPLATE! Are there any info in book 1?
-						    String label = Util.getSafePrintChars(tlv.getValueBytes());
-                            //ddf.setApplicationLabel(label);
-                        } else if (tlv.getTag().equals(EMVTags.FCI_ISSUER_DISCRETIONARY_DATA)) { //PPSE
-                            ByteArrayInputStream discrStream = new ByteArrayInputStream(tlv.getValueBytes());
-                            int total3Len = discrStream.available();
-                            int template3Len = tlv.getLength();
-                            while (discrStream.available() > (total3Len - template3Len)) {
-                                tlv = TLVUtil.getNextTLV(discrStream);
-
-                                if (tlv.getTag().equals(EMVTags.APPLICATION_TEMPLATE)) {
-                                    ByteArrayInputStream appTemplateStream = new ByteArrayInputStream(tlv.getValueBytes());
-                                    int appTemplateTotalLen = appTemplateStream.available();
-                                    int template4Len = tlv.getLength();
+        TLVCursor cursor = new TLVCursor(data);
+        if (!cursor.next()) {
+            throw new TLVException("Error parsing data. No TLV found. Data: " + Util.byteArrayToHexString(data));
+        }
+
+        if (cursor.isTag(EMVTags.FCI_TEMPLATE)) {
+            TLVCursor templateCursor = cursor.getValueCursor();
+
+            while (templateCursor.next()) {
+                if (templateCursor.isTag(EMVTags.DEDICATED_FILE_NAME)) {
+                    ddf.setName(templateCursor.getValueBytes());
+                } else if (templateCursor.isTag(EMVTags.FCI_PROPRIETARY_TEMPLATE)) {
+                    TLVCursor propCursor = templateCursor.getValueCursor();
+                    while (propCursor.next()) {
+                        if (EMVTagHandlers.DDF_FCI_PROPRIETARY_TEMPLATE.dispatch(propCursor, ddf, null)) {
+                            continue;
+                        }
+                        if (propCursor.isTag(EMVTags.FCI_ISSUER_DISCRETIONARY_DATA)) { //PPSE
+                            TLVCursor discrCursor = propCursor.getValueCursor();
+                            while (discrCursor.next()) {
+                                if (discrCursor.isTag(EMVTags.APPLICATION_TEMPLATE)) {
+                                    TLVCursor appTemplateCursor = discrCursor.getValueCursor();
                                     EMVApplication app = new EMVApplication();
-                                    while (appTemplateStream.available() > (appTemplateTotalLen - template4Len)) {
-                                        tlv = TLVUtil.getNextTLV(appTemplateStream);
-
-                                        if (tlv.getTag().equals(EMVTags.AID_CARD)) {
-                                            app.setAID(new AID(tlv.getValueBytes()));
-                                        } else if (tlv.getTag().equals(EMVTags.APPLICATION_LABEL)) {
-                                            String label = Util.getSafePrintChars(tlv.getValueBytes()); //Use only safe print chars, just in case
-                                            app.setLabel(label);
-                                        } else if (tlv.getTag().equals(EMVTags.APPLICATION_PRIORITY_INDICATOR)) {
-                                            ApplicationPriorityIndicator api = new ApplicationPriorityIndicator(tlv.getValueBytes()[0]);
-                                            app.setApplicationPriorityIndicator(api);
-                                        } else {
+                                    while (appTemplateCursor.next()) {
+                                        if (!EMVTagHandlers.PPSE_APPLICATION_TEMPLATE.dispatch(appTemplateCursor, app, app.getAID())) {
                                             //TODO call ddf instead of card?
-                                            card.addUnhandledRecord(tlv);
+                                            card.addUnhandledRecord(appTemplateCursor.toBERTLV());
                                         }
                                     }
                                     //Verify that the app template is valid
@@ -269,84 +247,60 @@ public class EMVUtil {
                                     }
                                 } else {
                                     //TODO call ddf instead of card?
-                                    card.addUnhandledRecord(tlv);
+                                    card.addUnhandledRecord(discrCursor.toBERTLV());
                                 }
                             }
                         } else {
                             //TODO call ddf instead of card?
-                            card.addUnhandledRecord(tlv);
+                            card.addUnhandledRecord(propCursor.toBERTLV());
                         }
                     }
                 } else {
                     //TODO call ddf instead of card?
-                    card.addUnhandledRecord(tlv);
+                    card.addUnhandledRecord(templateCursor.toBERTLV());
                 }
             }
         } else {
             //TODO call ddf instead of card?
-            card.addUnhandledRecord(tlv);
+            card.addUnhandledRecord(cursor.toBERTLV());
         }
 
         return ddf;
     }
 
     public static void parsePSERecord(byte[] data, SmartCard card) {
-        ByteArrayInputStream bis = new ByteArrayInputStream(data);
+        TLVCursor cursor = new TLVCursor(data);
 
-        while (bis.available() >= 2) {
-            BERTLV tlv = TLVUtil.getNextTLV(bis);
-            if (tlv.getTag().equals(EMVTags.RECORD_TEMPLATE)) {
-                ByteArrayInputStream valueBytesBis = new ByteArrayInputStream(tlv.getValueBytes());
-                while (valueBytesBis.available() >= 2) {
-                    tlv = TLVUtil.getNextTLV(valueBytesBis);
-                    if (tlv.getTag().equals(EMVTags.APPLICATION_TEMPLATE)) { //Application Template
-                        ByteArrayInputStream bis2 = new ByteArrayInputStream(tlv.getValueBytes());
-                        int totalLen = bis2.available();
-                        int templateLen = tlv.getLength();
+        while (cursor.next()) {
+            if (cursor.isTag(EMVTags.RECORD_TEMPLATE)) {
+                TLVCursor recordCursor = cursor.getValueCursor();
+                while (recordCursor.next()) {
+                    if (recordCursor.isTag(EMVTags.APPLICATION_TEMPLATE)) { //Application Template
                         EMVApplication app = new EMVApplication();
-                        while (bis2.available() > (totalLen - templateLen)) {
-
-                            tlv = TLVUtil.getNextTLV(bis2);
-
-                            if (tlv.getTag().equals(EMVTags.AID_CARD)) {
-                                app.setAID(new AID(tlv.getValueBytes()));
-                            } else if (tlv.getTag().equals(EMVTags.APPLICATION_LABEL)) {
-                                String label = Util.getSafePrintChars(tlv.getValueBytes()); //Use only safe print chars, just in case
-                                app.setLabel(label);
-                            } else if (tlv.getTag().equals(EMVTags.APP_PREFERRED_NAME)) {
-                                String preferredName = Util.getSafePrintChars(tlv.getValueBytes()); //Use only safe print chars, just in case
-                                app.setPreferredName(preferredName);
-                            } else if (tlv.getTag().equals(EMVTags.APPLICATION_PRIORITY_INDICATOR)) {
-                                ApplicationPriorityIndicator api = new ApplicationPriorityIndicator(tlv.getValueBytes()[0]);
-                                app.setApplicationPriorityIndicator(api);
-                            } else if (tlv.getTag().equals(EMVTags.ISSUER_CODE_TABLE_INDEX)) {
-                                int index = Util.byteArrayToInt(tlv.getValueBytes());
-                                app.setIssuerCodeTableIndex(index);
-                            } else if (tlv.getTag().equals(EMVTags.LANGUAGE_PREFERENCE)) {
-                                LanguagePreference languagePreference = new LanguagePreference(tlv.getValueBytes());
-                                app.setLanguagePreference(languagePreference);
-                            } else {
-                                checkForProprietaryTagOrAddToUnhandled(app, tlv);
+                        TLVCursor appTemplateCursor = recordCursor.getValueCursor();
+                        while (appTemplateCursor.next()) {
+                            if (!EMVTagHandlers.APPLICATION_TEMPLATE.dispatch(appTemplateCursor, app, app.getAID())) {
+                                EMVTagHandlers.UNHANDLED.handle(appTemplateCursor, app);
                             }
                         }
-                        Log.debug("Adding application: " + Util.prettyPrintHexNoWrap(app.getAID().getAIDBytes()));
-//                        apps.add(app);
                         //Verify that the app template is valid
                         if(app.getAID() != null){
+                            if (Log.isDebugEnabled()) {
+                                Log.debug("Adding application: " + Util.prettyPrintHexNoWrap(app.getAID().getAIDBytes()));
+                            }
                             card.addEMVApplication(app);
                         }else{
                             Log.debug("Found invalid application template: "+app.toString());
                         }
                     } else {
-                        card.addUnhandledRecord(tlv);
+                        card.addUnhandledRecord(recordCursor.toBERTLV());
                     }
                 }
 
-            } else if (tlv.getTag().equals(EMVTags.RESPONSE_MESSAGE_TEMPLATE_2)) {
-                card.addUnhandledRecord(tlv);
+            } else if (cursor.isTag(EMVTags.RESPONSE_MESSAGE_TEMPLATE_2)) {
+                card.addUnhandledRecord(cursor.toBERTLV());
             }
         }
-//        return apps;
     }
 
     public static void parseFCIADF(byte[] data, EMVApplication app) {
@@ -355,77 +309,32 @@ public class EMVUtil {
             return;
         }
 
-        BERTLV tlv = TLVUtil.getNextTLV(new ByteArrayInputStream(data));
-
-        if (tlv.getTag().equals(EMVTags.FCI_TEMPLATE)) {
-            ByteArrayInputStream templateStream = tlv.getValueStream();
-            while (templateStream.available() >= 2) {
-
-
-                tlv = TLVUtil.getNextTLV(templateStream);
-                if (tlv.getTag().equals(EMVTags.DEDICATED_FILE_NAME)) {
-                    app.setAID(new AID(tlv.getValueBytes()));
-                    Log.debug("ADDED AID to app. AID after set: "+Util.prettyPrintHexNoWrap(app.getAID().getAIDBytes()) + " - AID in FCI: " + Util.prettyPrintHexNoWrap(tlv.getValueBytes()));
-                } else if (tlv.getTag().equals(EMVTags.FCI_PROPRIETARY_TEMPLATE)) { //Proprietary Information Template
-                    ByteArrayInputStream bis2 = tlv.getValueStream();
-                    int totalLen = bis2.available();
-                    int templateLen = tlv.getLength();
-                    while (bis2.available() > (totalLen - templateLen)) {
-                        tlv = TLVUtil.getNextTLV(bis2);
-
-                        if (tlv.getTag().equals(EMVTags.APPLICATION_LABEL)) {
-                            app.setLabel(Util.getSafePrintChars(tlv.getValueBytes()));
-                        } else if (tlv.getTag().equals(EMVTags.PDOL)) {
-                            app.setPDOL(new DOL(DOL.Type.PDOL, tlv.getValueBytes()));
-                        } else if (tlv.getTag().equals(EMVTags.LANGUAGE_PREFERENCE)) {
-                            LanguagePreference languagePreference = new LanguagePreference(tlv.getValueBytes());
-                            app.setLanguagePreference(languagePreference);
-                        } else if (tlv.getTag().equals(EMVTags.APP_PREFERRED_NAME)) {
-                            //TODO: "Use Issuer Code Table Index"
-                            String preferredName = Util.getSafePrintChars(tlv.getValueBytes()); //Use only safe print chars, just in case
-                            app.setPreferredName(preferredName);
-                        } else if (tlv.getTag().equals(EMVTags.ISSUER_CODE_TABLE_INDEX)) {
-                            int index = Util.byteArrayToInt(tlv.getValueBytes());
-                            app.setIssuerCodeTableIndex(index);
-                        } else if (tlv.getTag().equals(EMVTags.APPLICATION_PRIORITY_INDICATOR)) {
-                            ApplicationPriorityIndicator api = new ApplicationPriorityIndicator(tlv.getValueBytes()[0]);
-                            app.setApplicationPriorityIndicator(api);
-                        } else if (tlv.getTag().equals(EMVTags.FCI_ISSUER_DISCRETIONARY_DATA)) { // File Control Information (FCI) Issuer Discretionary Data
-                            ByteArrayInputStream bis3 = tlv.getValueStream();
-                            int totalLenFCIDiscretionary = bis3.available();
-                            int tlvLen = tlv.getLength();
-                            while (bis3.available() > (totalLenFCIDiscretionary - tlvLen)) {
-                                tlv = TLVUtil.getNextTLV(bis3);
-                                if (tlv.getTag().equals(EMVTags.LOG_ENTRY)) {
-                                    app.setLogEntry(new LogEntry(tlv.getValueBytes()[0], tlv.getValueBytes()[1]));
-							    } else if (tlv.getTag().equals(VISATags.VISA_LOG_ENTRY)) { //TODO add this to VISAApp
-							    	//app.setVisaLogEntry(new LogEntry(tlv.getValueBytes()[0], tlv.getValueBytes()[1]));
-                                } else if (tlv.getTag().equals(EMVTags.ISSUER_URL)) {
-                                    app.setIssuerUrl(Util.getSafePrintChars(tlv.getValueBytes()));
-                                } else if (tlv.getTag().equals(EMVTags.ISSUER_IDENTIFICATION_NUMBER)) {
-                                    IssuerIdentificationNumber iin = new IssuerIdentificationNumber(tlv.getValueBytes());
-                                    app.setIssuerIdentificationNumber(iin);
-                                } else if (tlv.getTag().equals(EMVTags.ISSUER_COUNTRY_CODE_ALPHA3)) {
-                                    app.setIssuerCountryCodeAlpha3(Util.getSafePrintChars(tlv.getValueBytes()));
-                                } else {
-                                    checkForProprietaryTagOrAddToUnhandled(app, tlv);
-                                }
-                            }
-                        } else {
-                            checkForProprietaryTagOrAddToUnhandled(app, tlv);
-                        }
+        TLVCursor cursor = new TLVCursor(data);
+        if (!cursor.next()) {
+            throw new TLVException("Error parsing data. No TLV found. Data: " + Util.byteArrayToHexString(data));
+        }
 
+        if (cursor.isTag(EMVTags.FCI_TEMPLATE)) {
+            TLVCursor templateCursor = cursor.getValueCursor();
+            while (templateCursor.next()) {
+
+                if (templateCursor.isTag(EMVTags.DEDICATED_FILE_NAME)) {
+                    app.setAID(new AID(templateCursor.getValueBytes()));
+                    if (Log.isDebugEnabled()) {
+                        Log.debug("ADDED AID to app. AID after set: "+Util.prettyPrintHexNoWrap(app.getAID().getAIDBytes()) + " - AID in FCI: " + Util.prettyPrintHexNoWrap(templateCursor.getData(), templateCursor.getValueOffset(), templateCursor.getValueLength()));
                     }
+                } else if (templateCursor.isTag(EMVTags.FCI_PROPRIETARY_TEMPLATE)) { //Proprietary Information Template
+                    EMVTagHandlers.FCI_PROPRIETARY_TEMPLATE.dispatchAll(templateCursor.getValueCursor(), app, app.getAID(), EMVTagHandlers.UNHANDLED);
                 }
             }
 
         } else {
-            checkForProprietaryTagOrAddToUnhandled(app, tlv);
+            checkForProprietaryTagOrAddToUnhandled(app, cursor.toBERTLV());
             throw new SmartCardException("Error parsing ADF. Expected FCI Template. Data: " + Util.byteArrayToHexString(data));
         }
     }
     
-    private static void checkForProprietaryTagOrAddToUnhandled(EMVApplication app, BERTLV tlv) {
+    static void checkForProprietaryTagOrAddToUnhandled(EMVApplication app, BERTLV tlv) {
         Tag tagFound = EMVTags.get(app, tlv.getTag());
         if(tagFound != null) {
             app.addUnprocessedRecord(tlv);
@@ -435,38 +344,35 @@ public class EMVUtil {
     }
 
     public static void parseProcessingOpts(byte[] data, EMVApplication app) {
-        ByteArrayInputStream bis = new ByteArrayInputStream(data);
-
-        if (bis.available() < 2) {
+        if (data.length < 2) {
             throw new SmartCardException("Error parsing Processing Options. Invalid TLV Length. Data: " + Util.byteArrayToHexString(data));
         }
-        BERTLV tlv = TLVUtil.getNextTLV(bis);
-
-        ByteArrayInputStream valueBytesBis = tlv.getValueStream();
+        TLVCursor cursor = new TLVCursor(data);
+        if (!cursor.next()) {
+            throw new TLVException("Error parsing data. No TLV found. Data: " + Util.byteArrayToHexString(data));
+        }
 
-        if (valueBytesBis.available() < 2) {
-            throw new SmartCardException("Error parsing Processing Options: Invalid ValueBytes length: " + valueBytesBis.available());
+        if (cursor.getValueLength() < 2) {
+            throw new SmartCardException("Error parsing Processing Options: Invalid ValueBytes length: " + cursor.getValueLength());
         }
 
-        if (tlv.getTag().equals(EMVTags.RESPONSE_MESSAGE_TEMPLATE_1)) {
+        if (cursor.isTag(EMVTags.RESPONSE_MESSAGE_TEMPLATE_1)) {
             //AIP & AFL concatenated without delimiters (that is, excluding tag and length)
-            ApplicationInterchangeProfile aip = new ApplicationInterchangeProfile((byte) valueBytesBis.read(), (byte) valueBytesBis.read());
+            ApplicationInterchangeProfile aip = new ApplicationInterchangeProfile(cursor.getValueByte(0), cursor.getValueByte(1));
             app.setApplicationInterchangeProfile(aip);
 
-            if (valueBytesBis.available() % 4 != 0) {
-                throw new SmartCardException("Error parsing Processing Options: Invalid AFL length: " + valueBytesBis.available());
+            int aflLength = cursor.getValueLength() - 2;
+            if (aflLength % 4 != 0) {
+                throw new SmartCardException("Error parsing Processing Options: Invalid AFL length: " + aflLength);
             }
 
-            byte[] aflBytes = new byte[valueBytesBis.available()];
-            valueBytesBis.read(aflBytes, 0, aflBytes.length);
+            byte[] aflBytes = new byte[aflLength];
+            System.arraycopy(data, cursor.getValueOffset() + 2, aflBytes, 0, aflLength);
 
             ApplicationFileLocator afl = new ApplicationFileLocator(aflBytes);
             app.setApplicationFileLocator(afl);
-        } else if (tlv.getTag().equals(EMVTags.RESPONSE_MESSAGE_TEMPLATE_2)) {
+        } else if (cursor.isTag(EMVTags.RESPONSE_MESSAGE_TEMPLATE_2)) {
             //AIP (& AFL) WITH delimiters (that is, including, including tag and length) and possibly other BER TLV tags (that might be proprietary)
-            while (valueBytesBis.available() >= 2) {
-                tlv = TLVUtil.getNextTLV(valueBytesBis);
-                
 //   Example:
 //                77 4e -- Response Message Template Format 2
 //                    82 02 -- Application Interchange Profile
@@ -487,197 +393,26 @@ public class EMVUtil {
 //                    5f 20 0f -- Cardholder Name
 //                             56 49 53 41 20 43 41 52 44 48 4f 4c 44 45 52 (=VISA CARDHOLDER)
                 
-                if (tlv.getTag().equals(EMVTags.APPLICATION_INTERCHANGE_PROFILE)) {
-                    byte[] aipBytes = tlv.getValueBytes();
-                    ApplicationInterchangeProfile aip = new ApplicationInterchangeProfile(aipBytes[0], aipBytes[1]);
-                    app.setApplicationInterchangeProfile(aip);
-                } else if (tlv.getTag().equals(EMVTags.APPLICATION_FILE_LOCATOR)) {
-                    byte[] aflBytes = tlv.getValueBytes();
-                    ApplicationFileLocator afl = new ApplicationFileLocator(aflBytes);
-                    app.setApplicationFileLocator(afl);
-                } else {
-                    checkForProprietaryTagOrAddToUnhandled(app, tlv);
-                }
-            }
+            EMVTagHandlers.RESPONSE_MESSAGE_TEMPLATE_2.dispatchAll(cursor.getValueCursor(), app, app.getAID(), EMVTagHandlers.UNHANDLED);
         } else {
-            checkForProprietaryTagOrAddToUnhandled(app, tlv);
+            checkForProprietaryTagOrAddToUnhandled(app, cursor.toBERTLV());
         }
     }
 
     public static void parseAppRecord(byte[] data, EMVApplication app) {
-        ByteArrayInputStream bis = new ByteArrayInputStream(data);
-
-        if (bis.available() < 2) {
+        if (data.length < 2) {
             throw new SmartCardException("Error parsing Application Record. Data: " + Util.byteArrayToHexString(data));
         }
-        BERTLV tlv = TLVUtil.getNextTLV(bis);
-
-        if (!tlv.getTag().equals(EMVTags.RECORD_TEMPLATE)) {
-            throw new SmartCardException("Error parsing Application Record: No Response Template found. Data=" + Util.byteArrayToHexString(tlv.getValueBytes()));
+        TLVCursor cursor = new TLVCursor(data);
+        if (!cursor.next()) {
+            throw new TLVException("Error parsing data. No TLV found. Data: " + Util.byteArrayToHexString(data));
         }
 
-        bis = new ByteArrayInputStream(tlv.getValueBytes());
-
-        while (bis.available() >= 2) {
-            tlv = TLVUtil.getNextTLV(bis);
-            if (tlv.getTag().equals(EMVTags.CARDHOLDER_NAME)) {
-                app.setCardholderName(Util.getSafePrintChars(tlv.getValueBytes()));
-            } else if (tlv.getTag().equals(EMVTags.TRACK1_DISCRETIONARY_DATA)) {
-                app.setTrack1DiscretionaryData(tlv.getValueBytes());
-            } else if (tlv.getTag().equals(EMVTags.TRACK2_DISCRETIONARY_DATA)) {
-                app.setTrack2DiscretionaryData(tlv.getValueBytes());
-            } else if (tlv.getTag().equals(EMVTags.TRACK_2_EQV_DATA)) {
-                Track2EquivalentData t2Data = new Track2EquivalentData(tlv.getValueBytes());
-                app.setTrack2EquivalentData(t2Data);
-            } else if (tlv.getTag().equals(EMVTags.APP_EXPIRATION_DATE)) {
-                app.setExpirationDate(tlv.getValueBytes());
-            } else if (tlv.getTag().equals(EMVTags.APP_EFFECTIVE_DATE)) {
-                app.setEffectiveDate(tlv.getValueBytes());
-            } else if (tlv.getTag().equals(EMVTags.PAN)) {
-                PAN pan = new PAN(tlv.getValueBytes());
-                app.setPAN(pan);
-            } else if (tlv.getTag().equals(EMVTags.PAN_SEQUENCE_NUMBER)) {
-                app.setPANSequenceNumber(tlv.getValueBytes()[0]);
-            } else if (tlv.getTag().equals(EMVTags.APP_USAGE_CONTROL)) {
-                ApplicationUsageControl auc = new ApplicationUsageControl(tlv.getValueBytes()[0], tlv.getValueBytes()[1]);
-                app.setApplicationUsageControl(auc);
-            } else if (tlv.getTag().equals(EMVTags.CVM_LIST)) {
-                CVMList cvmList = new CVMList(tlv.getValueBytes());
-                app.setCVMList(cvmList);
-            } else if (tlv.getTag().equals(EMVTags.LANGUAGE_PREFERENCE)) {
-                LanguagePreference languagePreference = new LanguagePreference(tlv.getValueBytes());
-                app.setLanguagePreference(languagePreference);
-            } else if (tlv.getTag().equals(EMVTags.ISSUER_ACTION_CODE_DEFAULT)) {
-                app.setIssuerActionCodeDefault(tlv.getValueBytes());
-            } else if (tlv.getTag().equals(EMVTags.ISSUER_ACTION_CODE_DENIAL)) {
-                app.setIssuerActionCodeDenial(tlv.getValueBytes());
-            } else if (tlv.getTag().equals(EMVTags.ISSUER_ACTION_CODE_ONLINE)) {
-                app.setIssuerActionCodeOnline(tlv.getValueBytes());
-            } else if (tlv.getTag().equals(EMVTags.ISSUER_COUNTRY_CODE)) {
-                int issuerCountryCode = Util.binaryHexCodedDecimalToInt(Util.byteArrayToHexString(tlv.getValueBytes()));
-                app.setIssuerCountryCode(issuerCountryCode);
-            } else if (tlv.getTag().equals(EMVTags.APPLICATION_CURRENCY_CODE)) {
-                int currencyCode = Util.binaryHexCodedDecimalToInt(Util.byteArrayToHexString(tlv.getValueBytes()));
-                app.setApplicationCurrencyCode(currencyCode);
-            } else if (tlv.getTag().equals(EMVTags.APP_CURRENCY_EXPONENT)) {
-                int applicationCurrencyExponent = Util.binaryHexCodedDecimalToInt(Util.byteArrayToHexString(tlv.getValueBytes()));
-                app.setApplicationCurrencyExponent(applicationCurrencyExponent);
-            } else if (tlv.getTag().equals(EMVTags.APP_VERSION_NUMBER_CARD)) {
-                app.setApplicationVersionNumber(Util.byteArrayToInt(tlv.getValueBytes()));
-            } else if (tlv.getTag().equals(EMVTags.CDOL1)) {
-                DOL cdol1 = new DOL(DOL.Type.CDOL1, tlv.getValueBytes());
-                app.setCDOL1(cdol1);
-            } else if (tlv.getTag().equals(EMVTags.CDOL2)) {
-                DOL cdol2 = new DOL(DOL.Type.CDOL2, tlv.getValueBytes());
-                app.setCDOL2(cdol2);
-            } else if (tlv.getTag().equals(EMVTags.LOWER_CONSEC_OFFLINE_LIMIT)) {
-                app.setLowerConsecutiveOfflineLimit(Util.byteArrayToInt(tlv.getValueBytes()));
-            } else if (tlv.getTag().equals(EMVTags.UPPER_CONSEC_OFFLINE_LIMIT)) {
-                app.setUpperConsecutiveOfflineLimit(Util.byteArrayToInt(tlv.getValueBytes()));
-            } else if (tlv.getTag().equals(EMVTags.SERVICE_CODE)) {
-                int serviceCode = Util.binaryHexCodedDecimalToInt(Util.byteArrayToHexString(tlv.getValueBytes()));
-                app.setServiceCode(serviceCode);
-            } else if (tlv.getTag().equals(EMVTags.SDA_TAG_LIST)) {
-                StaticDataAuthenticationTagList staticDataAuthTagList = new StaticDataAuthenticationTagList(tlv.getValueBytes());
-                app.setStaticDataAuthenticationTagList(staticDataAuthTagList);
-            } else if (tlv.getTag().equals(EMVTags.CA_PUBLIC_KEY_INDEX_CARD)) {
-                IssuerPublicKeyCertificate issuerCert = app.getIssuerPublicKeyCertificate();
-                if (issuerCert == null) {
-                    CA ca = CA.getCA(app.getAID());
-
-                    if (ca == null) {
-                        //ca == null is permitted (we might not have the CA public keys for every exotic CA)
-                        Log.info("No CA configured for AID: " + app.getAID().toString());
-//                        throw new SmartCardException("No CA configured for AID: "+app.getAID().toString());
-                    }
-                    issuerCert = new IssuerPublicKeyCertificate(ca);
-                    app.setIssuerPublicKeyCertificate(issuerCert);
-                }
-                issuerCert.setCAPublicKeyIndex(Util.byteArrayToInt(tlv.getValueBytes()));
-            } else if (tlv.getTag().equals(EMVTags.ISSUER_PUBLIC_KEY_CERT)) {
-                IssuerPublicKeyCertificate issuerCert = app.getIssuerPublicKeyCertificate();
-                if (issuerCert == null) {
-                    issuerCert = new IssuerPublicKeyCertificate(CA.getCA(app.getAID()));
-                    app.setIssuerPublicKeyCertificate(issuerCert);
-                }
-                issuerCert.setSignedBytes(tlv.getValueBytes());
-            } else if (tlv.getTag().equals(EMVTags.ISSUER_PUBLIC_KEY_EXP)) {
-                IssuerPublicKeyCertificate issuerCert = app.getIssuerPublicKeyCertificate();
-                if (issuerCert == null) {
-                    issuerCert = new IssuerPublicKeyCertificate(CA.getCA(app.getAID()));
-                    app.setIssuerPublicKeyCertificate(issuerCert);
-                }
-                issuerCert.getIssuerPublicKey().setExponent(tlv.getValueBytes());
-            } else if (tlv.getTag().equals(EMVTags.ISSUER_PUBLIC_KEY_REMAINDER)) {
-                IssuerPublicKeyCertificate issuerCert = app.getIssuerPublicKeyCertificate();
-                if (issuerCert == null) {
-                    issuerCert = new IssuerPublicKeyCertificate(CA.getCA(app.getAID()));
-                    app.setIssuerPublicKeyCertificate(issuerCert);
-                }
-                issuerCert.getIssuerPublicKey().setRemainder(tlv.getValueBytes());
-            } else if (tlv.getTag().equals(EMVTags.SIGNED_STATIC_APP_DATA)) {
-                SignedStaticApplicationData ssad = app.getSignedStaticApplicationData();
-                if (ssad == null) {
-                    ssad = new SignedStaticApplicationData(app);
-                    app.setSignedStaticApplicationData(ssad);
-                }
-                ssad.setSignedBytes(tlv.getValueBytes());
-            } else if (tlv.getTag().equals(EMVTags.ICC_PUBLIC_KEY_CERT)) {
-                ICCPublicKeyCertificate iccCert = app.getICCPublicKeyCertificate();
-                if (iccCert == null) {
-                    iccCert = new ICCPublicKeyCertificate(app, app.getIssuerPublicKeyCertificate());
-                    app.setICCPublicKeyCertificate(iccCert);
-                }
-                iccCert.setSignedBytes(tlv.getValueBytes());
-            } else if (tlv.getTag().equals(EMVTags.ICC_PUBLIC_KEY_EXP)) {
-                ICCPublicKeyCertificate iccCert = app.getICCPublicKeyCertificate();
-                if (iccCert == null) {
-                    iccCert = new ICCPublicKeyCertificate(app, app.getIssuerPublicKeyCertificate());
-                    app.setICCPublicKeyCertificate(iccCert);
-                }
-                iccCert.getICCPublicKey().setExponent(tlv.getValueBytes());
-            } else if (tlv.getTag().equals(EMVTags.ICC_PUBLIC_KEY_REMAINDER)) {
-                ICCPublicKeyCertificate iccCert = app.getICCPublicKeyCertificate();
-                if (iccCert == null) {
-                    iccCert = new ICCPublicKeyCertificate(app, app.getIssuerPublicKeyCertificate());
-                    app.setICCPublicKeyCertificate(iccCert);
-                }
-                iccCert.getICCPublicKey().setRemainder(tlv.getValueBytes());
-            } else if (tlv.getTag().equals(EMVTags.ICC_PIN_ENCIPHERMENT_PUBLIC_KEY_CERT)) {
-                ICCPinEnciphermentPublicKeyCertificate iccPinEnciphermentCert = app.getICCPinEnciphermentPublicKeyCertificate();
-                if (iccPinEnciphermentCert == null) {
-                    iccPinEnciphermentCert = new ICCPinEnciphermentPublicKeyCertificate(app, app.getIssuerPublicKeyCertificate());
-                    app.setICCPinEnciphermentPublicKeyCertificate(iccPinEnciphermentCert);
-                }
-                iccPinEnciphermentCert.setSignedBytes(tlv.getValueBytes());
-            } else if (tlv.getTag().equals(EMVTags.ICC_PIN_ENCIPHERMENT_PUBLIC_KEY_EXP)) {
-                ICCPinEnciphermentPublicKeyCertificate iccPinEnciphermentCert = app.getICCPinEnciphermentPublicKeyCertificate();
-                if (iccPinEnciphermentCert == null) {
-                    iccPinEnciphermentCert = new ICCPinEnciphermentPublicKeyCertificate(app, app.getIssuerPublicKeyCertificate());
-                    app.setICCPinEnciphermentPublicKeyCertificate(iccPinEnciphermentCert);
-                }
-                iccPinEnciphermentCert.getICCPublicKey().setExponent(tlv.getValueBytes());
-            } else if (tlv.getTag().equals(EMVTags.ICC_PIN_ENCIPHERMENT_PUBLIC_KEY_REM)) {
-                ICCPinEnciphermentPublicKeyCertificate iccPinEnciphermentCert = app.getICCPinEnciphermentPublicKeyCertificate();
-                if (iccPinEnciphermentCert == null) {
-                    iccPinEnciphermentCert = new ICCPinEnciphermentPublicKeyCertificate(app, app.getIssuerPublicKeyCertificate());
-                    app.setICCPinEnciphermentPublicKeyCertificate(iccPinEnciphermentCert);
-                }
-                iccPinEnciphermentCert.getICCPublicKey().setRemainder(tlv.getValueBytes());
-            } else if (tlv.getTag().equals(EMVTags.DDOL)) {
-                DOL ddol = new DOL(DOL.Type.DDOL, tlv.getValueBytes());
-                app.setDDOL(ddol);
-            } else if (tlv.getTag().equals(EMVTags.IBAN)) {
-                app.setIBAN(new IBAN(tlv.getValueBytes()));
-            } else if (tlv.getTag().equals(EMVTags.BANK_IDENTIFIER_CODE)) {
-                app.setBIC(new BankIdentifierCode(tlv.getValueBytes()));
-            } else if (tlv.getTag().equals(EMVTags.APP_DISCRETIONARY_DATA)) {
-                app.setDiscretionaryData(tlv.getValueBytes());
-            } else {
-                checkForProprietaryTagOrAddToUnhandled(app, tlv);
-            }
-
+        if (!cursor.isTag(EMVTags.RECORD_TEMPLATE)) {
+            throw new SmartCardException("Error parsing Application Record: No Response Template found. Data=" + Util.byteArrayToHexString(data, cursor.getValueOffset(), cursor.getValueLength()));
         }
+
+        EMVTagHandlers.RECORD_TEMPLATE.dispatchAll(cursor.getValueCursor(), app, app.getAID(), EMVTagHandlers.UNHANDLED);
     }
 
     public static void processInternalAuthResponse(byte[] data, byte[] authenticationRelatedData, EMVApplication app) {
@@ -686,7 +421,8 @@ public class EMVUtil {
         if (bis.available() < 2) {
             throw new SmartCardException("Error parsing Internal Auth Response. Invalid TLV Length. Data: " + Util.byteArrayToHexString(data));
         }
-        BERTLV tlv = TLVUtil.getNextTLV(bis);
+        TagDictionary tags = EMVTags.getDictionary(app);
+        BERTLV tlv = TLVUtil.getNextTLV(bis, tags);
 
         ByteArrayInputStream valueBytesBis = tlv.getValueStream();
 
@@ -709,7 +445,7 @@ public class EMVUtil {
         } else if (tlv.getTag().equals(EMVTags.RESPONSE_MESSAGE_TEMPLATE_2)) {
             //AIP & AFL WITH delimiters (that is, including, including tag and length) and possibly other BER TLV tags (that might be proprietary)
             while (valueBytesBis.available() >= 2) {
-                tlv = TLVUtil.getNextTLV(valueBytesBis);
+                tlv = TLVUtil.getNextTLV(valueBytesBis, tags);
                 if (tlv.getTag().equals(EMVTags.SIGNED_DYNAMIC_APPLICATION_DATA)) {
                     try {
                         SignedDynamicApplicationData sdad = SignedDynamicApplicationData.parseSignedData(tlv.getValueBytes(), app.getICCPublicKeyCertificate().getICCPublicKey(), authenticationRelatedData);
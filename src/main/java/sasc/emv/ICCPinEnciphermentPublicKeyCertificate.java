@@ -17,9 +17,9 @@ package sasc.emv;
 
 import sasc.iso7816.SmartCardException;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import sasc.util.Log;
@@ -87,7 +87,7 @@ public class ICCPinEnciphermentPublicKeyCertificate {
 
         IssuerPublicKey issuerPublicKey = issuerPublicKeyCert.getIssuerPublicKey();
 
-        byte[] recoveredBytes = Util.performRSA(signedBytes, issuerPublicKey.getExponent(), issuerPublicKey.getModulus());
+        byte[] recoveredBytes = issuerPublicKey.getRSAEngine().recover(signedBytes);
 
         ByteArrayInputStream bis = new ByteArrayInputStream(recoveredBytes);
         
@@ -136,52 +136,51 @@ public class ICCPinEnciphermentPublicKeyCertificate {
 
         bis.read(hash, 0, hash.length);
 
-        ByteArrayOutputStream hashStream = new ByteArrayOutputStream();
+        MessageDigest sha1;
+        try {
+            sha1 = Util.getSHA1Digest();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new SignedDataException("SHA-1 hash algorithm not available", ex);
+        }
 
         //Header not included in hash
-        hashStream.write(certFormat);
-        hashStream.write(pan, 0, pan.length);
-        hashStream.write(certExpirationDate, 0, certExpirationDate.length);
-        hashStream.write(certSerialNumber, 0, certSerialNumber.length);
-        hashStream.write((byte)hashAlgorithmIndicator);
-        hashStream.write((byte)iccPublicKeyAlgorithmIndicator);
-        hashStream.write((byte)iccPublicKeyModLengthTotal);
-        hashStream.write((byte)iccPublicKeyExpLengthTotal);
+        sha1.update(certFormat);
+        sha1.update(pan, 0, pan.length);
+        sha1.update(certExpirationDate, 0, certExpirationDate.length);
+        sha1.update(certSerialNumber, 0, certSerialNumber.length);
+        sha1.update((byte)hashAlgorithmIndicator);
+        sha1.update((byte)iccPublicKeyAlgorithmIndicator);
+        sha1.update((byte)iccPublicKeyModLengthTotal);
+        sha1.update((byte)iccPublicKeyExpLengthTotal);
         byte[] ipkModulus = iccPublicKey.getModulus();
         int numPadBytes = issuerPublicKey.getModulus().length-42-ipkModulus.length;
-        Log.debug("issuerMod: "+issuerPublicKey.getModulus().length + " iccMod: "+ipkModulus.length + " padBytes: "+numPadBytes);
+        if (Log.isDebugEnabled()) {
+            Log.debug("issuerMod: "+issuerPublicKey.getModulus().length + " iccMod: "+ipkModulus.length + " padBytes: "+numPadBytes);
+        }
         if(numPadBytes > 0){
             //If NIC <= NI – 42, consists of the full
             //ICC Public Key padded to the right
             //with NI – 42 – NIC bytes of value
             //'BB'
-            hashStream.write(ipkModulus, 0, ipkModulus.length);
+            sha1.update(ipkModulus, 0, ipkModulus.length);
             for(int i=0; i<numPadBytes; i++){
-                hashStream.write((byte)0xBB);
+                sha1.update((byte)0xBB);
             }
         }else{
             //If NIC > NI – 42, consists of the NI –
             //42 most significant bytes of the
             //ICC Public Key
             //and the NIC – NI + 42 least significant bytes of the ICC Public Key
-            hashStream.write(ipkModulus, 0, ipkModulus.length);
+            sha1.update(ipkModulus, 0, ipkModulus.length);
         }
 
         byte[] ipkExponent = iccPublicKey.getExponent();
-        hashStream.write(ipkExponent, 0, ipkExponent.length);
+        sha1.update(ipkExponent, 0, ipkExponent.length);
 
-        byte[] offlineAuthenticationRecords = application.getOfflineDataAuthenticationRecords();
-        hashStream.write(offlineAuthenticationRecords, 0, offlineAuthenticationRecords.length);
+        application.updateOfflineDataAuthenticationDigest(sha1);
         //Trailer not included in hash
 
-        Log.debug("HashStream:\n"+Util.prettyPrintHex(hashStream.toByteArray()));
-
-        byte[] sha1Result = null;
-        try {
-            sha1Result = Util.calculateSHA1(hashStream.toByteArray());
-        } catch (NoSuchAlgorithmException ex) {
-            throw new SignedDataException("SHA-1 hash algorithm not available", ex);
-        }
+        byte[] sha1Result = sha1.digest();
 
         if (!Arrays.equals(sha1Result, hash)) {
             throw new SignedDataException("Hash is not valid");
@@ -18,6 +18,7 @@ package sasc.emv;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import sasc.util.Log;
+import sasc.util.RSAPublicKeyEngine;
 import sasc.util.Util;
 
 /**
@@ -28,20 +29,24 @@ public class ICCPublicKey {
     private byte[] exponent = new byte[0];
     private byte[] modulus = new byte[0];
     private byte[] remainder = new byte[0];
+    private volatile RSAPublicKeyEngine rsaEngine = null;
 
     public ICCPublicKey(){
     }
 
     public void setExponent(byte[] exp){
         this.exponent = exp;
+        this.rsaEngine = null;
     }
 
     public void setModulus(byte[] mod){
         this.modulus = mod;
+        this.rsaEngine = null;
     }
 
     public void setRemainder(byte[] remainder){
         this.remainder = remainder;
+        this.rsaEngine = null;
     }
 
     public int getKeyLengthInBytes(){
@@ -61,6 +66,22 @@ public class ICCPublicKey {
         return modulusCopy;
     }
 
+    public byte[] getRemainder(){
+        return Util.copyByteArray(remainder);
+    }
+
+    /**
+     * @return the RSA engine for this key (created on first use and cached with the key)
+     */
+    public RSAPublicKeyEngine getRSAEngine(){
+        RSAPublicKeyEngine engine = rsaEngine;
+        if(engine == null){
+            engine = new RSAPublicKeyEngine(exponent, getModulus());
+            rsaEngine = engine;
+        }
+        return engine;
+    }
+
     @Override
     public String toString() {
         StringWriter sw = new StringWriter();
@@ -74,9 +95,13 @@ public class ICCPublicKey {
 
         pw.println(indentStr + "Length: "+getKeyLengthInBytes()*8+"bit");
         pw.println(indentStr + "Exponent:");
-        pw.println(indentStr + Util.getSpaces(Log.INDENT_SIZE) + Util.prettyPrintHex(Util.byteArrayToHexString(getExponent()), indent+Log.INDENT_SIZE*2));
+        pw.print(indentStr + Util.getSpaces(Log.INDENT_SIZE));
+        Util.printPrettyHex(pw, getExponent(), indent+Log.INDENT_SIZE*2, true);
+        pw.println();
         pw.println(indentStr + "Modulus:");
-        pw.println(indentStr + Util.getSpaces(Log.INDENT_SIZE) + Util.prettyPrintHex(Util.byteArrayToHexString(getModulus()), indent+Log.INDENT_SIZE*2));
+        pw.print(indentStr + Util.getSpaces(Log.INDENT_SIZE));
+        Util.printPrettyHex(pw, getModulus(), indent+Log.INDENT_SIZE*2, true);
+        pw.println();
 
     }
 }
@@ -17,11 +17,12 @@ package sasc.emv;
 
 import sasc.iso7816.SmartCardException;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import sasc.util.ByteArrayWrapper;
 import sasc.util.Log;
 import sasc.util.Util;
 
@@ -44,6 +45,39 @@ public class ICCPublicKeyCertificate {
     private int iccPublicKeyAlgorithmIndicator;
     private byte[] hash = new byte[20];
     private boolean validationPerformed = false;
+    private volatile PrecomputedRecovery precomputedRecovery = null;
+
+    private static final CertificateValidationCache<ValidationResult> validationCache
+            = new CertificateValidationCache<ValidationResult>(CertificateValidationCache.DEFAULT_MAX_SIZE);
+
+    //The content of a recovered certificate. The hash covers the (card specific) offline data authentication records,
+    //so it is checked again for every card
+    private static final class ValidationResult {
+
+        final byte[] pan;
+        final byte certFormat;
+        final byte[] certExpirationDate;
+        final byte[] certSerialNumber;
+        final int hashAlgorithmIndicator;
+        final int iccPublicKeyAlgorithmIndicator;
+        final int iccPublicKeyModLengthTotal;
+        final int iccPublicKeyExpLengthTotal;
+        final byte[] hash;
+        final byte[] modulus;
+
+        ValidationResult(ICCPublicKeyCertificate cert, int iccPublicKeyModLengthTotal, int iccPublicKeyExpLengthTotal, byte[] modulus) {
+            this.pan = Util.copyByteArray(cert.pan);
+            this.certFormat = cert.certFormat;
+            this.certExpirationDate = Util.copyByteArray(cert.certExpirationDate);
+            this.certSerialNumber = Util.copyByteArray(cert.certSerialNumber);
+            this.hashAlgorithmIndicator = cert.hashAlgorithmIndicator;
+            this.iccPublicKeyAlgorithmIndicator = cert.iccPublicKeyAlgorithmIndicator;
+            this.iccPublicKeyModLengthTotal = iccPublicKeyModLengthTotal;
+            this.iccPublicKeyExpLengthTotal = iccPublicKeyExpLengthTotal;
+            this.hash = Util.copyByteArray(cert.hash);
+            this.modulus = modulus;
+        }
+    }
 
     public ICCPublicKeyCertificate(EMVApplication application, IssuerPublicKeyCertificate issuerPublicKeyCert) {
         this.application = application;
@@ -55,6 +89,18 @@ public class ICCPublicKeyCertificate {
         this.signedBytes = signedBytes;
     }
 
+    boolean hasSignedBytes() {
+        return signedBytes != null;
+    }
+
+    /**
+     * Recovers the signed bytes with the given Issuer Public Key ahead of validate().
+     * May be called from another thread; validate() uses the result if the key and data are unchanged.
+     */
+    void precomputeRecovery(byte[] issuerPublicKeyExponent, byte[] issuerPublicKeyModulus) {
+        precomputedRecovery = PrecomputedRecovery.compute(issuerPublicKeyExponent, issuerPublicKeyModulus, signedBytes);
+    }
+
     public IssuerPublicKeyCertificate getIssuerPublicKeyCertificate() {
         return issuerPublicKeyCert;
     }
@@ -90,7 +136,29 @@ public class ICCPublicKeyCertificate {
 
         IssuerPublicKey issuerPublicKey = issuerPublicKeyCert.getIssuerPublicKey();
 
-        byte[] recoveredBytes = Util.performRSA(signedBytes, issuerPublicKey.getExponent(), issuerPublicKey.getModulus());
+        //The recovered content only depends on the Issuer Public Key and the certificate,
+        //but the hash (over the records) is always checked
+        ByteArrayWrapper cacheKey = CertificateValidationCache.createKey(issuerPublicKey.getModulus(), issuerPublicKey.getExponent(),
+                signedBytes, iccPublicKey.getRemainder(), iccPublicKey.getExponent());
+        ValidationResult cached = validationCache.get(cacheKey);
+        if (cached != null) {
+            pan = Util.copyByteArray(cached.pan);
+            certFormat = cached.certFormat;
+            certExpirationDate = Util.copyByteArray(cached.certExpirationDate);
+            certSerialNumber = Util.copyByteArray(cached.certSerialNumber);
+            hashAlgorithmIndicator = cached.hashAlgorithmIndicator;
+            iccPublicKeyAlgorithmIndicator = cached.iccPublicKeyAlgorithmIndicator;
+            hash = Util.copyByteArray(cached.hash);
+            iccPublicKey.setModulus(Util.copyByteArray(cached.modulus));
+            if (!Arrays.equals(calculateHash(issuerPublicKey, cached.iccPublicKeyModLengthTotal, cached.iccPublicKeyExpLengthTotal), hash)) {
+                throw new SignedDataException("Hash is not valid");
+            }
+            isValid = true;
+            return true;
+        }
+
+        byte[] recoveredBytes = PrecomputedRecovery.recover(precomputedRecovery, issuerPublicKey.getRSAEngine(),
+                issuerPublicKey.getExponent(), issuerPublicKey.getModulus(), signedBytes);
 
         ByteArrayInputStream bis = new ByteArrayInputStream(recoveredBytes);
 
@@ -139,69 +207,81 @@ public class ICCPublicKeyCertificate {
 
         bis.read(hash, 0, hash.length);
 
-        ByteArrayOutputStream hashStream = new ByteArrayOutputStream();
+        byte[] sha1Result = calculateHash(issuerPublicKey, iccPublicKeyModLengthTotal, iccPublicKeyExpLengthTotal);
+
+        if (!Arrays.equals(sha1Result, hash)) {
+            throw new SignedDataException("Hash is not valid");
+        }
+
+
+        int trailer = bis.read();
+
+        if (trailer != 0xbc) {//Trailer
+            throw new SmartCardException("Trailer != 0xbc");
+        }
+
+        if (bis.available() > 0) {
+            throw new SmartCardException("Error parsing certificate. Bytes left=" + bis.available());
+        }
+        validationCache.put(cacheKey, new ValidationResult(this, iccPublicKeyModLengthTotal, iccPublicKeyExpLengthTotal, Util.copyByteArray(modtmp)));
+        isValid = true;
+        return true;
+    }
+
+    //The hash over the recovered fields and the offline data authentication records
+    private byte[] calculateHash(IssuerPublicKey issuerPublicKey, int iccPublicKeyModLengthTotal, int iccPublicKeyExpLengthTotal) {
+        MessageDigest sha1;
+        try {
+            sha1 = Util.getSHA1Digest();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new SignedDataException("SHA-1 hash algorithm not available", ex);
+        }
 
         //Header not included in hash
-        hashStream.write(certFormat);
-        hashStream.write(pan, 0, pan.length);
-        hashStream.write(certExpirationDate, 0, certExpirationDate.length);
-        hashStream.write(certSerialNumber, 0, certSerialNumber.length);
-        hashStream.write((byte)hashAlgorithmIndicator);
-        hashStream.write((byte)iccPublicKeyAlgorithmIndicator);
-        hashStream.write((byte)iccPublicKeyModLengthTotal);
-        hashStream.write((byte)iccPublicKeyExpLengthTotal);
+        sha1.update(certFormat);
+        sha1.update(pan, 0, pan.length);
+        sha1.update(certExpirationDate, 0, certExpirationDate.length);
+        sha1.update(certSerialNumber, 0, certSerialNumber.length);
+        sha1.update((byte)hashAlgorithmIndicator);
+        sha1.update((byte)iccPublicKeyAlgorithmIndicator);
+        sha1.update((byte)iccPublicKeyModLengthTotal);
+        sha1.update((byte)iccPublicKeyExpLengthTotal);
         byte[] ipkModulus = iccPublicKey.getModulus();
         int numPadBytes = issuerPublicKey.getModulus().length-42-ipkModulus.length;
-        Log.debug("issuerMod: "+issuerPublicKey.getModulus().length + " iccMod: "+ipkModulus.length + " padBytes: "+numPadBytes);
+        if (Log.isDebugEnabled()) {
+            Log.debug("issuerMod: "+issuerPublicKey.getModulus().length + " iccMod: "+ipkModulus.length + " padBytes: "+numPadBytes);
+        }
         if(numPadBytes > 0){
             //If NIC <= NI – 42, consists of the full
             //ICC Public Key padded to the right
             //with NI – 42 – NIC bytes of value
             //'BB'
-            hashStream.write(ipkModulus, 0, ipkModulus.length);
+            sha1.update(ipkModulus, 0, ipkModulus.length);
             for(int i=0; i<numPadBytes; i++){
-                hashStream.write((byte)0xBB);
+                sha1.update((byte)0xBB);
             }
         }else{
             //If NIC > NI – 42, consists of the NI –
             //42 most significant bytes of the
             //ICC Public Key
             //and the NIC – NI + 42 least significant bytes of the ICC Public Key
-            hashStream.write(ipkModulus, 0, ipkModulus.length);
+            sha1.update(ipkModulus, 0, ipkModulus.length);
         }
 
         byte[] ipkExponent = iccPublicKey.getExponent();
-        hashStream.write(ipkExponent, 0, ipkExponent.length);
+        sha1.update(ipkExponent, 0, ipkExponent.length);
 
-        byte[] offlineAuthenticationRecords = application.getOfflineDataAuthenticationRecords();
-        hashStream.write(offlineAuthenticationRecords, 0, offlineAuthenticationRecords.length);
+        application.updateOfflineDataAuthenticationDigest(sha1);
         //Trailer not included in hash
 
-        Log.debug("HashStream:\n"+Util.prettyPrintHex(hashStream.toByteArray()));
-
-        byte[] sha1Result = null;
-        try {
-            sha1Result = Util.calculateSHA1(hashStream.toByteArray());
-        } catch (NoSuchAlgorithmException ex) {
-            throw new SignedDataException("SHA-1 hash algorithm not available", ex);
-        }
-
-        if (!Arrays.equals(sha1Result, hash)) {
-            throw new SignedDataException("Hash is not valid");
-        }
-
-
-        int trailer = bis.read();
-
-        if (trailer != 0xbc) {//Trailer
-            throw new SmartCardException("Trailer != 0xbc");
-        }
+        return sha1.digest();
+    }
 
-        if (bis.available() > 0) {
-            throw new SmartCardException("Error parsing certificate. Bytes left=" + bis.available());
-        }
-        isValid = true;
-        return true;
+    /**
+     * The cache of valid certificates (shared by all instances)
+     */
+    public static CertificateValidationCache<?> getValidationCache() {
+        return validationCache;
     }
 
     public boolean isValid() {
@@ -18,11 +18,12 @@ package sasc.emv;
 import sasc.util.Log;
 import sasc.iso7816.SmartCardException;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import sasc.util.ByteArrayWrapper;
 import sasc.util.Util;
 
 /**
@@ -44,6 +45,34 @@ public class IssuerPublicKeyCertificate {
     private int issuerPublicKeyAlgorithmIndicator;
     private byte[] hash = new byte[20];
     private boolean validationPerformed = false;
+    private volatile PrecomputedRecovery precomputedRecovery = null;
+
+    private static final CertificateValidationCache<ValidationResult> validationCache
+            = new CertificateValidationCache<ValidationResult>(CertificateValidationCache.DEFAULT_MAX_SIZE);
+
+    //The content of a validated certificate
+    private static final class ValidationResult {
+
+        final int issuerIdentifier;
+        final byte certFormat;
+        final byte[] certExpirationDate;
+        final byte[] certSerialNumber;
+        final int hashAlgorithmIndicator;
+        final int issuerPublicKeyAlgorithmIndicator;
+        final byte[] hash;
+        final byte[] modulus;
+
+        ValidationResult(IssuerPublicKeyCertificate cert, byte[] modulus) {
+            this.issuerIdentifier = cert.issuerIdentifier;
+            this.certFormat = cert.certFormat;
+            this.certExpirationDate = Util.copyByteArray(cert.certExpirationDate);
+            this.certSerialNumber = Util.copyByteArray(cert.certSerialNumber);
+            this.hashAlgorithmIndicator = cert.hashAlgorithmIndicator;
+            this.issuerPublicKeyAlgorithmIndicator = cert.issuerPublicKeyAlgorithmIndicator;
+            this.hash = Util.copyByteArray(cert.hash);
+            this.modulus = modulus;
+        }
+    }
 
     public IssuerPublicKeyCertificate(CA ca) {
         //ca == null is permitted
@@ -63,6 +92,49 @@ public class IssuerPublicKeyCertificate {
         return issuerPublicKey;
     }
 
+    /**
+     * @return true if the CA public key and the signed bytes are available, so the certificate can be recovered
+     */
+    boolean canPrecomputeRecovery() {
+        return signedBytes != null && ca != null && ca.getPublicKey(caPublicKeyIndex) != null;
+    }
+
+    /**
+     * Recovers the certificate with the CA public key ahead of validate().
+     * May be called from another thread; validate() uses the result if the key and data are unchanged.
+     */
+    void precomputeRecovery() {
+        CAPublicKey caPublicKey = ca.getPublicKey(caPublicKeyIndex);
+        precomputedRecovery = PrecomputedRecovery.compute(caPublicKey.getRSAEngine(),
+                caPublicKey.getExponent(), caPublicKey.getModulus(), signedBytes);
+    }
+
+    /**
+     * The Issuer Public Key Modulus from the precomputed recovery and the given remainder (empty if none has been read).
+     * Unlike validate(), this does not check the certificate hash.
+     *
+     * @return the modulus, or null if there is no recovery or the remainder is missing
+     */
+    byte[] getPrecomputedIssuerPublicKeyModulus(byte[] remainder) {
+        PrecomputedRecovery precomputed = precomputedRecovery;
+        if (precomputed == null) {
+            return null;
+        }
+        byte[] recoveredBytes = precomputed.getRecoveredBytes();
+        if (recoveredBytes.length < 36 || recoveredBytes[0] != 0x6a) {
+            return null;
+        }
+        int issuerPublicKeyModLengthTotal = recoveredBytes[13] & 0xFF;
+        int modBytesLength = Math.min(recoveredBytes.length - 15 - 21, issuerPublicKeyModLengthTotal);
+        if (modBytesLength + remainder.length != issuerPublicKeyModLengthTotal) {
+            return null;
+        }
+        byte[] modulus = new byte[issuerPublicKeyModLengthTotal];
+        System.arraycopy(recoveredBytes, 15, modulus, 0, modBytesLength);
+        System.arraycopy(remainder, 0, modulus, modBytesLength, remainder.length);
+        return modulus;
+    }
+
     //Perform lazy validation, since we might not have all the data elements initially
     //This method must only be called after ALL application records have been read
     public boolean validate() {
@@ -81,10 +153,26 @@ public class IssuerPublicKeyCertificate {
             return isValid();
 //            throw new SmartCardException("No suitable CA Public Key found");
         }
-        //Decipher data using RSA
-        byte[] recoveredBytes = Util.performRSA(signedBytes, caPublicKey.getExponent(), caPublicKey.getModulus());
 
-        Log.debug("IssuerPKCert recoveredBytes="+Util.prettyPrintHex(recoveredBytes));
+        ByteArrayWrapper cacheKey = CertificateValidationCache.createKey(ca.getRID(), caPublicKey.getModulus(),
+                caPublicKey.getExponent(), signedBytes, issuerPublicKey.getRemainder(), issuerPublicKey.getExponent());
+        ValidationResult cached = validationCache.get(cacheKey);
+        if (cached != null) {
+            issuerIdentifier = cached.issuerIdentifier;
+            certFormat = cached.certFormat;
+            certExpirationDate = Util.copyByteArray(cached.certExpirationDate);
+            certSerialNumber = Util.copyByteArray(cached.certSerialNumber);
+            hashAlgorithmIndicator = cached.hashAlgorithmIndicator;
+            issuerPublicKeyAlgorithmIndicator = cached.issuerPublicKeyAlgorithmIndicator;
+            hash = Util.copyByteArray(cached.hash);
+            issuerPublicKey.setModulus(Util.copyByteArray(cached.modulus));
+            isValid = true;
+            return true;
+        }
+
+        //Decipher data using RSA
+        byte[] recoveredBytes = PrecomputedRecovery.recover(precomputedRecovery, caPublicKey.getRSAEngine(),
+                caPublicKey.getExponent(), caPublicKey.getModulus(), signedBytes);
 
         ByteArrayInputStream bis = new ByteArrayInputStream(recoveredBytes);
 
@@ -143,28 +231,28 @@ public class IssuerPublicKeyCertificate {
 
         bis.read(hash, 0, hash.length);
 
-        ByteArrayOutputStream hashStream = new ByteArrayOutputStream();
+        MessageDigest sha1;
+        try {
+            sha1 = Util.getSHA1Digest();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new SignedDataException("SHA-1 hash algorithm not available", ex);
+        }
 
-        hashStream.write(certFormat);
-        hashStream.write(issuerIdentifierPaddedBytes, 0, issuerIdentifierPaddedBytes.length);
-        hashStream.write(certExpirationDate, 0, certExpirationDate.length);
-        hashStream.write(certSerialNumber, 0, certSerialNumber.length);
-        hashStream.write((byte)hashAlgorithmIndicator);
-        hashStream.write((byte)issuerPublicKeyAlgorithmIndicator);
-        hashStream.write((byte)issuerPublicKeyModLengthTotal);
-        hashStream.write((byte)issuerPublicKeyExpLengthTotal);
+        sha1.update(certFormat);
+        sha1.update(issuerIdentifierPaddedBytes, 0, issuerIdentifierPaddedBytes.length);
+        sha1.update(certExpirationDate, 0, certExpirationDate.length);
+        sha1.update(certSerialNumber, 0, certSerialNumber.length);
+        sha1.update((byte)hashAlgorithmIndicator);
+        sha1.update((byte)issuerPublicKeyAlgorithmIndicator);
+        sha1.update((byte)issuerPublicKeyModLengthTotal);
+        sha1.update((byte)issuerPublicKeyExpLengthTotal);
         byte[] ipkModulus = issuerPublicKey.getModulus();
-        hashStream.write(ipkModulus, 0, ipkModulus.length);
+        sha1.update(ipkModulus, 0, ipkModulus.length);
         byte[] ipkExponent = issuerPublicKey.getExponent();
-        hashStream.write(ipkExponent, 0, ipkExponent.length);
+        sha1.update(ipkExponent, 0, ipkExponent.length);
 
 
-        byte[] sha1Result = null;
-        try {
-            sha1Result = Util.calculateSHA1(hashStream.toByteArray());
-        } catch (NoSuchAlgorithmException ex) {
-            throw new SignedDataException("SHA-1 hash algorithm not available", ex);
-        }
+        byte[] sha1Result = sha1.digest();
 
         if (!Arrays.equals(sha1Result, hash)) {
             throw new SignedDataException("Hash is not valid");
@@ -179,10 +267,18 @@ public class IssuerPublicKeyCertificate {
         if (bis.available() > 0) {
             throw new SmartCardException("Error parsing certificate. Bytes left=" + bis.available());
         }
+        validationCache.put(cacheKey, new ValidationResult(this, Util.copyByteArray(modtmp)));
         isValid = true;
         return true;
     }
 
+    /**
+     * The cache of valid certificates (shared by all instances)
+     */
+    public static CertificateValidationCache<?> getValidationCache() {
+        return validationCache;
+    }
+
     public boolean isValid() {
         return isValid;
     }
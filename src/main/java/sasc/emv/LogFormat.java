@@ -33,7 +33,14 @@ public class LogFormat {
     private int recordLength = 0;
 
     public LogFormat(byte[] formatBytes){
-        this.formatList = TLVUtil.parseTagAndLength(formatBytes);
+        this(formatBytes, null);
+    }
+
+    /**
+     * @param tags used to resolve proprietary tags (see EMVTags.getDictionary(app)). May be null
+     */
+    public LogFormat(byte[] formatBytes, TagDictionary tags){
+        this.formatList = TLVUtil.parseTagAndLength(formatBytes, tags);
         for(TagAndLength tal : formatList){
             recordLength+=tal.getLength();
         }
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import sasc.util.Log;
+
+/**
+ * Overlaps the RSA recovery of the offline data authentication certificates with the reading of the application records.
+ *
+ * The Issuer Public Key Certificate is recovered as soon as the CA Public Key Index and the certificate have been read.
+ * The ICC Public Key Certificate and the Signed Static Application Data are recovered as soon as they have been read and
+ * the Issuer Public Key (exponent and remainder included) is known: either when the record is read, or, if the
+ * issuer recovery is still running then, by the issuer recovery task itself when it completes.
+ * The recoveries are only hints: validation still happens on the session thread after all records have been read,
+ * and recomputes anything that was not precomputed (or that failed).
+ * If the executor rejects a task (for example because it has been shut down), nothing more is submitted,
+ * and the certificates are recovered on the session thread as without a pipeline.
+ *
+ * recordRead() and join() must be called from the session thread.
+ *
+ * @author sasc
+ */
+final class OfflineDataAuthenticationPipeline {
+
+    private final ExecutorService executor;
+    private final EMVApplication app;
+    //Session thread only
+    private Future<?> issuerRecovery = null;
+    //The rest is guarded by 'this', since it is shared with the issuer recovery task.
+    //The session thread hands over copies of the data read so far
+    private IssuerPublicKeyCertificate issuerCert = null;
+    private boolean issuerRecovered = false;
+    private byte[] issuerPublicKeyExponent = null;
+    private byte[] issuerPublicKeyRemainder = null;
+    private byte[] issuerPublicKeyModulus = null;
+    private ICCPublicKeyCertificate iccCert = null;
+    private SignedStaticApplicationData ssad = null;
+    private Future<?> iccRecovery = null;
+    private Future<?> ssadRecovery = null;
+    //Set by whichever thread has a task rejected
+    private volatile boolean rejected = false;
+
+    OfflineDataAuthenticationPipeline(ExecutorService executor, EMVApplication app) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Param executor cannot be null");
+        }
+        if (app == null) {
+            throw new IllegalArgumentException("Param app cannot be null");
+        }
+        this.executor = executor;
+        this.app = app;
+    }
+
+    /**
+     * Starts any recovery that the records read so far make possible
+     */
+    void recordRead() {
+        final IssuerPublicKeyCertificate cert = app.getIssuerPublicKeyCertificate();
+        if (cert == null) {
+            return;
+        }
+        synchronized (this) {
+            issuerCert = cert;
+            issuerPublicKeyExponent = cert.getIssuerPublicKey().getExponent();
+            issuerPublicKeyRemainder = cert.getIssuerPublicKey().getRemainder();
+            ICCPublicKeyCertificate icc = app.getICCPublicKeyCertificate();
+            if (icc != null && icc.hasSignedBytes()) {
+                iccCert = icc;
+            }
+            SignedStaticApplicationData signedStaticData = app.getSignedStaticApplicationData();
+            if (signedStaticData != null && signedStaticData.hasSignedBytes()) {
+                ssad = signedStaticData;
+            }
+            startDependentRecoveries();
+        }
+        if (issuerRecovery == null && cert.canPrecomputeRecovery()) {
+            issuerRecovery = submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        cert.precomputeRecovery();
+                    } finally {
+                        issuerRecoveryDone();
+                    }
+                }
+            });
+        }
+    }
+
+    //Called by the issuer recovery task
+    private synchronized void issuerRecoveryDone() {
+        issuerRecovered = true;
+        startDependentRecoveries();
+    }
+
+    //Starts the ICC and SSAD recoveries once the Issuer Public Key is known
+    private void startDependentRecoveries() {
+        if (!issuerRecovered) {
+            return;
+        }
+        if (issuerPublicKeyModulus == null) {
+            if (issuerPublicKeyExponent.length == 0) {
+                return;
+            }
+            issuerPublicKeyModulus = issuerCert.getPrecomputedIssuerPublicKeyModulus(issuerPublicKeyRemainder);
+            if (issuerPublicKeyModulus == null) {
+                return;
+            }
+        }
+        final byte[] exponent = issuerPublicKeyExponent;
+        final byte[] modulus = issuerPublicKeyModulus;
+        final ICCPublicKeyCertificate icc = iccCert;
+        if (iccRecovery == null && icc != null) {
+            iccRecovery = submit(new Runnable() {
+                @Override
+                public void run() {
+                    icc.precomputeRecovery(exponent, modulus);
+                }
+            });
+        }
+        final SignedStaticApplicationData signedStaticData = ssad;
+        if (ssadRecovery == null && signedStaticData != null) {
+            ssadRecovery = submit(new Runnable() {
+                @Override
+                public void run() {
+                    signedStaticData.precomputeRecovery(exponent, modulus);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the future, or null if the executor rejected the task (or an earlier one)
+     */
+    private Future<?> submit(Runnable task) {
+        if (rejected) {
+            return null;
+        }
+        try {
+            return executor.submit(task);
+        } catch (RejectedExecutionException ex) {
+            rejected = true;
+            Log.debug("ODA recovery rejected by the executor, recovering on the session thread: " + ex);
+            return null;
+        }
+    }
+
+    /**
+     * Waits for all recoveries. The issuer recovery task has started the others by the time it completes
+     */
+    void join() {
+        await(issuerRecovery);
+        Future<?> icc;
+        Future<?> signedStaticData;
+        synchronized (this) {
+            icc = iccRecovery;
+            signedStaticData = ssadRecovery;
+        }
+        await(icc);
+        await(signedStaticData);
+    }
+    private static void await(Future<?> future) {
+        if (future == null) {
+            return;
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    future.get();
+                    return;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                } catch (ExecutionException ex) {
+                    //Validation recovers the data again and reports the error
+                    if (Log.isDebugEnabled()) {
+                        Log.debug("Precomputed ODA recovery failed: " + ex.getCause());
+                    }
+                    return;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
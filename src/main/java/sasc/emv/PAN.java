@@ -158,7 +158,7 @@ public class PAN {
                 break;
         }
         int iinInt = iin.getValue();
-        IIN_DB.IIN iinLookup = IIN_DB.searchIIN(iinInt);
+        IIN_DB.IIN iinLookup = IIN_DB.searchPAN(panStr);
         String iinDescription = "";
         if(iinLookup != null){
             iinDescription = " ("+iinLookup.getDescription()+")";
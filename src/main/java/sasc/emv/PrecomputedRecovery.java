@@ -0,0 +1,70 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.util.Arrays;
+import sasc.util.RSAPublicKeyEngine;
+
+/**
+ * The RSA recovery of a certificate or signature, computed ahead of validation.
+ *
+ * The result is only used if validation later runs with the same key and the same signed bytes;
+ * otherwise validation recovers the data itself.
+ *
+ * @author sasc
+ */
+final class PrecomputedRecovery {
+
+    private final byte[] exponent;
+    private final byte[] modulus;
+    private final byte[] signedBytes;
+    private final byte[] recoveredBytes;
+
+    private PrecomputedRecovery(byte[] exponent, byte[] modulus, byte[] signedBytes, byte[] recoveredBytes) {
+        this.exponent = exponent;
+        this.modulus = modulus;
+        this.signedBytes = signedBytes;
+        this.recoveredBytes = recoveredBytes;
+    }
+
+    static PrecomputedRecovery compute(RSAPublicKeyEngine engine, byte[] exponent, byte[] modulus, byte[] signedBytes) {
+        return new PrecomputedRecovery(exponent, modulus, signedBytes, engine.recover(signedBytes));
+    }
+
+    static PrecomputedRecovery compute(byte[] exponent, byte[] modulus, byte[] signedBytes) {
+        return compute(new RSAPublicKeyEngine(exponent, modulus), exponent, modulus, signedBytes);
+    }
+
+    /**
+     * @return the recovered bytes (a copy)
+     */
+    byte[] getRecoveredBytes() {
+        return recoveredBytes.clone();
+    }
+
+    /**
+     * Returns the precomputed recovery if it matches the key and data, or recovers the data with the engine
+     */
+    static byte[] recover(PrecomputedRecovery precomputed, RSAPublicKeyEngine engine, byte[] exponent, byte[] modulus, byte[] signedBytes) {
+        if (precomputed != null
+                && precomputed.signedBytes == signedBytes
+                && Arrays.equals(precomputed.exponent, exponent)
+                && Arrays.equals(precomputed.modulus, modulus)) {
+            return precomputed.getRecoveredBytes();
+        }
+        return engine.recover(signedBytes);
+    }
+}
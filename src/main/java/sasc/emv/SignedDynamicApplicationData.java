@@ -16,12 +16,13 @@
 package sasc.emv;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import sasc.util.Log;
+import sasc.util.RSAPublicKeyEngine;
 import sasc.util.Util;
 
 /**
@@ -84,25 +85,25 @@ public class SignedDynamicApplicationData {
 
         stream.read(hashResult, 0, 20);
 
-        ByteArrayOutputStream hashStream = new ByteArrayOutputStream();
+        MessageDigest sha1;
+        try {
+            sha1 = Util.getSHA1Digest();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new SignedDataException("SHA-1 hash algorithm not available", ex);
+        }
 
         //EMV Book 2, page 67, table 15
 
         //Header not included in hash
-        hashStream.write(signedDataFormat);
-        hashStream.write(hashAlgorithmIndicator);
-        hashStream.write((byte)iccDynamicDataLenght);
-        hashStream.write(iccDynamicNumber, 0, iccDynamicNumber.length);
-        hashStream.write(padding, 0, padding.length);
-        hashStream.write(terminalDynamicData, 0, terminalDynamicData.length);
+        sha1.update(signedDataFormat);
+        sha1.update(hashAlgorithmIndicator);
+        sha1.update((byte)iccDynamicDataLenght);
+        sha1.update(iccDynamicNumber, 0, iccDynamicNumber.length);
+        sha1.update(padding, 0, padding.length);
+        sha1.update(terminalDynamicData, 0, terminalDynamicData.length);
         //Trailer not included in hash
 
-        byte[] sha1Result = null;
-        try {
-            sha1Result = Util.calculateSHA1(hashStream.toByteArray());
-        } catch (NoSuchAlgorithmException ex) {
-            throw new SignedDataException("SHA-1 hash algorithm not available", ex);
-        }
+        byte[] sha1Result = sha1.digest();
         if(!Arrays.equals(sha1Result, hashResult)){
             throw new SignedDataException("Hash is not valid");
         }
@@ -123,14 +124,13 @@ public class SignedDynamicApplicationData {
 
     public static SignedDynamicApplicationData parseSignedData(byte[] data, ICCPublicKey iccPublicKey, byte[] terminalDynamicData) {
 
-        byte[] expBytesICC = iccPublicKey.getExponent();
-        byte[] modBytesICC = iccPublicKey.getModulus();
-        
-        if (data.length != modBytesICC.length) {
-            throw new SignedDataException("Data length does not equal key length. Data length=" + data.length + " Key length="+modBytesICC.length);
+        RSAPublicKeyEngine rsaEngine = iccPublicKey.getRSAEngine();
+
+        if (data.length != rsaEngine.getModulusLength()) {
+            throw new SignedDataException("Data length does not equal key length. Data length=" + data.length + " Key length="+rsaEngine.getModulusLength());
         }
 
-        byte[] decipheredBytes = Util.performRSA(data, expBytesICC, modBytesICC);
+        byte[] decipheredBytes = rsaEngine.recover(data);
 
         return new SignedDynamicApplicationData(decipheredBytes, terminalDynamicData);
     }
@@ -18,9 +18,9 @@ package sasc.emv;
 import sasc.util.Log;
 import sasc.iso7816.SmartCardException;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import sasc.util.Util;
@@ -43,6 +43,7 @@ public class SignedStaticApplicationData {
     private int hashAlgorithmIndicator;
     private byte[] hash = new byte[20];
     private boolean validationPerformed = false;
+    private volatile PrecomputedRecovery precomputedRecovery = null;
 
     public SignedStaticApplicationData(EMVApplication app) {
         this.application = app;
@@ -52,6 +53,18 @@ public class SignedStaticApplicationData {
         this.signedBytes = signedBytes;
     }
 
+    boolean hasSignedBytes() {
+        return signedBytes != null;
+    }
+
+    /**
+     * Recovers the signed bytes with the given Issuer Public Key ahead of validate().
+     * May be called from another thread; validate() uses the result if the key and data are unchanged.
+     */
+    void precomputeRecovery(byte[] issuerPublicKeyExponent, byte[] issuerPublicKeyModulus) {
+        precomputedRecovery = PrecomputedRecovery.compute(issuerPublicKeyExponent, issuerPublicKeyModulus, signedBytes);
+    }
+
     public IssuerPublicKeyCertificate getIssuerPublicKeyCertificate() {
         return application.getIssuerPublicKeyCertificate();
     }
@@ -79,7 +92,8 @@ public class SignedStaticApplicationData {
             throw new SmartCardException("Invalid Signed Data: Signed data length (" + signedBytes.length + ") != Issuer Public Key Modulus length(" + issuerPublicKey.getModulus().length + ")");
         }
 
-        byte[] decipheredBytes = Util.performRSA(signedBytes, issuerPublicKey.getExponent(), issuerPublicKey.getModulus());
+        byte[] decipheredBytes = PrecomputedRecovery.recover(precomputedRecovery, issuerPublicKey.getRSAEngine(),
+                issuerPublicKey.getExponent(), issuerPublicKey.getModulus(), signedBytes);
 
         ByteArrayInputStream stream = new ByteArrayInputStream(decipheredBytes);
 
@@ -107,27 +121,23 @@ public class SignedStaticApplicationData {
         stream.read(hash, 0, hash.length);
 
         //EMV book 2 page 60
-        ByteArrayOutputStream hashStream = new ByteArrayOutputStream();
-
-        hashStream.write(signedDataFormat);
-        byte[] hashAlgoIndArr = Util.intToByteArray(hashAlgorithmIndicator);
-        hashStream.write(hashAlgoIndArr, 0, hashAlgoIndArr.length);
-        hashStream.write(dataAuthenticationCode, 0, dataAuthenticationCode.length);
-        hashStream.write(padding, 0, padding.length);
-
-        byte[] offlineAuthenticationRecords = application.getOfflineDataAuthenticationRecords();
-
-        Log.debug("OfflineDataAuthenticationRecords: "+Util.prettyPrintHex(offlineAuthenticationRecords));
-
-        hashStream.write(offlineAuthenticationRecords, 0, offlineAuthenticationRecords.length);
-
-        byte[] sha1Result = null;
+        MessageDigest sha1;
         try {
-            sha1Result = Util.calculateSHA1(hashStream.toByteArray());
+            sha1 = Util.getSHA1Digest();
         } catch (NoSuchAlgorithmException ex) {
             throw new SignedDataException("SHA-1 hash algorithm not available", ex);
         }
 
+        sha1.update(signedDataFormat);
+        byte[] hashAlgoIndArr = Util.intToByteArray(hashAlgorithmIndicator);
+        sha1.update(hashAlgoIndArr, 0, hashAlgoIndArr.length);
+        sha1.update(dataAuthenticationCode, 0, dataAuthenticationCode.length);
+        sha1.update(padding, 0, padding.length);
+
+        application.updateOfflineDataAuthenticationDigest(sha1);
+
+        byte[] sha1Result = sha1.digest();
+
         if (!Arrays.equals(sha1Result, hash)) {
             throw new SignedDataException("Hash is not valid");
         }
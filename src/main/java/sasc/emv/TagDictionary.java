@@ -0,0 +1,79 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import sasc.iso7816.TLVUtil;
+import sasc.iso7816.Tag;
+import sasc.util.LongObjectMap;
+
+/**
+ * The tags known in a given context (payment system and issuer):
+ * the EMV tags merged with the payment system and issuer specific tags,
+ * so that resolving a tag is a single lookup.
+ *
+ * Obtained from EMVTags.getDictionary(). Immutable.
+ *
+ * @author sasc
+ */
+public final class TagDictionary {
+
+    private final String name;
+    private final LongObjectMap<Tag> tags;
+
+    TagDictionary(String name, LongObjectMap<Tag> tags) {
+        this.name = name;
+        this.tags = tags;
+    }
+
+    /**
+     * Returns null if Tag not found
+     *
+     * @param tagKey the tag bytes packed into an int (see TLVUtil.getTagKey)
+     */
+    public Tag find(int tagKey) {
+        if (tagKey == TLVUtil.NO_TAG_KEY) {
+            return null;
+        }
+        return tags.get(tagKey);
+    }
+
+    /**
+     * Returns null if Tag not found
+     */
+    public Tag find(byte[] tagBytes) {
+        return find(TLVUtil.getTagKey(tagBytes));
+    }
+
+    /**
+     * If the tag is not found, this method returns the "[UNKNOWN TAG]" containing 'tagBytes'
+     */
+    public Tag getNotNull(byte[] tagBytes) {
+        Tag tag = find(tagBytes);
+        if (tag == null) {
+            tag = EMVTags.createUnknownTag(tagBytes);
+        }
+        return tag;
+    }
+
+    public int size() {
+        return tags.size();
+    }
+
+    @Override
+    public String toString() {
+        return "TagDictionary[" + name + ", " + tags.size() + " tags]";
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import sasc.iso7816.AID;
+import sasc.iso7816.TLVCursor;
+import sasc.iso7816.TLVUtil;
+import sasc.iso7816.Tag;
+import sasc.util.LongObjectMap;
+
+/**
+ * Maps tags to TagHandlers, so that each data object in a template is
+ * dispatched with a single lookup on its tag key (instead of comparing it
+ * against every known tag).
+ *
+ * Payment system specific handlers (keyed by RID) take precedence over the
+ * generic handlers, and may be registered at any time. Lookups are lock free.
+ *
+ * @author sasc
+ */
+public class TagDispatchTable<T> {
+
+    private final String name;
+    private final LongObjectMap<TagHandler<T>> handlers = new LongObjectMap<TagHandler<T>>();
+    private final LongObjectMap<LongObjectMap<TagHandler<T>>> paymentSystemHandlers = new LongObjectMap<LongObjectMap<TagHandler<T>>>();
+
+    public TagDispatchTable(String name) {
+        this.name = name;
+    }
+
+    private static int getKeyForTag(Tag tag) {
+        int key = TLVUtil.getTagKey(tag.getTagBytes());
+        if (key == TLVUtil.NO_TAG_KEY) {
+            throw new IllegalArgumentException("Tag must be 1 to 4 bytes long " + tag);
+        }
+        return key;
+    }
+
+    /**
+     * Registers (or replaces) the generic handler for 'tag'
+     *
+     * @return this table, to allow chaining
+     */
+    public TagDispatchTable<T> register(Tag tag, TagHandler<T> handler) {
+        handlers.put(getKeyForTag(tag), handler);
+        return this;
+    }
+
+    /**
+     * Registers (or replaces) a handler for 'tag' that is only used for applications with the given RID
+     */
+    public synchronized void registerPaymentSystemHandler(byte[] rid, Tag tag, TagHandler<T> handler) {
+        if (rid == null || rid.length != 5) {
+            throw new IllegalArgumentException("RID must be 5 bytes");
+        }
+        long ridKey = new AID(rid, new byte[0]).getRIDKey();
+        LongObjectMap<TagHandler<T>> ridHandlers = paymentSystemHandlers.get(ridKey);
+        if (ridHandlers == null) {
+            ridHandlers = new LongObjectMap<TagHandler<T>>();
+            paymentSystemHandlers.put(ridKey, ridHandlers);
+        }
+        ridHandlers.put(getKeyForTag(tag), handler);
+    }
+
+    /**
+     * Returns the handler for the data object the cursor is positioned on, or null if there is none
+     *
+     * @param aid the AID of the current application (may be null)
+     */
+    public TagHandler<T> getHandler(TLVCursor tlv, AID aid) {
+        int tagKey = tlv.getTagKey();
+        if (tagKey == TLVUtil.NO_TAG_KEY) {
+            return null;
+        }
+        if (aid != null) {
+            LongObjectMap<TagHandler<T>> ridHandlers = paymentSystemHandlers.get(aid.getRIDKey());
+            if (ridHandlers != null) {
+                TagHandler<T> handler = ridHandlers.get(tagKey);
+                if (handler != null) {
+                    return handler;
+                }
+            }
+        }
+        return handlers.get(tagKey);
+    }
+
+    /**
+     * Calls the handler registered for the data object the cursor is positioned on
+     *
+     * @param aid the AID of the current application (may be null)
+     * @return false if no handler was found
+     */
+    public boolean dispatch(TLVCursor tlv, T target, AID aid) {
+        TagHandler<T> handler = getHandler(tlv, aid);
+        if (handler == null) {
+            return false;
+        }
+        handler.handle(tlv, target);
+        return true;
+    }
+
+    /**
+     * Dispatches every remaining data object of the cursor.
+     * Data objects without a handler are passed to 'unhandled'
+     *
+     * @param aid the AID of the current application (may be null)
+     */
+    public void dispatchAll(TLVCursor tlv, T target, AID aid, TagHandler<T> unhandled) {
+        while (tlv.next()) {
+            if (!dispatch(tlv, target, aid)) {
+                unhandled.handle(tlv, target);
+            }
+        }
+    }
+
+    public int size() {
+        return handlers.size();
+    }
+
+    @Override
+    public String toString() {
+        return "TagDispatchTable[" + name + ", " + handlers.size() + " handlers]";
+    }
+}
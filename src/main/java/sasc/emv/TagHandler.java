@@ -0,0 +1,34 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import sasc.iso7816.TLVCursor;
+
+/**
+ * Processes a single data object and stores the result in the target
+ * (typically an EMVApplication)
+ *
+ * @see TagDispatchTable
+ * @author sasc
+ */
+public interface TagHandler<T> {
+
+    /**
+     * @param tlv the cursor, positioned on the data object to handle
+     * @param target
+     */
+    public void handle(TLVCursor tlv, T target);
+}
@@ -82,6 +82,17 @@ public class AID {
         return Util.copyByteArray(rid);
     }
 
+    /**
+     * Returns the 5 RID bytes packed (big-endian) into a long. Useful as a primitive map key
+     */
+    public long getRIDKey() {
+        long key = 0;
+        for (int i = 0; i < rid.length; i++) {
+            key = (key << 8) | (rid[i] & 0xFF);
+        }
+        return key;
+    }
+
     public byte[] getPIXBytes() {
         return Util.copyByteArray(pix);
     }
@@ -16,7 +16,6 @@
 package sasc.iso7816;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import sasc.emv.EMVTags;
 import sasc.util.Util;
 
@@ -57,8 +56,9 @@ public class BERTLV {
     }
     
     public static byte[] encodeLength(int length){
-        //TODO
-        throw new UnsupportedOperationException("Not implemented yet");
+        byte[] lengthBytes = new byte[TLVWriter.getEncodedLengthSize(length)];
+        TLVWriter.encodeLength(length, lengthBytes, 0);
+        return lengthBytes;
     }
 
     public byte[] getTagBytes() {
@@ -79,11 +79,9 @@ public class BERTLV {
 
     public byte[] toBERTLVByteArray() {
         byte[] tagBytes = tag.getTagBytes();
-        ByteArrayOutputStream stream = new ByteArrayOutputStream(tagBytes.length+rawEncodedLengthBytes.length+valueBytes.length);
-        stream.write(tagBytes, 0, tagBytes.length);
-        stream.write(rawEncodedLengthBytes, 0, rawEncodedLengthBytes.length);
-        stream.write(valueBytes, 0, valueBytes.length);
-        return stream.toByteArray();
+        byte[] encoded = new byte[tagBytes.length+rawEncodedLengthBytes.length+valueBytes.length];
+        new TLVWriter(encoded).writeBytes(tagBytes).writeBytes(rawEncodedLengthBytes).writeBytes(valueBytes);
+        return encoded;
     }
 
     @Override
@@ -0,0 +1,443 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.iso7816;
+
+import sasc.emv.EMVTags;
+import sasc.emv.TagDictionary;
+import sasc.util.Util;
+
+/**
+ * A forward-only cursor over BER-TLV encoded data.
+ *
+ * The cursor walks the underlying byte array by offset and exposes the tag,
+ * length and value of the current data object as offset/length pairs into
+ * that array. Nothing is copied unless explicitly requested
+ * (getValueBytes(), toBERTLV() etc).
+ *
+ * Parsing rules are the same as TLVUtil.getNextTLV(ByteArrayInputStream):
+ * '00' and 'FF' padding before, between and after data objects is skipped,
+ * and the indefinite length form (terminated by '00 00') is supported.
+ * For constructed data objects of indefinite length, the nested data objects
+ * are walked to find the matching '00 00'.
+ *
+ * Usage:
+ * <pre>
+ * TLVCursor cursor = new TLVCursor(data);
+ * while (cursor.next()) {
+ *     if (cursor.isTag(EMVTags.PAN)) {
+ *         ...
+ *     }
+ * }
+ * </pre>
+ *
+ * @author sasc
+ */
+public class TLVCursor {
+
+    private static final int MAX_INDEFINITE_NESTING = 32;
+
+    private byte[] data;
+    private int start;
+    private int end;
+    private int pos;
+
+    private int tagOffset = -1;
+    private int tagLength;
+    private int lengthOffset;
+    private int numLengthBytes;
+    private int valueOffset;
+    private int valueLength;
+
+    //Scratch fields set by parseHeader()
+    private int headerLengthOffset;
+    private int headerLength;
+    private boolean headerIndefinite;
+
+    public TLVCursor(byte[] data) {
+        this(data, 0, data != null ? data.length : 0);
+    }
+
+    /**
+     * @param data the encoded data (not copied)
+     * @param offset offset of the first byte to parse
+     * @param length number of bytes to parse
+     */
+    public TLVCursor(byte[] data, int offset, int length) {
+        wrap(data, offset, length);
+    }
+
+    /**
+     * Re-targets this cursor at new data, so that a cursor can be reused (see TLVEventReader)
+     */
+    final void wrap(byte[] data, int offset, int length) {
+        if (data == null) {
+            throw new IllegalArgumentException("Param data cannot be null");
+        }
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IllegalArgumentException("offset(" + offset + ")+length(" + length + ") > data.length(" + data.length + ")");
+        }
+        this.data = data;
+        this.start = offset;
+        this.end = offset + length;
+        this.pos = offset;
+        this.tagOffset = -1;
+    }
+
+    /**
+     * Advances the cursor to the next data object.
+     *
+     * @return false if there are no more data objects (less than 2 bytes, not counting padding, remaining)
+     * @throws TLVException if the data object is malformed
+     */
+    public boolean next() {
+        pos = skipPadding(pos);
+        if (end - pos < 2) {
+            pos = end;
+            tagOffset = -1;
+            return false;
+        }
+
+        int p = parseHeader(pos);
+        int newLengthOffset = headerLengthOffset;
+        int length = headerLength;
+
+        // Find VALUE bytes
+        if (headerIndefinite) {
+            int eoc;
+            if ((data[pos] & 0x20) == 0x20) {
+                //Constructed: the first '00 00' might belong to a nested data object
+                eoc = findEndOfContents(p, 0);
+            } else {
+                eoc = findEndOfPrimitiveContents(p);
+            }
+            length = eoc - p;
+        } else if (end - p < length) {
+            int available = end - p;
+            throw new TLVException("Length byte(s) indicated " + length + " value bytes, but only " + available + " " + (available > 1 ? "are" : "is") + " available");
+        }
+
+        tagOffset = pos;
+        tagLength = newLengthOffset - pos;
+        lengthOffset = newLengthOffset;
+        numLengthBytes = p - newLengthOffset;
+        valueOffset = p;
+        valueLength = length;
+        //The trailing '00 00' of the indefinite form is skipped as padding
+        pos = skipPadding(p + length);
+        return true;
+    }
+
+    /**
+     * Parses the tag and length fields of the data object starting at 'p'.
+     * The length field is stored in the header* fields
+     *
+     * @return the offset of the value field
+     */
+    private int parseHeader(int p) {
+        //Find TAG bytes
+        byte tagFirstOctet = data[p++];
+        if ((tagFirstOctet & 0x1F) == 0x1F) { // EMV book 3, Page 178 or Annex B1 (EMV4.3)
+            //Tag field is longer than 1 byte
+            while (p < end) {
+                byte tlvIdNextOctet = data[p++];
+                if ((tlvIdNextOctet & 0x80) == 0 || (tlvIdNextOctet & 0x7F) == 0) {
+                    break;
+                }
+            }
+        }
+
+        //Find LENGTH bytes
+        if (p >= end) {
+            throw new TLVException("Negative length: -1");
+        }
+        headerLengthOffset = p;
+        int firstLengthOctet = data[p++] & 0xFF;
+        int length;
+        headerIndefinite = false;
+        if (firstLengthOctet <= 127) {
+            // short length form
+            length = firstLengthOctet;
+        } else if (firstLengthOctet == 128) {
+            // indefinite form is not specified in ISO7816-4, but we include it here for completeness
+            headerIndefinite = true;
+            length = 0;
+        } else {
+            // long length form
+            int numberOfLengthOctets = firstLengthOctet & 127;
+            if (numberOfLengthOctets > 3) {
+                throw new TLVException("Number of length bytes must be from 1 to 4. Found " + (numberOfLengthOctets + 1));
+            }
+            length = 0;
+            for (int i = 0; i < numberOfLengthOctets; i++) {
+                if (p >= end) {
+                    throw new TLVException("EOS when reading length bytes");
+                }
+                length <<= 8;
+                length |= data[p++] & 0xFF;
+            }
+        }
+        headerLength = length;
+        return p;
+    }
+
+    /**
+     * @return the offset of the '00 00' terminating a primitive value of indefinite length
+     */
+    private int findEndOfPrimitiveContents(int p) {
+        while (true) {
+            if (p + 1 >= end) {
+                throw new TLVException("Error parsing data. TLV "
+                        + "length byte indicated indefinite length, but EOS "
+                        + "was reached before 0x0000 was found");
+            }
+            if (data[p] == 0x00 && data[p + 1] == 0x00) {
+                return p;
+            }
+            p++;
+        }
+    }
+
+    /**
+     * Walks the nested data objects of a constructed value of indefinite length
+     *
+     * @return the offset of the '00 00' terminating the value
+     */
+    private int findEndOfContents(int p, int depth) {
+        if (depth >= MAX_INDEFINITE_NESTING) {
+            throw new TLVException("Indefinite length data objects nested more than " + MAX_INDEFINITE_NESTING + " levels");
+        }
+        while (true) {
+            if (p + 1 >= end) {
+                throw new TLVException("Error parsing data. TLV "
+                        + "length byte indicated indefinite length, but EOS "
+                        + "was reached before 0x0000 was found");
+            }
+            if (data[p] == 0x00 && data[p + 1] == 0x00) {
+                return p;
+            }
+            if (data[p] == 0x00 || data[p] == (byte) 0xFF) {
+                p++; //padding
+                continue;
+            }
+            boolean constructed = (data[p] & 0x20) == 0x20;
+            int valueStart = parseHeader(p);
+            if (headerIndefinite) {
+                int eoc = constructed ? findEndOfContents(valueStart, depth + 1) : findEndOfPrimitiveContents(valueStart);
+                p = eoc + 2;
+            } else {
+                if (end - valueStart < headerLength) {
+                    throw new TLVException("Length byte(s) indicated " + headerLength + " value bytes, but only " + (end - valueStart) + " available");
+                }
+                p = valueStart + headerLength;
+            }
+        }
+    }
+
+    private int skipPadding(int p) {
+        //ISO/IEC 7816 uses neither '00' nor 'FF' as tag value.
+        //Before, between, or after TLV-coded data objects,
+        //'00' or 'FF' bytes without any meaning may occur
+        //(for example, due to erased or modified TLV-coded data objects).
+        while (p < end && (data[p] == (byte) 0x00 || data[p] == (byte) 0xFF)) {
+            p++;
+        }
+        return p;
+    }
+
+    private void checkPositioned() {
+        if (tagOffset < 0) {
+            throw new IllegalStateException("Cursor is not positioned on a data object. Call next() first");
+        }
+    }
+
+    /**
+     * @return true if there are more (non padding) bytes to parse
+     */
+    public boolean hasRemaining() {
+        return end - skipPadding(pos) > 0;
+    }
+
+    /**
+     * Rewinds the cursor to the start of the data
+     */
+    public void reset() {
+        pos = start;
+        tagOffset = -1;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getTagOffset() {
+        checkPositioned();
+        return tagOffset;
+    }
+
+    public int getTagLength() {
+        checkPositioned();
+        return tagLength;
+    }
+
+    public int getLengthOffset() {
+        checkPositioned();
+        return lengthOffset;
+    }
+
+    public int getNumLengthBytes() {
+        checkPositioned();
+        return numLengthBytes;
+    }
+
+    public int getValueOffset() {
+        checkPositioned();
+        return valueOffset;
+    }
+
+    /**
+     * @return the number of value bytes (decoded from the length bytes)
+     */
+    public int getValueLength() {
+        checkPositioned();
+        return valueLength;
+    }
+
+    /**
+     * @return the value byte at the given index (relative to the start of the value field)
+     */
+    public byte getValueByte(int index) {
+        checkPositioned();
+        if (index < 0 || index >= valueLength) {
+            throw new TLVException("Value index " + index + " out of range. Value length=" + valueLength);
+        }
+        return data[valueOffset + index];
+    }
+
+    public boolean isConstructed() {
+        checkPositioned();
+        return (data[tagOffset] & 0x20) == 0x20;
+    }
+
+    /**
+     * Compares the tag bytes of the current data object against the given tag, without allocating
+     */
+    public boolean isTag(Tag tag) {
+        checkPositioned();
+        byte[] tagBytes = tag.getTagBytes();
+        if (tagBytes.length != tagLength) {
+            return false;
+        }
+        for (int i = 0; i < tagLength; i++) {
+            if (tagBytes[i] != data[tagOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Looks up the tag of the current data object.
+     * If the tag is not found, an "[UNHANDLED TAG]" is returned
+     */
+    public Tag getTag() {
+        Tag tag = EMVTags.find(getTagKey());
+        if (tag == null) {
+            tag = EMVTags.createUnknownTag(getTagBytes());
+        }
+        return tag;
+    }
+
+    /**
+     * Looks up the tag of the current data object in the given context (see EMVTags.getDictionary).
+     * If the tag is not found, an "[UNKNOWN TAG]" is returned
+     */
+    public Tag getTag(TagDictionary tags) {
+        Tag tag = tags.find(getTagKey());
+        if (tag == null) {
+            tag = EMVTags.createUnknownTag(getTagBytes());
+        }
+        return tag;
+    }
+
+    /**
+     * @return the tag bytes packed into an int (see TLVUtil.getTagKey)
+     */
+    public int getTagKey() {
+        checkPositioned();
+        return TLVUtil.getTagKey(data, tagOffset, tagLength);
+    }
+
+    public byte[] getTagBytes() {
+        checkPositioned();
+        return copyOf(tagOffset, tagLength);
+    }
+
+    public byte[] getRawEncodedLengthBytes() {
+        checkPositioned();
+        return copyOf(lengthOffset, numLengthBytes);
+    }
+
+    public byte[] getValueBytes() {
+        checkPositioned();
+        return copyOf(valueOffset, valueLength);
+    }
+
+    private byte[] copyOf(int offset, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        return copy;
+    }
+
+    /**
+     * Interprets the value bytes as an unsigned big-endian int (1 to 4 bytes)
+     */
+    public int getValueAsInt() {
+        checkPositioned();
+        return Util.byteArrayToInt(data, valueOffset, valueLength);
+    }
+
+    /**
+     * @return a new cursor over the value field of the current data object (sharing the same byte array)
+     */
+    public TLVCursor getValueCursor() {
+        checkPositioned();
+        return new TLVCursor(data, valueOffset, valueLength);
+    }
+
+    /**
+     * Creates a BERTLV object (copying tag, length and value) of the current data object
+     */
+    public BERTLV toBERTLV() {
+        return new BERTLV(getTag(), valueLength, getRawEncodedLengthBytes(), getValueBytes());
+    }
+
+    /**
+     * Same as toBERTLV(), but resolves the tag in the given context (see EMVTags.getDictionary)
+     */
+    public BERTLV toBERTLV(TagDictionary tags) {
+        return new BERTLV(getTag(tags), valueLength, getRawEncodedLengthBytes(), getValueBytes());
+    }
+
+    @Override
+    public String toString() {
+        if (tagOffset < 0) {
+            return "TLVCursor[pos=" + pos + ", end=" + end + "]";
+        }
+        return "TLVCursor[" + Util.byteArrayToHexString(data, tagOffset, tagLength) + ", " + Util.int2Hex(valueLength)
+                + " (raw " + Util.byteArrayToHexString(data, lengthOffset, numLengthBytes) + ")"
+                + ", " + Util.byteArrayToHexString(data, valueOffset, valueLength) + "]";
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.iso7816;
+
+/**
+ * Event driven (SAX style) BER-TLV reader.
+ *
+ * Walks the encoded data in a single pass and reports every data object to a
+ * TLVVisitor, without building BERTLV objects or copying value bytes. Nested
+ * templates (70, 77, 6F, A5, BF0C etc) are visited in place.
+ *
+ * Memory use is bounded by the max depth: the reader keeps one TLVCursor per
+ * nesting level, and reuses them between calls to parse(). A reader instance
+ * is therefore not thread safe.
+ *
+ * Usage:
+ * <pre>
+ * new TLVEventReader().parse(data, new TLVVisitor() {
+ *     public boolean startConstructed(TLVCursor tlv, int depth) {
+ *         return true;
+ *     }
+ *     public void primitive(TLVCursor tlv, int depth) {
+ *         if (tlv.isTag(EMVTags.PAN)) {
+ *             ...
+ *         }
+ *     }
+ *     public void endConstructed(TLVCursor tlv, int depth) {
+ *     }
+ * });
+ * </pre>
+ *
+ * @author sasc
+ */
+public class TLVEventReader {
+
+    public static final int DEFAULT_MAX_DEPTH = 16;
+
+    private final TLVCursor[] levels;
+
+    public TLVEventReader() {
+        this(DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * @param maxDepth the maximum number of nesting levels.
+     * Data nested deeper than this causes a TLVException
+     */
+    public TLVEventReader(int maxDepth) {
+        if (maxDepth < 1) {
+            throw new IllegalArgumentException("maxDepth must be at least 1: " + maxDepth);
+        }
+        levels = new TLVCursor[maxDepth];
+    }
+
+    public int getMaxDepth() {
+        return levels.length;
+    }
+
+    public void parse(byte[] data, TLVVisitor visitor) {
+        if (data == null) {
+            throw new IllegalArgumentException("Param data cannot be null");
+        }
+        parse(data, 0, data.length, visitor);
+    }
+
+    /**
+     * Visits all data objects in data[offset] to data[offset+length-1]
+     *
+     * @throws TLVException if the data is malformed or nested deeper than the max depth
+     */
+    public void parse(byte[] data, int offset, int length, TLVVisitor visitor) {
+        if (visitor == null) {
+            throw new IllegalArgumentException("Param visitor cannot be null");
+        }
+        int depth = 0;
+        getLevel(0).wrap(data, offset, length);
+        while (true) {
+            TLVCursor tlv = levels[depth];
+            if (tlv.next()) {
+                if (!tlv.isConstructed()) {
+                    visitor.primitive(tlv, depth);
+                } else if (visitor.startConstructed(tlv, depth)) {
+                    if (depth + 1 >= levels.length) {
+                        throw new TLVException("Max depth (" + levels.length + ") exceeded at offset " + tlv.getTagOffset());
+                    }
+                    depth++;
+                    getLevel(depth).wrap(data, tlv.getValueOffset(), tlv.getValueLength());
+                } else {
+                    visitor.endConstructed(tlv, depth);
+                }
+            } else if (depth == 0) {
+                return;
+            } else {
+                depth--;
+                visitor.endConstructed(levels[depth], depth);
+            }
+        }
+    }
+
+    private TLVCursor getLevel(int depth) {
+        if (levels[depth] == null) {
+            levels[depth] = new TLVCursor(new byte[0]);
+        }
+        return levels[depth];
+    }
+}
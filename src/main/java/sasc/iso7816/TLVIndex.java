@@ -0,0 +1,269 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.iso7816;
+
+/**
+ * An index of data objects by tag, referring to the value bytes in place
+ * (the encoded data is retained, not copied).
+ *
+ * An index of a complete TLV tree (all nesting levels) is built in a single
+ * scan with build(). Entries can also be put one at a time, eg as they are
+ * encountered by a TLVCursor. Values are only copied or decoded when asked for.
+ *
+ * Lookups are a linear search over an int array, which for the typical
+ * 5-20 data objects of a record or FCI is faster than hashing.
+ * Not thread safe.
+ *
+ * @author sasc
+ */
+public class TLVIndex {
+
+    private int size = 0;
+    private int[] tagKeys;
+    private int[] valueOffsets;
+    private int[] valueLengths;
+    private int[] depths; //Low 8 bits: nesting depth, bit 0x100: constructed
+    private byte[][] buffers;
+
+    public TLVIndex() {
+        this(8);
+    }
+
+    public TLVIndex(int initialCapacity) {
+        if (initialCapacity < 1) {
+            initialCapacity = 1;
+        }
+        tagKeys = new int[initialCapacity];
+        valueOffsets = new int[initialCapacity];
+        valueLengths = new int[initialCapacity];
+        depths = new int[initialCapacity];
+        buffers = new byte[initialCapacity][];
+    }
+
+    public static TLVIndex build(byte[] data) {
+        if (data == null) {
+            throw new IllegalArgumentException("Param data cannot be null");
+        }
+        return build(data, 0, data.length);
+    }
+
+    /**
+     * Indexes every data object (at every nesting level) in document order
+     *
+     * @throws TLVException if the data is malformed
+     */
+    public static TLVIndex build(byte[] data, int offset, int length) {
+        final TLVIndex index = new TLVIndex();
+        new TLVEventReader().parse(data, offset, length, new TLVVisitor() {
+
+            @Override
+            public boolean startConstructed(TLVCursor tlv, int depth) {
+                index.add(tlv, depth, true);
+                return true;
+            }
+
+            @Override
+            public void primitive(TLVCursor tlv, int depth) {
+                index.add(tlv, depth, false);
+            }
+
+            @Override
+            public void endConstructed(TLVCursor tlv, int depth) {
+            }
+        });
+        return index;
+    }
+
+    private void add(TLVCursor tlv, int depth, boolean constructed) {
+        int i = size;
+        ensureCapacity(i + 1);
+        set(i, tlv.getTagKey(), tlv.getData(), tlv.getValueOffset(), tlv.getValueLength());
+        depths[i] = depth | (constructed ? 0x100 : 0);
+        size++;
+    }
+
+    private void set(int i, int tagKey, byte[] data, int valueOffset, int valueLength) {
+        tagKeys[i] = tagKey;
+        buffers[i] = data;
+        valueOffsets[i] = valueOffset;
+        valueLengths[i] = valueLength;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= tagKeys.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, tagKeys.length * 2);
+        tagKeys = copyOf(tagKeys, newCapacity);
+        valueOffsets = copyOf(valueOffsets, newCapacity);
+        valueLengths = copyOf(valueLengths, newCapacity);
+        depths = copyOf(depths, newCapacity);
+        byte[][] newBuffers = new byte[newCapacity][];
+        System.arraycopy(buffers, 0, newBuffers, 0, size);
+        buffers = newBuffers;
+    }
+
+    private int[] copyOf(int[] array, int newLength) {
+        int[] copy = new int[newLength];
+        System.arraycopy(array, 0, copy, 0, size);
+        return copy;
+    }
+
+    /**
+     * Adds (or replaces) the value of the primitive data object the cursor is positioned on
+     */
+    public void put(TLVCursor tlv) {
+        int tagKey = tlv.getTagKey();
+        if (tagKey == TLVUtil.NO_TAG_KEY) {
+            throw new TLVException("Tag too long to be indexed: " + tlv);
+        }
+        int i = indexOf(tagKey);
+        if (i < 0) {
+            i = size;
+            ensureCapacity(i + 1);
+            size++;
+        }
+        set(i, tagKey, tlv.getData(), tlv.getValueOffset(), tlv.getValueLength());
+        depths[i] = 0;
+    }
+
+    /**
+     * @return true if an entry was removed
+     */
+    public boolean remove(int tagKey) {
+        int i = indexOf(tagKey);
+        if (i < 0) {
+            return false;
+        }
+        int numMoved = size - i - 1;
+        System.arraycopy(tagKeys, i + 1, tagKeys, i, numMoved);
+        System.arraycopy(valueOffsets, i + 1, valueOffsets, i, numMoved);
+        System.arraycopy(valueLengths, i + 1, valueLengths, i, numMoved);
+        System.arraycopy(depths, i + 1, depths, i, numMoved);
+        System.arraycopy(buffers, i + 1, buffers, i, numMoved);
+        size--;
+        buffers[size] = null;
+        return true;
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            buffers[i] = null;
+        }
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the index of the first entry with the given tag key, or -1 if not found
+     */
+    public int indexOf(int tagKey) {
+        for (int i = 0; i < size; i++) {
+            if (tagKeys[i] == tagKey) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int indexOf(Tag tag) {
+        return indexOf(TLVUtil.getTagKey(tag.getTagBytes()));
+    }
+
+    public boolean contains(Tag tag) {
+        return indexOf(tag) >= 0;
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+        }
+    }
+
+    public int getTagKey(int i) {
+        checkIndex(i);
+        return tagKeys[i];
+    }
+
+    public byte[] getData(int i) {
+        checkIndex(i);
+        return buffers[i];
+    }
+
+    public int getValueOffset(int i) {
+        checkIndex(i);
+        return valueOffsets[i];
+    }
+
+    public int getValueLength(int i) {
+        checkIndex(i);
+        return valueLengths[i];
+    }
+
+    /**
+     * @return the nesting level of the entry (0 for the outermost data objects)
+     */
+    public int getDepth(int i) {
+        checkIndex(i);
+        return depths[i] & 0xFF;
+    }
+
+    public boolean isConstructed(int i) {
+        checkIndex(i);
+        return (depths[i] & 0x100) != 0;
+    }
+
+    /**
+     * @return a copy of the value bytes of the entry
+     */
+    public byte[] getValueBytes(int i) {
+        checkIndex(i);
+        byte[] value = new byte[valueLengths[i]];
+        System.arraycopy(buffers[i], valueOffsets[i], value, 0, value.length);
+        return value;
+    }
+
+    /**
+     * @return a copy of the value bytes of the first entry with the given tag, or null if not found
+     */
+    public byte[] getValueBytes(Tag tag) {
+        int i = indexOf(tag);
+        return i < 0 ? null : getValueBytes(i);
+    }
+
+    /**
+     * @return a cursor over the value field of the entry (eg to walk a constructed data object)
+     */
+    public TLVCursor getValueCursor(int i) {
+        checkIndex(i);
+        return new TLVCursor(buffers[i], valueOffsets[i], valueLengths[i]);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("TLVIndex[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(Integer.toHexString(tagKeys[i])).append('@').append(valueOffsets[i]).append('/').append(valueLengths[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -21,6 +21,7 @@ import java.util.ArrayList;
 import java.util.List;
 import sasc.emv.EMVApplication;
 import sasc.emv.EMVTags;
+import sasc.emv.TagDictionary;
 import static sasc.iso7816.TagValueType.BINARY;
 import static sasc.iso7816.TagValueType.DOL;
 import static sasc.iso7816.TagValueType.MIXED;
@@ -34,10 +35,46 @@ import sasc.util.Util;
  * @author sasc
  */
 public class TLVUtil {
+
+    /**
+     * Returned by getTagKey() for tags that cannot be packed into an int
+     */
+    public static final int NO_TAG_KEY = 0;
     
     private static Tag searchTagById(byte[] tagIdBytes) {
         return EMVTags.getNotNull(tagIdBytes); //TODO take app (IIN or RID) into consideration
     }
+
+    /**
+     * @param tags the tags of the application context (RID/IIN), or null for the EMV tags only
+     */
+    private static Tag searchTagById(byte[] tagIdBytes, TagDictionary tags) {
+        if (tags == null) {
+            return searchTagById(tagIdBytes);
+        }
+        return tags.getNotNull(tagIdBytes);
+    }
+    
+    /**
+     * Packs 1 to 4 tag bytes (big-endian) into an int.
+     * The first tag byte is never '00', so tags of different lengths get different keys.
+     *
+     * @return the tag key, or NO_TAG_KEY if the tag is longer than 4 bytes
+     */
+    public static int getTagKey(byte[] data, int offset, int length) {
+        if (length < 1 || length > 4) {
+            return NO_TAG_KEY;
+        }
+        int key = 0;
+        for (int i = 0; i < length; i++) {
+            key = (key << 8) | (data[offset + i] & 0xFF);
+        }
+        return key;
+    }
+
+    public static int getTagKey(byte[] tagBytes) {
+        return getTagKey(tagBytes, 0, tagBytes.length);
+    }
     
     private static Tag searchTagById(ByteArrayInputStream stream){
         return searchTagById(TLVUtil.readTagIdBytes(stream));
@@ -130,6 +167,13 @@ public class TLVUtil {
     }
     
     public static BERTLV getNextTLV(ByteArrayInputStream stream) {
+        return getNextTLV(stream, null);
+    }
+
+    /**
+     * @param tags used to resolve proprietary tags (see EMVTags.getDictionary(app)). May be null
+     */
+    public static BERTLV getNextTLV(ByteArrayInputStream stream, TagDictionary tags) {
         if (stream.available() < 2) {
             throw new TLVException("Error parsing data. Available bytes < 2 . Length=" + stream.available());
         }
@@ -179,7 +223,7 @@ public class TLVUtil {
 
         byte[] valueBytes;
 
-        Tag tag = searchTagById(tagIdBytes);
+        Tag tag = searchTagById(tagIdBytes, tags);
 
         // Find VALUE bytes
         if (rawLength == 128) { // 1000 0000
@@ -258,6 +302,13 @@ public class TLVUtil {
     }
 
     public static List<TagAndLength> parseTagAndLength(byte[] data) {
+        return parseTagAndLength(data, null);
+    }
+
+    /**
+     * @param tags used to resolve proprietary tags (see EMVTags.getDictionary(app)). May be null
+     */
+    public static List<TagAndLength> parseTagAndLength(byte[] data, TagDictionary tags) {
         ByteArrayInputStream stream = new ByteArrayInputStream(data);
         List<TagAndLength> tagAndLengthList = new ArrayList<TagAndLength>();
 
@@ -268,7 +319,7 @@ public class TLVUtil {
             byte[] tagIdBytes = TLVUtil.readTagIdBytes(stream);
             int tagValueLength = TLVUtil.readTagLength(stream);
 
-            Tag tag = searchTagById(tagIdBytes);
+            Tag tag = searchTagById(tagIdBytes, tags);
 
             tagAndLengthList.add(new TagAndLength(tag, tagValueLength));
         }
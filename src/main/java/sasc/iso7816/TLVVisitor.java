@@ -0,0 +1,45 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.iso7816;
+
+/**
+ * Callbacks for TLVEventReader.
+ *
+ * The TLVCursor passed to each callback is positioned on the current data
+ * object, and all offsets (getTagOffset(), getValueOffset() etc) refer to the
+ * original buffer. The cursor is owned by the reader and is only valid during
+ * the callback: do not call next() or reset() on it, and do not keep a reference.
+ *
+ * @author sasc
+ */
+public interface TLVVisitor {
+
+    /**
+     * Called for a constructed data object, before its nested data objects.
+     *
+     * @param depth nesting level (0 for the outermost data objects)
+     * @return true to visit the nested data objects, false to skip them
+     * (endConstructed is called in either case)
+     */
+    public boolean startConstructed(TLVCursor tlv, int depth);
+
+    public void primitive(TLVCursor tlv, int depth);
+
+    /**
+     * Called after the nested data objects of a constructed data object
+     */
+    public void endConstructed(TLVCursor tlv, int depth);
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.iso7816;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes BER-TLV data objects and command APDUs directly into a ByteBuffer
+ * (caller supplied, or a heap buffer allocated once and reused after reset()).
+ *
+ * The length of constructed data objects and the Lc of commands are
+ * back-patched when the template or command is ended, so nested templates
+ * can be written without building the value first:
+ * <pre>
+ * writer.startCommand(0x80, 0xA8, 0x00, 0x00)
+ *       .startConstructed(EMVTags.COMMAND_TEMPLATE)
+ *       .writeBytes(pdolData)
+ *       .endConstructed()
+ *       .endCommand((byte) 0x00);
+ * byte[] cmd = writer.toByteArray();
+ * </pre>
+ *
+ * Writing past the end of the buffer throws java.nio.BufferOverflowException.
+ * Not thread safe.
+ *
+ * @author sasc
+ */
+public class TLVWriter {
+
+    private static final int MAX_DEPTH = 8;
+
+    private final ByteBuffer buf;
+    private final int start;
+    private final int[] lengthPositions = new int[MAX_DEPTH];
+    private int depth = 0;
+    private int lcPosition = -1;
+
+    /**
+     * Data is written from the current position of the buffer
+     */
+    public TLVWriter(ByteBuffer buf) {
+        if (buf == null) {
+            throw new IllegalArgumentException("Param buf cannot be null");
+        }
+        this.buf = buf;
+        this.start = buf.position();
+    }
+
+    public TLVWriter(byte[] buf) {
+        this(ByteBuffer.wrap(buf));
+    }
+
+    public TLVWriter(int capacity) {
+        this(ByteBuffer.allocate(capacity));
+    }
+
+    /**
+     * @return the number of bytes needed to encode 'length'
+     */
+    public static int getEncodedLengthSize(int length) {
+        if (length < 0) {
+            throw new TLVException("Negative length: " + length);
+        }
+        if (length <= 0x7F) {
+            return 1;
+        } else if (length <= 0xFF) {
+            return 2;
+        } else if (length <= 0xFFFF) {
+            return 3;
+        } else if (length <= 0xFFFFFF) {
+            return 4;
+        }
+        throw new TLVException("Length too large: " + length);
+    }
+
+    /**
+     * Encodes 'length' (short form if possible, else long form with 1 to 3 subsequent bytes)
+     *
+     * @return the number of bytes written
+     */
+    public static int encodeLength(int length, byte[] out, int offset) {
+        int size = getEncodedLengthSize(length);
+        if (size == 1) {
+            out[offset] = (byte) length;
+        } else {
+            out[offset] = (byte) (0x80 | (size - 1));
+            for (int i = size - 1; i > 0; i--) {
+                out[offset + i] = (byte) length;
+                length >>>= 8;
+            }
+        }
+        return size;
+    }
+
+    private void putLength(int position, int length, int size) {
+        if (size == 1) {
+            buf.put(position, (byte) length);
+        } else {
+            buf.put(position, (byte) (0x80 | (size - 1)));
+            for (int i = size - 1; i > 0; i--) {
+                buf.put(position + i, (byte) length);
+                length >>>= 8;
+            }
+        }
+    }
+
+    public TLVWriter writeTag(Tag tag) {
+        buf.put(tag.getTagBytes());
+        return this;
+    }
+
+    public TLVWriter writeLength(int length) {
+        int size = getEncodedLengthSize(length);
+        int position = buf.position();
+        if (buf.remaining() < size) {
+            throw new BufferOverflowException();
+        }
+        putLength(position, length, size);
+        buf.position(position + size);
+        return this;
+    }
+
+    public TLVWriter write(Tag tag, byte[] value) {
+        return write(tag, value, 0, value.length);
+    }
+
+    public TLVWriter write(Tag tag, byte[] value, int offset, int length) {
+        writeTag(tag);
+        writeLength(length);
+        buf.put(value, offset, length);
+        return this;
+    }
+
+    public TLVWriter writeByte(int b) {
+        buf.put((byte) b);
+        return this;
+    }
+
+    public TLVWriter writeBytes(byte[] bytes) {
+        buf.put(bytes);
+        return this;
+    }
+
+    public TLVWriter writeBytes(byte[] bytes, int offset, int length) {
+        buf.put(bytes, offset, length);
+        return this;
+    }
+
+    /**
+     * Writes the tag, and reserves the length field, of a constructed data object.
+     * Everything written until the matching endConstructed() becomes its value
+     */
+    public TLVWriter startConstructed(Tag tag) {
+        if (depth == MAX_DEPTH) {
+            throw new TLVException("Max depth (" + MAX_DEPTH + ") exceeded");
+        }
+        writeTag(tag);
+        lengthPositions[depth++] = buf.position();
+        buf.put((byte) 0);
+        return this;
+    }
+
+    /**
+     * Back-patches the length of the innermost open constructed data object.
+     * If the length does not fit in the reserved byte, the value is moved
+     */
+    public TLVWriter endConstructed() {
+        if (depth == 0) {
+            throw new IllegalStateException("No constructed data object to end");
+        }
+        int lengthPosition = lengthPositions[--depth];
+        int valueStart = lengthPosition + 1;
+        int end = buf.position();
+        int length = end - valueStart;
+        int size = getEncodedLengthSize(length);
+        if (size > 1) {
+            int shift = size - 1;
+            if (buf.remaining() < shift) {
+                throw new BufferOverflowException();
+            }
+            for (int i = end - 1; i >= valueStart; i--) {
+                buf.put(i + shift, buf.get(i));
+            }
+            buf.position(end + shift);
+        }
+        putLength(lengthPosition, length, size);
+        return this;
+    }
+
+    /**
+     * Writes the header of a (short) command APDU, and reserves the Lc byte
+     */
+    public TLVWriter startCommand(int cla, int ins, int p1, int p2) {
+        if (lcPosition >= 0) {
+            throw new IllegalStateException("A command has already been started");
+        }
+        buf.put((byte) cla).put((byte) ins).put((byte) p1).put((byte) p2);
+        lcPosition = buf.position();
+        buf.put((byte) 0);
+        return this;
+    }
+
+    /**
+     * Ends a command without Le. Lc is back-patched, or removed if there is no data
+     */
+    public TLVWriter endCommand() {
+        if (lcPosition < 0) {
+            throw new IllegalStateException("No command to end");
+        }
+        if (depth != 0) {
+            throw new IllegalStateException(depth + " constructed data object(s) not ended");
+        }
+        int lc = buf.position() - lcPosition - 1;
+        if (lc == 0) {
+            buf.position(lcPosition);
+        } else if (lc > 255) {
+            throw new SmartCardException("Command data too long for a short APDU: " + lc);
+        } else {
+            buf.put(lcPosition, (byte) lc);
+        }
+        lcPosition = -1;
+        return this;
+    }
+
+    public TLVWriter endCommand(byte le) {
+        endCommand();
+        buf.put(le);
+        return this;
+    }
+
+    /**
+     * @return the number of bytes written since construction (or the last reset())
+     */
+    public int size() {
+        return buf.position() - start;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buf;
+    }
+
+    /**
+     * @return a copy of the bytes written
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[size()];
+        if (buf.hasArray()) {
+            System.arraycopy(buf.array(), buf.arrayOffset() + start, bytes, 0, bytes.length);
+        } else {
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buf.get(start + i);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Discards everything written, so the writer (and its buffer) can be reused
+     */
+    public void reset() {
+        buf.position(start);
+        depth = 0;
+        lcPosition = -1;
+    }
+}
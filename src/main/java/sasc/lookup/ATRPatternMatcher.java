@@ -0,0 +1,361 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.lookup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import sasc.util.Log;
+
+/**
+ * The ATR patterns of smartcard_list.txt compiled into a trie.
+ *
+ * The patterns are regular expressions over the ATR as hex bytes separated by spaces ("3B 67 00 ...").
+ * A pattern is compiled into a sequence of character sets over that string: a hex digit, a space,
+ * '.' (any character, so "..." can also span a space) or a character class such as [1,2] or [1-5].
+ * Each trie edge is labeled with a character set, so patterns sharing a prefix share the path.
+ * '.*' is a node that loops on itself.
+ * All patterns matching an ATR are found in one traversal of the raw ATR bytes, without building hex strings or regular expressions.
+ *
+ * Used by ATR_DB for the public ATR list and by Registry for handler patterns. Immutable once built.
+ *
+ * @author sasc
+ */
+public final class ATRPatternMatcher<T> {
+
+    //Bits 0-15 are the hex digits, bit 16 is the space between bytes
+    private static final int SPACE = 1 << 16;
+    private static final int ANY_CHARACTER = 0x1FFFF;
+
+    //Flattened trie. Node 0 is the root
+    private final int[] edgeStart;
+    private final int[] edgeMask;
+    private final int[] edgeTarget;
+    private final int[] starChild;
+    private final boolean[] loop;
+    private final int[] terminalStart;
+    private final int[] terminals;
+
+    //Patterns, most specific first (the pattern index is the rank)
+    private final String[] patterns;
+    private final T[] values;
+
+    private ATRPatternMatcher(Node root, int nodeCount, String[] patterns, T[] values) {
+        this.patterns = patterns;
+        this.values = values;
+        edgeStart = new int[nodeCount + 1];
+        starChild = new int[nodeCount];
+        loop = new boolean[nodeCount];
+        terminalStart = new int[nodeCount + 1];
+        List<Node> nodes = new ArrayList<Node>(nodeCount);
+        nodes.add(root);
+        int edgeCount = 0;
+        int terminalCount = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            for (Node child : node.children) {
+                child.id = nodes.size();
+                nodes.add(child);
+            }
+            if (node.star != null) {
+                node.star.id = nodes.size();
+                nodes.add(node.star);
+            }
+            edgeCount += node.children.size();
+            terminalCount += node.terminals.size();
+        }
+        edgeMask = new int[edgeCount];
+        edgeTarget = new int[edgeCount];
+        terminals = new int[terminalCount];
+        int edge = 0;
+        int terminal = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            edgeStart[i] = edge;
+            for (Node child : node.children) {
+                edgeMask[edge] = child.mask;
+                edgeTarget[edge] = child.id;
+                edge++;
+            }
+            starChild[i] = node.star != null ? node.star.id : -1;
+            loop[i] = node.loop;
+            terminalStart[i] = terminal;
+            for (int pattern : node.terminals) {
+                terminals[terminal++] = pattern;
+            }
+        }
+        edgeStart[nodes.size()] = edge;
+        terminalStart[nodes.size()] = terminal;
+    }
+
+    /**
+     * Compiles the patterns. Patterns using regular expression syntax other than '.', '.*' and character classes are left out.
+     * Hex digits are matched case insensitively.
+     *
+     * @param patterns ATR patterns (hex bytes separated by spaces, as in smartcard_list.txt) and their values
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> ATRPatternMatcher<T> compile(Map<String, T> patterns) {
+        List<CompiledPattern<T>> compiled = new ArrayList<CompiledPattern<T>>(patterns.size());
+        for (Map.Entry<String, T> entry : patterns.entrySet()) {
+            int[] masks = parse(entry.getKey());
+            if (masks == null) {
+                Log.debug("Unsupported ATR pattern: " + entry.getKey());
+                continue;
+            }
+            compiled.add(new CompiledPattern<T>(entry.getKey(), masks, entry.getValue()));
+        }
+        //Most specific first, ties in pattern order so results are stable
+        Collections.sort(compiled, new Comparator<CompiledPattern<T>>() {
+            @Override
+            public int compare(CompiledPattern<T> p1, CompiledPattern<T> p2) {
+                if (p1.specificity != p2.specificity) {
+                    return p1.specificity > p2.specificity ? -1 : 1;
+                }
+                return p1.pattern.compareTo(p2.pattern);
+            }
+        });
+        Node root = new Node(0);
+        int nodeCount = 1;
+        String[] patternStrings = new String[compiled.size()];
+        T[] values = (T[]) new Object[compiled.size()];
+        for (int i = 0; i < compiled.size(); i++) {
+            CompiledPattern<T> pattern = compiled.get(i);
+            patternStrings[i] = pattern.pattern;
+            values[i] = pattern.value;
+            Node node = root;
+            for (int mask : pattern.masks) {
+                if (mask == 0) { //.*
+                    if (node.star == null) {
+                        node.star = new Node(0);
+                        node.star.loop = true;
+                        nodeCount++;
+                    }
+                    node = node.star;
+                    continue;
+                }
+                Node next = null;
+                for (Node child : node.children) {
+                    if (child.mask == mask) {
+                        next = child;
+                        break;
+                    }
+                }
+                if (next == null) {
+                    next = new Node(mask);
+                    node.children.add(next);
+                    nodeCount++;
+                }
+                node = next;
+            }
+            node.terminals.add(i);
+        }
+        return new ATRPatternMatcher<T>(root, nodeCount, patternStrings, values);
+    }
+
+    public int size() {
+        return patterns.length;
+    }
+
+    /**
+     * @return the values of all patterns matching the ATR, most specific pattern first
+     */
+    public List<T> match(byte[] atr) {
+        //Positions in the (virtual) string of hex bytes separated by spaces
+        int length = atr.length > 0 ? atr.length * 3 - 1 : 0;
+        //Pairs of (node, position) still to be visited
+        int[] stack = new int[32];
+        int top = 0;
+        //Pattern indexes are ranks, so a bit set of matches is already ordered
+        long[] matched = null;
+        stack[top++] = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int pos = stack[--top];
+            int node = stack[--top];
+            if (pos == length) {
+                for (int t = terminalStart[node]; t < terminalStart[node + 1]; t++) {
+                    if (matched == null) {
+                        matched = new long[(patterns.length + 63) >>> 6];
+                    }
+                    matched[terminals[t] >>> 6] |= 1L << terminals[t];
+                }
+            }
+            if (top + 6 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            if (loop[node] && pos < length) {
+                stack[top++] = node;
+                stack[top++] = pos + 1;
+            }
+            if (starChild[node] != -1) {
+                stack[top++] = starChild[node];
+                stack[top++] = pos;
+            }
+            if (pos < length) {
+                int bit;
+                switch (pos % 3) {
+                    case 0:
+                        bit = 1 << ((atr[pos / 3] >> 4) & 0x0F);
+                        break;
+                    case 1:
+                        bit = 1 << (atr[pos / 3] & 0x0F);
+                        break;
+                    default:
+                        bit = SPACE;
+                }
+                for (int e = edgeStart[node]; e < edgeStart[node + 1]; e++) {
+                    if ((edgeMask[e] & bit) != 0) {
+                        if (top + 2 > stack.length) {
+                            stack = Arrays.copyOf(stack, stack.length * 2);
+                        }
+                        stack[top++] = edgeTarget[e];
+                        stack[top++] = pos + 1;
+                    }
+                }
+            }
+        }
+        if (matched == null) {
+            return Collections.emptyList();
+        }
+        List<T> result = new ArrayList<T>(2);
+        for (int i = 0; i < matched.length; i++) {
+            long bits = matched[i];
+            while (bits != 0) {
+                int bit = Long.numberOfTrailingZeros(bits);
+                result.add(values[(i << 6) + bit]);
+                bits &= bits - 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return true if compile(Map) supports the pattern syntax (the pattern is not compiled, and nothing is logged)
+     */
+    public static boolean isSupported(String pattern) {
+        return parse(pattern) != null;
+    }
+
+    /**
+     * Parses a pattern into character masks (bit n set if hex digit n matches, SPACE if a space matches). 0 means '.*'.
+     *
+     * @return the masks, or null if the pattern uses unsupported syntax
+     */
+    static int[] parse(String pattern) {
+        int[] masks = new int[pattern.length()];
+        int count = 0;
+        int i = 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            if (c == ' ') {
+                masks[count++] = SPACE;
+                i++;
+            } else if (c == '.') {
+                if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+                    masks[count++] = 0;
+                    i += 2;
+                } else {
+                    masks[count++] = ANY_CHARACTER;
+                    i++;
+                }
+            } else if (c == '[') {
+                int end = pattern.indexOf(']', i);
+                if (end == -1) {
+                    return null;
+                }
+                int mask = 0;
+                for (int j = i + 1; j < end; j++) {
+                    int value = Character.digit(pattern.charAt(j), 16);
+                    if (value != -1 && j + 2 < end && pattern.charAt(j + 1) == '-') {
+                        int last = Character.digit(pattern.charAt(j + 2), 16);
+                        if (last == -1 || last < value) {
+                            return null;
+                        }
+                        for (int v = value; v <= last; v++) {
+                            mask |= 1 << v;
+                        }
+                        j += 2;
+                    } else if (value != -1) {
+                        mask |= 1 << value;
+                    } else if (pattern.charAt(j) == ' ') {
+                        mask |= SPACE;
+                    } else if (pattern.charAt(j) != ',') { //In the list, ',' separates the class members (and never matches)
+                        return null;
+                    }
+                }
+                if (mask == 0) {
+                    return null;
+                }
+                masks[count++] = mask;
+                i = end + 1;
+            } else {
+                int value = Character.digit(c, 16);
+                if (value == -1) {
+                    return null;
+                }
+                masks[count++] = 1 << value;
+                i++;
+            }
+        }
+        return Arrays.copyOf(masks, count);
+    }
+
+    /**
+     * @return the number of fixed hex digits in the pattern (a character class counts as half)
+     */
+    private static int specificity(int[] masks) {
+        int specificity = 0;
+        for (int mask : masks) {
+            if (mask != 0 && (mask & SPACE) == 0) {
+                specificity += Integer.bitCount(mask) == 1 ? 2 : 1;
+            }
+        }
+        return specificity;
+    }
+
+    private static final class CompiledPattern<T> {
+
+        final String pattern;
+        final int[] masks;
+        final int specificity;
+        final T value;
+
+        CompiledPattern(String pattern, int[] masks, T value) {
+            this.pattern = pattern;
+            this.masks = masks;
+            this.specificity = specificity(masks);
+            this.value = value;
+        }
+    }
+
+    private static final class Node {
+
+        final int mask;
+        final List<Node> children = new ArrayList<Node>(2);
+        final List<Integer> terminals = new ArrayList<Integer>(1);
+        Node star;
+        boolean loop;
+        int id;
+
+        Node(int mask) {
+            this.mask = mask;
+        }
+    }
+}
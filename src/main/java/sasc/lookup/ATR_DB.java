@@ -17,9 +17,6 @@ package sasc.lookup;
 
 import java.io.*;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.atomic.AtomicBoolean;
 import sasc.util.Log;
 import sasc.util.Util;
 
@@ -34,106 +31,143 @@ import sasc.util.Util;
  */
 public class ATR_DB {
 
-    private static final CountDownLatch initLatch = new CountDownLatch(1);
-    private static final Map<String, PublicATR> atrMap = new ConcurrentHashMap<String, PublicATR>();
-    private static final AtomicBoolean initCalled = new AtomicBoolean(false);
+    static final String[] TEXT_RESOURCES = {"/smartcard_list.txt", "/smartcard_list_additional_atrs.txt"};
 
-	public synchronized static void initialize() {
-        if(initCalled.getAndSet(true)){
-            return;
+    static final LookupTable<Snapshot> TABLE = new LookupTable<Snapshot>(ReferenceData.Table.ATR,
+            LookupSnapshot.ATR_DB_SNAPSHOT, "/smartcard_list.txt", TEXT_RESOURCES, new Snapshot(Collections.<String, PublicATR>emptyMap()),
+            new LookupTable.Loader<Snapshot>() {
+
+                @Override
+                public List<String[]> readTextRecords() throws IOException {
+                    return ATR_DB.readTextRecords();
+                }
+
+                @Override
+                public Snapshot build(List<String[]> records) {
+                    return ATR_DB.build(records);
+                }
+
+                @Override
+                public int size(Snapshot snapshot) {
+                    return snapshot.atrMap.size();
+                }
+            });
+
+    //The ATRs and their compiled patterns, swapped together
+    private static final class Snapshot {
+
+        final Map<String, PublicATR> atrMap;
+        final ATRPatternMatcher<PublicATR> matcher;
+
+        Snapshot(Map<String, PublicATR> atrMap) {
+            this.atrMap = Collections.unmodifiableMap(atrMap);
+            this.matcher = ATRPatternMatcher.compile(atrMap);
         }
-		new Thread(new Runnable(){
-				@Override
-				public void run() {
-
-                    InputStream is1 = null;
-                    InputStream is2 = null;
-                    BufferedReader br = null;
-
-                    try{
-                        is1 = Util.loadResource(ATR_DB.class, "/smartcard_list.txt");
-                        is2 = Util.loadResource(ATR_DB.class, "/smartcard_list_additional_atrs.txt");
-                        br = new BufferedReader(new InputStreamReader(new SequenceInputStream(is1, is2), "UTF-8"));
-
-                        int lineNumber = 0;
-                        String line;
-                        String currentATR = null;
-                        while((line = br.readLine()) != null){
-                            ++lineNumber;
-                            if(line.startsWith("#")  || line.trim().length() == 0){ //comment ^#/ empty line ^$/
-                                continue;
-                            }else if(line.startsWith("\t") && currentATR != null){
-                                atrMap.get(currentATR).addDescriptiveText(line.replace("\t", "").trim());
-            //                    Log.debug("Adding descriptive text for ATR="+currentATR+" "+line.replace("\t", ""));
-                            }else if(line.startsWith("3")){ // ATR hex
-                                currentATR = line.toUpperCase().trim();
-                                if(!atrMap.containsKey(currentATR)){
-                                    atrMap.put(currentATR, new PublicATR(line));
-                                }else{
-            //                        Log.debug("Found existing ATR: "+currentATR);
-                                }
-                            }else{
-                                Log.debug("Encountered unexpected line in atr list: currentATR="+currentATR+" Line("+lineNumber+")="+line);
-                                //Just skip
-                                //throw new RuntimeException("Encountered unexpected line in atr list: currentATR="+currentATR+" Line="+line);
-                            }
-                        }
-                    }catch(IOException e){
-                        throw new RuntimeException(e);
-                    }finally{
-                        if(is1 != null){
-                            try {
-                                is1.close();
-                            } catch (IOException ex) {
-                                //Ignore
-                            }
-                        }
-                        if(is2 != null){
-                            try {
-                                is2.close();
-                            } catch (IOException ex) {
-                                //Ignore
-                            }
-                        }
-                        if(br != null){
-                            try {
-                                br.close();
-                            } catch (IOException ex) {
-                                //Ignore
-                            }
-                        }
-                        initLatch.countDown();
-					}
-				}
-			}).start();
+    }
 
+	public static void initialize() {
+        TABLE.initialize();
 	}
-    
+
+    /**
+     * Parses the smartcard lists
+     *
+     * @return the records: the ATR pattern (as first found in the lists) followed by its descriptive text lines
+     */
+    static List<String[]> readTextRecords() throws IOException {
+        InputStream is1 = null;
+        InputStream is2 = null;
+        BufferedReader br = null;
+
+        try{
+            is1 = Util.loadResource(ATR_DB.class, TEXT_RESOURCES[0]);
+            is2 = Util.loadResource(ATR_DB.class, TEXT_RESOURCES[1]);
+            br = new BufferedReader(new InputStreamReader(new SequenceInputStream(is1, is2), "UTF-8"));
+            return readTextRecords(br);
+        }finally{
+            if(is1 != null){
+                try {
+                    is1.close();
+                } catch (IOException ex) {
+                    //Ignore
+                }
+            }
+            if(is2 != null){
+                try {
+                    is2.close();
+                } catch (IOException ex) {
+                    //Ignore
+                }
+            }
+            if(br != null){
+                try {
+                    br.close();
+                } catch (IOException ex) {
+                    //Ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses a list in the format of smartcard_list.txt
+     */
+    static List<String[]> readTextRecords(BufferedReader br) throws IOException {
+        Map<String, List<String>> atrs = new LinkedHashMap<String, List<String>>();
+        int lineNumber = 0;
+        String line;
+        String currentATR = null;
+        while((line = br.readLine()) != null){
+            ++lineNumber;
+            if(line.startsWith("#")  || line.trim().length() == 0){ //comment ^#/ empty line ^$/
+                continue;
+            }else if(line.startsWith("\t") && currentATR != null){
+                atrs.get(currentATR).add(line.replace("\t", "").trim());
+            }else if(line.startsWith("3")){ // ATR hex
+                currentATR = line.toUpperCase().trim();
+                if(!atrs.containsKey(currentATR)){
+                    List<String> record = new ArrayList<String>();
+                    record.add(line);
+                    atrs.put(currentATR, record);
+                }
+            }else{
+                Log.debug("Encountered unexpected line in atr list: currentATR="+currentATR+" Line("+lineNumber+")="+line);
+                //Just skip
+            }
+        }
+        List<String[]> records = new ArrayList<String[]>(atrs.size());
+        for(List<String> record : atrs.values()){
+            records.add(record.toArray(new String[record.size()]));
+        }
+        return records;
+    }
+
+    private static Snapshot build(List<String[]> records) {
+        Map<String, PublicATR> atrMap = new LinkedHashMap<String, PublicATR>(records.size() * 2);
+        for(String[] record : records){
+            PublicATR publicATR = new PublicATR(record[0]);
+            for(int i = 1; i < record.length; i++){
+                publicATR.addDescriptiveText(record[i]);
+            }
+            atrMap.put(record[0].toUpperCase().trim(), publicATR);
+        }
+        return new Snapshot(atrMap);
+    }
+
     /**
      * Disable this database 
      * (for example on memory restricted devices)
      */
-    public synchronized static void disable() {
-        initCalled.set(true);
-        initLatch.countDown();
+    public static void disable() {
+        TABLE.disable();
     }
     
     public static Map<String, PublicATR> getAll() {
-		awaitInit();
-	    return Collections.unmodifiableMap(atrMap);
+	    return TABLE.get().atrMap;
     }
     
     public static boolean awaitInit(){
-        if(!initCalled.get()){
-            throw new IllegalStateException("Not initalized. Call initialize() first");
-        }
-		try{
-			initLatch.await();
-			return true;
-		}catch(InterruptedException ex){
-			Thread.currentThread().interrupt();
-		}
-		return false;
+        return TABLE.awaitInit();
 	}
 
     public static class PublicATR{
@@ -148,24 +182,37 @@ public class ATR_DB {
             descriptiveText.add(text);
         }
 
+        public String getATR(){
+            return atr;
+        }
+
         public List<String> getDescriptiveText(){
             return Collections.unmodifiableList(descriptiveText);
         }
 
     }
 
+    /**
+     * @return the descriptive text of the most specific ATR pattern matching the ATR, or null
+     */
     public static List<String> searchATR(byte[] atr){
-        awaitInit();
-        String atrStr = Util.prettyPrintHexNoWrap(atr).toUpperCase();
-        for(String atrPatternStr : atrMap.keySet()){
-            if(atrStr.matches("^"+atrPatternStr+"$")){
-                PublicATR publicATR = atrMap.get(atrPatternStr);
-                if(publicATR != null){
-                    return publicATR.getDescriptiveText();
-                }
-            }
+        List<PublicATR> matches = searchATRs(atr);
+        if(matches.isEmpty()){
+            return null;
+        }
+        return matches.get(0).getDescriptiveText();
+    }
+
+    /**
+     * @return all ATR patterns matching the ATR, most specific (most fixed nibbles) first
+     */
+    public static List<PublicATR> searchATRs(byte[] atr){
+        if(atr == null){
+            throw new IllegalArgumentException("Param atr cannot be null");
         }
-        return null;
+        List<PublicATR> result = TABLE.get().matcher.match(atr);
+        ReferenceData.Table.ATR.recordLookup(!result.isEmpty());
+        return result;
     }
 
     public static void main(String[] args){
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.lookup;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import sasc.lookup.IIN_DB.IIN;
+
+/**
+ * Compact, column oriented store of the IINs, with longest-prefix lookup over the leading digits of a PAN.
+ *
+ * The IINs are grouped by number of digits, most specific (longest) group first; within a group the rows are
+ * sorted by IIN, stored as longs. The text columns (location, type, issuer name, phone number) are indexes
+ * into one pool of distinct strings. A lookup binary searches each group and does not allocate on a miss.
+ * The IIN object of a row is created on the first match and then reused, so repeated lookups of the same
+ * IIN do not allocate. Only rows that have been looked up hold an IIN object (iterating getAll() does not
+ * add any). Immutable once built, apart from the row cache.
+ *
+ * @author sasc
+ */
+final class IINStore {
+
+    /**
+     * IINs (and the PAN prefix used for lookup) are limited to 18 digits so they fit in a long
+     */
+    static final int MAX_DIGITS = 18;
+
+    private static final long[] POWERS_OF_TEN = new long[MAX_DIGITS + 1];
+
+    static {
+        long power = 1;
+        for (int i = 0; i <= MAX_DIGITS; i++) {
+            POWERS_OF_TEN[i] = power;
+            power *= 10;
+        }
+    }
+
+    //Number of digits of each group, most specific first, and the first row of each group (plus the end)
+    private final int[] lengths;
+    private final int[] groupStart;
+    private final long[] keys;
+    private final String[] pool;
+    private final int[] location;
+    private final int[] type;
+    private final int[] issuerName;
+    private final int[] phoneNumber;
+    //The IIN object of each row, created on the first match
+    private final AtomicReferenceArray<IIN> rowCache;
+    //IINs that are not all digits (or longer than MAX_DIGITS). They cannot match a PAN, but are kept for getAll()
+    private final Map<String, IIN> others;
+
+    private IINStore(int[] lengths, int[] groupStart, long[] keys, String[] pool, int[][] columns, Map<String, IIN> others) {
+        this.lengths = lengths;
+        this.groupStart = groupStart;
+        this.keys = keys;
+        this.pool = pool;
+        this.location = columns[0];
+        this.type = columns[1];
+        this.issuerName = columns[2];
+        this.phoneNumber = columns[3];
+        this.rowCache = new AtomicReferenceArray<IIN>(keys.length);
+        this.others = others;
+    }
+
+    /**
+     * @param records IIN, location, type, issuer name, phone number
+     * @throws RuntimeException if an IIN occurs more than once
+     */
+    static IINStore build(List<String[]> records) {
+        //Sort the numeric IINs by (length descending, value), keeping the record index
+        List<long[]> rows = new ArrayList<long[]>(records.size());
+        Map<String, IIN> others = new HashMap<String, IIN>();
+        for (int i = 0; i < records.size(); i++) {
+            String[] record = records.get(i);
+            String iin = record[0];
+            long value = iin.length() > MAX_DIGITS ? -1 : parseDigits(iin);
+            if (value < 0) {
+                if (others.put(iin, new IIN(iin, record[1], record[2], record[3], record[4])) != null) {
+                    throw new RuntimeException("IIN/BIN: Duplicate value \"" + iin + "\" found");
+                }
+                continue;
+            }
+            rows.add(new long[]{iin.length(), value, i});
+        }
+        Collections.sort(rows, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] r1, long[] r2) {
+                if (r1[0] != r2[0]) {
+                    return r1[0] > r2[0] ? -1 : 1;
+                }
+                return r1[1] < r2[1] ? -1 : (r1[1] == r2[1] ? 0 : 1);
+            }
+        });
+
+        Map<String, Integer> poolIndexes = new HashMap<String, Integer>();
+        List<String> pool = new ArrayList<String>();
+        long[] keys = new long[rows.size()];
+        int[][] columns = new int[4][rows.size()];
+        List<Integer> lengths = new ArrayList<Integer>();
+        List<Integer> groupStart = new ArrayList<Integer>();
+        for (int row = 0; row < rows.size(); row++) {
+            long[] sorted = rows.get(row);
+            int length = (int) sorted[0];
+            if (lengths.isEmpty() || lengths.get(lengths.size() - 1) != length) {
+                lengths.add(length);
+                groupStart.add(row);
+            } else if (keys[row - 1] == sorted[1]) {
+                throw new RuntimeException("IIN/BIN: Duplicate value \"" + records.get((int) sorted[2])[0] + "\" found");
+            }
+            keys[row] = sorted[1];
+            String[] record = records.get((int) sorted[2]);
+            for (int column = 0; column < 4; column++) {
+                String s = record[column + 1] != null ? record[column + 1] : "";
+                Integer index = poolIndexes.get(s);
+                if (index == null) {
+                    index = pool.size();
+                    pool.add(s);
+                    poolIndexes.put(s, index);
+                }
+                columns[column][row] = index;
+            }
+        }
+        groupStart.add(rows.size());
+        return new IINStore(toIntArray(lengths), toIntArray(groupStart), keys, pool.toArray(new String[pool.size()]), columns, others);
+    }
+
+    /**
+     * @return the number of IINs
+     */
+    int size() {
+        return keys.length + others.size();
+    }
+
+    /**
+     * @return the number of distinct strings in the text columns
+     */
+    int getPoolSize() {
+        return pool.length;
+    }
+
+    /**
+     * @param digits the leading digits of a PAN (or an IIN) as a number
+     * @param numDigits the number of digits in 'digits' (including leading zeros)
+     * @return the most specific IIN that is a prefix of the digits, or null
+     */
+    IIN search(long digits, int numDigits) {
+        if (numDigits <= 0 || numDigits > MAX_DIGITS || digits < 0) {
+            return null;
+        }
+        for (int i = 0; i < lengths.length; i++) {
+            int length = lengths[i];
+            if (length > numDigits) {
+                continue;
+            }
+            int row = Arrays.binarySearch(keys, groupStart[i], groupStart[i + 1], digits / POWERS_OF_TEN[numDigits - length]);
+            if (row >= 0) {
+                return getCachedRow(i, row);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param pan the PAN digits. Reading stops at the first non-digit (such as the 'F' padding of a 'cn' PAN or a track 2 separator)
+     * @return the most specific IIN that is a prefix of the PAN, or null
+     */
+    IIN search(CharSequence pan) {
+        long digits = 0;
+        int numDigits = 0;
+        int length = pan.length();
+        while (numDigits < length && numDigits < MAX_DIGITS) {
+            char c = pan.charAt(numDigits);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            digits = digits * 10 + (c - '0');
+            numDigits++;
+        }
+        return search(digits, numDigits);
+    }
+
+    /**
+     * @return the IIN with exactly this value, or null
+     */
+    IIN get(String iin) {
+        long value = iin.length() > MAX_DIGITS ? -1 : parseDigits(iin);
+        if (value < 0) {
+            return others.get(iin);
+        }
+        for (int i = 0; i < lengths.length; i++) {
+            if (lengths[i] == iin.length()) {
+                int row = Arrays.binarySearch(keys, groupStart[i], groupStart[i + 1], value);
+                return row >= 0 ? getCachedRow(i, row) : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return a read-only map view of the IINs, keyed by IIN. The IIN objects of rows that have not been
+     * looked up are created as the map is read, and are not cached
+     */
+    Map<String, IIN> asMap() {
+        return new AbstractMap<String, IIN>() {
+            @Override
+            public int size() {
+                return IINStore.this.size();
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return get(key) != null;
+            }
+
+            @Override
+            public IIN get(Object key) {
+                return key instanceof String ? IINStore.this.get((String) key) : null;
+            }
+
+            @Override
+            public Set<Map.Entry<String, IIN>> entrySet() {
+                return new AbstractSet<Map.Entry<String, IIN>>() {
+                    @Override
+                    public int size() {
+                        return IINStore.this.size();
+                    }
+
+                    @Override
+                    public Iterator<Map.Entry<String, IIN>> iterator() {
+                        return new EntryIterator();
+                    }
+                };
+            }
+        };
+    }
+
+    private IIN getCachedRow(int group, int row) {
+        IIN iin = rowCache.get(row);
+        if (iin == null) {
+            iin = createRow(group, row);
+            if (!rowCache.compareAndSet(row, null, iin)) {
+                iin = rowCache.get(row);
+            }
+        }
+        return iin;
+    }
+
+    private IIN getRow(int group, int row) {
+        IIN iin = rowCache.get(row);
+        return iin != null ? iin : createRow(group, row);
+    }
+
+    private IIN createRow(int group, int row) {
+        return new IIN(formatDigits(keys[row], lengths[group]), pool[location[row]], pool[type[row]], pool[issuerName[row]], pool[phoneNumber[row]]);
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<String, IIN>> {
+
+        private int group = 0;
+        private int row = 0;
+        private final Iterator<IIN> othersIterator = others.values().iterator();
+
+        @Override
+        public boolean hasNext() {
+            return row < keys.length || othersIterator.hasNext();
+        }
+
+        @Override
+        public Map.Entry<String, IIN> next() {
+            IIN iin;
+            if (row < keys.length) {
+                while (row >= groupStart[group + 1]) {
+                    group++;
+                }
+                iin = getRow(group, row++);
+            } else if (othersIterator.hasNext()) {
+                iin = othersIterator.next();
+            } else {
+                throw new NoSuchElementException();
+            }
+            return new AbstractMap.SimpleImmutableEntry<String, IIN>(iin.getIIN(), iin);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Not supported.");
+        }
+    }
+
+    /**
+     * @param i a non-negative int
+     * @return the number of decimal digits in i
+     */
+    static int digitCount(long i) {
+        int count = 1;
+        while (count < POWERS_OF_TEN.length && i >= POWERS_OF_TEN[count]) {
+            count++;
+        }
+        return count;
+    }
+
+    private static String formatDigits(long value, int length) {
+        char[] digits = new char[length];
+        for (int i = length - 1; i >= 0; i--) {
+            digits[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return new String(digits);
+    }
+
+    //Returns -1 if s is empty or not all digits
+    private static long parseDigits(CharSequence s) {
+        if (s.length() == 0) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static int[] toIntArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+}
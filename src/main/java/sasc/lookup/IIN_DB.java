@@ -24,9 +24,6 @@ import java.io.PrintWriter;
 import java.io.SequenceInputStream;
 import java.io.StringReader;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.atomic.AtomicBoolean;
 import sasc.util.Util;
 
 /**
@@ -38,123 +35,154 @@ import sasc.util.Util;
  */
 public class IIN_DB {
 
-    private static final CountDownLatch initLatch = new CountDownLatch(1);
-    private static final Map<String, IIN> iinMap = new ConcurrentHashMap<String, IIN>();
-    private static final AtomicBoolean initCalled = new AtomicBoolean(false);
+    static final String[] TEXT_RESOURCES = {"/iin_bin_list.txt"};
 
-	public synchronized static void initialize() {
-        if(initCalled.getAndSet(true)){
-            return;
-//            throw new IllegalStateException("initialize() already called");
-        }
-		new Thread(new Runnable(){
-				@Override
-				public void run() {
-
-                    InputStream is1 = null;
-                    BufferedReader br = null;
-
-                    try {
-                        is1 = Util.loadResource(IIN_DB.class, "/iin_bin_list.txt");
-                        br = new BufferedReader(new InputStreamReader(is1));
-
-                        String line;
-
-                        //Skip first line
-                        line = br.readLine();
-
-                        while ((line = br.readLine()) != null) {
-                            if (line.startsWith("#") || line.trim().length() == 0) {
-                                continue;
-                            } else {
-                                StringTokenizer st = new StringTokenizer(line, ";");
-
-                                String iinStr = null;
-                                String location = "";
-                                String type = "";
-                                String issuerName = "";
-                                String phoneNumber = "";
-
-                                iinStr = st.nextToken();
-                                if (st.hasMoreTokens()) {
-                                    location = st.nextToken();
-                                }
-                                if (st.hasMoreTokens()) {
-                                    type = st.nextToken();
-                                }
-                                if (st.hasMoreTokens()) {
-                                    issuerName = st.nextToken();
-                                }
-                                if (st.hasMoreTokens()) {
-                                    phoneNumber = st.nextToken();
-                                }
-
-                                if (iinMap.containsKey(iinStr)) {
-                                    throw new RuntimeException("IIN/BIN: Duplicate value \"" + iinStr + "\" found");
-                                }
-                                IIN iin = new IIN(iinStr, location, type, issuerName, phoneNumber);
-                                iinMap.put(iinStr, iin);
-                            }
-                        }
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    } finally {
-                        if (is1 != null) {
-                            try {
-                                is1.close();
-                            } catch (IOException ex) {
-                                //Ignore
-                            }
-                        }
-                        if (br != null) {
-                            try {
-                                br.close();
-                            } catch (IOException ex) {
-                                //Ignore
-                            }
-                        }
-						initLatch.countDown();
-					}
-				}
-			}).start();
+    static final LookupTable<IINStore> TABLE = new LookupTable<IINStore>(ReferenceData.Table.IIN,
+            LookupSnapshot.IIN_DB_SNAPSHOT, "/iin_bin_list.txt", TEXT_RESOURCES, IINStore.build(Collections.<String[]>emptyList()),
+            new LookupTable.Loader<IINStore>() {
+
+                @Override
+                public List<String[]> readTextRecords() throws IOException {
+                    return IIN_DB.readTextRecords();
+                }
+
+                @Override
+                public IINStore build(List<String[]> records) {
+                    return IINStore.build(records);
+                }
 
+                @Override
+                public int size(IINStore store) {
+                    return store.size();
+                }
+            });
+
+	public static void initialize() {
+        TABLE.initialize();
 	}
-    
+
+    /**
+     * Parses iin_bin_list.txt
+     *
+     * @return the records: IIN, location, type, issuer name, phone number
+     */
+    static List<String[]> readTextRecords() throws IOException {
+        InputStream is1 = null;
+        BufferedReader br = null;
+
+        try {
+            is1 = Util.loadResource(IIN_DB.class, TEXT_RESOURCES[0]);
+            br = new BufferedReader(new InputStreamReader(is1));
+            return readTextRecords(br);
+        } finally {
+            if (is1 != null) {
+                try {
+                    is1.close();
+                } catch (IOException ex) {
+                    //Ignore
+                }
+            }
+            if (br != null) {
+                try {
+                    br.close();
+                } catch (IOException ex) {
+                    //Ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses a list in the format of iin_bin_list.txt (the first line is a header)
+     */
+    static List<String[]> readTextRecords(BufferedReader br) throws IOException {
+        List<String[]> records = new ArrayList<String[]>();
+        String line;
+
+        //Skip first line
+        line = br.readLine();
+
+        while ((line = br.readLine()) != null) {
+            if (line.startsWith("#") || line.trim().length() == 0) {
+                continue;
+            } else {
+                StringTokenizer st = new StringTokenizer(line, ";");
+
+                String iinStr = null;
+                String location = "";
+                String type = "";
+                String issuerName = "";
+                String phoneNumber = "";
+
+                iinStr = st.nextToken();
+                if (st.hasMoreTokens()) {
+                    location = st.nextToken();
+                }
+                if (st.hasMoreTokens()) {
+                    type = st.nextToken();
+                }
+                if (st.hasMoreTokens()) {
+                    issuerName = st.nextToken();
+                }
+                if (st.hasMoreTokens()) {
+                    phoneNumber = st.nextToken();
+                }
+                records.add(new String[]{iinStr, location, type, issuerName, phoneNumber});
+            }
+        }
+        return records;
+    }
+
     /**
      * Disable this database 
      * (for example on memory restricted devices)
      */
-    public synchronized static void disable() {
-        initCalled.set(true);
-        initLatch.countDown();
+    public static void disable() {
+        TABLE.disable();
     }
     
+    /**
+     * @return a read-only view of all IINs. The IIN objects are created as they are read
+     */
     public static Map<String, IIN> getAll() {
-		awaitInit();
-	    return Collections.unmodifiableMap(iinMap);
+	    return TABLE.get().asMap();
     }
     
     public static boolean awaitInit(){
-        if(!initCalled.get()){
-            throw new IllegalStateException("Not initalized. Call initialize() first");
-        }
-		try{
-			initLatch.await();
-			return true;
-		}catch(InterruptedException ex){
-			Thread.currentThread().interrupt();
-		}
-		return false;
+        return TABLE.awaitInit();
 	}
 
+    /**
+     * @param iin the IIN digits. May be longer than the IINs in the database (such as an 8 digit IIN)
+     * @return the most specific IIN that is a prefix of (or equal to) the given IIN, or null
+     */
     public static IIN searchIIN(int iin) {
-        awaitInit();
-        return iinMap.get(String.valueOf(iin));
+        IINStore store = TABLE.get();
+        IIN result = iin < 0 ? null : store.search(iin, IINStore.digitCount(iin));
+        ReferenceData.Table.IIN.recordLookup(result != null);
+        return result;
+    }
+
+    /**
+     * Finds the issuer of a PAN by longest prefix match. The search does not allocate, apart from
+     * creating the IIN object of a row the first time it is matched.
+     *
+     * @param pan the PAN digits, optionally followed by padding ('F') or other data
+     * @return the most specific IIN that is a prefix of the PAN, or null
+     */
+    public static IIN searchPAN(CharSequence pan) {
+        if (pan == null) {
+            throw new IllegalArgumentException("Param pan cannot be null");
+        }
+        IIN result = TABLE.get().search(pan);
+        ReferenceData.Table.IIN.recordLookup(result != null);
+        return result;
     }
 
     public static void main(String[] args) throws Throwable {
         initialize();
         System.out.println(IIN_DB.searchIIN(492564));
+        System.out.println(IIN_DB.searchPAN("4925640000000000"));
 
     }
 
@@ -0,0 +1,416 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.lookup;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact, read-only binary snapshot of a lookup database: a list of records of strings.
+ *
+ * The snapshots are written at build time (see {@link #main(String[])}, run by the pom in the process-classes phase)
+ * from the text resources, so IIN_DB, RID_DB and ATR_DB do not have to parse text at startup.
+ * Equal strings are stored once.
+ *
+ * A snapshot records the length and SHA-1 of the text resources it was built from. When the text resources
+ * are on the classpath too, open(String, String...) checks them, and rejects a stale snapshot (one built
+ * before the text was edited), so the text is parsed instead.
+ *
+ * Limits:
+ * - Only a snapshot on the file system (such as target/classes) is memory-mapped. A snapshot inside a jar
+ *   (such as the webstart jar) is copied into a byte[] on the heap, for as long as it is being loaded.
+ * - The snapshot saves the text parsing, not heap: every load decodes all records into String[] rows,
+ *   which the databases copy into their own structures (see IINStore for the compact IIN representation).
+ *   The snapshot is then dropped.
+ * - There are snapshots of IIN_DB, RID_DB and ATR_DB only. KnownAIDList is parsed from aidlist.xml,
+ *   and CA has its own binary store (CAKeyStore).
+ *
+ * File format (big endian):
+ * <pre>
+ * Header      magic(4) version(2) reserved(2) created(8, ms since epoch) stringCount(4) recordCount(4) fieldCount(4) reserved(4)
+ *             sourceLength(8, -1 if not built from resources) sourceSHA1(20)
+ * Strings     stringCount x offset(4), relative to the string data
+ * Records     (recordCount + 1) x first field(4)
+ * Fields      fieldCount x string index(4), -1 means null
+ * String data length(2) UTF-8 bytes
+ * </pre>
+ *
+ * @author sasc
+ */
+public final class LookupSnapshot {
+
+    public static final int MAGIC = 0x534C4442; //SLDB
+    public static final short VERSION = 2;
+    static final int HEADER_SIZE = 60;
+    private static final int SHA1_LENGTH = 20;
+
+    static final String IIN_DB_SNAPSHOT = "/iin_db.snapshot";
+    static final String RID_DB_SNAPSHOT = "/rid_db.snapshot";
+    static final String ATR_DB_SNAPSHOT = "/atr_db.snapshot";
+
+    private final ByteBuffer buffer;
+    private final long created;
+    private final long sourceLength;
+    private final byte[] sourceSHA1 = new byte[SHA1_LENGTH];
+    private final int stringCount;
+    private final int recordCount;
+    private final int stringTableOffset;
+    private final int recordTableOffset;
+    private final int fieldTableOffset;
+    private final int stringDataOffset;
+    //Decoded strings, so equal fields share one String
+    private final String[] strings;
+
+    private LookupSnapshot(ByteBuffer buffer, String name) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a lookup snapshot: " + name);
+        }
+        if (buffer.getShort(4) != VERSION) {
+            throw new IOException("Unsupported lookup snapshot version " + buffer.getShort(4) + ": " + name);
+        }
+        created = buffer.getLong(8);
+        stringCount = buffer.getInt(16);
+        recordCount = buffer.getInt(20);
+        int fieldCount = buffer.getInt(24);
+        sourceLength = buffer.getLong(32);
+        ByteBuffer digest = buffer.duplicate();
+        digest.position(40);
+        digest.get(sourceSHA1);
+        stringTableOffset = HEADER_SIZE;
+        recordTableOffset = stringTableOffset + stringCount * 4;
+        fieldTableOffset = recordTableOffset + (recordCount + 1) * 4;
+        stringDataOffset = fieldTableOffset + fieldCount * 4;
+        if (stringCount < 0 || recordCount < 0 || fieldCount < 0 || stringDataOffset > buffer.capacity()) {
+            throw new IOException("Corrupt lookup snapshot header: " + name);
+        }
+        strings = new String[stringCount];
+    }
+
+    /**
+     * The length and SHA-1 of the concatenated text resources a snapshot is built from
+     */
+    private static final class Source {
+
+        final long length;
+        final byte[] sha1;
+
+        private Source(long length, byte[] sha1) {
+            this.length = length;
+            this.sha1 = sha1;
+        }
+
+        /**
+         * @return the source, or null if a resource is not on the classpath
+         */
+        static Source of(String... resources) throws IOException {
+            MessageDigest sha1;
+            try {
+                sha1 = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new RuntimeException(ex);
+            }
+            long length = 0;
+            byte[] buf = new byte[8192];
+            for (String resource : resources) {
+                InputStream in = LookupSnapshot.class.getResourceAsStream(resource);
+                if (in == null) {
+                    return null;
+                }
+                try {
+                    int n;
+                    while ((n = in.read(buf)) != -1) {
+                        sha1.update(buf, 0, n);
+                        length += n;
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            return new Source(length, sha1.digest());
+        }
+    }
+
+    /**
+     * Opens a snapshot from the classpath, and checks that it was built from the current text resources.
+     *
+     * @param sourceResources the text resources the snapshot was built from. The check is skipped if they are
+     * not on the classpath, or if the snapshot was not built from resources
+     * @return the snapshot, or null if there is no such resource
+     * @throws IOException if the snapshot cannot be read, or is stale (the text resources have changed)
+     */
+    static LookupSnapshot open(String resource, String... sourceResources) throws IOException {
+        LookupSnapshot snapshot = open(resource);
+        if (snapshot != null && !snapshot.isBuiltFrom(sourceResources)) {
+            throw new IOException("Stale lookup snapshot " + resource + ": the text resources have changed");
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return false if the snapshot was built from different content than the text resources have now.
+     * True if the snapshot was not built from resources, or if the resources are not on the classpath
+     */
+    boolean isBuiltFrom(String... sourceResources) throws IOException {
+        if (sourceLength == -1 || sourceResources.length == 0) {
+            return true;
+        }
+        Source source = Source.of(sourceResources);
+        return source == null || (source.length == sourceLength && Arrays.equals(source.sha1, sourceSHA1));
+    }
+
+    /**
+     * Opens a snapshot from the classpath. A snapshot that is not a file (such as one inside a jar)
+     * is read into memory, not mapped
+     *
+     * @return the snapshot, or null if there is no such resource
+     */
+    static LookupSnapshot open(String resource) throws IOException {
+        URL url = LookupSnapshot.class.getResource(resource);
+        if (url == null) {
+            return null;
+        }
+        if ("file".equals(url.getProtocol())) {
+            try {
+                return open(new File(url.toURI()));
+            } catch (URISyntaxException ex) {
+                //Fall back to reading the stream
+            }
+        }
+        InputStream in = url.openStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+            return new LookupSnapshot(ByteBuffer.wrap(out.toByteArray()), resource);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Maps a snapshot file (read-only)
+     */
+    static LookupSnapshot open(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Lookup snapshot too large: " + file);
+            }
+            return new LookupSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), file.getPath());
+        } finally {
+            in.close(); //The mapping stays valid
+        }
+    }
+
+    /**
+     * Reads a snapshot that is already in memory
+     */
+    static LookupSnapshot wrap(byte[] data, String name) throws IOException {
+        return new LookupSnapshot(ByteBuffer.wrap(data), name);
+    }
+
+    /**
+     * @return true if the snapshot resource is on the classpath
+     */
+    static boolean exists(String resource) {
+        return LookupSnapshot.class.getResource(resource) != null;
+    }
+
+    /**
+     * @return when the snapshot was built (ms since epoch)
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    String[] getRecord(int record) {
+        if (record < 0 || record >= recordCount) {
+            throw new IndexOutOfBoundsException("Record " + record + " of " + recordCount);
+        }
+        int first = buffer.getInt(recordTableOffset + record * 4);
+        int end = buffer.getInt(recordTableOffset + (record + 1) * 4);
+        String[] fields = new String[end - first];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = getString(buffer.getInt(fieldTableOffset + (first + i) * 4));
+        }
+        return fields;
+    }
+
+    List<String[]> getRecords() {
+        List<String[]> records = new ArrayList<String[]>(recordCount);
+        for (int i = 0; i < recordCount; i++) {
+            records.add(getRecord(i));
+        }
+        return records;
+    }
+
+    private String getString(int index) {
+        if (index == -1) {
+            return null;
+        }
+        String s = strings[index];
+        if (s == null) {
+            int offset = stringDataOffset + buffer.getInt(stringTableOffset + index * 4);
+            int length = buffer.getShort(offset) & 0xFFFF;
+            byte[] bytes = new byte[length];
+            ByteBuffer data = buffer.duplicate();
+            data.position(offset + 2);
+            data.get(bytes);
+            try {
+                s = new String(bytes, "UTF-8");
+            } catch (UnsupportedEncodingException ex) {
+                throw new RuntimeException(ex);
+            }
+            strings[index] = s;
+        }
+        return s;
+    }
+
+    /**
+     * Writes the records as a snapshot (to a temporary file that is renamed when complete)
+     *
+     * @param sourceResources the text resources the records were read from, or none
+     */
+    static void write(List<String[]> records, File file, String... sourceResources) throws IOException {
+        Source source = null;
+        if (sourceResources.length > 0) {
+            source = Source.of(sourceResources);
+            if (source == null) {
+                throw new IOException("Text resource not found: " + Arrays.toString(sourceResources));
+            }
+        }
+        Map<String, Integer> stringIndexes = new HashMap<String, Integer>();
+        ByteArrayOutputStream stringData = new ByteArrayOutputStream(64 * 1024);
+        DataOutputStream stringOut = new DataOutputStream(stringData);
+        List<Integer> stringOffsets = new ArrayList<Integer>();
+        int fieldCount = 0;
+        for (String[] record : records) {
+            fieldCount += record.length;
+        }
+        int[] fields = new int[fieldCount];
+        int[] recordStarts = new int[records.size() + 1];
+        int field = 0;
+        for (int i = 0; i < records.size(); i++) {
+            recordStarts[i] = field;
+            for (String s : records.get(i)) {
+                if (s == null) {
+                    fields[field++] = -1;
+                    continue;
+                }
+                Integer index = stringIndexes.get(s);
+                if (index == null) {
+                    byte[] bytes = s.getBytes("UTF-8");
+                    if (bytes.length > 0xFFFF) {
+                        throw new IOException("String too long for lookup snapshot: " + bytes.length + " bytes");
+                    }
+                    index = stringOffsets.size();
+                    stringOffsets.add(stringOut.size());
+                    stringOut.writeShort(bytes.length);
+                    stringOut.write(bytes);
+                    stringIndexes.put(s, index);
+                }
+                fields[field++] = index;
+            }
+        }
+        recordStarts[records.size()] = field;
+        stringOut.flush();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(0);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(stringOffsets.size());
+            out.writeInt(records.size());
+            out.writeInt(fieldCount);
+            out.writeInt(0); //Reserved
+            out.writeLong(source != null ? source.length : -1);
+            out.write(source != null ? source.sha1 : new byte[SHA1_LENGTH]);
+            for (int offset : stringOffsets) {
+                out.writeInt(offset);
+            }
+            for (int start : recordStarts) {
+                out.writeInt(start);
+            }
+            for (int index : fields) {
+                out.writeInt(index);
+            }
+            stringData.writeTo(out);
+        } finally {
+            out.close();
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not replace " + file);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not rename " + tmp + " to " + file);
+        }
+    }
+
+    /**
+     * Builds the snapshots of the lookup databases from the text resources
+     *
+     * @param args the output directory (such as target/classes)
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: LookupSnapshot <output directory>");
+            System.exit(-1);
+        }
+        File dir = new File(args[0]);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory " + dir);
+        }
+        writeSnapshot(IIN_DB.readTextRecords(), new File(dir, IIN_DB_SNAPSHOT.substring(1)), IIN_DB.TEXT_RESOURCES);
+        writeSnapshot(RID_DB.readTextRecords(), new File(dir, RID_DB_SNAPSHOT.substring(1)), RID_DB.TEXT_RESOURCES);
+        writeSnapshot(ATR_DB.readTextRecords(), new File(dir, ATR_DB_SNAPSHOT.substring(1)), ATR_DB.TEXT_RESOURCES);
+    }
+
+    private static void writeSnapshot(List<String[]> records, File file, String[] sourceResources) throws IOException {
+        write(records, file, sourceResources);
+        System.out.println("Wrote " + records.size() + " records to " + file + " (" + file.length() + " bytes)");
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.lookup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import sasc.util.Log;
+
+/**
+ * The loading of one lookup database (IIN_DB, RID_DB, ATR_DB).
+ *
+ * initialize() loads the bundled data: from the build time LookupSnapshot on first use if there is one,
+ * otherwise by parsing the text resources on a background thread. A snapshot that is stale (built before
+ * the text resources were changed) is not used; the text is parsed instead.
+ * install(List) replaces the data (see ReferenceData.reload). The data is immutable and is replaced as a whole,
+ * so lookups never block once the table has been initialized.
+ *
+ * @author sasc
+ */
+final class LookupTable<T> {
+
+    /**
+     * Builds the immutable data of a table from its records
+     */
+    interface Loader<T> {
+
+        /**
+         * @return the records of the bundled text resources
+         */
+        List<String[]> readTextRecords() throws IOException;
+
+        /**
+         * @throws RuntimeException if the records are invalid
+         */
+        T build(List<String[]> records);
+
+        int size(T data);
+    }
+
+    private final ReferenceData.Table table;
+    private final String snapshotResource;
+    private final String textSource;
+    private final String[] textResources;
+    private final Loader<T> loader;
+    private final CountDownLatch initLatch = new CountDownLatch(1);
+    private final AtomicBoolean initCalled = new AtomicBoolean(false);
+    private volatile T data;
+    //Set when initialize() finds a snapshot; the snapshot is then loaded on first use
+    private volatile boolean snapshotPending = false;
+    //Set when ReferenceData has installed data, which the initial load must not replace. Guarded by 'this'
+    private boolean installed = false;
+
+    /**
+     * @param textSource describes the text resources (the source of the Version)
+     * @param textResources the text resources, to check that the snapshot is up to date
+     */
+    LookupTable(ReferenceData.Table table, String snapshotResource, String textSource, String[] textResources, T empty, Loader<T> loader) {
+        this.table = table;
+        this.snapshotResource = snapshotResource;
+        this.textSource = textSource;
+        this.textResources = textResources;
+        this.data = empty;
+        this.loader = loader;
+    }
+
+    synchronized void initialize() {
+        if (initCalled.getAndSet(true)) {
+            return;
+        }
+        if (LookupSnapshot.exists(snapshotResource)) {
+            snapshotPending = true;
+            initLatch.countDown();
+            return;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    load(loader.readTextRecords(), textSource);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    initLatch.countDown();
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Disable the table, leaving it empty (for example on memory restricted devices)
+     */
+    void disable() {
+        initCalled.set(true);
+        initLatch.countDown();
+    }
+
+    boolean awaitInit() {
+        if (!initCalled.get()) {
+            throw new IllegalStateException("Not initalized. Call initialize() first");
+        }
+        try {
+            initLatch.await();
+            loadSnapshotIfPending();
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * @return the current data, after waiting for initialization
+     */
+    T get() {
+        awaitInit();
+        return data;
+    }
+
+    /**
+     * Replaces the data. The new data is built (and validated) before it is swapped in,
+     * so lookups are never blocked and see either the old or the new data.
+     *
+     * @return the number of entries
+     * @throws RuntimeException if the records are invalid. The current data is kept
+     */
+    int install(List<String[]> records) {
+        T newData = loader.build(records);
+        synchronized (this) {
+            data = newData;
+            installed = true;
+            snapshotPending = false;
+            initCalled.set(true);
+            initLatch.countDown();
+        }
+        return loader.size(newData);
+    }
+
+    //Initial load, unless data has already been installed by ReferenceData
+    private void load(List<String[]> records, String source) {
+        T newData = loader.build(records);
+        synchronized (this) {
+            if (!installed) {
+                data = newData;
+                ReferenceData.installed(table, source, null, loader.size(newData));
+            }
+        }
+    }
+
+    private void loadSnapshotIfPending() {
+        if (!snapshotPending) {
+            return;
+        }
+        synchronized (this) {
+            if (!snapshotPending) {
+                return;
+            }
+            try {
+                load(LookupSnapshot.open(snapshotResource, textResources).getRecords(), snapshotResource);
+            } catch (IOException ex) {
+                Log.debug("Could not load " + snapshotResource + ", parsing text: " + ex);
+                try {
+                    load(loader.readTextRecords(), textSource);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            } finally {
+                snapshotPending = false;
+            }
+        }
+    }
+}
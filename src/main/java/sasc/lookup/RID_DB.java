@@ -21,9 +21,6 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.SequenceInputStream;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.atomic.AtomicBoolean;
 import sasc.iso7816.RID;
 import sasc.util.Util;
 
@@ -34,120 +31,139 @@ import sasc.util.Util;
  */
 public class RID_DB {
 
-    private static final CountDownLatch initLatch = new CountDownLatch(1);
-    private static final Map<String, RID> ridMap = new ConcurrentHashMap<String, RID>();
-    private static final AtomicBoolean initCalled = new AtomicBoolean(false);
+    static final String[] TEXT_RESOURCES = {"/rid_list_rmg.txt", "/rid_list_other.txt", "/rid_list_country.txt"};
 
-	public synchronized static void initialize() {
-        if(initCalled.getAndSet(true)){
-            return;
-//            throw new IllegalStateException("initialize() already called");
-        }
-		new Thread(new Runnable(){
-				@Override
-				public void run() {
+    static final LookupTable<Map<String, RID>> TABLE = new LookupTable<Map<String, RID>>(ReferenceData.Table.RID,
+            LookupSnapshot.RID_DB_SNAPSHOT, "/rid_list_*.txt", TEXT_RESOURCES, Collections.<String, RID>emptyMap(),
+            new LookupTable.Loader<Map<String, RID>>() {
 
-                    InputStream is1 = null;
-                    InputStream is2 = null;
-                    InputStream is3 = null;
-                    BufferedReader br = null;
+                @Override
+                public List<String[]> readTextRecords() throws IOException {
+                    return RID_DB.readTextRecords();
+                }
 
-                    try {
-                        is1 = Util.loadResource(RID_DB.class, "/rid_list_rmg.txt");
-                        is2 = Util.loadResource(RID_DB.class, "/rid_list_other.txt");
-                        is3 = Util.loadResource(RID_DB.class, "/rid_list_country.txt");
-                        ArrayList<InputStream> a = new ArrayList<InputStream>();
-                        a.add(is1);
-                        a.add(is2);
-                        a.add(is3);
-                        br = new BufferedReader(new InputStreamReader(new SequenceInputStream(Collections.enumeration(a)), "UTF-8"));
+                @Override
+                public Map<String, RID> build(List<String[]> records) {
+                    return RID_DB.build(records);
+                }
 
-                        String line;
-                        while ((line = br.readLine()) != null) {
-                            if (line.startsWith("#") || line.trim().length() == 0) {
-                                continue;
-                            } else {
-                                StringTokenizer st = new StringTokenizer(line, ";");
-                                if (st.countTokens() != 3) {
-                                    throw new RuntimeException("RID lists should contain three values pr line separated by \";\" . "+line);
-                                }
-                                String ridStr = st.nextToken().trim();
-                                String applicant = st.nextToken().trim();
-                                String country = st.nextToken().trim();
-                                if (ridMap.containsKey(ridStr)) { //Should not happen
-                                    throw new RuntimeException("RID: Duplicate value \"" + ridStr + "\" found");
-                                }
-                                RID rid = new RID(ridStr, applicant, country);
-                                ridMap.put(ridStr, rid);
-                            }
-                        }
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    } finally {
-                        if (is1 != null) {
-                            try {
-                                is1.close();
-                            } catch (IOException ex) {
-                                //Ignore
-                            }
-                        }
-                        if (is2 != null) {
-                            try {
-                                is2.close();
-                            } catch (IOException ex) {
-                                //Ignore
-                            }
-                        }
-                        if (is3 != null) {
-                            try {
-                                is3.close();
-                            } catch (IOException ex) {
-                                //Ignore
-                            }
-                        }
-                        if (br != null) {
-                            try {
-                                br.close();
-                            } catch (IOException ex) {
-                                //Ignore
-                            }
-                        }
-                        initLatch.countDown();
-					}
-				}
-			}).start();
+                @Override
+                public int size(Map<String, RID> ridMap) {
+                    return ridMap.size();
+                }
+            });
 
+	public static void initialize() {
+        TABLE.initialize();
 	}
-    
+
+    /**
+     * Parses the RID lists
+     *
+     * @return the records: RID, applicant, country
+     */
+    static List<String[]> readTextRecords() throws IOException {
+        InputStream is1 = null;
+        InputStream is2 = null;
+        InputStream is3 = null;
+        BufferedReader br = null;
+
+        try {
+            is1 = Util.loadResource(RID_DB.class, TEXT_RESOURCES[0]);
+            is2 = Util.loadResource(RID_DB.class, TEXT_RESOURCES[1]);
+            is3 = Util.loadResource(RID_DB.class, TEXT_RESOURCES[2]);
+            ArrayList<InputStream> a = new ArrayList<InputStream>();
+            a.add(is1);
+            a.add(is2);
+            a.add(is3);
+            br = new BufferedReader(new InputStreamReader(new SequenceInputStream(Collections.enumeration(a)), "UTF-8"));
+            return readTextRecords(br);
+        } finally {
+            if (is1 != null) {
+                try {
+                    is1.close();
+                } catch (IOException ex) {
+                    //Ignore
+                }
+            }
+            if (is2 != null) {
+                try {
+                    is2.close();
+                } catch (IOException ex) {
+                    //Ignore
+                }
+            }
+            if (is3 != null) {
+                try {
+                    is3.close();
+                } catch (IOException ex) {
+                    //Ignore
+                }
+            }
+            if (br != null) {
+                try {
+                    br.close();
+                } catch (IOException ex) {
+                    //Ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses a list in the format of the RID lists
+     */
+    static List<String[]> readTextRecords(BufferedReader br) throws IOException {
+        List<String[]> records = new ArrayList<String[]>();
+        String line;
+        while ((line = br.readLine()) != null) {
+            if (line.startsWith("#") || line.trim().length() == 0) {
+                continue;
+            } else {
+                StringTokenizer st = new StringTokenizer(line, ";");
+                if (st.countTokens() != 3) {
+                    throw new RuntimeException("RID lists should contain three values pr line separated by \";\" . "+line);
+                }
+                String ridStr = st.nextToken().trim();
+                String applicant = st.nextToken().trim();
+                String country = st.nextToken().trim();
+                records.add(new String[]{ridStr, applicant, country});
+            }
+        }
+        return records;
+    }
+
+    private static Map<String, RID> build(List<String[]> records) {
+        Map<String, RID> map = new HashMap<String, RID>(records.size() * 2);
+        for (String[] record : records) {
+            String ridStr = record[0];
+            if (map.containsKey(ridStr)) { //Should not happen
+                throw new RuntimeException("RID: Duplicate value \"" + ridStr + "\" found");
+            }
+            map.put(ridStr, new RID(ridStr, record[1], record[2]));
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
     /**
      * Disable this database 
      * (for example on memory restricted devices)
      */
-    public synchronized static void disable() {
-        initCalled.set(true);
-        initLatch.countDown();
+    public static void disable() {
+        TABLE.disable();
     }
 
     public static Map<String, RID> getAll() {
-		awaitInit();
-	    return Collections.unmodifiableMap(ridMap);
+	    return TABLE.get();
     }
     
     public static boolean awaitInit(){
-        if(!initCalled.get()){
-            throw new IllegalStateException("Not initalized. Call initialize() first");
-        }
-		try{
-			initLatch.await();
-			return true;
-		}catch(InterruptedException ex){
-			Thread.currentThread().interrupt();
-		}
-		return false;
+        return TABLE.awaitInit();
 	}
     public static RID searchRID(byte[] rid) {
-        awaitInit();
-        return ridMap.get(Util.byteArrayToHexString(rid).toUpperCase());
+        RID result = TABLE.get().get(Util.byteArrayToHexString(rid).toUpperCase());
+        ReferenceData.Table.RID.recordLookup(result != null);
+        return result;
     }
 
     public static void main(String[] args) {
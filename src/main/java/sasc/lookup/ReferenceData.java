@@ -0,0 +1,317 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.lookup;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import sasc.util.Util;
+
+/**
+ * Hot reload of the lookup tables (IIN_DB, RID_DB, ATR_DB and KnownAIDList) from external files.
+ * Tables kept outside this package (the AID table of sasc.terminal.KnownAIDList) register a Reloader
+ * when they are loaded.
+ *
+ * A new version is parsed and validated completely before it replaces the old one
+ * with a single volatile write, so lookups never block and always see one
+ * consistent version. If the new file is invalid, the current version stays in use.
+ *
+ * A file is read either as a lookup snapshot (see LookupSnapshot) or in the format
+ * of the bundled text list (iin_bin_list.txt, rid_list_*.txt, smartcard_list.txt, aidlist.xml).
+ *
+ * @author sasc
+ */
+public final class ReferenceData {
+
+    public static enum Table {
+
+        IIN, RID, ATR, AID;
+
+        private final AtomicLong lookups = new AtomicLong();
+        private final AtomicLong hits = new AtomicLong();
+
+        public void recordLookup(boolean hit) {
+            lookups.incrementAndGet();
+            if (hit) {
+                hits.incrementAndGet();
+            }
+        }
+
+        public long getLookupCount() {
+            return lookups.get();
+        }
+
+        public long getHitCount() {
+            return hits.get();
+        }
+    }
+
+    /**
+     * Parses and installs a new version of a table that is kept outside this package
+     */
+    public interface Reloader {
+
+        /**
+         * @return the number of records installed
+         * @throws IOException if the data is not valid; the current version must then be kept
+         */
+        int reload(Reader reader) throws IOException;
+    }
+
+    /**
+     * Describes the version of a table currently in use
+     */
+    public static final class Version {
+
+        private final Table table;
+        private final String source;
+        private final String checksum;
+        private final int recordCount;
+        private final long loadedAt;
+        private final long generation;
+
+        Version(Table table, String source, String checksum, int recordCount, long loadedAt, long generation) {
+            this.table = table;
+            this.source = source;
+            this.checksum = checksum;
+            this.recordCount = recordCount;
+            this.loadedAt = loadedAt;
+            this.generation = generation;
+        }
+
+        public Table getTable() {
+            return table;
+        }
+
+        /**
+         * @return the file or classpath resource the table was loaded from
+         */
+        public String getSource() {
+            return source;
+        }
+
+        /**
+         * @return SHA-1 of the loaded file (hex), or null for the bundled data
+         */
+        public String getChecksum() {
+            return checksum;
+        }
+
+        public int getRecordCount() {
+            return recordCount;
+        }
+
+        /**
+         * @return when the table was installed (ms since epoch)
+         */
+        public long getLoadedAt() {
+            return loadedAt;
+        }
+
+        /**
+         * @return increases with every table installed, across all tables
+         */
+        public long getGeneration() {
+            return generation;
+        }
+
+        @Override
+        public String toString() {
+            return table + " " + recordCount + " records from " + source
+                    + (checksum != null ? " (SHA-1 " + checksum + ")" : "")
+                    + " loaded " + new Date(loadedAt) + " generation " + generation;
+        }
+    }
+
+    private static final AtomicReferenceArray<Version> versions = new AtomicReferenceArray<Version>(Table.values().length);
+    private static final AtomicReferenceArray<Reloader> reloaders = new AtomicReferenceArray<Reloader>(Table.values().length);
+    private static final AtomicLong generation = new AtomicLong();
+    private static final ExecutorService loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "sasc-reference-data-loader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private ReferenceData() {
+    }
+
+    static void installed(Table table, String source, String checksum, int recordCount) {
+        versions.set(table.ordinal(), new Version(table, source, checksum, recordCount, System.currentTimeMillis(), generation.incrementAndGet()));
+    }
+
+    /**
+     * Registers the Reloader of a table kept outside this package, and the version it has loaded
+     *
+     * @param source the file or classpath resource the table was loaded from
+     */
+    public static void register(Table table, String source, int recordCount, Reloader reloader) {
+        if (table == null || reloader == null) {
+            throw new IllegalArgumentException("Params table and reloader cannot be null");
+        }
+        if (table != Table.AID) {
+            throw new IllegalArgumentException("The " + table + " table is loaded by this package");
+        }
+        reloaders.set(table.ordinal(), reloader);
+        installed(table, source, null, recordCount);
+    }
+
+    /**
+     * @return the version in use, or null if the table has not been loaded yet
+     */
+    public static Version getVersion(Table table) {
+        if (table == null) {
+            throw new IllegalArgumentException("Param table cannot be null");
+        }
+        return versions.get(table.ordinal());
+    }
+
+    /**
+     * Loads, validates and installs a new version of the table.
+     * Lookups continue against the old version until the new one is installed.
+     *
+     * @return the installed version
+     * @throws IOException if the file cannot be read or is not a valid table; the old version is kept
+     * @throws IllegalStateException if the table is kept outside this package and has not registered its Reloader yet
+     */
+    public static synchronized Version reload(Table table, File file) throws IOException {
+        if (table == null) {
+            throw new IllegalArgumentException("Param table cannot be null");
+        }
+        if (file == null) {
+            throw new IllegalArgumentException("Param file cannot be null");
+        }
+        Reloader reloader = reloaders.get(table.ordinal());
+        if (table == Table.AID && reloader == null) {
+            throw new IllegalStateException("The " + table + " table has not been loaded");
+        }
+        byte[] data = readFile(file);
+        String checksum = sha1(data);
+        int count;
+        try {
+            if (reloader != null) {
+                count = reloader.reload(new InputStreamReader(new ByteArrayInputStream(data), "UTF-8"));
+            } else {
+                List<String[]> records = readRecords(table, data, file.getPath());
+                if (records.isEmpty()) {
+                    throw new IOException("No records in " + file);
+                }
+                count = lookupTable(table).install(records);
+            }
+        } catch (RuntimeException ex) {
+            throw new IOException("Invalid " + table + " data in " + file + ": " + ex.getMessage(), ex);
+        }
+        installed(table, file.getPath(), checksum, count);
+        return versions.get(table.ordinal());
+    }
+
+    /**
+     * Like reload(Table, File), but runs on a background thread.
+     * Reloads are performed one at a time, in the order they were submitted.
+     */
+    public static Future<Version> reloadInBackground(final Table table, final File file) {
+        if (table == null) {
+            throw new IllegalArgumentException("Param table cannot be null");
+        }
+        if (file == null) {
+            throw new IllegalArgumentException("Param file cannot be null");
+        }
+        return loader.submit(new Callable<Version>() {
+
+            @Override
+            public Version call() throws IOException {
+                return reload(table, file);
+            }
+        });
+    }
+
+    private static LookupTable<?> lookupTable(Table table) {
+        switch (table) {
+            case IIN:
+                return IIN_DB.TABLE;
+            case RID:
+                return RID_DB.TABLE;
+            default:
+                return ATR_DB.TABLE;
+        }
+    }
+
+    private static List<String[]> readRecords(Table table, byte[] data, String name) throws IOException {
+        if (data.length >= 4 && ByteBuffer.wrap(data).getInt(0) == LookupSnapshot.MAGIC) {
+            return LookupSnapshot.wrap(data, name).getRecords();
+        }
+        Reader reader = new InputStreamReader(new ByteArrayInputStream(data), "UTF-8");
+        BufferedReader br = new BufferedReader(reader);
+        switch (table) {
+            case IIN:
+                return IIN_DB.readTextRecords(br);
+            case RID:
+                return RID_DB.readTextRecords(br);
+            default:
+                return ATR_DB.readTextRecords(br);
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        long length = file.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("File too large: " + file);
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) length];
+            int offset = 0;
+            int n;
+            while (offset < data.length && (n = in.read(data, offset, data.length - offset)) != -1) {
+                offset += n;
+            }
+            if (offset != data.length) {
+                throw new IOException("Unexpected end of file: " + file);
+            }
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String sha1(byte[] data) {
+        try {
+            return Util.byteArrayToHexString(MessageDigest.getInstance("SHA-1").digest(data));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
@@ -165,7 +165,9 @@ public class CardScanner {
                 }
             } catch(TLVException ex) {
                 Log.info(ex.getMessage());
-                Log.debug(Util.getStackTrace(ex));
+                if (Log.isDebugEnabled()) {
+                    Log.debug(Util.getStackTrace(ex));
+                }
             }
         }
         
@@ -666,7 +668,9 @@ public class CardScanner {
                         }
                     } catch (SmartCardException parseEx) {
                         //The application is not a valid EMV app
-                        Log.debug(Util.getStackTrace(parseEx));
+                        if (Log.isDebugEnabled()) {
+                            Log.debug(Util.getStackTrace(parseEx));
+                        }
                         Log.info("Unable to parse FCI ADF for AID=" + terminalAIDCandidate.getAID() + ". Skipping");
                     }
 
@@ -684,7 +688,9 @@ public class CardScanner {
                             break;
                         }
                         
-                        Log.debug("Select next occurrence SW: " + Util.short2Hex(selectAppResponse.getSW()) + " (Stop if SW=" + Util.short2Hex(SW.FILE_OR_APPLICATION_NOT_FOUND.getSW())+")");
+                        if (Log.isDebugEnabled()) {
+                            Log.debug("Select next occurrence SW: " + Util.short2Hex(selectAppResponse.getSW()) + " (Stop if SW=" + Util.short2Hex(SW.FILE_OR_APPLICATION_NOT_FOUND.getSW())+")");
+                        }
                         if (selectAppResponse.getSW() == SW.FUNCTION_NOT_SUPPORTED.getSW()) { //6a81
                             Log.info("'SELECT File using DF name = AID' not supported");
                         } else if (selectAppResponse.getSW() == SW.SELECTED_FILE_INVALIDATED.getSW()) {
@@ -706,7 +712,9 @@ public class CardScanner {
                                 }
                             } catch (SmartCardException parseEx) {
                                 //The application is not a valid EMV app
-                                Log.debug(Util.getStackTrace(parseEx));
+                                if (Log.isDebugEnabled()) {
+                                    Log.debug(Util.getStackTrace(parseEx));
+                                }
                                 Log.info("Unable to parse FCI ADF for AID=" + terminalAIDCandidate.getAID() + ". Skipping");
                             }
                         }
@@ -725,7 +733,9 @@ public class CardScanner {
                         }
                     } catch (SmartCardException parseEx) {
                         //The application is not a valid EMV app
-                        Log.debug(Util.getStackTrace(parseEx));
+                        if (Log.isDebugEnabled()) {
+                            Log.debug(Util.getStackTrace(parseEx));
+                        }
                         Log.info("Unable to parse FCI ADF for AID=" + terminalAIDCandidate.getAID() + ". Skipping");
                     }
                 }
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.smartcard.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import sasc.lookup.ATRPatternMatcher;
+import sasc.util.ByteArrayWrapper;
+import sasc.util.Util;
+
+/**
+ * Immutable index of handlers by ATR/AID pattern (hex bytes separated by spaces, matched as regular expressions).
+ *
+ * Patterns without wildcards are looked up in a hash map. Patterns using '.', '.*' and character classes
+ * are compiled into an ATRPatternMatcher, so prefix patterns like "3B 24 .*" share one trie walk.
+ * Any other regular expression is precompiled with java.util.regex.
+ * Matching handlers are returned in the order they were registered. Patterns that differ only in case
+ * (such as "3b 24" and "3B 24") are distinct registrations, and both handlers are returned.
+ *
+ * @author sasc
+ */
+final class HandlerIndex<H> {
+
+    private static final Pattern HEX_BYTES = Pattern.compile("[0-9A-Fa-f]{2}( [0-9A-Fa-f]{2})*");
+
+    private final List<H> handlers;
+    private final Map<ByteArrayWrapper, int[]> exact;
+    private final ATRPatternMatcher<int[]> wildcards;
+    private final Pattern[] regexPatterns;
+    private final int[] regexHandlers;
+
+    /**
+     * @param patterns the patterns and their handlers, in registration order
+     */
+    HandlerIndex(LinkedHashMap<String, H> patterns) {
+        handlers = new ArrayList<H>(patterns.values());
+        exact = new HashMap<ByteArrayWrapper, int[]>();
+        Map<String, int[]> wildcardPatterns = new LinkedHashMap<String, int[]>();
+        List<Pattern> regexList = new ArrayList<Pattern>();
+        List<Integer> regexHandlerList = new ArrayList<Integer>();
+        int i = 0;
+        for (String pattern : patterns.keySet()) {
+            String normalized = pattern.trim().toUpperCase();
+            if (HEX_BYTES.matcher(normalized).matches()) {
+                add(exact, ByteArrayWrapper.wrapperAround(Util.fromHexString(normalized)), i);
+            } else if (ATRPatternMatcher.isSupported(normalized)) {
+                add(wildcardPatterns, normalized, i);
+            } else {
+                regexList.add(Pattern.compile(pattern.trim()));
+                regexHandlerList.add(i);
+            }
+            i++;
+        }
+        wildcards = ATRPatternMatcher.compile(wildcardPatterns);
+        regexPatterns = regexList.toArray(new Pattern[regexList.size()]);
+        regexHandlers = new int[regexHandlerList.size()];
+        for (int j = 0; j < regexHandlers.length; j++) {
+            regexHandlers[j] = regexHandlerList.get(j);
+        }
+    }
+
+    /**
+     * Adds the handler ordinal to those of the normalized pattern
+     */
+    private static <K> void add(Map<K, int[]> ordinalsByPattern, K key, int ordinal) {
+        int[] ordinals = ordinalsByPattern.get(key);
+        if (ordinals == null) {
+            ordinals = new int[]{ordinal};
+        } else {
+            ordinals = Arrays.copyOf(ordinals, ordinals.length + 1);
+            ordinals[ordinals.length - 1] = ordinal;
+        }
+        ordinalsByPattern.put(key, ordinals);
+    }
+
+    int size() {
+        return handlers.size();
+    }
+
+    List<H> getHandlers(byte[] bytes) {
+        int[] exactMatch = exact.get(ByteArrayWrapper.wrapperAround(bytes));
+        List<int[]> matches = wildcards.size() > 0 ? wildcards.match(bytes) : Collections.<int[]>emptyList();
+        if (regexPatterns.length == 0 && matches.isEmpty()) {
+            if (exactMatch == null) {
+                return new ArrayList<H>(0);
+            }
+            if (exactMatch.length == 1) {
+                return new ArrayList<H>(Collections.singletonList(handlers.get(exactMatch[0])));
+            }
+        }
+        int capacity = regexPatterns.length + (exactMatch != null ? exactMatch.length : 0);
+        for (int[] match : matches) {
+            capacity += match.length;
+        }
+        int[] ordinals = new int[capacity];
+        int count = 0;
+        if (exactMatch != null) {
+            for (int ordinal : exactMatch) {
+                ordinals[count++] = ordinal;
+            }
+        }
+        for (int[] match : matches) {
+            for (int ordinal : match) {
+                ordinals[count++] = ordinal;
+            }
+        }
+        if (regexPatterns.length > 0) {
+            String hex = Util.prettyPrintHexNoWrap(bytes).toUpperCase();
+            for (int j = 0; j < regexPatterns.length; j++) {
+                if (regexPatterns[j].matcher(hex).matches()) {
+                    ordinals[count++] = regexHandlers[j];
+                }
+            }
+        }
+        Arrays.sort(ordinals, 0, count);
+        List<H> result = new ArrayList<H>(count);
+        for (int j = 0; j < count; j++) {
+            result.add(handlers.get(ordinals[j]));
+        }
+        return result;
+    }
+}
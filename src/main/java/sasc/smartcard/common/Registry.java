@@ -15,11 +15,8 @@
  */
 package sasc.smartcard.common;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
 import sasc.iso7816.AID;
 import sasc.util.Util;
 
@@ -30,34 +27,40 @@ import sasc.util.Util;
  * -If ATR: then processing stops for this card
  * -If AID: then processing stops for this AID
  * 
- * ATR and AID patterns are matched using Regular Expressions
+ * ATR and AID patterns are matched using Regular Expressions.
+ * Patterns are compiled when registered; lookups read an immutable index without locking.
  * 
  * @author sasc
  */
 public class Registry {
     private static final Registry INSTANCE = new Registry();
     
-    private Map<String, AtrHandler> atrHandlers = Collections.synchronizedMap(new LinkedHashMap<String, AtrHandler>());
-    private Map<String, ApplicationHandler> aidHandlers = Collections.synchronizedMap(new LinkedHashMap<String, ApplicationHandler>());
-//    private Map<AID, ApplicationHandler> aidHandlers = Collections.synchronizedMap(new LinkedHashMap<AID, ApplicationHandler>());
+    //Registrations, guarded by 'this'. Each change publishes a new index
+    private final LinkedHashMap<String, AtrHandler> atrHandlers = new LinkedHashMap<String, AtrHandler>();
+    private final LinkedHashMap<String, ApplicationHandler> aidHandlers = new LinkedHashMap<String, ApplicationHandler>();
+    private volatile HandlerIndex<AtrHandler> atrIndex = new HandlerIndex<AtrHandler>(atrHandlers);
+    private volatile HandlerIndex<ApplicationHandler> aidIndex = new HandlerIndex<ApplicationHandler>(aidHandlers);
     
     public static Registry getInstance() {
         return INSTANCE;
     }
     
-    public void registerAtrHandler(AtrHandler atrHandler, String atrPattern) {
+    public synchronized void registerAtrHandler(AtrHandler atrHandler, String atrPattern) {
         atrHandlers.put(atrPattern, atrHandler);
+        atrIndex = new HandlerIndex<AtrHandler>(atrHandlers);
     }
     
-    public void registerAtrHandler(AtrHandler atrHandler, List<String> atrPatterns) {
+    public synchronized void registerAtrHandler(AtrHandler atrHandler, List<String> atrPatterns) {
         for(String pattern : atrPatterns) {
             atrHandlers.put(pattern, atrHandler);
         }
+        atrIndex = new HandlerIndex<AtrHandler>(atrHandlers);
     }
     
-    public void registerAidHandler(ApplicationHandler aidHandler, String aidPattern) {
+    public synchronized void registerAidHandler(ApplicationHandler aidHandler, String aidPattern) {
         byte[] aidPatternBytes = Util.fromHexString(aidPattern); //Sanitize
         aidHandlers.put(Util.prettyPrintHexNoWrap(aidPatternBytes).toUpperCase(), aidHandler);
+        aidIndex = new HandlerIndex<ApplicationHandler>(aidHandlers);
     }
     
     public void registerAidHandler(ApplicationHandler aidHandler, AID aid) {
@@ -69,30 +72,10 @@ public class Registry {
     }
 
     public List<ApplicationHandler> getHandlersForAid(byte[] aid) {
-        List<ApplicationHandler> handlers = new ArrayList<ApplicationHandler>();
-        String aidStr = Util.prettyPrintHexNoWrap(aid).toUpperCase();
-        for(String aidPatternStr : aidHandlers.keySet()) {
-            if(aidStr.matches("^"+aidPatternStr+"$")){
-                ApplicationHandler handler = aidHandlers.get(aidPatternStr);
-                if(handler != null){
-                    handlers.add(handler);
-                }
-            }
-        }
-        return handlers;
+        return aidIndex.getHandlers(aid);
     }
     
     public List<AtrHandler> getHandlersForAtr(byte[] atr) {
-        List<AtrHandler> handlers = new ArrayList<AtrHandler>();
-        String atrStr = Util.prettyPrintHexNoWrap(atr).toUpperCase();
-        for(String atrPatternStr : atrHandlers.keySet()){
-            if(atrStr.matches("^"+atrPatternStr+"$")){
-                AtrHandler handler = atrHandlers.get(atrPatternStr);
-                if(handler != null){
-                    handlers.add(handler);
-                }
-            }
-        }
-        return handlers;
+        return atrIndex.getHandlers(atr);
     }
 }
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.terminal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Iterates the frames of a trace file written by ApduTraceWriter.
+ * The file is mapped read-only in large windows and a single Frame instance is
+ * reused for all frames, so iterating does not allocate per frame.
+ *
+ * <pre>
+ * ApduTraceReader reader = new ApduTraceReader(file);
+ * while (reader.next()) {
+ *     ApduTraceReader.Frame frame = reader.getFrame();
+ *     ...
+ * }
+ * </pre>
+ *
+ * @author sasc
+ */
+public final class ApduTraceReader implements Closeable {
+
+    private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final long creationTime;
+    private MappedByteBuffer window = null;
+    private long windowStart = 0;
+    private long position;
+    private final Frame frame = new Frame();
+
+    public ApduTraceReader(File traceFile) throws IOException {
+        if (traceFile == null) {
+            throw new IllegalArgumentException("Param traceFile cannot be null");
+        }
+        file = new RandomAccessFile(traceFile, "r");
+        try {
+            channel = file.getChannel();
+            fileSize = channel.size();
+            if (fileSize < ApduTraceWriter.FILE_HEADER_SIZE) {
+                throw new IOException("Not an APDU trace file (too short): " + traceFile);
+            }
+            mapWindow(0, ApduTraceWriter.FILE_HEADER_SIZE);
+            if (window.getInt(0) != ApduTraceWriter.MAGIC) {
+                throw new IOException("Not an APDU trace file (invalid magic): " + traceFile);
+            }
+            short version = window.getShort(4);
+            if (version != ApduTraceWriter.VERSION) {
+                throw new IOException("Unsupported APDU trace file version: " + version);
+            }
+            creationTime = window.getLong(8);
+            position = ApduTraceWriter.FILE_HEADER_SIZE;
+        } catch (IOException ex) {
+            file.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Advance to the next frame
+     *
+     * @return false if there are no more (complete) frames
+     */
+    public boolean next() throws IOException {
+        if (position + 4 > fileSize) {
+            return false;
+        }
+        ensureWindow(position, 4);
+        int frameLength = window.getInt((int) (position - windowStart));
+        if (frameLength <= 0 || position + 4 + frameLength > fileSize) {
+            return false; //End of trace (or incomplete frame)
+        }
+        if (frameLength < ApduTraceWriter.FRAME_OVERHEAD - 4) {
+            throw new IOException("Corrupt frame at position " + position + ": length=" + frameLength);
+        }
+        ensureWindow(position, 4 + frameLength);
+        frame.parse(window, (int) (position - windowStart), frameLength, position);
+        position += 4 + frameLength;
+        return true;
+    }
+
+    /**
+     * @return the current frame. The instance is reused (overwritten by the next call to next())
+     */
+    public Frame getFrame() {
+        return frame;
+    }
+
+    /**
+     * @return the file offset following the current frame
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    private void ensureWindow(long pos, int length) throws IOException {
+        if (window != null && pos >= windowStart && pos + length <= windowStart + window.limit()) {
+            return;
+        }
+        mapWindow(pos, length);
+    }
+
+    private void mapWindow(long pos, int length) throws IOException {
+        long size = Math.min(Math.max(WINDOW_SIZE, length), fileSize - pos);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+        windowStart = pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        file.close();
+    }
+
+    /**
+     * View of one frame in the mapped file
+     */
+    public static final class Frame {
+
+        private static final int FRAME_TAIL = ApduTraceWriter.FRAME_OVERHEAD - 4;
+        private ByteBuffer buf;
+        private long filePosition;
+        private int flags;
+        private long timestamp;
+        private long latencyNanos;
+        private int commandOffset;
+        private int commandLength;
+        private int dataOffset;
+        private int dataLength;
+        private byte sw1;
+        private byte sw2;
+
+        private Frame() {
+        }
+
+        void parse(ByteBuffer window, int off, int frameLength, long filePosition) throws IOException {
+            int p = off + 4;
+            flags = window.get(p) & 0xFF;
+            timestamp = window.getLong(p + 1);
+            latencyNanos = window.getLong(p + 9);
+            commandLength = window.getShort(p + 17) & 0xFFFF;
+            commandOffset = p + 19;
+            int q = commandOffset + commandLength;
+            if (q + 4 > off + 4 + frameLength) {
+                throw new IOException("Corrupt frame at position " + filePosition + ": command length=" + commandLength);
+            }
+            dataLength = window.getShort(q);
+            dataOffset = q + 2;
+            if (dataLength < -1) { //-1 means no response
+                throw new IOException("Corrupt frame at position " + filePosition + ": data length=" + dataLength);
+            }
+            if (FRAME_TAIL + commandLength + Math.max(dataLength, 0) != frameLength) {
+                throw new IOException("Corrupt frame at position " + filePosition + ": data length=" + dataLength);
+            }
+            int swOffset = dataOffset + Math.max(dataLength, 0);
+            sw1 = window.get(swOffset);
+            sw2 = window.get(swOffset + 1);
+            this.buf = window;
+            this.filePosition = filePosition;
+        }
+
+        public long getFilePosition() {
+            return filePosition;
+        }
+
+        public int getFlags() {
+            return flags;
+        }
+
+        public boolean isGetResponse() {
+            return (flags & ApduTraceWriter.FLAG_GET_RESPONSE) != 0;
+        }
+
+        public boolean isResend() {
+            return (flags & ApduTraceWriter.FLAG_RESEND) != 0;
+        }
+
+        /**
+         * @return true if no response was received (transmit failed)
+         */
+        public boolean isFailed() {
+            return (flags & ApduTraceWriter.FLAG_FAILED) != 0;
+        }
+
+        /**
+         * @return wall clock time (ms) when the command was sent
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public long getLatencyNanos() {
+            return latencyNanos;
+        }
+
+        public int getCommandLength() {
+            return commandLength;
+        }
+
+        public byte getCommandByte(int index) {
+            if (index < 0 || index >= commandLength) {
+                throw new IndexOutOfBoundsException("index=" + index + " commandLength=" + commandLength);
+            }
+            return buf.get(commandOffset + index);
+        }
+
+        public byte[] getCommand() {
+            byte[] command = new byte[commandLength];
+            copy(commandOffset, command, 0, commandLength);
+            return command;
+        }
+
+        /**
+         * @return the response data length (without SW1SW2), or -1 if no response was received
+         */
+        public int getDataLength() {
+            return dataLength;
+        }
+
+        /**
+         * @return the response data (without SW1SW2), or null if no response was received
+         */
+        public byte[] getData() {
+            if (dataLength < 0) {
+                return null;
+            }
+            byte[] data = new byte[dataLength];
+            copy(dataOffset, data, 0, dataLength);
+            return data;
+        }
+
+        /**
+         * Copies the response data into 'dest'
+         *
+         * @return the number of bytes copied
+         */
+        public int copyData(byte[] dest, int destOffset) {
+            if (dataLength <= 0) {
+                return 0;
+            }
+            copy(dataOffset, dest, destOffset, dataLength);
+            return dataLength;
+        }
+
+        public byte getSW1() {
+            return sw1;
+        }
+
+        public byte getSW2() {
+            return sw2;
+        }
+
+        public short getSW() {
+            return (short) (((sw1 & 0xFF) << 8) | (sw2 & 0xFF));
+        }
+
+        private void copy(int offset, byte[] dest, int destOffset, int length) {
+            for (int i = 0; i < length; i++) {
+                dest[destOffset + i] = buf.get(offset + i);
+            }
+        }
+    }
+}
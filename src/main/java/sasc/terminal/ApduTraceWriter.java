@@ -0,0 +1,194 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.terminal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends APDU command/response frames to a memory-mapped binary trace file.
+ *
+ * File layout (big endian):
+ * <pre>
+ * file header: int magic, short version, short reserved, long creation time (ms)
+ * frame:       int frameLength (bytes following this field, written last)
+ *              byte flags, long timestamp (ms), long latency (ns),
+ *              short commandLength, command bytes,
+ *              short dataLength (-1 if no response), data bytes, byte SW1, byte SW2
+ * </pre>
+ * The file is extended one mapped region at a time. A frame length of 0 marks the end
+ * of the trace, so a file that was not closed (eg after a crash) is still readable.
+ *
+ * @author sasc
+ */
+public final class ApduTraceWriter implements Closeable {
+
+    public static final int MAGIC = 0x53415054; //"SAPT"
+    public static final short VERSION = 1;
+    public static final int FILE_HEADER_SIZE = 16;
+
+    public static final int FLAG_GET_RESPONSE = 0x01; //GET RESPONSE sent after SW1=61
+    public static final int FLAG_RESEND = 0x02;       //Command re-issued with Le=SW2 after SW1=6C
+    public static final int FLAG_FAILED = 0x04;       //transmit threw an exception, no response
+
+    static final int FRAME_OVERHEAD = 4 + 1 + 8 + 8 + 2 + 2 + 2;
+    private static final int DEFAULT_REGION_SIZE = 8 * 1024 * 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int regionSize;
+    private MappedByteBuffer region = null;
+    private long regionStart = 0;
+    private long position;
+    private long frameCount = 0;
+
+    public ApduTraceWriter(File traceFile) throws IOException {
+        this(traceFile, true, DEFAULT_REGION_SIZE);
+    }
+
+    /**
+     * @param append if true, frames are added after the existing frames in the file (if any)
+     * @param regionSize number of bytes mapped (and added to the file) at a time
+     */
+    public ApduTraceWriter(File traceFile, boolean append, int regionSize) throws IOException {
+        if (traceFile == null) {
+            throw new IllegalArgumentException("Param traceFile cannot be null");
+        }
+        if (regionSize < FILE_HEADER_SIZE) {
+            throw new IllegalArgumentException("Param regionSize too small: " + regionSize);
+        }
+        this.regionSize = regionSize;
+        long end = -1;
+        if (append && traceFile.length() > 0) {
+            ApduTraceReader reader = new ApduTraceReader(traceFile);
+            try {
+                while (reader.next()) {
+                    frameCount++;
+                }
+                end = reader.getPosition();
+            } finally {
+                reader.close();
+            }
+        }
+        file = new RandomAccessFile(traceFile, "rw");
+        channel = file.getChannel();
+        if (end < 0) {
+            channel.truncate(0);
+            ensureCapacity(0, FILE_HEADER_SIZE);
+            region.putInt(0, MAGIC);
+            region.putShort(4, VERSION);
+            region.putShort(6, (short) 0);
+            region.putLong(8, System.currentTimeMillis());
+            position = FILE_HEADER_SIZE;
+        } else {
+            position = end;
+        }
+    }
+
+    public void writeFrame(int flags, long timestamp, long latencyNanos, byte[] command, CardResponse response) throws IOException {
+        if (response == null) {
+            writeFrame(flags | FLAG_FAILED, timestamp, latencyNanos, command, null, (byte) 0, (byte) 0);
+        } else {
+            writeFrame(flags, timestamp, latencyNanos, command, response.getData(), response.getSW1(), response.getSW2());
+        }
+    }
+
+    /**
+     * @param data the response data (without SW1SW2), or null if no response was received
+     */
+    public synchronized void writeFrame(int flags, long timestamp, long latencyNanos, byte[] command, byte[] data, byte sw1, byte sw2) throws IOException {
+        if (!channel.isOpen()) {
+            throw new IOException("Trace file is closed");
+        }
+        if (command == null) {
+            throw new IllegalArgumentException("Param command cannot be null");
+        }
+        int dataLength = data == null ? 0 : data.length;
+        if (command.length > 0xFFFF || dataLength > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("APDU too long: command=" + command.length + " data=" + dataLength);
+        }
+        int frameLength = FRAME_OVERHEAD - 4 + command.length + dataLength;
+        ensureCapacity(position, frameLength + 4);
+        int off = (int) (position - regionStart);
+        ByteBuffer buf = region;
+        buf.position(off + 4);
+        buf.put((byte) flags);
+        buf.putLong(timestamp);
+        buf.putLong(latencyNanos);
+        buf.putShort((short) command.length);
+        buf.put(command);
+        buf.putShort((short) (data == null ? -1 : dataLength));
+        if (data != null) {
+            buf.put(data);
+        }
+        buf.put(sw1);
+        buf.put(sw2);
+        buf.putInt(off, frameLength); //publish the frame
+        position += frameLength + 4;
+        frameCount++;
+    }
+
+    private void ensureCapacity(long pos, int length) throws IOException {
+        if (region != null && pos + length <= regionStart + region.capacity()) {
+            return;
+        }
+        regionStart = pos;
+        region = channel.map(FileChannel.MapMode.READ_WRITE, pos, Math.max(regionSize, length));
+    }
+
+    public synchronized long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return the file offset where the next frame is written
+     */
+    public synchronized long getPosition() {
+        return position;
+    }
+
+    public synchronized void flush() {
+        if (region != null) {
+            region.force();
+        }
+    }
+
+    /**
+     * Flushes the mapped region and truncates the unused tail of the file (where supported by the platform)
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            flush();
+            region = null;
+            try {
+                channel.truncate(position);
+            } catch (IOException ex) {
+                //Some platforms don't allow truncating a mapped file. The zero filled tail marks the end of the trace
+            }
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -18,6 +18,7 @@ package sasc.terminal;
 import sasc.iso7816.AID;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -25,6 +26,7 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import nanoxml.XMLElement;
+import sasc.lookup.ReferenceData;
 import sasc.util.Util;
 
 /**
@@ -34,7 +36,8 @@ import sasc.util.Util;
  */
 public class KnownAIDList {
 
-    private static final Map<AID, KnownAID> knownAIDsMap = new LinkedHashMap<AID, KnownAID>();
+    //Immutable; replaced as a whole by reload(Reader)
+    private static volatile Map<AID, KnownAID> knownAIDsMap;
 //    private static final Map<String, List<KnownAID>> knownAIDsByTypeMap = new LinkedHashMap<String, List<KnownAID>>();
 
     /*
@@ -124,45 +127,80 @@ public class KnownAIDList {
     }
     
     public static Collection<KnownAID> getAIDs() {
-        return Collections.unmodifiableCollection(knownAIDsMap.values());
+        return knownAIDsMap.values();
     }
     
     public static KnownAID searchAID(byte[] aidBytes){
-        return knownAIDsMap.get(new AID(aidBytes));
+        KnownAID knownAID = knownAIDsMap.get(new AID(aidBytes));
+        ReferenceData.Table.AID.recordLookup(knownAID != null);
+        return knownAID;
     }
 
     static {
         _initFromFile("/aidlist.xml");
+        ReferenceData.register(ReferenceData.Table.AID, "/aidlist.xml", knownAIDsMap.size(), new ReferenceData.Reloader() {
+
+            @Override
+            public int reload(Reader reader) throws IOException {
+                return KnownAIDList.reload(reader);
+            }
+        });
     }
 
     private static void _initFromFile(String filename) {
         try {
-            XMLElement aidListElement = new XMLElement();
-            aidListElement.parseFromReader(new InputStreamReader(Util.loadResource(KnownAIDList.class, filename), "UTF-8"));
-
-            if (!"AIDList".equalsIgnoreCase(aidListElement.getName())) {
-                throw new RuntimeException("Unexpected Root Element: <" + aidListElement.getName() + "> . Expected <AIDList>");
-            }
-            for (Object aidListChildObject : aidListElement.getChildren()) {
-                XMLElement appElement = (XMLElement) aidListChildObject;
-                String appElementName = appElement.getName();
-
-                if (!"Application".equalsIgnoreCase(appElementName)) {
-                    throw new RuntimeException("Unexpected XML Element: <" + appElementName + "> . Expected <Application>");
-                }
-                String aidStr = appElement.getStringAttribute("AID");
-                AID aid = new AID(aidStr);
-                boolean supported = appElement.getBooleanAttribute("Supported", "true", "false", false);
-                String asiStr = appElement.getStringAttribute("ASI");
-                String type = appElement.getStringAttribute("Type");
-                String name = appElement.getStringAttribute("Name");
-                String description = appElement.getStringAttribute("Description");
-                knownAIDsMap.put(aid, new KnownAID(name, aid, type, supported, ApplicationSelectionIndicator.valueOf(asiStr), description));
-            }
+            knownAIDsMap = parse(new InputStreamReader(Util.loadResource(KnownAIDList.class, filename), "UTF-8"));
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
+    }
+
+    /**
+     * Replaces the known AIDs with those in an AID list in the format of aidlist.xml.
+     * The list is parsed completely before it is swapped in, so if it is invalid the current AIDs are kept.
+     *
+     * @return the number of AIDs
+     * @throws IOException if the list cannot be read or is not valid
+     */
+    public static int reload(Reader reader) throws IOException {
+        Map<AID, KnownAID> newMap;
+        try {
+            newMap = parse(reader);
+        } catch (RuntimeException ex) {
+            throw new IOException("Invalid AID list: " + ex.getMessage(), ex);
+        }
+        if (newMap.isEmpty()) {
+            throw new IOException("AID list contains no <Application> elements");
+        }
+        knownAIDsMap = newMap;
+        return newMap.size();
+    }
+
+    private static Map<AID, KnownAID> parse(Reader reader) throws IOException {
+        Map<AID, KnownAID> map = new LinkedHashMap<AID, KnownAID>();
+        XMLElement aidListElement = new XMLElement();
+        aidListElement.parseFromReader(reader);
 
+        if (!"AIDList".equalsIgnoreCase(aidListElement.getName())) {
+            throw new RuntimeException("Unexpected Root Element: <" + aidListElement.getName() + "> . Expected <AIDList>");
+        }
+        for (Object aidListChildObject : aidListElement.getChildren()) {
+            XMLElement appElement = (XMLElement) aidListChildObject;
+            String appElementName = appElement.getName();
+
+            if (!"Application".equalsIgnoreCase(appElementName)) {
+                throw new RuntimeException("Unexpected XML Element: <" + appElementName + "> . Expected <Application>");
+            }
+            String aidStr = appElement.getStringAttribute("AID");
+            AID aid = new AID(aidStr);
+            boolean supported = appElement.getBooleanAttribute("Supported", "true", "false", false);
+            String asiStr = appElement.getStringAttribute("ASI");
+            String type = appElement.getStringAttribute("Type");
+            String name = appElement.getStringAttribute("Name");
+            String description = appElement.getStringAttribute("Description");
+            map.put(aid, new KnownAID(name, aid, type, supported, ApplicationSelectionIndicator.valueOf(asiStr), description));
+        }
+        return Collections.unmodifiableMap(map);
     }
 
     public static void main(String[] args) {
@@ -15,6 +15,7 @@
  */
 package sasc.terminal;
 
+import java.io.File;
 import sasc.smartcard.common.Context;
 import sasc.util.BuildProperties;
 import sasc.util.Log;
@@ -75,6 +76,11 @@ public class TerminalUtil {
         Log.info("OK, card found");
         Log.debug("ATR: " + Util.prettyPrintHexNoWrap(cardConnection.getATR()));
         Log.info("Using terminal: " + cardConnection.getTerminal().getName());
+        String traceFile = System.getProperty("apdu.trace");
+        if (traceFile != null && traceFile.trim().length() > 0) {
+            Log.info("Recording APDU trace to " + traceFile);
+            cardConnection = TracingCardConnection.create(cardConnection, new File(traceFile.trim()));
+        }
         return cardConnection;
 
     }
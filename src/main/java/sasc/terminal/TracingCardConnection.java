@@ -0,0 +1,158 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.terminal;
+
+import java.io.File;
+import java.io.IOException;
+import sasc.util.Log;
+import sasc.util.Util;
+
+/**
+ * CardConnection decorator that records every APDU command/response pair to an ApduTraceWriter.
+ * GET RESPONSE commands following SW1=61 and commands re-issued after SW1=6C are flagged in the trace.
+ * Control commands are passed through without being traced.
+ *
+ * A failure writing the trace disables tracing, but never fails the card communication.
+ *
+ * @author sasc
+ */
+public class TracingCardConnection implements CardConnection {
+
+    private final CardConnection delegate;
+    private final ApduTraceWriter writer;
+    private final boolean closeWriterOnDisconnect;
+    private volatile boolean tracing = true;
+    private byte lastSW1 = 0;
+    private int lastHeader = 0;
+
+    public TracingCardConnection(CardConnection delegate, ApduTraceWriter writer) {
+        this(delegate, writer, false);
+    }
+
+    /**
+     * @param closeWriterOnDisconnect if true, the writer is closed when the connection is disconnected
+     */
+    public TracingCardConnection(CardConnection delegate, ApduTraceWriter writer, boolean closeWriterOnDisconnect) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("Param delegate cannot be null");
+        }
+        if (writer == null) {
+            throw new IllegalArgumentException("Param writer cannot be null");
+        }
+        this.delegate = delegate;
+        this.writer = writer;
+        this.closeWriterOnDisconnect = closeWriterOnDisconnect;
+    }
+
+    /**
+     * Wrap the connection, appending to 'traceFile'. The trace file is closed on disconnect
+     */
+    public static TracingCardConnection create(CardConnection delegate, File traceFile) throws TerminalException {
+        try {
+            return new TracingCardConnection(delegate, new ApduTraceWriter(traceFile), true);
+        } catch (IOException ex) {
+            throw new TerminalException("Unable to open APDU trace file " + traceFile, ex);
+        }
+    }
+
+    public ApduTraceWriter getTraceWriter() {
+        return writer;
+    }
+
+    public CardConnection getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public synchronized CardResponse transmit(byte[] cmd) throws TerminalException {
+        int header = cmd.length >= 4 ? Util.byteArrayToInt(cmd, 0, 4) : 0;
+        int flags = 0;
+        if (lastSW1 == (byte) 0x61 && cmd.length >= 2 && cmd[1] == (byte) 0xC0) {
+            flags |= ApduTraceWriter.FLAG_GET_RESPONSE;
+        } else if (lastSW1 == (byte) 0x6C && header == lastHeader) {
+            flags |= ApduTraceWriter.FLAG_RESEND;
+        }
+        long timestamp = System.currentTimeMillis();
+        long startTime = System.nanoTime();
+        CardResponse response = null;
+        try {
+            response = delegate.transmit(cmd);
+            return response;
+        } finally {
+            long latency = System.nanoTime() - startTime;
+            lastSW1 = response == null ? 0 : response.getSW1();
+            lastHeader = header;
+            trace(flags, timestamp, latency, cmd, response);
+        }
+    }
+
+    private void trace(int flags, long timestamp, long latency, byte[] cmd, CardResponse response) {
+        if (!tracing) {
+            return;
+        }
+        try {
+            writer.writeFrame(flags, timestamp, latency, cmd, response);
+        } catch (IOException ex) {
+            tracing = false;
+            Log.info("APDU tracing disabled: " + ex.getMessage());
+        }
+    }
+
+    @Override
+    public byte[] transmitControlCommand(int controlCode, byte[] data) throws TerminalException {
+        return delegate.transmitControlCommand(controlCode, data);
+    }
+
+    @Override
+    public byte[] getATR() {
+        return delegate.getATR();
+    }
+
+    @Override
+    public Terminal getTerminal() {
+        return delegate.getTerminal();
+    }
+
+    @Override
+    public String getConnectionInfo() {
+        return delegate.getConnectionInfo();
+    }
+
+    @Override
+    public String getProtocol() {
+        return delegate.getProtocol();
+    }
+
+    @Override
+    public void resetCard() throws TerminalException {
+        delegate.resetCard();
+    }
+
+    @Override
+    public boolean disconnect(boolean attemptReset) throws TerminalException {
+        try {
+            return delegate.disconnect(attemptReset);
+        } finally {
+            if (closeWriterOnDisconnect) {
+                try {
+                    writer.close();
+                } catch (IOException ex) {
+                    Log.info("Unable to close APDU trace file: " + ex.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.util;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous log sink. Messages are put into a bounded lock-free ring buffer
+ * (multiple producers, single consumer) and written to the target PrintWriter
+ * by a single background thread, so that the thread logging (ie the APDU path)
+ * does not wait on a slow console.
+ *
+ * When the buffer is full the OverflowPolicy decides whether the producer waits
+ * for space or the message is dropped.
+ *
+ * @author sasc
+ */
+public final class AsyncLogWriter {
+
+    public enum OverflowPolicy {
+        /**
+         * Wait until there is space for the message
+         */
+        BLOCK,
+        /**
+         * Drop messages below INFO, wait for the others
+         */
+        DROP_DEBUG,
+        /**
+         * Keep only every n'th overflowing message (ERROR is always kept), drop the others
+         */
+        SAMPLE
+    }
+
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final int DEFAULT_SAMPLE_RATE = 16;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final int capacity;
+    private final int mask;
+    private final OverflowPolicy policy;
+    private final int sampleRate;
+    //sequences[i] == pos: slot free for the producer claiming pos, pos+1: message for pos is published
+    private final AtomicLongArray sequences;
+    private final String[] messages;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head = 0;
+    private volatile long flushedPosition = 0;
+    private final AtomicLong overflowCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong blockedCount = new AtomicLong();
+    private volatile long writtenCount = 0;
+    private volatile long maxQueueDepth = 0;
+    private final AtomicBoolean consumerIdle = new AtomicBoolean();
+    private volatile PrintWriter target;
+    private volatile boolean running = true;
+    //Set by the writer thread once close() has been called: messages queued at or after this position are not written
+    private volatile long drainLimit = -1;
+    private final Thread writerThread;
+
+    public AsyncLogWriter(PrintWriter target) {
+        this(target, DEFAULT_CAPACITY, OverflowPolicy.DROP_DEBUG, DEFAULT_SAMPLE_RATE);
+    }
+
+    /**
+     * @param target the writer all messages are written to
+     * @param capacity max number of queued messages (rounded up to a power of 2)
+     * @param policy what to do when the buffer is full
+     * @param sampleRate used by OverflowPolicy.SAMPLE: 1 of 'sampleRate' overflowing messages is kept
+     */
+    public AsyncLogWriter(PrintWriter target, int capacity, OverflowPolicy policy, int sampleRate) {
+        if (target == null) {
+            throw new IllegalArgumentException("Param target cannot be null");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("Param policy cannot be null");
+        }
+        if (capacity < 2 || capacity > (1 << 24)) {
+            throw new IllegalArgumentException("Param capacity must be between 2 and 2^24: " + capacity);
+        }
+        if (sampleRate < 1) {
+            throw new IllegalArgumentException("Param sampleRate must be > 0: " + sampleRate);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.policy = policy;
+        this.sampleRate = sampleRate;
+        this.target = target;
+        this.messages = new String[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        writerThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, "sasc-log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Queue the message. Only waits if the buffer is full and the overflow policy requires it.
+     *
+     * Messages written after close() are dropped.
+     *
+     * @return false if the message was dropped
+     */
+    public boolean write(String msg, Log.Level level) {
+        if (msg == null) {
+            throw new IllegalArgumentException("Param msg cannot be null");
+        }
+        if (!running) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        long pos = tryOffer(msg);
+        if (pos >= 0) {
+            return isWritten(pos);
+        }
+        if (!mustKeep(level)) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        blockedCount.incrementAndGet();
+        while ((pos = tryOffer(msg)) < 0) {
+            if (!running) {
+                droppedCount.incrementAndGet();
+                return false;
+            }
+            wakeConsumer();
+            LockSupport.parkNanos(FULL_PARK_NANOS);
+        }
+        return isWritten(pos);
+    }
+
+    /**
+     * Checks that the message queued at 'pos' is written, if close() has been called concurrently.
+     * If 'running' is still true after the message was queued, the writer thread reads the tail
+     * after this message was queued, and writes it before it stops.
+     *
+     * @return false (and counts the message as dropped) if the message was queued after the last position written
+     */
+    private boolean isWritten(long pos) {
+        if (running) {
+            return true;
+        }
+        long limit = drainLimit;
+        while (limit < 0 && writerThread.isAlive()) {
+            LockSupport.parkNanos(FULL_PARK_NANOS);
+            limit = drainLimit;
+        }
+        limit = drainLimit;
+        if (limit >= 0 && pos < limit) {
+            return true;
+        }
+        droppedCount.incrementAndGet();
+        return false;
+    }
+
+    private boolean mustKeep(Log.Level level) {
+        switch (policy) {
+            case BLOCK:
+                return true;
+            case DROP_DEBUG:
+                return level.getValue() >= Log.Level.INFO.getValue();
+            case SAMPLE:
+                return level.getValue() >= Log.Level.ERROR.getValue()
+                        || overflowCount.incrementAndGet() % sampleRate == 0;
+            default:
+                throw new IllegalStateException("Unknown policy: " + policy);
+        }
+    }
+
+    /**
+     * @return the position of the queued message, or -1 if the buffer is full
+     */
+    private long tryOffer(String msg) {
+        long pos = tail.get();
+        while (true) {
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    messages[index] = msg;
+                    sequences.set(index, pos + 1); //publish
+                    wakeConsumer();
+                    return pos;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return -1; //full
+            } else {
+                pos = tail.get(); //another producer claimed pos
+            }
+        }
+    }
+
+    private void wakeConsumer() {
+        if (consumerIdle.get() && consumerIdle.compareAndSet(true, false)) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    private void drainLoop() {
+        long reportedDropped = 0;
+        long limit = -1; //The tail when close() was seen
+        while (true) {
+            long pos = head;
+            int written = 0;
+            PrintWriter pw = target;
+            long depth = tail.get() - pos;
+            if (depth > maxQueueDepth) {
+                maxQueueDepth = depth;
+            }
+            while (pos != limit) {
+                int index = (int) (pos & mask);
+                if (sequences.get(index) != pos + 1) {
+                    if (limit < 0) {
+                        break; //empty (or not yet published)
+                    }
+                    Thread.yield(); //claimed by a producer, but not yet published
+                    continue;
+                }
+                String msg = messages[index];
+                messages[index] = null;
+                sequences.set(index, pos + capacity); //release the slot
+                pos++;
+                head = pos;
+                pw.println(msg);
+                written++;
+            }
+            long dropped = droppedCount.get();
+            if (dropped != reportedDropped) {
+                pw.println("[" + (dropped - reportedDropped) + " log message(s) dropped]");
+                reportedDropped = dropped;
+                written++;
+            }
+            if (written > 0) {
+                pw.flush();
+                writtenCount += written;
+                flushedPosition = pos;
+                continue;
+            }
+            flushedPosition = pos;
+            if (pos == limit) {
+                return;
+            }
+            if (!running) {
+                //Write all messages claimed before this point, then stop
+                limit = tail.get();
+                drainLimit = limit;
+                continue;
+            }
+            consumerIdle.set(true);
+            if (sequences.get((int) (pos & mask)) != pos + 1) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+            consumerIdle.set(false);
+        }
+    }
+
+    /**
+     * Wait until all messages queued before this call have been written and flushed
+     */
+    public void flush() {
+        long pos = tail.get();
+        while (flushedPosition < pos && writerThread.isAlive()) {
+            wakeConsumer();
+            LockSupport.parkNanos(FULL_PARK_NANOS);
+        }
+    }
+
+    /**
+     * Write the remaining messages and stop the background writer.
+     * Messages written after this call are dropped (and counted by getDroppedCount())
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(writerThread);
+        if (Thread.currentThread() != writerThread) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void setTarget(PrintWriter target) {
+        if (target == null) {
+            throw new IllegalArgumentException("Param target cannot be null");
+        }
+        flush();
+        this.target = target;
+    }
+
+    public PrintWriter getTarget() {
+        return target;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return policy;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return number of messages currently queued
+     */
+    public int getQueueDepth() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    /**
+     * @return largest queue depth observed by the writer thread
+     */
+    public long getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return number of times a producer had to wait for space
+     */
+    public long getBlockedCount() {
+        return blockedCount.get();
+    }
+
+    /**
+     * @return number of lines written (including dropped message notices)
+     */
+    public long getWrittenCount() {
+        return writtenCount;
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncLogWriter[policy=" + policy + ", capacity=" + capacity + ", queueDepth=" + getQueueDepth()
+                + ", maxQueueDepth=" + maxQueueDepth + ", written=" + writtenCount + ", dropped=" + getDroppedCount()
+                + ", blocked=" + getBlockedCount() + "]";
+    }
+}
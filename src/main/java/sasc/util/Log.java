@@ -30,7 +30,25 @@ public class Log {
     
     private static AtomicInteger stepNo = new AtomicInteger(1);
     private static PrintWriter printWriter = null;
-    private static Level level = Level.INFO;
+    private static volatile Level level = Level.INFO;
+    //Messages below this level are buffered in the PrintWriter until a message at (or above) this level is logged,
+    //or more than 'flushThreshold' chars are pending
+    private static volatile Level flushLevel = Level.INFO;
+    private static volatile int flushThreshold = 8192;
+    private static int pendingChars = 0;
+    private static volatile AsyncLogWriter asyncWriter = null;
+
+    static {
+        //Write the buffered (and queued) messages on exit, also on System.exit() and uncaught exceptions
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                disableAsync();
+                flush();
+            }
+        }, "sasc-log-flush"));
+    }
 
     public enum Level {
 
@@ -56,6 +74,88 @@ public class Log {
     public static Level getLevel() {
         return level;
     }
+
+    /**
+     * Use this to guard log statements that are expensive to construct
+     */
+    public static boolean isEnabled(Level level) {
+        return level.getValue() >= Log.level.getValue();
+    }
+
+    public static boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    /**
+     * Output to the PrintWriter set with setPrintWriter() is buffered: messages below this level
+     * are only flushed when a message at (or above) this level is logged, when more than
+     * the flush threshold chars are pending, on flush() or when the JVM exits.
+     * Use Level.ALL to flush every message.
+     */
+    public static void setFlushLevel(Level flushLevel) {
+        if (flushLevel == null) {
+            throw new IllegalArgumentException("Param flushLevel cannot be null");
+        }
+        Log.flushLevel = flushLevel;
+    }
+
+    public static Level getFlushLevel() {
+        return flushLevel;
+    }
+
+    /**
+     * Max number of chars of buffered output (messages below the flush level) before the PrintWriter is flushed.
+     * Use 0 to flush every message.
+     */
+    public static void setFlushThreshold(int numChars) {
+        if (numChars < 0) {
+            throw new IllegalArgumentException("Param numChars cannot be negative: " + numChars);
+        }
+        Log.flushThreshold = numChars;
+    }
+
+    /**
+     * Write log messages from a background thread (see AsyncLogWriter), to the current PrintWriter (or System.out).
+     * Any previous asynchronous writer is closed.
+     */
+    public static synchronized AsyncLogWriter enableAsync(int capacity, AsyncLogWriter.OverflowPolicy policy) {
+        disableAsync();
+        flush();
+        asyncWriter = new AsyncLogWriter(getTargetPrintWriter(), capacity, policy, AsyncLogWriter.DEFAULT_SAMPLE_RATE);
+        return asyncWriter;
+    }
+
+    /**
+     * Write the queued messages and return to synchronous logging
+     */
+    public static synchronized void disableAsync() {
+        AsyncLogWriter writer = asyncWriter;
+        if (writer != null) {
+            asyncWriter = null;
+            writer.close();
+        }
+    }
+
+    /**
+     * @return the asynchronous writer (for metrics), or null if logging is synchronous
+     */
+    public static AsyncLogWriter getAsyncWriter() {
+        return asyncWriter;
+    }
+
+    /**
+     * Flush any buffered log messages (waits for the asynchronous writer, if enabled)
+     */
+    public static synchronized void flush() {
+        AsyncLogWriter writer = asyncWriter;
+        if (writer != null) {
+            writer.flush();
+        }
+        if (printWriter != null) {
+            printWriter.flush();
+        }
+        pendingChars = 0;
+    }
     
     public static void resetStepNo(){
         stepNo.set(1);
@@ -77,31 +177,122 @@ public class Log {
         logInternal(msg, Level.COMMAND);
     }
 
+    /*
+     * The format variants only build the message (String.format) if the level is enabled.
+     * Use Log.hex(byte[]) to defer hex encoding of arguments
+     */
+
+    public static void debug(String format, Object... args) {
+        if (isEnabled(Level.DEBUG)) {
+            logInternal("DEBUG: " + String.format(format, args), Level.DEBUG);
+        }
+    }
+
+    public static void info(String format, Object... args) {
+        if (isEnabled(Level.INFO)) {
+            logInternal(String.format(format, args), Level.INFO);
+        }
+    }
+
+    public static void procedureByte(String format, Object... args) {
+        if (isEnabled(Level.PROCEDUREBYTE)) {
+            logInternal(String.format(format, args), Level.PROCEDUREBYTE);
+        }
+    }
+
+    public static void command(String format, Object... args) {
+        if (isEnabled(Level.COMMAND)) {
+            logInternal(String.format(format, args), Level.COMMAND);
+        }
+    }
+
+    /**
+     * Returns a format argument that hex encodes (without spaces) the data when the message is formatted.
+     * The array is not copied.
+     */
+    public static Object hex(byte[] data) {
+        return new LazyHex(data, false);
+    }
+
+    /**
+     * Returns a format argument that pretty prints the data (space separated, wrapped) when the message is formatted.
+     * The array is not copied.
+     */
+    public static Object prettyHex(byte[] data) {
+        return new LazyHex(data, true);
+    }
+
+    private static final class LazyHex {
+
+        private final byte[] data;
+        private final boolean pretty;
+
+        LazyHex(byte[] data, boolean pretty) {
+            this.data = data;
+            this.pretty = pretty;
+        }
+
+        @Override
+        public String toString() {
+            return pretty ? Util.prettyPrintHex(data) : Util.byteArrayToHexString(data);
+        }
+    }
+
     public static void commandHeader(String msg) {
+        int step = stepNo.getAndIncrement();
+        if (!isEnabled(Level.COMMAND)) {
+            return;
+        }
         logInternal("\n"+COMMAND_HEADER_FRAMING
-                + "\n[Step " + stepNo.getAndIncrement() + "] " + msg
+                + "\n[Step " + step + "] " + msg
                 + "\n"+COMMAND_HEADER_FRAMING, Level.COMMAND);
     }
 
     private static void logInternal(String msg, Level level) {
         if (level.getValue() >= Log.level.getValue()) {
-            if (printWriter != null) {
-                printWriter.println(msg);
-                printWriter.flush();
-            } else {
-                System.out.println(msg);
+            AsyncLogWriter writer = asyncWriter;
+            if (writer != null) {
+                writer.write(msg, level);
+                return;
+            }
+            synchronized (Log.class) {
+                if (printWriter != null) {
+                    printWriter.println(msg);
+                    pendingChars += msg.length() + 1;
+                    if (level.getValue() >= flushLevel.getValue() || pendingChars > flushThreshold) {
+                        printWriter.flush();
+                        pendingChars = 0;
+                    }
+                } else {
+                    System.out.println(msg);
+                }
             }
         }
     }
 
-    public static void setPrintWriter(PrintWriter printWriter) {
+    public static synchronized void setPrintWriter(PrintWriter printWriter) {
         if (printWriter == null) {
             throw new IllegalArgumentException("Parameter 'printWriter' cannot be null");
         }
+        flush();
         Log.printWriter = printWriter;
+        if (asyncWriter != null) {
+            asyncWriter.setTarget(printWriter);
+        }
     }
 
+    /**
+     * Any queued asynchronous messages are written before the writer is returned,
+     * so that output written directly to it is not reordered with the log messages
+     */
     public static PrintWriter getPrintWriter() {
+        if (asyncWriter != null) {
+            asyncWriter.flush();
+        }
+        return getTargetPrintWriter();
+    }
+
+    private static PrintWriter getTargetPrintWriter() {
         if (printWriter == null) {
             return new PrintWriter(System.out);
         }
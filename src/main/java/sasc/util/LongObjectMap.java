@@ -0,0 +1,175 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An open-addressing (linear probing) map from primitive long keys to objects.
+ *
+ * Lookups do not allocate and do not lock. Updates are copy-on-write:
+ * every put() builds a new table which is then published through a volatile
+ * field, so readers always see a complete table. This makes the map suited
+ * for small, read-mostly registries (tags, RIDs etc), not for frequent updates.
+ *
+ * Null values are not permitted.
+ *
+ * @author sasc
+ */
+public final class LongObjectMap<V> {
+
+    private static final class Table {
+
+        final long[] keys;
+        final Object[] values;
+        final int mask;
+        final int size;
+        //The keys in insertion order (never modified once the table is published)
+        final long[] order;
+        //The values in insertion order. Set before the table is published
+        List<Object> orderedValues;
+
+        Table(int capacity, int size, long[] order) {
+            this.keys = new long[capacity];
+            this.values = new Object[capacity];
+            this.mask = capacity - 1;
+            this.size = size;
+            this.order = order;
+        }
+    }
+
+    private volatile Table table = finish(newTable(16, new long[0]));
+
+    private static int index(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private static Object get(Table t, long key) {
+        int i = index(key, t.mask);
+        Object value;
+        while ((value = t.values[i]) != null) {
+            if (t.keys[i] == key) {
+                return value;
+            }
+            i = (i + 1) & t.mask;
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        return (V) get(table, key);
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return the previous value, or null if there was no mapping for the key
+     */
+    public synchronized V put(long key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Param value cannot be null");
+        }
+        Table old = table;
+        V previous = get(key);
+        long[] order = old.order;
+        if (previous == null) {
+            order = Arrays.copyOf(order, order.length + 1);
+            order[order.length - 1] = key;
+        }
+        Table t = newTable(old.keys.length, order);
+        for (int i = 0; i < old.keys.length; i++) {
+            if (old.values[i] != null && (previous == null || old.keys[i] != key)) {
+                insert(t, old.keys[i], old.values[i]);
+            }
+        }
+        insert(t, key, value);
+        table = finish(t);
+        return previous;
+    }
+
+    /**
+     * Copies all mappings of 'other' into this map (replacing existing mappings with the same key).
+     * New keys are added in the insertion order of 'other'. The table is only rebuilt once
+     */
+    public synchronized void putAll(LongObjectMap<? extends V> other) {
+        Table old = table;
+        Table src = other.table;
+        long[] order = Arrays.copyOf(old.order, old.order.length + src.order.length);
+        int newSize = old.order.length;
+        for (long key : src.order) {
+            if (get(old, key) == null) {
+                order[newSize++] = key;
+            }
+        }
+        Table t = newTable(old.keys.length, Arrays.copyOf(order, newSize));
+        for (int i = 0; i < old.keys.length; i++) {
+            if (old.values[i] != null && get(src, old.keys[i]) == null) {
+                insert(t, old.keys[i], old.values[i]);
+            }
+        }
+        for (int i = 0; i < src.keys.length; i++) {
+            if (src.values[i] != null) {
+                insert(t, src.keys[i], src.values[i]);
+            }
+        }
+        table = finish(t);
+    }
+
+    //A table for the keys in 'order', with at least 'capacity' slots
+    private static Table newTable(int capacity, long[] order) {
+        while (order.length * 2 > capacity) { //Max load factor 0.5
+            capacity <<= 1;
+        }
+        return new Table(capacity, order.length, order);
+    }
+
+    private static Table finish(Table t) {
+        List<Object> orderedValues = new ArrayList<Object>(t.order.length);
+        for (long key : t.order) {
+            orderedValues.add(get(t, key));
+        }
+        t.orderedValues = Collections.unmodifiableList(orderedValues);
+        return t;
+    }
+
+    private static void insert(Table t, long key, Object value) {
+        int i = index(key, t.mask);
+        while (t.values[i] != null) {
+            i = (i + 1) & t.mask;
+        }
+        t.keys[i] = key;
+        t.values[i] = value;
+    }
+
+    public int size() {
+        return table.size;
+    }
+
+    /**
+     * @return an unmodifiable snapshot of the values, in insertion order of their keys
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        return (List<V>) table.orderedValues;
+    }
+}
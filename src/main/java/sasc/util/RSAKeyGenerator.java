@@ -21,6 +21,13 @@ import java.security.interfaces.RSAPrivateKey;
 import java.security.interfaces.RSAPublicKey;
 import java.security.spec.AlgorithmParameterSpec;
 import java.security.spec.RSAKeyGenParameterSpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class RSAKeyGenerator {
 
@@ -43,11 +50,88 @@ public class RSAKeyGenerator {
         }
     }
 
+    /**
+     * A fixed set of pre-generated key pairs of one size, handed out round-robin.
+     * Used to generate many test cards quickly: the cards share keys, but not certificates.
+     * Thread safe.
+     */
+    public static final class KeyPool {
+
+        private final RSAKeyPair[] keyPairs;
+        private final int numBits;
+        private final AtomicInteger next = new AtomicInteger();
+
+        private KeyPool(List<RSAKeyPair> keyPairs, int numBits) {
+            this.keyPairs = keyPairs.toArray(new RSAKeyPair[keyPairs.size()]);
+            this.numBits = numBits;
+        }
+
+        /**
+         * Generates the pool in parallel on the executor
+         */
+        public static KeyPool generate(int size, int numBits, int exponent, ExecutorService executor) throws NoSuchAlgorithmException, InvalidAlgorithmParameterException, InterruptedException {
+            if (size < 1) {
+                throw new IllegalArgumentException("Param size must be > 0: " + size);
+            }
+            return new KeyPool(generateRSAKeys(size, numBits, exponent, executor), numBits);
+        }
+
+        public RSAKeyPair next() {
+            return keyPairs[(next.getAndIncrement() & Integer.MAX_VALUE) % keyPairs.length];
+        }
+
+        public int size() {
+            return keyPairs.length;
+        }
+
+        public int getNumBits() {
+            return numBits;
+        }
+    }
+
     public static RSAKeyPair generateRSAKeys(int numBits, int exponent) throws NoSuchAlgorithmException, InvalidAlgorithmParameterException {
+        return generateRSAKeys(numBits, exponent, new SecureRandom()); //For production code: also specify a hardware SecureRandom
+    }
+
+    /**
+     * Generates 'count' key pairs in parallel on the executor
+     */
+    public static List<RSAKeyPair> generateRSAKeys(int count, final int numBits, final int exponent, ExecutorService executor) throws NoSuchAlgorithmException, InvalidAlgorithmParameterException, InterruptedException {
+        if (executor == null) {
+            throw new IllegalArgumentException("Param executor cannot be null");
+        }
+        List<Callable<RSAKeyPair>> tasks = new ArrayList<Callable<RSAKeyPair>>(count);
+        for (int i = 0; i < count; i++) {
+            tasks.add(new Callable<RSAKeyPair>() {
+                @Override
+                public RSAKeyPair call() throws Exception {
+                    return generateRSAKeys(numBits, exponent);
+                }
+            });
+        }
+        List<RSAKeyPair> keyPairs = new ArrayList<RSAKeyPair>(count);
+        for (Future<RSAKeyPair> future : executor.invokeAll(tasks)) {
+            try {
+                keyPairs.add(future.get());
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof NoSuchAlgorithmException) {
+                    throw (NoSuchAlgorithmException) cause;
+                }
+                if (cause instanceof InvalidAlgorithmParameterException) {
+                    throw (InvalidAlgorithmParameterException) cause;
+                }
+                throw new RuntimeException(cause);
+            }
+        }
+        return keyPairs;
+    }
+
+    public static RSAKeyPair generateRSAKeys(int numBits, int exponent, SecureRandom random) throws NoSuchAlgorithmException, InvalidAlgorithmParameterException {
 
         KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
         AlgorithmParameterSpec spec = new RSAKeyGenParameterSpec(numBits, BigInteger.valueOf(exponent));
-        keyGen.initialize(spec, new SecureRandom()); //For production code: also specify a hardware SecureRandom
+        keyGen.initialize(spec, random);
         KeyPair keyPair = keyGen.genKeyPair();
         PrivateKey privateKey = keyPair.getPrivate();
         PublicKey publicKey = keyPair.getPublic();
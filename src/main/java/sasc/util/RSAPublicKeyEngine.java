@@ -0,0 +1,126 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.util;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * RSA public key operation (signature/certificate recovery) for a fixed key.
+ *
+ * The key is converted to BigIntegers once, so instances should be cached with the key.
+ * For exponent 3 (the most common EMV exponent) the cube is computed with two
+ * multiplications and Barrett reduction, using a reciprocal precomputed per modulus.
+ * Other exponents (including 65537) use BigInteger.modPow, which already works in
+ * Montgomery form and was measured faster than a hand written Montgomery multiplication.
+ *
+ * Instances are immutable and thread safe.
+ *
+ * @author sasc
+ */
+public final class RSAPublicKeyEngine {
+
+    private static final BigInteger THREE = BigInteger.valueOf(3);
+
+    private final BigInteger exponent;
+    private final BigInteger modulus;
+    private final int modulusLength; //bytes
+    private final boolean cube;
+    //Barrett reduction: mu = floor(2^(2*bits) / modulus)
+    private final int bits;
+    private final BigInteger mu;
+
+    public RSAPublicKeyEngine(byte[] exponent, byte[] modulus) {
+        if (exponent == null || exponent.length == 0) {
+            throw new IllegalArgumentException("Param exponent cannot be null or empty");
+        }
+        if (modulus == null || modulus.length == 0) {
+            throw new IllegalArgumentException("Param modulus cannot be null or empty");
+        }
+        this.exponent = new BigInteger(1, exponent);
+        this.modulus = new BigInteger(1, modulus);
+        if (this.modulus.signum() == 0) {
+            throw new IllegalArgumentException("Param modulus cannot be zero");
+        }
+        this.modulusLength = modulus.length;
+        this.cube = this.exponent.equals(THREE);
+        this.bits = this.modulus.bitLength();
+        this.mu = cube ? BigInteger.ONE.shiftLeft(2 * bits).divide(this.modulus) : null;
+    }
+
+    public int getModulusLength() {
+        return modulusLength;
+    }
+
+    /**
+     * @return true if the exponent is 3 and the Barrett reduction path is used
+     */
+    public boolean isFastPath() {
+        return cube;
+    }
+
+    /**
+     * @return data^e mod n, as modulus length bytes
+     */
+    public byte[] recover(byte[] data) {
+        byte[] out = new byte[modulusLength];
+        recover(data, 0, data.length, out, 0);
+        return out;
+    }
+
+    /**
+     * Writes data^e mod n (left padded with zeros to the modulus length) into 'out'
+     *
+     * @return the number of bytes written (the modulus length)
+     */
+    public int recover(byte[] data, int offset, int length, byte[] out, int outOffset) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IllegalArgumentException("offset(" + offset + ")+length(" + length + ") > data.length(" + data.length + ")");
+        }
+        if (outOffset < 0 || outOffset + modulusLength > out.length) {
+            throw new IllegalArgumentException("Output buffer too small: " + out.length + " (offset " + outOffset + ", need " + modulusLength + ")");
+        }
+        byte[] in = data;
+        if (offset != 0 || length != data.length) {
+            in = new byte[length];
+            System.arraycopy(data, offset, in, 0, length);
+        }
+        BigInteger x = new BigInteger(1, in);
+        BigInteger y;
+        if (cube && x.compareTo(modulus) < 0) {
+            y = reduce(reduce(x.multiply(x)).multiply(x));
+        } else {
+            y = x.modPow(exponent, modulus);
+        }
+        byte[] result = y.toByteArray();
+        int resultLength = Math.min(result.length, modulusLength); //drop the sign byte
+        Arrays.fill(out, outOffset, outOffset + modulusLength - resultLength, (byte) 0);
+        System.arraycopy(result, result.length - resultLength, out, outOffset + modulusLength - resultLength, resultLength);
+        return modulusLength;
+    }
+
+    /**
+     * Barrett reduction of 0 <= x < modulus^2
+     */
+    private BigInteger reduce(BigInteger x) {
+        BigInteger q = x.shiftRight(bits - 1).multiply(mu).shiftRight(bits + 1);
+        BigInteger r = x.subtract(q.multiply(modulus));
+        while (r.compareTo(modulus) >= 0) { //at most twice
+            r = r.subtract(modulus);
+        }
+        return r;
+    }
+}
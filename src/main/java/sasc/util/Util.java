@@ -31,6 +31,21 @@ import java.util.StringTokenizer;
  */
 public class Util {
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    //Hex character -> nibble value (-1 for non hex characters)
+    private static final byte[] HEX_VALUES = new byte[128];
+
+    static {
+        java.util.Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['a' + i] = (byte) (10 + i);
+            HEX_VALUES['A' + i] = (byte) (10 + i);
+        }
+    }
+
     public static String getSpaces(int length) {
         StringBuilder buf = new StringBuilder(length);
 
@@ -63,23 +78,85 @@ public class Util {
     }
 
     public static String prettyPrintHex(byte[] data, int indent) {
-        return Util.prettyPrintHex(Util.byteArrayToHexString(data), indent, true);
+        return prettyPrintHex(data, 0, data == null ? 0 : data.length, indent, true);
     }
     
     public static String prettyPrintHex(byte[] data) {
-        return Util.prettyPrintHex(Util.byteArrayToHexString(data), 0, true);
+        return prettyPrintHex(data, 0, data == null ? 0 : data.length, 0, true);
     }
     
     public static String prettyPrintHex(byte[] data, int startPos, int length) {
-        return Util.prettyPrintHex(Util.byteArrayToHexString(data, startPos, length), 0, true);
+        return prettyPrintHex(data, startPos, length, 0, true);
     }
 
     public static String prettyPrintHexNoWrap(byte[] data) {
-        return Util.prettyPrintHex(Util.byteArrayToHexString(data), 0, false);
+        return prettyPrintHex(data, 0, data == null ? 0 : data.length, 0, false);
     }
     
     public static String prettyPrintHexNoWrap(byte[] data, int startPos, int length) {
-        return Util.prettyPrintHex(Util.byteArrayToHexString(data, startPos, length), 0, false);
+        return prettyPrintHex(data, startPos, length, 0, false);
+    }
+
+    public static String prettyPrintHex(byte[] data, int startPos, int length, int indent, boolean wrapLines) {
+        if (data == null) {
+            return "";
+        }
+        StringBuilder buf = new StringBuilder(length * 3);
+        appendPrettyHex(buf, data, startPos, length, indent, wrapLines);
+        return buf.toString();
+    }
+
+    /**
+     * Appends the bytes as space separated hex, wrapped after 16 bytes (followed by 'indent' spaces)
+     */
+    public static void appendPrettyHex(StringBuilder buf, byte[] data, int startPos, int length, int indent, boolean wrapLines) {
+        try {
+            appendPrettyHex((Appendable) buf, data, startPos, length, indent, wrapLines);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex); //Not thrown by StringBuilder
+        }
+    }
+
+    /**
+     * Prints the bytes as space separated hex directly to the PrintWriter (no line separator is printed at the end)
+     */
+    public static void printPrettyHex(PrintWriter pw, byte[] data, int indent, boolean wrapLines) {
+        try {
+            if (data != null) {
+                appendPrettyHex(pw, data, 0, data.length, indent, wrapLines);
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex); //Not thrown by PrintWriter
+        }
+    }
+
+    public static void appendPrettyHex(Appendable out, byte[] data, int startPos, int length, int indent, boolean wrapLines) throws IOException {
+        checkRange(data, startPos, length);
+        for (int i = 0; i < length; i++) {
+            int b = data[startPos + i] & 0xFF;
+            out.append(HEX_DIGITS[b >>> 4]).append(HEX_DIGITS[b & 0x0F]);
+            if (i + 1 == length) {
+                break;
+            }
+            if (wrapLines && (i + 1) % 16 == 0) {
+                out.append('\n');
+                appendSpaces(out, indent);
+            } else {
+                out.append(' ');
+            }
+        }
+    }
+
+    private static void appendSpaces(Appendable out, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            out.append(' ');
+        }
+    }
+
+    private static void checkRange(byte[] data, int startPos, int length) {
+        if (startPos < 0 || length < 0 || data.length < startPos + length) {
+            throw new IllegalArgumentException("startPos(" + startPos + ")+length(" + length + ") > byteArray.length(" + data.length + ")");
+        }
     }
     
     public static String prettyPrintHexNoWrap(String in) {
@@ -144,17 +221,30 @@ public class Util {
         return result;
     }
     
+    private static final ThreadLocal<MessageDigest> SHA1_DIGEST = new ThreadLocal<MessageDigest>();
+
     public static byte[] calculateSHA1(byte[] data) throws NoSuchAlgorithmException {
-        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
-        return sha1.digest(data);
+        return getSHA1Digest().digest(data);
+    }
+
+    /**
+     * Returns a reset SHA-1 digest, reused by the calling thread.
+     * The digest must be completed (digest()) before any other code on the thread calls this method.
+     */
+    public static MessageDigest getSHA1Digest() throws NoSuchAlgorithmException {
+        MessageDigest sha1 = SHA1_DIGEST.get();
+        if (sha1 == null) {
+            sha1 = MessageDigest.getInstance("SHA-1");
+            SHA1_DIGEST.set(sha1);
+        } else {
+            sha1.reset();
+        }
+        return sha1;
     }
 
     public static String byte2Hex(byte b) {
-        String[] HEX_DIGITS = {"0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "a", "b", "c", "d", "e", "f"};
         int nb = b & 0xFF;
-        int i_1 = (nb >>> 4) & 0xF;
-        int i_2 = nb & 0xF;
-        return HEX_DIGITS[i_1] + HEX_DIGITS[i_2];
+        return new String(new char[]{HEX_DIGITS[nb >>> 4], HEX_DIGITS[nb & 0x0F]});
     }
 
     public static String short2Hex(short s) {
@@ -239,14 +329,35 @@ public class Util {
         if(byteArray.length < startPos+length){
             throw new IllegalArgumentException("startPos("+startPos+")+length("+length+") > byteArray.length("+byteArray.length+")");
         }
-//        int readBytes = byteArray.length;
-        StringBuilder hexData = new StringBuilder();
-        int onebyte;
+        char[] hexData = new char[length * 2];
+        toHexChars(byteArray, startPos, length, hexData, 0);
+        return new String(hexData);
+    }
+
+    /**
+     * Encodes the bytes as (lower case) hex into 'out'
+     *
+     * @return the number of chars written (2 * length)
+     */
+    public static int toHexChars(byte[] byteArray, int startPos, int length, char[] out, int outPos) {
+        checkRange(byteArray, startPos, length);
+        for (int i = 0; i < length; i++) {
+            int b = byteArray[startPos + i] & 0xFF;
+            out[outPos++] = HEX_DIGITS[b >>> 4];
+            out[outPos++] = HEX_DIGITS[b & 0x0F];
+        }
+        return length * 2;
+    }
+
+    /**
+     * Appends the bytes as (lower case) hex, without separators
+     */
+    public static void appendHex(StringBuilder buf, byte[] byteArray, int startPos, int length) {
+        checkRange(byteArray, startPos, length);
         for (int i = 0; i < length; i++) {
-            onebyte = ((0x000000ff & byteArray[startPos+i]) | 0xffffff00);
-            hexData.append(Integer.toHexString(onebyte).substring(6));
+            int b = byteArray[startPos + i] & 0xFF;
+            buf.append(HEX_DIGITS[b >>> 4]).append(HEX_DIGITS[b & 0x0F]);
         }
-        return hexData.toString();
     }
 
     public static String int2Hex(int i) {
@@ -349,23 +460,54 @@ public class Util {
     }
 
     public static byte[] fromHexString(String encoded) {
-        encoded = removeSpaces(encoded);
-        if (encoded.length() == 0){
-            return new byte[0];
-        }
-        if ((encoded.length() % 2) != 0) {
-            throw new IllegalArgumentException("Input string must contain an even number of characters: "+encoded);
+        int numChars = 0;
+        for (int i = 0; i < encoded.length(); i++) {
+            if (encoded.charAt(i) != ' ') {
+                numChars++;
+            }
         }
-        final byte result[] = new byte[encoded.length() / 2];
-        final char enc[] = encoded.toCharArray();
-        for (int i = 0; i < enc.length; i += 2) {
-            StringBuilder curr = new StringBuilder(2);
-            curr.append(enc[i]).append(enc[i + 1]);
-            result[i / 2] = (byte) Integer.parseInt(curr.toString(), 16);
+        if ((numChars % 2) != 0) {
+            throw new IllegalArgumentException("Input string must contain an even number of characters: "+removeSpaces(encoded));
         }
+        final byte result[] = new byte[numChars / 2];
+        fromHexString(encoded, result, 0);
         return result;
     }
 
+    /**
+     * Decodes hex (spaces are ignored) directly into 'out'
+     *
+     * @return the number of bytes written
+     * @throws NumberFormatException if a character is not a hex digit
+     */
+    public static int fromHexString(CharSequence encoded, byte[] out, int outPos) {
+        int start = outPos;
+        int high = -1;
+        for (int i = 0; i < encoded.length(); i++) {
+            char c = encoded.charAt(i);
+            if (c == ' ') {
+                continue;
+            }
+            int value = c < 128 ? HEX_VALUES[c] : -1;
+            if (value < 0) {
+                throw new NumberFormatException("Invalid hex character '" + c + "' at index " + i + ": " + encoded);
+            }
+            if (high < 0) {
+                high = value;
+            } else {
+                if (outPos >= out.length) {
+                    throw new IllegalArgumentException("Output array too small: " + out.length);
+                }
+                out[outPos++] = (byte) ((high << 4) | value);
+                high = -1;
+            }
+        }
+        if (high >= 0) {
+            throw new IllegalArgumentException("Input string must contain an even number of characters: " + encoded);
+        }
+        return outPos - start;
+    }
+
     public static String removeCRLFTab(String s) {
         StringTokenizer st = new StringTokenizer(s, "\r\n\t", false);
         StringBuilder buf = new StringBuilder();
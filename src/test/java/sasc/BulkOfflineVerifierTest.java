@@ -0,0 +1,149 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import sasc.emv.CA;
+
+/**
+ *
+ * @author sasc
+ */
+public class BulkOfflineVerifierTest {
+
+    public BulkOfflineVerifierTest() {
+    }
+
+    @After
+    public void tearDown() {
+        CA.initFromFile("/certificationauthorities.xml");
+    }
+
+    private static void copyResource(String resource, File target) throws Exception {
+        InputStream in = BulkOfflineVerifierTest.class.getResourceAsStream(resource);
+        OutputStream out = new FileOutputStream(target);
+        try {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    /**
+     * The SDA test card verifies with the mock CA keys
+     */
+    @Test
+    public void testVerifyCard() throws Exception {
+        System.out.println("verifyCard");
+        CA.initFromFile("/certificationauthorities_mock.xml");
+        InputStreamReader reader = new InputStreamReader(BulkOfflineVerifierTest.class.getResourceAsStream("/sdacardtransaction.xml"), "UTF-8");
+        BulkOfflineVerifier.CardResult result;
+        try {
+            result = BulkOfflineVerifier.verifyCard("sda", reader);
+        } finally {
+            reader.close();
+        }
+        assertNull(result.getError());
+        assertEquals(2, result.getApplications().size());
+        BulkOfflineVerifier.ApplicationResult sda = result.getApplications().get(0);
+        assertEquals("SDA", sda.getMethod());
+        assertEquals(BulkOfflineVerifier.Status.VALID, sda.getStatus());
+        assertEquals(BulkOfflineVerifier.Status.NO_OFFLINE_DATA_AUTHENTICATION, result.getApplications().get(1).getStatus());
+        assertEquals(result.toString(), BulkOfflineVerifier.Status.VALID, result.getStatus());
+    }
+
+    /**
+     * A directory of dumps (one of them broken) is verified in parallel
+     */
+    @Test
+    public void testVerifyDirectory() throws Exception {
+        System.out.println("verifyDirectory");
+        CA.initFromFile("/certificationauthorities_mock.xml");
+        File dir = File.createTempFile("dumps", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        File sub = new File(dir, "sub");
+        assertTrue(sub.mkdir());
+        List<File> files = new ArrayList<File>();
+        files.add(new File(dir, "card1.xml"));
+        files.add(new File(dir, "card2.xml"));
+        files.add(new File(sub, "card3.xml"));
+        for (File file : files) {
+            copyResource("/sdacardtransaction.xml", file);
+        }
+        File broken = new File(dir, "broken.xml");
+        OutputStream out = new FileOutputStream(broken);
+        out.write("<EMVCard><Unknown/></EMVCard>".getBytes("UTF-8"));
+        out.close();
+        File ignored = new File(dir, "readme.txt");
+        assertTrue(ignored.createNewFile());
+        files.add(broken);
+        files.add(ignored);
+        try {
+            final List<BulkOfflineVerifier.CardResult> results = Collections.synchronizedList(new ArrayList<BulkOfflineVerifier.CardResult>());
+            BulkOfflineVerifier.Stats stats = new BulkOfflineVerifier(2, 2).verify(
+                    BulkOfflineVerifier.dumpFiles(Collections.singletonList(dir)), new BulkOfflineVerifier.ResultListener() {
+                @Override
+                public void cardVerified(BulkOfflineVerifier.CardResult result) {
+                    results.add(result);
+                }
+            });
+            assertEquals(4, results.size());
+            assertEquals(4, stats.getCardCount());
+            assertEquals(6, stats.getApplicationCount());
+            long bytes = 0;
+            for (File file : files) {
+                if (file.getName().endsWith(".xml")) {
+                    bytes += file.length();
+                }
+            }
+            assertEquals(bytes, stats.getByteCount());
+            assertTrue(stats.getVerificationNanos() > 0);
+            assertTrue(stats.getElapsedNanos() > 0);
+            assertTrue(stats.getCardsPerSecond() > 0);
+            assertEquals(3, stats.getCardCount(BulkOfflineVerifier.Status.VALID));
+            assertEquals(1, stats.getCardCount(BulkOfflineVerifier.Status.ERROR));
+            for (BulkOfflineVerifier.CardResult result : results) {
+                if (result.getName().endsWith("broken.xml")) {
+                    assertNotNull(result.getError());
+                } else {
+                    assertEquals(BulkOfflineVerifier.Status.VALID, result.getStatus());
+                }
+            }
+        } finally {
+            for (File file : files) {
+                file.delete();
+            }
+            sub.delete();
+            dir.delete();
+        }
+    }
+}
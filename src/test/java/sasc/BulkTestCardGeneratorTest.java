@@ -0,0 +1,166 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.security.interfaces.RSAPublicKey;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import sasc.emv.CA;
+import sasc.emv.EMVAPDUCommands;
+import sasc.iso7816.BERTLV;
+import sasc.iso7816.TLVUtil;
+import sasc.terminal.CardResponse;
+import sasc.util.RSAKeyGenerator;
+import sasc.util.Util;
+
+public class BulkTestCardGeneratorTest {
+
+    public BulkTestCardGeneratorTest() {
+    }
+
+    /**
+     * Generated cards (from key pools) verify with the generated CA key
+     */
+    @Test
+    public void testGenerate() throws Exception {
+        System.out.println("generate");
+        RSAKeyGenerator.RSAKeyPair caKey = RSAKeyGenerator.generateRSAKeys(640, BulkTestCardGenerator.PUBLIC_EXPONENT);
+        BulkTestCardGenerator generator = new BulkTestCardGenerator(caKey, Util.fromHexString("a0 00 00 09 99"), 0x42, 512, 512);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        RSAKeyGenerator.KeyPool issuerPool;
+        RSAKeyGenerator.KeyPool iccPool;
+        try {
+            issuerPool = RSAKeyGenerator.KeyPool.generate(2, 512, BulkTestCardGenerator.PUBLIC_EXPONENT, executor);
+            iccPool = RSAKeyGenerator.KeyPool.generate(1, 512, BulkTestCardGenerator.PUBLIC_EXPONENT, executor);
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(2, issuerPool.size());
+
+        File dir = File.createTempFile("cards", "");
+        assertTrue(dir.delete());
+        File caFile = new File(dir, BulkTestCardGenerator.CA_FILE_NAME);
+        try {
+            BulkTestCardGenerator.Stats stats = generator.generate(3, dir, 2, issuerPool, iccPool);
+            assertEquals(3, stats.getCardCount());
+            assertEquals(0, stats.getKeyCount());
+            assertTrue(caFile.isFile());
+
+            CA.initFromFile("/certificationauthorities.xml");
+            Reader reader = new InputStreamReader(new FileInputStream(caFile), "UTF-8");
+            try {
+                CA.addFromXml(reader);
+            } finally {
+                reader.close();
+            }
+            assertNotNull(CA.getCA(Util.fromHexString("a0 00 00 09 99")).getPublicKey(0x42));
+
+            for (int i = 1; i <= 3; i++) {
+                BulkOfflineVerifier.CardResult result = BulkOfflineVerifier.verifyFile(new File(dir, String.format("card-%08d.xml", i)));
+                assertEquals(result.toString(), 1, result.getApplications().size());
+                assertEquals("DDA", result.getApplications().get(0).getMethod());
+                assertEquals(result.toString(), BulkOfflineVerifier.Status.VALID, result.getStatus());
+            }
+
+            //The emulator signs dynamic data with the ICC private key (all cards share the single pooled ICC key)
+            Reader cardReader = new InputStreamReader(new FileInputStream(new File(dir, "card-00000001.xml")), "UTF-8");
+            CardEmulator emulator;
+            try {
+                emulator = new CardEmulator(cardReader);
+            } finally {
+                cardReader.close();
+            }
+            byte[] aid = emulator.getApplicationAIDs().get(0).getAIDBytes();
+            assertEquals(0x9000, emulator.transmit(EMVAPDUCommands.selectByDFName(aid)).getSW() & 0xFFFF);
+            CardResponse response = emulator.transmit(EMVAPDUCommands.internalAuthenticate(Util.fromHexString("01 02 03 04")));
+            assertEquals(0x9000, response.getSW() & 0xFFFF);
+            BERTLV tlv = TLVUtil.getNextTLV(new ByteArrayInputStream(response.getData()));
+            RSAPublicKey iccPublicKey = iccPool.next().getPublicKey();
+            byte[] recovered = Util.performRSA(tlv.getValueBytes(), iccPublicKey.getPublicExponent().toByteArray(), iccPublicKey.getModulus().toByteArray());
+            assertEquals(0x6a, recovered[recovered.length - 64] & 0xFF);
+            assertEquals(0x05, recovered[recovered.length - 63] & 0xFF);
+            assertEquals(0xbc, recovered[recovered.length - 1] & 0xFF);
+        } finally {
+            CA.initFromFile("/certificationauthorities.xml");
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * The pools are used independently: with only an ICC pool, a new issuer key is generated for each card
+     */
+    @Test
+    public void testGenerateWithICCPoolOnly() throws Exception {
+        System.out.println("generateWithICCPoolOnly");
+        RSAKeyGenerator.RSAKeyPair caKey = RSAKeyGenerator.generateRSAKeys(640, BulkTestCardGenerator.PUBLIC_EXPONENT);
+        BulkTestCardGenerator generator = new BulkTestCardGenerator(caKey, Util.fromHexString("a0 00 00 09 99"), 0x42, 512, 512);
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        RSAKeyGenerator.KeyPool iccPool;
+        try {
+            iccPool = RSAKeyGenerator.KeyPool.generate(1, 512, BulkTestCardGenerator.PUBLIC_EXPONENT, executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        File dir = File.createTempFile("cards", "");
+        assertTrue(dir.delete());
+        try {
+            BulkTestCardGenerator.Stats stats = generator.generate(2, dir, 1, null, iccPool);
+            assertEquals(2, stats.getCardCount());
+            assertEquals(2, stats.getKeyCount());
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * A pool with keys of another length is rejected before any card is generated
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testPoolKeyLengthMismatch() throws Exception {
+        System.out.println("poolKeyLengthMismatch");
+        RSAKeyGenerator.RSAKeyPair caKey = RSAKeyGenerator.generateRSAKeys(640, BulkTestCardGenerator.PUBLIC_EXPONENT);
+        BulkTestCardGenerator generator = new BulkTestCardGenerator(caKey, Util.fromHexString("a0 00 00 09 99"), 0x42, 512, 512);
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        RSAKeyGenerator.KeyPool iccPool;
+        try {
+            iccPool = RSAKeyGenerator.KeyPool.generate(1, 576, BulkTestCardGenerator.PUBLIC_EXPONENT, executor);
+        } finally {
+            executor.shutdown();
+        }
+        generator.generate(1, new File(System.getProperty("java.io.tmpdir"), "cards-not-created"), 1, null, iccPool);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIssuerKeyTooShort() throws Exception {
+        System.out.println("issuerKeyTooShort");
+        RSAKeyGenerator.RSAKeyPair caKey = RSAKeyGenerator.generateRSAKeys(1024, BulkTestCardGenerator.PUBLIC_EXPONENT);
+        new BulkTestCardGenerator(caKey, BulkTestCardGenerator.DEFAULT_RID, BulkTestCardGenerator.DEFAULT_CA_INDEX, 512, 512);
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import sasc.iso7816.SmartCardException;
+import sasc.util.Util;
+
+/**
+ *
+ * @author sasc
+ */
+public class CAKeyStoreTest {
+
+    private static final byte[] RID = Util.fromHexString("a0 00 00 00 03");
+
+    public CAKeyStoreTest() {
+    }
+
+    private static Collection<CA> parse(String resource) throws Exception {
+        InputStreamReader reader = new InputStreamReader(CAKeyStoreTest.class.getResourceAsStream(resource), "UTF-8");
+        try {
+            return CA.parseXml(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * The keys read back from the store equal the keys in the XML file
+     */
+    @Test
+    public void testWriteAndLookup() throws Exception {
+        System.out.println("writeAndLookup");
+        Collection<CA> cas = parse("/certificationauthorities.xml");
+        File file = File.createTempFile("cakeys", ".bin");
+        file.deleteOnExit();
+        CAKeyStore.write(cas, file);
+        CAKeyStore store = CAKeyStore.open(file);
+        assertEquals(cas.size(), store.getCACount());
+        int keyCount = 0;
+        for (CA ca : cas) {
+            List<Integer> indexes = new ArrayList<Integer>();
+            for (CAPublicKey expected : ca.getCAPublicKeys()) {
+                keyCount++;
+                indexes.add(expected.getIndex());
+                CAPublicKey actual = store.getPublicKey(ca.getRID(), expected.getIndex());
+                assertNotNull(actual);
+                assertArrayEquals(expected.getModulus(), actual.getModulus());
+                assertArrayEquals(expected.getExponent(), actual.getExponent());
+                assertArrayEquals(expected.getCertificationAuthorityPublicKeyCheckSum(), actual.getCertificationAuthorityPublicKeyCheckSum());
+                assertEquals(expected.getExpirationDate(), actual.getExpirationDate());
+                assertEquals(expected.getDescription(), actual.getDescription());
+                assertEquals(expected.getHashAlgorithmIndicator(), actual.getHashAlgorithmIndicator());
+                assertEquals(expected.getPublicKeyAlgorithmIndicator(), actual.getPublicKeyAlgorithmIndicator());
+            }
+            Collections.sort(indexes);
+            assertEquals(indexes, store.getIndexes(ca.getRID()));
+        }
+        assertEquals(keyCount, store.getKeyCount());
+        assertNull(store.getPublicKey(RID, 0xFE));
+        assertNull(store.getPublicKey(Util.fromHexString("ff ff ff ff ff"), 1));
+    }
+
+    /**
+     * CA lookups switch to a new key store file on reload
+     */
+    @Test
+    public void testHotReload() throws Exception {
+        System.out.println("hotReload");
+        File file = File.createTempFile("cakeys", ".bin");
+        file.deleteOnExit();
+        try {
+            CAKeyStore.write(parse("/certificationauthorities_test.xml"), file);
+            CA.initFromKeyStore(file);
+            assertFalse(CA.reloadKeyStoreIfModified());
+            assertNotNull(CA.getCA(RID).getPublicKey(149));
+
+            Collection<CA> production = parse("/certificationauthorities.xml");
+            Thread.sleep(1100); //File time stamp resolution
+            CAKeyStore.write(production, file);
+            assertTrue(CA.reloadKeyStoreIfModified());
+            CA ca = CA.getCA(RID);
+            assertNull(ca.getPublicKey(149));
+            for (CA expected : production) {
+                if (Arrays.equals(RID, expected.getRID())) {
+                    assertEquals(expected.getCAPublicKeys().size(), ca.getCAPublicKeys().size());
+                    assertEquals(expected.getName(), ca.getName());
+                }
+            }
+        } finally {
+            CA.initFromFile("/certificationauthorities.xml");
+        }
+    }
+
+    /**
+     * Keys are resolved from the key store on first use and then cached.
+     * A corrupt key is rejected by the checksum when it is first used
+     */
+    @Test
+    public void testKeysResolvedOnFirstUse() throws Exception {
+        System.out.println("keysResolvedOnFirstUse");
+        File file = File.createTempFile("cakeys", ".bin");
+        file.deleteOnExit();
+        try {
+            CAKeyStore.write(parse("/certificationauthorities_test.xml"), file);
+            CA.initFromKeyStore(file);
+            CAPublicKey publicKey = CA.getCA(RID).getPublicKey(149);
+            assertNotNull(publicKey);
+            assertSame(publicKey, CA.getCA(RID).getPublicKey(149));
+            assertNull(CA.getCA(RID).getPublicKey(0xFE));
+
+            //Corrupt the last byte of the modulus of the last key (of the CA with the highest RID)
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.seek(raf.length() - 1);
+                int b = raf.read();
+                raf.seek(raf.length() - 1);
+                raf.write(b ^ 0xFF);
+            } finally {
+                raf.close();
+            }
+            CA.initFromKeyStore(file);
+            try {
+                CA.getCA(Util.fromHexString("b0 12 34 56 78")).getCAPublicKeys();
+                fail("Expected exception for a corrupt key");
+            } catch (SmartCardException expectedException) {
+            }
+            assertNotNull(CA.getCA(RID).getPublicKey(149));
+        } finally {
+            CA.initFromFile("/certificationauthorities.xml");
+        }
+    }
+
+    /**
+     * A file with intact tables but a truncated data area is rejected when it is opened, and on reload
+     */
+    @Test
+    public void testTruncatedDataRejected() throws Exception {
+        System.out.println("truncatedDataRejected");
+        File file = File.createTempFile("cakeys", ".bin");
+        file.deleteOnExit();
+        try {
+            CAKeyStore.write(parse("/certificationauthorities_test.xml"), file);
+            CA.initFromKeyStore(file);
+            CAPublicKey expected = CA.getCA(RID).getPublicKey(149);
+
+            Thread.sleep(1100); //File time stamp resolution
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(raf.length() - 100);
+            } finally {
+                raf.close();
+            }
+            try {
+                CAKeyStore.open(file);
+                fail("Expected IOException for a truncated key store");
+            } catch (IOException expectedException) {
+            }
+            try {
+                CA.reloadKeyStoreIfModified();
+                fail("Expected exception for a truncated key store");
+            } catch (RuntimeException expectedException) {
+            }
+            try {
+                CA.initFromKeyStore(file);
+                fail("Expected exception for a truncated key store");
+            } catch (RuntimeException expectedException) {
+            }
+            assertSame(expected, CA.getCA(RID).getPublicKey(149));
+        } finally {
+            CA.initFromFile("/certificationauthorities.xml");
+        }
+    }
+
+    /**
+     * A corrupt file is rejected on reload, and the loaded CAs are kept
+     */
+    @Test
+    public void testCorruptFileRejectedOnReload() throws Exception {
+        System.out.println("corruptFileRejectedOnReload");
+        File file = File.createTempFile("cakeys", ".bin");
+        file.deleteOnExit();
+        try {
+            CAKeyStore.write(parse("/certificationauthorities_test.xml"), file);
+            CA.initFromKeyStore(file);
+            CAPublicKey expected = CA.getCA(RID).getPublicKey(149);
+            assertNotNull(expected);
+
+            //Overwrite everything but the header (same length)
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.seek(CAKeyStore.HEADER_SIZE);
+                raf.write(new byte[(int) raf.length() - CAKeyStore.HEADER_SIZE]);
+            } finally {
+                raf.close();
+            }
+            //Resolved keys are cached
+            assertSame(expected, CA.getCA(RID).getPublicKey(149));
+
+            try {
+                CA.initFromKeyStore(file);
+                fail("Expected exception for a corrupt key store");
+            } catch (RuntimeException expectedException) {
+            }
+            assertSame(expected, CA.getCA(RID).getPublicKey(149));
+        } finally {
+            CA.initFromFile("/certificationauthorities.xml");
+        }
+    }
+}
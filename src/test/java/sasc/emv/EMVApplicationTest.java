@@ -0,0 +1,60 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.security.MessageDigest;
+import org.junit.Test;
+import sasc.util.Util;
+import static org.junit.Assert.*;
+
+public class EMVApplicationTest {
+
+    public EMVApplicationTest() {
+    }
+
+    /**
+     * The digest fed record by record equals the hash of the concatenated offline data authentication input:
+     * record values only for SFI 1-10, whole records for SFI 11-30, then the AIP named by the SDA Tag List
+     */
+    @Test
+    public void testUpdateOfflineDataAuthenticationDigest() throws Exception {
+        System.out.println("updateOfflineDataAuthenticationDigest");
+        EMVApplication app = new EMVApplication();
+        //SFI 1 records 1-2 (1 for ODA), SFI 11 record 1 (for ODA)
+        ApplicationFileLocator afl = new ApplicationFileLocator(Util.fromHexString("08 01 02 01 58 01 01 01"));
+        app.setApplicationFileLocator(afl);
+        ApplicationElementaryFile sfi1 = afl.getApplicationElementaryFiles().get(0);
+        sfi1.setRecord(1, new Record(Util.fromHexString("70 05 5a 03 12 34 56"), 1, true));
+        sfi1.setRecord(2, new Record(Util.fromHexString("70 04 5f 30 01 02"), 2, false));
+        afl.getApplicationElementaryFiles().get(1).setRecord(1, new Record(Util.fromHexString("70 04 9f 07 01 ff"), 1, true));
+        app.setApplicationInterchangeProfile(new ApplicationInterchangeProfile((byte) 0x5c, (byte) 0x00));
+        app.setStaticDataAuthenticationTagList(new StaticDataAuthenticationTagList(Util.fromHexString("82")));
+
+        byte[] expected = Util.fromHexString("5a 03 12 34 56 70 04 9f 07 01 ff 5c 00");
+        assertArrayEquals(expected, app.getOfflineDataAuthenticationRecords());
+
+        MessageDigest sha1 = Util.getSHA1Digest();
+        sha1.update((byte) 0x01); //Prefix, as in the certificate hashes
+        app.updateOfflineDataAuthenticationDigest(sha1);
+        byte[] digest = sha1.digest();
+
+        byte[] input = new byte[expected.length + 1];
+        input[0] = 0x01;
+        System.arraycopy(expected, 0, input, 1, expected.length);
+        assertArrayEquals(Util.calculateSHA1(input), digest);
+        assertArrayEquals(MessageDigest.getInstance("SHA-1").digest(input), digest);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.io.ByteArrayInputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import sasc.emv.system.visa.VISATags;
+import sasc.iso7816.AID;
+import sasc.iso7816.TLVCursor;
+import sasc.iso7816.TLVUtil;
+import sasc.util.Util;
+
+/**
+ *
+ * @author sasc
+ */
+public class EMVTagsTest {
+
+    public EMVTagsTest() {
+    }
+
+    @Test
+    public void testGetDictionary() {
+        System.out.println("getDictionary");
+        AID visa = new AID("a0 00 00 00 03 10 10");
+        AID unknown = new AID("a1 23 45 67 89 10 10");
+        TagDictionary visaTags = EMVTags.getDictionary(visa, null);
+        TagDictionary emvTags = EMVTags.getDictionary(unknown, null);
+
+        assertSame(VISATags.APPLICATION_DEFAULT_ACTION, visaTags.find(Util.fromHexString("9f 52")));
+        assertNull(emvTags.find(Util.fromHexString("9f 52")));
+        assertSame(EMVTags.PAN, visaTags.find(Util.fromHexString("5a")));
+        assertTrue(visaTags.size() > emvTags.size());
+
+        //Cached
+        assertSame(visaTags, EMVTags.getDictionary(new AID("a0 00 00 00 03 20 10"), null));
+        assertSame(emvTags, EMVTags.getDictionary(null, null));
+
+        EMVApplication app = new EMVApplication();
+        app.setAID(visa);
+        assertSame(VISATags.APPLICATION_DEFAULT_ACTION, EMVTags.get(app, EMVTags.createUnknownTag(Util.fromHexString("9f 52"))));
+
+        //Proprietary tags resolved when parsing
+        byte[] data = Util.fromHexString("9f 52 02 c0 00");
+        assertSame(VISATags.APPLICATION_DEFAULT_ACTION, TLVUtil.getNextTLV(new ByteArrayInputStream(data), visaTags).getTag());
+        assertEquals("[UNKNOWN TAG]", TLVUtil.getNextTLV(new ByteArrayInputStream(data)).getTag().getName());
+    }
+
+    /**
+     * DOLs of an application resolve the proprietary tags of its payment system
+     */
+    @Test
+    public void testApplicationDOL() {
+        System.out.println("applicationDOL");
+        EMVApplication app = new EMVApplication();
+        app.setAID(new AID("a0 00 00 00 03 10 10"));
+        TLVCursor cdol1Tlv = new TLVCursor(Util.fromHexString("8c 06 9f 52 02 9f 37 04"));
+        assertTrue(cdol1Tlv.next());
+        app.putLazyValue(cdol1Tlv);
+        DOL cdol1 = app.getCDOL1();
+        assertSame(VISATags.APPLICATION_DEFAULT_ACTION, cdol1.getTagAndLengthList().get(0).getTag());
+        assertSame(EMVTags.UNPREDICTABLE_NUMBER, cdol1.getTagAndLengthList().get(1).getTag());
+    }
+
+    /**
+     * Dictionaries are cached per (RID, IIN). An IIN wider than 3 bytes must not collide with another RID
+     */
+    @Test
+    public void testGetDictionaryWideIIN() {
+        System.out.println("getDictionary (wide IIN)");
+        TagDictionary visaTags = EMVTags.getDictionary(new AID("a0 00 00 00 03 10 10"), null);
+        IssuerIdentificationNumber iin = new IssuerIdentificationNumber(1000000); //Packed as 01 00 00 00
+        TagDictionary otherTags = EMVTags.getDictionary(new AID("a0 00 00 00 02 10 10"), iin);
+
+        assertNotSame(visaTags, otherTags);
+        assertNull(otherTags.find(Util.fromHexString("9f 52")));
+        assertSame(VISATags.APPLICATION_DEFAULT_ACTION, EMVTags.getDictionary(new AID("a0 00 00 00 03 10 10"), null).find(Util.fromHexString("9f 52")));
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import sasc.util.Util;
+
+/**
+ *
+ * @author sasc
+ */
+public class EMVTerminalTest {
+
+    public EMVTerminalTest() {
+    }
+
+    @Test
+    public void testDOLResponsePlan() {
+        System.out.println("getDOLResponsePlan");
+        //Visa Electron (contactless) PDOL
+        byte[] pdolBytes = Util.fromHexString("9f 66 04 9f 02 06 9f 03 06 9f 1a 02 95 05 5f 2a 02 9a 03 9c 01 9f 37 04");
+        DOLResponsePlan plan = EMVTerminal.getDOLResponsePlan(new DOL(DOL.Type.PDOL, pdolBytes));
+        assertEquals(33, plan.getLength());
+        //Country Code, TVR, Currency Code, Date and Unpredictable Number
+        assertEquals(5, plan.getNumDynamicValues());
+        //Cached by DOL bytes
+        assertSame(plan, EMVTerminal.getDOLResponsePlan(new DOL(DOL.Type.PDOL, pdolBytes)));
+
+        EMVApplication app = new EMVApplication();
+        app.setIssuerCountryCode(76); //Brazil
+        byte[] response = EMVTerminal.constructDOLResponse(new DOL(DOL.Type.PDOL, pdolBytes), app);
+        assertEquals(33, response.length);
+        assertArrayEquals(new byte[]{0x00, 0x76}, Arrays.copyOfRange(response, 16, 18));
+        assertArrayEquals(new byte[6], Arrays.copyOfRange(response, 4, 10)); //Amount, Authorised (from terminal.properties)
+    }
+
+    @Test
+    public void testDOLResponsePlanInvalidatedBySetProperty() {
+        System.out.println("setProperty");
+        DOL dol = new DOL(DOL.Type.CDOL1, Util.fromHexString("9f 7c 02"));
+        assertArrayEquals(new byte[2], EMVTerminal.constructDOLResponse(dol, null));
+        EMVTerminal.setProperty("9f 7c", "12 34");
+        assertArrayEquals(Util.fromHexString("12 34"), EMVTerminal.constructDOLResponse(dol, null));
+    }
+}
@@ -23,7 +23,10 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import static org.junit.Assert.*;
+import sasc.iso7816.ATR;
+import sasc.iso7816.BERTLV;
 import sasc.iso7816.TLVUtil;
+import sasc.smartcard.common.SmartCard;
 import sasc.terminal.CardConnection;
 import sasc.terminal.CardResponse;
 import sasc.util.Util;
@@ -150,6 +153,117 @@ public class EMVUtilTest {
 //        // TODO review the generated test code and remove the default call to fail.
 //        fail("The test case is a prototype.");
 //    }
+
+    /**
+     * Values such as the PAN are decoded on first access, not when the record is parsed
+     */
+    @Test
+    public void testParseAppRecordLazyValues() {
+        System.out.println("parseAppRecord (lazy values)");
+        byte[] data = Util.fromHexString("70 19 5a 08 41 11 11 11 11 11 11 11 5f 24 03 16 12 31 5f 28 02 05 78 5f 34 01 01");
+        EMVApplication app = new EMVApplication();
+        EMVUtil.parseAppRecord(data, app);
+
+        assertEquals(1, app.getPANSequenceNumber()); //Decoded eagerly
+        assertTrue(app.hasLazyValue(EMVTags.PAN));
+        assertTrue(app.hasLazyValue(EMVTags.APP_EXPIRATION_DATE));
+
+        assertEquals("4111111111111111", app.getPAN().getPanAsString());
+        assertFalse(app.hasLazyValue(EMVTags.PAN));
+        assertSame(app.getPAN(), app.getPAN());
+        assertNotNull(app.getExpirationDate());
+        assertFalse(app.hasLazyValue(EMVTags.APP_EXPIRATION_DATE));
+        assertNull(app.getCVMList());
+    }
+
+    /**
+     * A data object read again replaces the value, even if the first value has already been decoded
+     */
+    @Test
+    public void testParseAppRecordLastValueWins() {
+        System.out.println("parseAppRecord (last value wins)");
+        EMVApplication app = new EMVApplication();
+        EMVUtil.parseAppRecord(Util.fromHexString("70 0a 5a 08 41 11 11 11 11 11 11 11"), app);
+        assertEquals("4111111111111111", app.getPAN().getPanAsString());
+
+        EMVUtil.parseAppRecord(Util.fromHexString("70 0a 5a 08 55 55 55 55 55 55 44 44"), app);
+        assertTrue(app.hasLazyValue(EMVTags.PAN));
+        assertEquals("5555555555554444", app.getPAN().getPanAsString());
+    }
+
+    /**
+     * Multiple Language Preferences are not supported, whether or not the first one has been decoded
+     */
+    @Test
+    public void testParseAppRecordDuplicateLanguagePreference() {
+        System.out.println("parseAppRecord (duplicate Language Preference)");
+        byte[] record = Util.fromHexString("70 07 5f 2d 04 6e 6f 65 6e");
+        for (boolean decodeFirst : new boolean[]{false, true}) {
+            EMVApplication app = new EMVApplication();
+            EMVUtil.parseAppRecord(record, app);
+            if (decodeFirst) {
+                assertNotNull(app.getLanguagePreference());
+            }
+            try {
+                EMVUtil.parseAppRecord(record, app);
+                fail("Expected RuntimeException");
+            } catch (RuntimeException ex) {
+                //expected
+            }
+        }
+    }
+
+    /**
+     * Only the AID, label and priority are read from an Application Template in a PPSE FCI.
+     * Other data objects are added to the unhandled records of the card
+     */
+    @Test
+    public void testParseFCIDDFPPSE() {
+        System.out.println("parseFCIDDF (PPSE)");
+        byte[] data = Util.fromHexString("6f 3f 84 0e 32 50 41 59 2e 53 59 53 2e 44 44 46 30 31 a5 2d bf 0c 2a"
+                + "61 28 4f 07 a0 00 00 00 04 10 10 50 0a 4d 41 53 54 45 52 43 41 52 44 87 01 01"
+                + "9f 12 04 44 45 42 49 9f 11 01 01 5f 2d 02 65 6e");
+        SmartCard card = new SmartCard(new ATR(Util.fromHexString("3b 02 14 50")));
+        DDF ddf = EMVUtil.parseFCIDDF(data, card);
+
+        assertEquals("2PAY.SYS.DDF01", new String(ddf.getName()));
+        assertEquals(1, card.getEmvApplications().size());
+        EMVApplication app = card.getEmvApplications().iterator().next();
+        assertArrayEquals(Util.fromHexString("a0 00 00 00 04 10 10"), app.getAID().getAIDBytes());
+        assertEquals("MASTERCARD", app.getLabel());
+        assertEquals(1, app.getApplicationPriorityIndicator().getSelectionPriority());
+        assertEquals("", app.getPreferredName());
+        assertEquals(-1, app.getIssuerCodeTableIndex());
+        assertNull(app.getLanguagePreference());
+
+        List<BERTLV> unhandled = card.getUnhandledRecords();
+        assertEquals(3, unhandled.size());
+        assertEquals(EMVTags.APP_PREFERRED_NAME, unhandled.get(0).getTag());
+        assertEquals(EMVTags.ISSUER_CODE_TABLE_INDEX, unhandled.get(1).getTag());
+        assertEquals(EMVTags.LANGUAGE_PREFERENCE, unhandled.get(2).getTag());
+    }
+
+    /**
+     * 'DF60' in the FCI Issuer Discretionary Data is ignored for every RID,
+     * even where the payment system defines another tag with the same id (MasterCard 'DS Input (Card)')
+     */
+    @Test
+    public void testParseFCIADFIgnoresDF60() {
+        System.out.println("parseFCIADF (DF60)");
+        String[] aids = {"a0 00 00 00 04 10 10", "a0 00 00 00 03 10 10"};
+        for (String aid : aids) {
+            byte[] data = Util.fromHexString("6f 24 84 07 " + aid + " a5 19 50 0a 4d 41 53 54 45 52 43 41 52 44"
+                    + "bf 0c 0a 9f 4d 02 0b 0a df 60 02 0b 0a");
+            EMVApplication app = new EMVApplication();
+            EMVUtil.parseFCIADF(data, app);
+
+            assertArrayEquals(Util.fromHexString(aid), app.getAID().getAIDBytes());
+            assertNotNull(app.getLogEntry());
+            assertTrue(app.getUnprocessedRecords().isEmpty());
+            assertTrue(app.getUnknownRecords().isEmpty());
+        }
+    }
+
     /**
      * Test of prettyPrintAPDUResponse method, of class EMVUtil.
      */
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import org.junit.Test;
+import sasc.BulkOfflineVerifier;
+import sasc.BulkTestCardGenerator;
+import sasc.util.RSAKeyGenerator;
+import sasc.util.Util;
+import static org.junit.Assert.*;
+
+public class ICCPublicKeyCertificateTest {
+
+    public ICCPublicKeyCertificateTest() {
+    }
+
+    /**
+     * A cached certificate is recovered without RSA, but the hash over the records is still checked
+     */
+    @Test
+    public void testValidationCacheChecksRecords() throws Exception {
+        System.out.println("validationCacheChecksRecords");
+        RSAKeyGenerator.RSAKeyPair caKey = RSAKeyGenerator.generateRSAKeys(640, BulkTestCardGenerator.PUBLIC_EXPONENT);
+        RSAKeyGenerator.RSAKeyPair issuerKey = RSAKeyGenerator.generateRSAKeys(512, BulkTestCardGenerator.PUBLIC_EXPONENT);
+        RSAKeyGenerator.RSAKeyPair iccKey = RSAKeyGenerator.generateRSAKeys(512, BulkTestCardGenerator.PUBLIC_EXPONENT);
+        BulkTestCardGenerator generator = new BulkTestCardGenerator(caKey, Util.fromHexString("a0 00 00 09 99"), 0x42, 512, 512);
+        StringWriter caXml = new StringWriter();
+        generator.writeCAXml(caXml);
+        StringWriter profile = new StringWriter();
+        generator.writeCardProfile(profile, 1, issuerKey, iccKey);
+        String card = profile.toString();
+        //Application Expiration Date in a record used for offline data authentication (not in the certificate)
+        String tamperedCard = card.replace("5f 24 03 49 12 31", "5f 24 03 49 12 30");
+        assertFalse(card.equals(tamperedCard));
+
+        CertificateValidationCache<?> cache = ICCPublicKeyCertificate.getValidationCache();
+        try {
+            CA.initFromFile("/certificationauthorities.xml");
+            CA.addFromXml(new StringReader(caXml.toString()));
+            cache.clear();
+
+            long hits = cache.getHitCount();
+            assertEquals(BulkOfflineVerifier.Status.VALID, BulkOfflineVerifier.verifyCard("card", new StringReader(card)).getStatus());
+            assertEquals(1, cache.size());
+            assertEquals(hits, cache.getHitCount());
+
+            assertEquals(BulkOfflineVerifier.Status.VALID, BulkOfflineVerifier.verifyCard("card", new StringReader(card)).getStatus());
+            assertEquals(hits + 1, cache.getHitCount());
+
+            //Same certificate (cache hit), different records
+            BulkOfflineVerifier.CardResult result = BulkOfflineVerifier.verifyCard("tampered", new StringReader(tamperedCard));
+            assertEquals(hits + 2, cache.getHitCount());
+            assertEquals(result.toString(), BulkOfflineVerifier.Status.FAILED, result.getStatus());
+        } finally {
+            cache.clear();
+            CA.initFromFile("/certificationauthorities.xml");
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import sasc.util.Util;
+
+/**
+ *
+ * @author sasc
+ */
+public class IssuerPublicKeyCertificateTest {
+
+    private static final byte[] RID = Util.fromHexString("a0 00 00 00 03");
+    private static final byte[] SIGNED_BYTES = Util.fromHexString(
+            "8b 39 01 f6 25 30 48 a8 b2 cb 08 97 4a 42 45 d9"
+            + "0e 1f 0c 4a 2a 69 bc a4 69 61 5a 71 db 21 ee 7b"
+            + "3a a9 42 00 cf ae dc d6 f0 a7 d9 ad 0b f7 92 13"
+            + "b6 a4 18 d7 a4 9d 23 4e 5c 97 15 c9 14 0d 87 94"
+            + "0f 2e 04 d6 97 1f 4a 20 4c 92 7a 45 5d 4f 8f c0"
+            + "d6 40 2a 79 a1 ce 05 aa 3a 52 68 67 32 98 53 f5"
+            + "ac 2f eb 3c 6f 59 ff 6c 45 3a 72 45 e3 9d 73 45"
+            + "14 61 72 57 95 ed 73 09 70 99 96 3b 82 eb f7 20"
+            + "3c 1f 78 a5 29 14 0c 18 2d bb e6 b4 2a e0 0c 02");
+    private static final byte[] REMAINDER = Util.fromHexString(
+            "33 f5 e4 44 7d 4a 32 e5 93 6e 5a 13 39 32 9b b4 e8 dd 8b f0 04 4c e4 42 8e 24 d0 86 6f ae fd 23 48 80 9d 71");
+
+    public IssuerPublicKeyCertificateTest() {
+    }
+
+    private static IssuerPublicKeyCertificate createCert(byte[] remainder) {
+        IssuerPublicKeyCertificate cert = new IssuerPublicKeyCertificate(CA.getCA(RID));
+        cert.setCAPublicKeyIndex(149);
+        cert.setSignedBytes(SIGNED_BYTES);
+        cert.getIssuerPublicKey().setExponent(new byte[]{0x03});
+        cert.getIssuerPublicKey().setRemainder(remainder);
+        return cert;
+    }
+
+    /**
+     * The second validation of the same certificate is served from the cache
+     */
+    @Test
+    public void testValidationCache() {
+        System.out.println("validationCache");
+        CA.initFromFile("/certificationauthorities_test.xml");
+        CertificateValidationCache<?> cache = IssuerPublicKeyCertificate.getValidationCache();
+        cache.clear();
+
+        IssuerPublicKeyCertificate first = createCert(REMAINDER);
+        long misses = cache.getMissCount();
+        long hits = cache.getHitCount();
+        assertTrue(first.validate());
+        assertEquals(misses + 1, cache.getMissCount());
+        assertEquals(1, cache.size());
+
+        IssuerPublicKeyCertificate second = createCert(REMAINDER);
+        assertTrue(second.validate());
+        assertEquals(hits + 1, cache.getHitCount());
+        assertArrayEquals(first.getIssuerPublicKey().getModulus(), second.getIssuerPublicKey().getModulus());
+        assertEquals(first.toString(), second.toString());
+
+        //A different remainder is a different key (and fails validation)
+        IssuerPublicKeyCertificate other = createCert(Util.fromHexString("00"));
+        try {
+            other.validate();
+            fail("Expected SignedDataException");
+        } catch (SignedDataException expected) {
+        }
+        assertEquals(misses + 2, cache.getMissCount());
+        assertEquals(1, cache.size());
+    }
+
+    /**
+     * The modulus from the precomputed recovery matches the validated key, once the remainder is known
+     */
+    @Test
+    public void testPrecomputedRecovery() {
+        System.out.println("precomputedRecovery");
+        CA.initFromFile("/certificationauthorities_test.xml");
+        IssuerPublicKeyCertificate.getValidationCache().clear();
+
+        IssuerPublicKeyCertificate cert = createCert(new byte[0]);
+        assertTrue(cert.canPrecomputeRecovery());
+        assertNull(cert.getPrecomputedIssuerPublicKeyModulus(new byte[0]));
+        cert.precomputeRecovery();
+        assertNull(cert.getPrecomputedIssuerPublicKeyModulus(new byte[0])); //Remainder not read yet
+        cert.getIssuerPublicKey().setRemainder(REMAINDER);
+        byte[] modulus = cert.getPrecomputedIssuerPublicKeyModulus(REMAINDER);
+        assertNotNull(modulus);
+        assertTrue(cert.validate());
+        assertArrayEquals(cert.getIssuerPublicKey().getModulus(), modulus);
+
+        assertFalse(new IssuerPublicKeyCertificate(null).canPrecomputeRecovery());
+    }
+}
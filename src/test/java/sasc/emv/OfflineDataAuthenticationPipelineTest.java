@@ -0,0 +1,150 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import sasc.CardEmulator;
+import sasc.smartcard.common.CardSession;
+import sasc.smartcard.common.SessionProcessingEnv;
+import sasc.smartcard.common.SmartCard;
+import sasc.terminal.CardConnection;
+import sasc.util.Log;
+import static org.junit.Assert.*;
+
+public class OfflineDataAuthenticationPipelineTest {
+
+    public OfflineDataAuthenticationPipelineTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        EMVTerminal.setProperty(EMVTags.TERMINAL_COUNTRY_CODE, new byte[]{0x08, 0x26});
+        EMVTerminal.setProperty(EMVTags.TRANSACTION_CURRENCY_CODE, new byte[]{0x08, 0x26});
+    }
+
+    /**
+     * Holds every task until the gate is opened, and records the thread each task was submitted from
+     */
+    private static class GatedExecutor extends ThreadPoolExecutor {
+
+        final CountDownLatch gate = new CountDownLatch(1);
+        final List<Thread> submitters = Collections.synchronizedList(new ArrayList<Thread>());
+
+        GatedExecutor() {
+            super(2, 2, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            submitters.add(Thread.currentThread());
+            super.execute(command);
+        }
+
+        @Override
+        protected void beforeExecute(Thread t, Runnable r) {
+            try {
+                gate.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The Issuer Public Key Certificate and the Signed Static Application Data are in the last two records.
+     * When the issuer recovery is still running after the last record, it starts the SSAD recovery itself
+     * instead of leaving it to join().
+     */
+    @Test
+    public void testIssuerRecoveryStartsSSADRecovery() throws Exception {
+        System.out.println("issuerRecoveryStartsSSADRecovery");
+        CA.initFromFile("/certificationauthorities_mock.xml");
+        IssuerPublicKeyCertificate.getValidationCache().clear();
+        EMVTerminal.setIsOnline(false);
+        EMVTerminal.setDoVerifyPinIfRequired(false);
+
+        GatedExecutor executor = new GatedExecutor();
+        try {
+            CardConnection term = new CardEmulator("/sdacardtransaction.xml");
+            SmartCard smartCard = CardSession.createSession(term, new SessionProcessingEnv()).initCard();
+            EMVSession session = EMVSession.startSession(smartCard, term);
+            session.setOfflineDataAuthenticationExecutor(executor);
+            session.initContext();
+            EMVApplication app = smartCard.getEmvApplications().iterator().next();
+            session.selectApplication(app);
+            session.initiateApplicationProcessing();
+
+            //All records read, the issuer recovery is held at the gate
+            assertEquals(1, executor.getTaskCount());
+            executor.gate.countDown();
+            long deadline = System.currentTimeMillis() + 10000;
+            while (executor.getCompletedTaskCount() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, executor.getCompletedTaskCount());
+            assertNotSame(Thread.currentThread(), executor.submitters.get(1));
+
+            session.prepareTransactionProcessing();
+            assertTrue(app.getSignedStaticApplicationData().isValid());
+        } finally {
+            executor.gate.countDown();
+            executor.shutdown();
+            CA.initFromFile("/certificationauthorities.xml");
+            Log.resetStepNo();
+        }
+    }
+
+    /**
+     * A caller-supplied executor that rejects the recoveries does not abort the transaction:
+     * the data is recovered on the session thread
+     */
+    @Test
+    public void testRejectedRecoveryFallsBackToSessionThread() throws Exception {
+        System.out.println("rejectedRecoveryFallsBackToSessionThread");
+        CA.initFromFile("/certificationauthorities_mock.xml");
+        IssuerPublicKeyCertificate.getValidationCache().clear();
+        EMVTerminal.setIsOnline(false);
+        EMVTerminal.setDoVerifyPinIfRequired(false);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        try {
+            CardConnection term = new CardEmulator("/sdacardtransaction.xml");
+            SmartCard smartCard = CardSession.createSession(term, new SessionProcessingEnv()).initCard();
+            EMVSession session = EMVSession.startSession(smartCard, term);
+            session.setOfflineDataAuthenticationExecutor(executor);
+            session.initContext();
+            EMVApplication app = smartCard.getEmvApplications().iterator().next();
+            session.selectApplication(app);
+            session.initiateApplicationProcessing();
+            session.prepareTransactionProcessing();
+            assertTrue(app.getSignedStaticApplicationData().isValid());
+        } finally {
+            CA.initFromFile("/certificationauthorities.xml");
+            Log.resetStepNo();
+        }
+    }
+}
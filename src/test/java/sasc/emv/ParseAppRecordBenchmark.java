@@ -0,0 +1,181 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.util.ArrayList;
+import java.util.List;
+import sasc.CardEmulator;
+import sasc.iso7816.AID;
+import sasc.iso7816.TLVCursor;
+import sasc.iso7816.Tag;
+import sasc.terminal.CardConnection;
+import sasc.terminal.CardResponse;
+import sasc.util.Log;
+import sasc.util.Util;
+
+/**
+ * Microbenchmark of the per-record cost of parsing READ RECORD responses.
+ *
+ * Compares the old tag lookup (a chain of Tag.equals() calls against every
+ * handled tag) with the TagDispatchTable lookup used by EMVUtil.parseAppRecord.
+ * Both iterate the records with the same TLVCursor, and the cost of the
+ * iteration alone is measured too, so the difference is the lookup only.
+ * Finally the full parseAppRecord call is measured (new code only; the old
+ * parseAppRecord no longer exists).
+ *
+ * The records are read from the emulated card in sdacardtransaction.xml.
+ *
+ * Run with: java -cp target/classes:target/test-classes:... sasc.emv.ParseAppRecordBenchmark [iterations]
+ *
+ * @author sasc
+ */
+public class ParseAppRecordBenchmark {
+
+    //The tags handled by parseAppRecord, in the order of the old if-else chain
+    private static final Tag[] IF_CHAIN_TAGS = new Tag[]{
+        EMVTags.CARDHOLDER_NAME, EMVTags.TRACK1_DISCRETIONARY_DATA, EMVTags.TRACK2_DISCRETIONARY_DATA,
+        EMVTags.TRACK_2_EQV_DATA, EMVTags.APP_EXPIRATION_DATE, EMVTags.APP_EFFECTIVE_DATE, EMVTags.PAN,
+        EMVTags.PAN_SEQUENCE_NUMBER, EMVTags.APP_USAGE_CONTROL, EMVTags.CVM_LIST, EMVTags.LANGUAGE_PREFERENCE,
+        EMVTags.ISSUER_ACTION_CODE_DEFAULT, EMVTags.ISSUER_ACTION_CODE_DENIAL, EMVTags.ISSUER_ACTION_CODE_ONLINE,
+        EMVTags.ISSUER_COUNTRY_CODE, EMVTags.APPLICATION_CURRENCY_CODE, EMVTags.APP_CURRENCY_EXPONENT,
+        EMVTags.APP_VERSION_NUMBER_CARD, EMVTags.CDOL1, EMVTags.CDOL2, EMVTags.LOWER_CONSEC_OFFLINE_LIMIT,
+        EMVTags.UPPER_CONSEC_OFFLINE_LIMIT, EMVTags.SERVICE_CODE, EMVTags.SDA_TAG_LIST,
+        EMVTags.CA_PUBLIC_KEY_INDEX_CARD, EMVTags.ISSUER_PUBLIC_KEY_CERT, EMVTags.ISSUER_PUBLIC_KEY_EXP,
+        EMVTags.ISSUER_PUBLIC_KEY_REMAINDER, EMVTags.SIGNED_STATIC_APP_DATA, EMVTags.ICC_PUBLIC_KEY_CERT,
+        EMVTags.ICC_PUBLIC_KEY_EXP, EMVTags.ICC_PUBLIC_KEY_REMAINDER, EMVTags.ICC_PIN_ENCIPHERMENT_PUBLIC_KEY_CERT,
+        EMVTags.ICC_PIN_ENCIPHERMENT_PUBLIC_KEY_EXP, EMVTags.ICC_PIN_ENCIPHERMENT_PUBLIC_KEY_REM, EMVTags.DDOL,
+        EMVTags.IBAN, EMVTags.BANK_IDENTIFIER_CODE, EMVTags.APP_DISCRETIONARY_DATA
+    };
+
+    private static volatile int sink;
+
+    private static List<byte[]> readRecords() throws Exception {
+        CardConnection card = new CardEmulator("/sdacardtransaction.xml");
+        List<byte[]> records = new ArrayList<byte[]>();
+        card.transmit(Util.fromHexString("00 A4 04 00 07 a1 23 45 67 89 10 10 00"));
+        for (int recordNum = 1; ; recordNum++) {
+            //SFI 1
+            CardResponse response = card.transmit(new byte[]{0x00, (byte) 0xB2, (byte) recordNum, 0x0C, 0x00});
+            if (response.getSW() != SW.SUCCESS.getSW()) {
+                break;
+            }
+            records.add(response.getData());
+        }
+        return records;
+    }
+
+    private static int iterationOnly(List<byte[]> records) {
+        int found = 0;
+        for (byte[] record : records) {
+            TLVCursor template = new TLVCursor(record);
+            template.next();
+            TLVCursor tlv = template.getValueCursor();
+            while (tlv.next()) {
+                found += tlv.getTagKey() & 1;
+            }
+        }
+        return found;
+    }
+
+    private static int ifChainLookup(List<byte[]> records) {
+        int found = 0;
+        for (byte[] record : records) {
+            TLVCursor template = new TLVCursor(record);
+            template.next();
+            TLVCursor tlv = template.getValueCursor();
+            while (tlv.next()) {
+                Tag tlvTag = tlv.getTag();
+                for (Tag tag : IF_CHAIN_TAGS) {
+                    if (tlvTag.equals(tag)) {
+                        found++;
+                        break;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    private static int dispatchTableLookup(List<byte[]> records, AID aid) {
+        int found = 0;
+        for (byte[] record : records) {
+            TLVCursor template = new TLVCursor(record);
+            template.next();
+            TLVCursor tlv = template.getValueCursor();
+            while (tlv.next()) {
+                if (EMVTagHandlers.RECORD_TEMPLATE.getHandler(tlv, aid) != null) {
+                    found++;
+                }
+            }
+        }
+        return found;
+    }
+
+    private static int parseAppRecord(List<byte[]> records, AID aid) {
+        EMVApplication app = new EMVApplication();
+        app.setAID(aid);
+        for (byte[] record : records) {
+            EMVUtil.parseAppRecord(record, app);
+        }
+        return app.getUnprocessedRecords().size();
+    }
+
+    private static void report(String name, long nanos, int iterations, int numRecords) {
+        System.out.println(String.format("%-40s %10.1f ns/record", name, (double) nanos / ((long) iterations * numRecords)));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        Log.setLevel(Log.Level.OFF);
+        sasc.smartcard.common.Context.init();
+        CA.initFromFile("/certificationauthorities_mock.xml");
+        List<byte[]> records = readRecords();
+        AID aid = new AID("a1 23 45 67 89 10 10");
+        System.out.println("Records: " + records.size() + ", iterations: " + iterations);
+
+        for (int round = 0; round < 3; round++) { //The first rounds are warm up
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += iterationOnly(records);
+            }
+            long iteration = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += ifChainLookup(records);
+            }
+            long ifChain = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += dispatchTableLookup(records, aid);
+            }
+            long dispatch = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations / 10; i++) {
+                sink += parseAppRecord(records, aid);
+            }
+            long parse = System.nanoTime() - start;
+
+            System.out.println("Round " + (round + 1));
+            report("TLVCursor iteration only", iteration, iterations, records.size());
+            report("TLVCursor + Tag.equals() chain", ifChain, iterations, records.size());
+            report("TLVCursor + TagDispatchTable", dispatch, iterations, records.size());
+            report("EMVUtil.parseAppRecord (full)", parse, iterations / 10, records.size());
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.iso7816;
+
+import java.io.ByteArrayInputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import sasc.emv.EMVTags;
+import sasc.util.Util;
+
+/**
+ *
+ * @author sasc
+ */
+public class TLVCursorTest {
+
+    public TLVCursorTest() {
+    }
+
+    /**
+     * The cursor must produce the same data objects as TLVUtil.getNextTLV
+     */
+    @Test
+    public void testSameAsGetNextTLV() {
+        System.out.println("next");
+        byte[] data = Util.fromHexString("00 ff 70 1c 5f 20 0f 56 49 53 41 20 43 41 52 44 48 4f 4c 44 45 52"
+                + "9f 08 02 00 8c 5a 01 42 00 00 ff 8c 81 03 9f 02 06 00");
+
+        TLVCursor cursor = new TLVCursor(data);
+        ByteArrayInputStream stream = new ByteArrayInputStream(data);
+        while (stream.available() >= 2) {
+            BERTLV expected = TLVUtil.getNextTLV(stream);
+            assertTrue(cursor.next());
+            assertEquals(expected.getTag(), cursor.getTag());
+            assertEquals(expected.getLength(), cursor.getValueLength());
+            assertArrayEquals(expected.getRawEncodedLengthBytes(), cursor.getRawEncodedLengthBytes());
+            assertArrayEquals(expected.getValueBytes(), cursor.getValueBytes());
+        }
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void testNested() {
+        System.out.println("getValueCursor");
+        byte[] data = Util.fromHexString("77 0e 82 02 38 00 94 08 08 01 03 01 10 01 01 00");
+
+        TLVCursor cursor = new TLVCursor(data);
+        assertTrue(cursor.next());
+        assertTrue(cursor.isTag(EMVTags.RESPONSE_MESSAGE_TEMPLATE_2));
+        assertTrue(cursor.isConstructed());
+
+        TLVCursor inner = cursor.getValueCursor();
+        assertTrue(inner.next());
+        assertTrue(inner.isTag(EMVTags.APPLICATION_INTERCHANGE_PROFILE));
+        assertFalse(inner.isTag(EMVTags.APPLICATION_FILE_LOCATOR));
+        assertEquals(0x3800, inner.getValueAsInt());
+        assertTrue(inner.next());
+        assertTrue(inner.isTag(EMVTags.APPLICATION_FILE_LOCATOR));
+        assertEquals(8, inner.getValueOffset());
+        assertEquals(8, inner.getValueLength());
+        assertFalse(inner.next());
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void testIndefiniteLength() {
+        System.out.println("indefinite length");
+        byte[] data = Util.fromHexString("5f 20 80 41 42 43 00 00 5a 01 42");
+
+        TLVCursor cursor = new TLVCursor(data);
+        assertTrue(cursor.next());
+        assertTrue(cursor.isTag(EMVTags.CARDHOLDER_NAME));
+        assertEquals(3, cursor.getValueLength());
+        assertTrue(cursor.next());
+        assertTrue(cursor.isTag(EMVTags.PAN));
+        assertFalse(cursor.next());
+    }
+
+    @Test(expected = TLVException.class)
+    public void testLengthOutOfBounds() {
+        System.out.println("length out of bounds");
+        TLVCursor cursor = new TLVCursor(Util.fromHexString("5a 08 42 42"));
+        cursor.next();
+    }
+}
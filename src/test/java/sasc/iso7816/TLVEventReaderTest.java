@@ -0,0 +1,119 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.iso7816;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import sasc.emv.EMVTags;
+import sasc.util.Util;
+
+/**
+ *
+ * @author sasc
+ */
+public class TLVEventReaderTest {
+
+    public TLVEventReaderTest() {
+    }
+
+    /**
+     * Records the events as "start 6f@0/1", "prim 84@0/1", "end 6f@0/1" etc (tag@valueOffset/depth)
+     */
+    private static class Recorder implements TLVVisitor {
+
+        StringBuilder events = new StringBuilder();
+        boolean descend = true;
+
+        private void add(String event, TLVCursor tlv, int depth) {
+            events.append(event).append(' ')
+                    .append(Util.byteArrayToHexString(tlv.getTagBytes()))
+                    .append('@').append(tlv.getValueOffset())
+                    .append('/').append(depth).append(';');
+        }
+
+        public boolean startConstructed(TLVCursor tlv, int depth) {
+            add("start", tlv, depth);
+            return descend;
+        }
+
+        public void primitive(TLVCursor tlv, int depth) {
+            add("prim", tlv, depth);
+        }
+
+        public void endConstructed(TLVCursor tlv, int depth) {
+            add("end", tlv, depth);
+        }
+    }
+
+    @Test
+    public void testEvents() {
+        System.out.println("parse");
+        //FCI with nested A5 and BF0C templates, followed by a primitive
+        byte[] data = Util.fromHexString("6f 13 84 02 a1 23 a5 0d 50 01 41 bf 0c 07 9f 4d 02 0b 0a 87 00"
+                + "00 00 5a 01 42");
+        Recorder recorder = new Recorder();
+        new TLVEventReader().parse(data, recorder);
+        assertEquals("start 6f@2/0;prim 84@4/1;start a5@8/1;prim 50@10/2;start bf0c@14/2;prim 9f4d@17/3;"
+                + "prim 87@21/3;end bf0c@14/2;end a5@8/1;end 6f@2/0;prim 5a@25/0;", recorder.events.toString());
+
+        recorder = new Recorder();
+        recorder.descend = false;
+        new TLVEventReader().parse(data, recorder);
+        assertEquals("start 6f@2/0;end 6f@2/0;prim 5a@25/0;", recorder.events.toString());
+    }
+
+    @Test
+    public void testIndefiniteLength() {
+        System.out.println("indefinite length");
+        //Constructed of indefinite length, containing a primitive of indefinite length
+        byte[] data = Util.fromHexString("70 80 5f 20 80 41 42 00 00 5a 01 42 00 00 9f 08 02 00 8c");
+        Recorder recorder = new Recorder();
+        new TLVEventReader().parse(data, recorder);
+        assertEquals("start 70@2/0;prim 5f20@5/1;prim 5a@11/1;end 70@2/0;prim 9f08@17/0;", recorder.events.toString());
+    }
+
+    @Test(expected = TLVException.class)
+    public void testMaxDepth() {
+        System.out.println("max depth");
+        byte[] data = Util.fromHexString("70 08 a5 06 bf 0c 03 5a 01 42");
+        new TLVEventReader(2).parse(data, new Recorder());
+    }
+
+    @Test
+    public void testMaskInPlace() {
+        System.out.println("mask");
+        byte[] data = Util.fromHexString("70 0e 5a 08 42 42 42 42 42 42 42 42 5f 34 01 01");
+        new TLVEventReader().parse(data, new TLVVisitor() {
+
+            public boolean startConstructed(TLVCursor tlv, int depth) {
+                return true;
+            }
+
+            public void primitive(TLVCursor tlv, int depth) {
+                if (tlv.isTag(EMVTags.PAN)) {
+                    byte[] buf = tlv.getData();
+                    for (int i = tlv.getValueOffset() + 3; i < tlv.getValueOffset() + tlv.getValueLength() - 2; i++) {
+                        buf[i] = (byte) 0xFF;
+                    }
+                }
+            }
+
+            public void endConstructed(TLVCursor tlv, int depth) {
+            }
+        });
+        assertArrayEquals(Util.fromHexString("70 0e 5a 08 42 42 42 ff ff ff 42 42 5f 34 01 01"), data);
+    }
+}
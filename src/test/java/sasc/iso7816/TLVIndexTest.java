@@ -0,0 +1,71 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.iso7816;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import sasc.emv.EMVTags;
+import sasc.util.Util;
+
+/**
+ *
+ * @author sasc
+ */
+public class TLVIndexTest {
+
+    public TLVIndexTest() {
+    }
+
+    @Test
+    public void testBuild() {
+        System.out.println("build");
+        byte[] data = Util.fromHexString("70 12 5a 08 41 11 11 11 11 11 11 11 a5 06 5f 24 03 16 12 31");
+        TLVIndex index = TLVIndex.build(data);
+        assertEquals(4, index.size());
+
+        int i = index.indexOf(EMVTags.FCI_PROPRIETARY_TEMPLATE);
+        assertEquals(2, i);
+        assertTrue(index.isConstructed(i));
+        assertEquals(1, index.getDepth(i));
+
+        i = index.indexOf(EMVTags.APP_EXPIRATION_DATE);
+        assertEquals(3, i);
+        assertFalse(index.isConstructed(i));
+        assertEquals(2, index.getDepth(i));
+        assertEquals(17, index.getValueOffset(i));
+        assertSame(data, index.getData(i));
+        assertArrayEquals(Util.fromHexString("16 12 31"), index.getValueBytes(EMVTags.APP_EXPIRATION_DATE));
+        assertNull(index.getValueBytes(EMVTags.CVM_LIST));
+    }
+
+    @Test
+    public void testPutAndRemove() {
+        System.out.println("put");
+        TLVIndex index = new TLVIndex(1);
+        TLVCursor cursor = new TLVCursor(Util.fromHexString("5a 01 42 5f 24 03 16 12 31 5a 01 43"));
+        while (cursor.next()) {
+            index.put(cursor);
+        }
+        //The second PAN replaces the first
+        assertEquals(2, index.size());
+        assertArrayEquals(new byte[]{0x43}, index.getValueBytes(EMVTags.PAN));
+
+        assertTrue(index.remove(index.getTagKey(index.indexOf(EMVTags.PAN))));
+        assertFalse(index.contains(EMVTags.PAN));
+        assertTrue(index.contains(EMVTags.APP_EXPIRATION_DATE));
+        assertEquals(1, index.size());
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.iso7816;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import sasc.emv.EMVTags;
+import sasc.util.Util;
+
+/**
+ *
+ * @author sasc
+ */
+public class TLVWriterTest {
+
+    public TLVWriterTest() {
+    }
+
+    @Test
+    public void testEncodeLength() {
+        System.out.println("encodeLength");
+        assertArrayEquals(Util.fromHexString("7f"), BERTLV.encodeLength(0x7f));
+        assertArrayEquals(Util.fromHexString("81 80"), BERTLV.encodeLength(0x80));
+        assertArrayEquals(Util.fromHexString("82 01 00"), BERTLV.encodeLength(0x100));
+        assertArrayEquals(Util.fromHexString("83 01 00 00"), BERTLV.encodeLength(0x10000));
+    }
+
+    @Test
+    public void testNestedBackPatch() {
+        System.out.println("endConstructed");
+        byte[] longValue = new byte[200];
+        TLVWriter writer = new TLVWriter(256);
+        writer.startConstructed(EMVTags.FCI_TEMPLATE)
+                .write(EMVTags.DEDICATED_FILE_NAME, Util.fromHexString("a0 00 00 00 03 10 10"))
+                .startConstructed(EMVTags.FCI_PROPRIETARY_TEMPLATE)
+                .write(EMVTags.APPLICATION_LABEL, longValue)
+                .endConstructed()
+                .endConstructed();
+        byte[] encoded = writer.toByteArray();
+
+        TLVCursor cursor = new TLVCursor(encoded);
+        assertTrue(cursor.next());
+        assertTrue(cursor.isTag(EMVTags.FCI_TEMPLATE));
+        assertEquals(encoded.length - 3, cursor.getValueLength()); //6f 81 xx
+        TLVCursor inner = cursor.getValueCursor();
+        assertTrue(inner.next());
+        assertArrayEquals(Util.fromHexString("a0 00 00 00 03 10 10"), inner.getValueBytes());
+        assertTrue(inner.next());
+        assertTrue(inner.isTag(EMVTags.FCI_PROPRIETARY_TEMPLATE));
+        assertEquals(203, inner.getValueLength());
+        assertFalse(cursor.next());
+
+        writer.reset();
+        assertEquals(0, writer.size());
+    }
+
+    @Test
+    public void testCommand() {
+        System.out.println("startCommand");
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        buf.put((byte) 0x55); //Data before the writer's start position is left alone
+        TLVWriter writer = new TLVWriter(buf);
+        writer.startCommand(0x80, 0xA8, 0x00, 0x00)
+                .startConstructed(EMVTags.COMMAND_TEMPLATE)
+                .endConstructed()
+                .endCommand((byte) 0x00);
+        assertArrayEquals(Util.fromHexString("80 A8 00 00 02 83 00 00"), writer.toByteArray());
+
+        writer.reset();
+        writer.startCommand(0x80, 0xCA, 0x9F, 0x36).endCommand((byte) 0x00);
+        assertArrayEquals(Util.fromHexString("80 CA 9F 36 00"), writer.toByteArray());
+        assertEquals(0x55, buf.get(0));
+    }
+}
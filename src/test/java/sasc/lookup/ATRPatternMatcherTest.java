@@ -0,0 +1,123 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.lookup;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import sasc.util.Util;
+
+public class ATRPatternMatcherTest {
+
+    public ATRPatternMatcherTest() {
+    }
+
+    @Test
+    public void testMatchRankedBySpecificity() {
+        System.out.println("matchRankedBySpecificity");
+        Map<String, String> patterns = new LinkedHashMap<String, String>();
+        patterns.put("3B 67 00 00 A6 40 40 00 09 90 00", "exact");
+        patterns.put("3B 67 00 00 .. 40 40 00 09 90 00", "wildcard byte");
+        patterns.put("3B 67 00 00 A[5,6] 40 40 00 09 90 00", "class");
+        patterns.put("3B 67 .*", "prefix");
+        patterns.put("3B 68 00 00 A6 40 40 00 09 90 00", "other");
+        patterns.put("3B 67 00 00 A6 4[0-3] 40", "too short");
+        patterns.put("3B 68 ...00", "dots span a space");
+        ATRPatternMatcher<String> matcher = ATRPatternMatcher.compile(patterns);
+        assertEquals(7, matcher.size());
+
+        List<String> result = matcher.match(Util.fromHexString("3B 67 00 00 A6 40 40 00 09 90 00"));
+        assertEquals("[exact, class, wildcard byte, prefix]", result.toString());
+        result = matcher.match(Util.fromHexString("3B 67 00 00 A5 40 40 00 09 90 00"));
+        assertEquals("[class, wildcard byte, prefix]", result.toString());
+        assertEquals("[prefix]", matcher.match(Util.fromHexString("3B 67 01")).toString());
+        //As in the regular expression, the space before '.*' must be matched
+        assertTrue(matcher.match(Util.fromHexString("3B 67")).isEmpty());
+        assertEquals("[too short, prefix]", matcher.match(Util.fromHexString("3B 67 00 00 A6 43 40")).toString());
+        assertEquals("[dots span a space]", matcher.match(Util.fromHexString("3B 68 12 00")).toString());
+        assertTrue(matcher.match(Util.fromHexString("3B 68 00")).isEmpty());
+        assertTrue(matcher.match(Util.fromHexString("3B 69 00")).isEmpty());
+        assertTrue(matcher.match(new byte[0]).isEmpty());
+    }
+
+    @Test
+    public void testParse() {
+        System.out.println("parse");
+        int space = 1 << 16;
+        assertArrayEquals(new int[]{1 << 3, 1 << 0xB, space, 0x1FFFF, 1 << 1, space, (1 << 1) | (1 << 2) | (1 << 3), 0},
+                ATRPatternMatcher.parse("3B .1 [1-3].*"));
+        assertArrayEquals(new int[]{(1 << 0xA) | (1 << 0xF)}, ATRPatternMatcher.parse("[F,A]"));
+        assertNull(ATRPatternMatcher.parse("3B (00|01)"));
+        assertNull(ATRPatternMatcher.parse("3B [0"));
+        assertTrue(ATRPatternMatcher.isSupported("3B .1 [1-3].*"));
+        assertFalse(ATRPatternMatcher.isSupported("3B (00|01)"));
+    }
+
+    /**
+     * The matcher finds the same patterns as the regular expressions of smartcard_list.txt
+     */
+    @Test
+    public void testSameAsRegex() {
+        System.out.println("sameAsRegex");
+        ATR_DB.initialize();
+        Map<String, ATR_DB.PublicATR> all = ATR_DB.getAll();
+        Random random = new Random(4711);
+        List<String> patterns = new ArrayList<String>(all.keySet());
+        for (int n = 0; n < patterns.size(); n++) {
+            String pattern = patterns.get(n);
+            //An ATR built from the pattern, with random wildcard nibbles
+            StringBuilder buf = new StringBuilder();
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (c == '.' && i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+                    buf.append(" 5A");
+                    i++;
+                } else if (c == '.' && buf.length() % 3 == 2) {
+                    buf.append(' ');
+                } else if (c == '.') {
+                    buf.append(Character.toUpperCase(Character.forDigit(random.nextInt(16), 16)));
+                } else if (c == '[') {
+                    buf.append(pattern.charAt(i + 1));
+                    i = pattern.indexOf(']', i);
+                } else {
+                    buf.append(c);
+                }
+            }
+            byte[] atr = Util.fromHexString(buf.toString());
+            String atrStr = Util.prettyPrintHexNoWrap(atr).toUpperCase();
+            Set<String> expected = new HashSet<String>();
+            for (String other : patterns) {
+                if (atrStr.matches("^" + other + "$")) {
+                    expected.add(other);
+                }
+            }
+            Set<String> found = new HashSet<String>();
+            List<ATR_DB.PublicATR> matches = ATR_DB.searchATRs(atr);
+            for (ATR_DB.PublicATR match : matches) {
+                found.add(match.getATR().toUpperCase().trim());
+            }
+            assertEquals(pattern, expected, found);
+            assertTrue(pattern, !matches.isEmpty());
+            assertEquals(matches.get(0).getDescriptiveText(), ATR_DB.searchATR(atr));
+        }
+    }
+}
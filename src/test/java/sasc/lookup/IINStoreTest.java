@@ -0,0 +1,112 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.lookup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import sasc.lookup.IIN_DB.IIN;
+
+public class IINStoreTest {
+
+    public IINStoreTest() {
+    }
+
+    private static String[] record(String iin, String issuerName) {
+        return new String[]{iin, "NORWAY", "Visa DEBIT", issuerName, ""};
+    }
+
+    @Test
+    public void testLongestPrefix() {
+        System.out.println("longestPrefix");
+        IINStore store = IINStore.build(Arrays.asList(record("49256412", "Product"), record("4", "Visa"),
+                record("492564", "Bank"), record("492565", "Other bank"), record("X1234", "Not numeric"), record("012345", "Leading zero")));
+        assertEquals(6, store.size());
+        assertEquals("49256412", store.search("4925641234567890").getIIN());
+        IIN bank = store.search("4925649999999999");
+        assertEquals("492564", bank.getIIN());
+        assertEquals("Bank", bank.getIssuerName());
+        assertEquals("NORWAY", bank.getLocation());
+        assertEquals("Visa DEBIT", bank.getType());
+        assertEquals("", bank.getPhoneNumber());
+        assertEquals("4", store.search("4111111111111111").getIIN());
+        assertEquals("492564", store.search(492564, 6).getIIN());
+        assertEquals("492564", store.search("492564FFFF").getIIN());
+        assertEquals("492564", store.search("492564D4912").getIIN());
+        assertNull(store.search("5411111111111111"));
+        assertNull(store.search(""));
+        assertNull(store.search("F"));
+        //Leading zeros are significant
+        assertEquals("012345", store.search("0123456789").getIIN());
+        assertNull(store.search("1234567890"));
+        //Only the first MAX_DIGITS digits are used
+        assertEquals("4", store.search("4999999999999999999999").getIIN());
+        //A row is created once, on the first match
+        assertSame(bank, store.search("4925640000000000"));
+        assertSame(bank, store.search(492564, 6));
+    }
+
+    @Test
+    public void testMapView() {
+        System.out.println("mapView");
+        IINStore store = IINStore.build(Arrays.asList(record("492565", "Other bank"), record("X1234", "Not numeric"), record("492564", "Bank")));
+        Map<String, IIN> map = store.asMap();
+        assertEquals(3, map.size());
+        assertEquals("Bank", map.get("492564").getIssuerName());
+        assertEquals("Not numeric", map.get("X1234").getIssuerName());
+        assertNull(map.get("4925"));
+        assertNull(map.get("4925641"));
+        assertTrue(map.containsKey("492565"));
+        List<String> keys = new ArrayList<String>(map.keySet());
+        assertEquals(Arrays.asList("492564", "492565", "X1234"), keys);
+        //Text columns share pooled strings
+        assertEquals(5, store.getPoolSize());
+        assertSame(map.get("492564").getLocation(), map.get("492565").getLocation());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testDuplicate() {
+        System.out.println("duplicate");
+        IINStore.build(Arrays.asList(record("492564", "Bank"), record("492565", "Other bank"), record("492564", "Bank")));
+    }
+
+    @Test
+    public void testDigitCount() {
+        System.out.println("digitCount");
+        assertEquals(1, IINStore.digitCount(0));
+        assertEquals(1, IINStore.digitCount(9));
+        assertEquals(2, IINStore.digitCount(10));
+        assertEquals(6, IINStore.digitCount(492564));
+        assertEquals(10, IINStore.digitCount(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testSearchDatabase() {
+        System.out.println("searchDatabase");
+        IIN_DB.initialize();
+        assertEquals("492564", IIN_DB.searchIIN(492564).getIIN());
+        assertEquals("VISA NORGE A/S", IIN_DB.searchIIN(492564).getIssuerName());
+        //8 digit IINs and PANs match the 6 digit entry
+        assertEquals("492564", IIN_DB.searchIIN(49256412).getIIN());
+        assertEquals("492564", IIN_DB.searchPAN("4925641234567890").getIIN());
+        assertNull(IIN_DB.searchIIN(1));
+        assertEquals("NORWAY", IIN_DB.getAll().get("492564").getLocation());
+        assertTrue(IIN_DB.getAll().size() > 50000);
+    }
+}
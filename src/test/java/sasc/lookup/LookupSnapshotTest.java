@@ -0,0 +1,112 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.lookup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LookupSnapshotTest {
+
+    public LookupSnapshotTest() {
+    }
+
+    @Test
+    public void testWriteAndOpen() throws Exception {
+        System.out.println("writeAndOpen");
+        List<String[]> records = new ArrayList<String[]>();
+        records.add(new String[]{"492564", "NORWAY", "Visa DEBIT", "VISA NORGE A/S", ""});
+        records.add(new String[]{"492565", "NORWAY", "Visa DEBIT", null, "æøå"});
+        records.add(new String[]{});
+        records.add(new String[]{"3B 67 .*"});
+        File file = File.createTempFile("lookup", ".snapshot");
+        try {
+            long before = System.currentTimeMillis();
+            LookupSnapshot.write(records, file);
+            LookupSnapshot snapshot = LookupSnapshot.open(file);
+            assertEquals(4, snapshot.getRecordCount());
+            assertTrue(snapshot.getCreated() >= before);
+            List<String[]> read = snapshot.getRecords();
+            for (int i = 0; i < records.size(); i++) {
+                assertArrayEquals(records.get(i), read.get(i));
+            }
+            //Equal strings are stored once
+            assertSame(snapshot.getRecord(0)[1], snapshot.getRecord(1)[1]);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnsupportedVersion() throws Exception {
+        System.out.println("unsupportedVersion");
+        File file = File.createTempFile("lookup", ".snapshot");
+        try {
+            LookupSnapshot.write(new ArrayList<String[]>(), file);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.seek(4);
+            raf.writeShort(LookupSnapshot.VERSION + 1);
+            raf.close();
+            LookupSnapshot.open(file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testStaleSource() throws Exception {
+        System.out.println("staleSource");
+        File file = File.createTempFile("lookup", ".snapshot");
+        try {
+            LookupSnapshot.write(RID_DB.readTextRecords(), file, RID_DB.TEXT_RESOURCES);
+            LookupSnapshot snapshot = LookupSnapshot.open(file);
+            assertTrue(snapshot.isBuiltFrom(RID_DB.TEXT_RESOURCES));
+            assertFalse(snapshot.isBuiltFrom(RID_DB.TEXT_RESOURCES[0], RID_DB.TEXT_RESOURCES[1]));
+            assertFalse(snapshot.isBuiltFrom(ATR_DB.TEXT_RESOURCES));
+            //Not on the classpath: the snapshot is used
+            assertTrue(snapshot.isBuiltFrom("/no_such_list.txt"));
+
+            LookupSnapshot.write(RID_DB.readTextRecords(), file);
+            assertTrue(LookupSnapshot.open(file).isBuiltFrom(ATR_DB.TEXT_RESOURCES));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * The snapshot built by the pom has the same records as the text resources
+     */
+    @Test
+    public void testBuildSnapshots() throws Exception {
+        System.out.println("buildSnapshots");
+        assertSameRecords(RID_DB.readTextRecords(), LookupSnapshot.RID_DB_SNAPSHOT, RID_DB.TEXT_RESOURCES);
+        assertSameRecords(ATR_DB.readTextRecords(), LookupSnapshot.ATR_DB_SNAPSHOT, ATR_DB.TEXT_RESOURCES);
+        assertSameRecords(IIN_DB.readTextRecords(), LookupSnapshot.IIN_DB_SNAPSHOT, IIN_DB.TEXT_RESOURCES);
+    }
+
+    private static void assertSameRecords(List<String[]> expected, String resource, String[] sourceResources) throws IOException {
+        LookupSnapshot snapshot = LookupSnapshot.open(resource, sourceResources);
+        assertNotNull("Snapshot not built: " + resource, snapshot);
+        assertEquals(expected.size(), snapshot.getRecordCount());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), snapshot.getRecord(i));
+        }
+    }
+}
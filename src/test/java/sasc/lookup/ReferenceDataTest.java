@@ -0,0 +1,153 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.lookup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import sasc.iso7816.RID;
+import sasc.terminal.KnownAIDList;
+import sasc.util.Util;
+import static org.junit.Assert.*;
+
+public class ReferenceDataTest {
+
+    public ReferenceDataTest() {
+    }
+
+    private static File writeTempFile(String content) throws IOException {
+        File file = File.createTempFile("refdata", ".txt");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    //The tables are global, so put the bundled data back (via a snapshot file)
+    private static void restore(ReferenceData.Table table) throws IOException {
+        File file = File.createTempFile("refdata", ".snapshot");
+        try {
+            LookupSnapshot.write(table == ReferenceData.Table.IIN ? IIN_DB.readTextRecords() : RID_DB.readTextRecords(), file);
+            ReferenceData.reload(table, file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testReloadRID() throws Exception {
+        System.out.println("reloadRID");
+        RID_DB.initialize();
+        byte[] visa = Util.fromHexString("A000000003");
+        assertNotNull(RID_DB.searchRID(visa));
+        ReferenceData.Version before = ReferenceData.getVersion(ReferenceData.Table.RID);
+        assertNotNull(before);
+        assertNull(before.getChecksum());
+
+        File file = writeTempFile("#rid;applicant;country\nA000000003;Test Applicant;NO\nA0000000FF;Other;SE\n");
+        try {
+            long lookups = ReferenceData.Table.RID.getLookupCount();
+            long hits = ReferenceData.Table.RID.getHitCount();
+            ReferenceData.Version version = ReferenceData.reload(ReferenceData.Table.RID, file);
+            assertEquals(2, version.getRecordCount());
+            assertEquals(file.getPath(), version.getSource());
+            assertEquals(40, version.getChecksum().length());
+            assertTrue(version.getGeneration() > before.getGeneration());
+            assertSame(version, ReferenceData.getVersion(ReferenceData.Table.RID));
+
+            RID rid = RID_DB.searchRID(visa);
+            assertEquals("Test Applicant", rid.getApplicant());
+            assertNull(RID_DB.searchRID(Util.fromHexString("A000000004")));
+            assertEquals(2, RID_DB.getAll().size());
+            assertEquals(lookups + 2, ReferenceData.Table.RID.getLookupCount());
+            assertEquals(hits + 1, ReferenceData.Table.RID.getHitCount());
+        } finally {
+            file.delete();
+            restore(ReferenceData.Table.RID);
+        }
+        assertNotNull(RID_DB.searchRID(Util.fromHexString("A000000004")));
+    }
+
+    @Test
+    public void testInvalidFileKeepsCurrentVersion() throws Exception {
+        System.out.println("invalidFileKeepsCurrentVersion");
+        RID_DB.initialize();
+        ReferenceData.Version current = ReferenceData.getVersion(ReferenceData.Table.RID);
+        int size = RID_DB.getAll().size();
+        File file = writeTempFile("A000000003;missing country\n");
+        try {
+            ReferenceData.reload(ReferenceData.Table.RID, file);
+            fail("Expected IOException");
+        } catch (IOException ex) {
+            //Expected
+        } finally {
+            file.delete();
+        }
+        assertSame(current, ReferenceData.getVersion(ReferenceData.Table.RID));
+        assertEquals(size, RID_DB.getAll().size());
+    }
+
+    /**
+     * KnownAIDList registers the AID table when it is loaded; an invalid or empty AID list keeps the current list
+     */
+    @Test
+    public void testReloadAIDKeepsCurrentListOnError() throws Exception {
+        System.out.println("reloadAIDKeepsCurrentListOnError");
+        int size = KnownAIDList.getAIDs().size();
+        ReferenceData.Version current = ReferenceData.getVersion(ReferenceData.Table.AID);
+        assertNotNull(current);
+        assertEquals(size, current.getRecordCount());
+        for (String content : new String[]{"<AIDList></AIDList>", "<AIDList><Unexpected/></AIDList>"}) {
+            File file = writeTempFile(content);
+            try {
+                ReferenceData.reload(ReferenceData.Table.AID, file);
+                fail("Expected IOException");
+            } catch (IOException ex) {
+                //Expected
+            } finally {
+                file.delete();
+            }
+        }
+        assertSame(current, ReferenceData.getVersion(ReferenceData.Table.AID));
+        assertEquals(size, KnownAIDList.getAIDs().size());
+    }
+
+    @Test
+    public void testReloadIINInBackground() throws Exception {
+        System.out.println("reloadIINInBackground");
+        IIN_DB.initialize();
+        File file = writeTempFile("#iin;location;type;issuername;phone\n999999;NOWHERE;Test;TEST BANK;\n");
+        try {
+            Future<ReferenceData.Version> future = ReferenceData.reloadInBackground(ReferenceData.Table.IIN, file);
+            ReferenceData.Version version = future.get();
+            assertEquals(1, version.getRecordCount());
+            assertSame(version, ReferenceData.getVersion(ReferenceData.Table.IIN));
+            assertEquals("TEST BANK", IIN_DB.searchPAN("9999991234567890").getIssuerName());
+            assertNull(IIN_DB.searchIIN(370370));
+        } finally {
+            file.delete();
+            restore(ReferenceData.Table.IIN);
+        }
+        assertNotNull(IIN_DB.searchIIN(370370));
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.smartcard.common;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import sasc.iso7816.AID;
+import sasc.terminal.CardConnection;
+import sasc.util.Util;
+
+public class RegistryTest {
+
+    public RegistryTest() {
+    }
+
+    private static class TestAtrHandler implements AtrHandler {
+
+        private final String name;
+
+        TestAtrHandler(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public boolean process(SmartCard card, CardConnection cardConnection) {
+            return false;
+        }
+
+        @Override
+        public List<String> getAtrPatterns() {
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static class TestApplicationHandler implements ApplicationHandler {
+
+        @Override
+        public boolean process(AID aid, SmartCard card, CardConnection cardConnection) {
+            return false;
+        }
+    }
+
+    /**
+     * Handlers of exact, wildcard and other regular expression patterns are returned in registration order
+     */
+    @Test
+    public void testGetHandlersForAtr() {
+        System.out.println("getHandlersForAtr");
+        Registry registry = new Registry();
+        AtrHandler wildcard = new TestAtrHandler("wildcard");
+        AtrHandler exact = new TestAtrHandler("exact");
+        AtrHandler prefix = new TestAtrHandler("prefix");
+        AtrHandler regex = new TestAtrHandler("regex");
+        registry.registerAtrHandler(wildcard, Arrays.asList("3B 24 00 .. .. .. 45", "3B 34 00 00 30 42 30 [0-3]0"));
+        registry.registerAtrHandler(exact, "3B 24 00 30 42 30 45");
+        registry.registerAtrHandler(prefix, "3B 24 .*");
+        registry.registerAtrHandler(regex, "3B 24 00 (30|31) 42 30 45");
+
+        assertEquals("[wildcard, exact, prefix, regex]", registry.getHandlersForAtr(Util.fromHexString("3B 24 00 30 42 30 45")).toString());
+        assertEquals("[wildcard, prefix]", registry.getHandlersForAtr(Util.fromHexString("3B 24 00 32 42 30 45")).toString());
+        assertEquals("[prefix]", registry.getHandlersForAtr(Util.fromHexString("3B 24 01")).toString());
+        assertEquals("[wildcard]", registry.getHandlersForAtr(Util.fromHexString("3B 34 00 00 30 42 30 20")).toString());
+        assertTrue(registry.getHandlersForAtr(Util.fromHexString("3B 34 00 00 30 42 30 40")).isEmpty());
+
+        //Registering a pattern again replaces its handler, keeping its position
+        registry.registerAtrHandler(regex, "3B 24 00 30 42 30 45");
+        assertEquals("[wildcard, regex, prefix, regex]", registry.getHandlersForAtr(Util.fromHexString("3B 24 00 30 42 30 45")).toString());
+    }
+
+    /**
+     * Patterns that differ only in case are normalized to the same key, but neither handler is dropped
+     */
+    @Test
+    public void testCaseVariantPatterns() {
+        System.out.println("caseVariantPatterns");
+        Registry registry = new Registry();
+        AtrHandler lower = new TestAtrHandler("lower");
+        AtrHandler upper = new TestAtrHandler("upper");
+        AtrHandler lowerPrefix = new TestAtrHandler("lowerPrefix");
+        AtrHandler upperPrefix = new TestAtrHandler("upperPrefix");
+        registry.registerAtrHandler(lower, "3b 6e 00 ff");
+        registry.registerAtrHandler(lowerPrefix, "3b 6e .*");
+        registry.registerAtrHandler(upper, "3B 6E 00 FF");
+        registry.registerAtrHandler(upperPrefix, "3B 6E .*");
+
+        assertEquals("[lower, lowerPrefix, upper, upperPrefix]", registry.getHandlersForAtr(Util.fromHexString("3B 6E 00 FF")).toString());
+        assertEquals("[lowerPrefix, upperPrefix]", registry.getHandlersForAtr(Util.fromHexString("3B 6E 01")).toString());
+
+        Registry exactOnly = new Registry();
+        exactOnly.registerAtrHandler(lower, "3b 6e 00 ff");
+        exactOnly.registerAtrHandler(upper, "3B 6E 00 FF");
+        assertEquals("[lower, upper]", exactOnly.getHandlersForAtr(Util.fromHexString("3B 6E 00 FF")).toString());
+    }
+
+    @Test
+    public void testGetHandlersForAid() {
+        System.out.println("getHandlersForAid");
+        Registry registry = new Registry();
+        ApplicationHandler handler = new TestApplicationHandler();
+        registry.registerAidHandler(handler, "a000000003000000");
+        registry.registerAidHandler(handler, new AID("A0 00 00 00 04 10 10"));
+        assertEquals(Arrays.asList(handler), registry.getHandlersForAid(Util.fromHexString("A0 00 00 00 03 00 00 00")));
+        assertEquals(Arrays.asList(handler), registry.getHandlersForAid(new AID("a0000000041010")));
+        assertTrue(registry.getHandlersForAid(Util.fromHexString("A0 00 00 00 03 00 00")).isEmpty());
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.terminal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class ApduTraceTest {
+
+    public ApduTraceTest() {
+    }
+
+    private static class StubResponse implements CardResponse {
+
+        private final byte[] data;
+        private final byte sw1;
+        private final byte sw2;
+
+        StubResponse(byte[] data, int sw1, int sw2) {
+            this.data = data;
+            this.sw1 = (byte) sw1;
+            this.sw2 = (byte) sw2;
+        }
+
+        @Override
+        public byte[] getData() {
+            return data.clone();
+        }
+
+        @Override
+        public byte getSW1() {
+            return sw1;
+        }
+
+        @Override
+        public byte getSW2() {
+            return sw2;
+        }
+
+        @Override
+        public short getSW() {
+            return (short) (((sw1 & 0xFF) << 8) | (sw2 & 0xFF));
+        }
+    }
+
+    /**
+     * Returns 6C 05 for the first command, 61 02 for the re-issued command, then 90 00
+     */
+    private static class StubConnection implements CardConnection {
+
+        private int count = 0;
+
+        @Override
+        public CardResponse transmit(byte[] cmd) throws TerminalException {
+            switch (count++) {
+                case 0:
+                    return new StubResponse(new byte[0], 0x6C, 0x05);
+                case 1:
+                    return new StubResponse(new byte[]{1, 2, 3}, 0x61, 0x02);
+                case 2:
+                    return new StubResponse(new byte[]{4, 5}, 0x90, 0x00);
+                default:
+                    throw new TerminalException("Card removed");
+            }
+        }
+
+        @Override
+        public byte[] transmitControlCommand(int controlCode, byte[] data) throws TerminalException {
+            return new byte[0];
+        }
+
+        @Override
+        public byte[] getATR() {
+            return new byte[]{0x3B, 0x00};
+        }
+
+        @Override
+        public Terminal getTerminal() {
+            return null;
+        }
+
+        @Override
+        public String getConnectionInfo() {
+            return "stub";
+        }
+
+        @Override
+        public String getProtocol() {
+            return "T=0";
+        }
+
+        @Override
+        public void resetCard() throws TerminalException {
+        }
+
+        @Override
+        public boolean disconnect(boolean attemptReset) throws TerminalException {
+            return false;
+        }
+    }
+
+    /**
+     * Record a session with procedure bytes and read it back
+     */
+    @Test
+    public void testRecordAndRead() throws Exception {
+        System.out.println("recordAndRead");
+        File file = File.createTempFile("apdutrace", ".bin");
+        file.deleteOnExit();
+        CardConnection conn = new TracingCardConnection(new StubConnection(), new ApduTraceWriter(file, false, 64), true);
+        byte[] cmd = new byte[]{0x00, (byte) 0xB2, 0x01, 0x0C, 0x00};
+        conn.transmit(cmd);
+        cmd[4] = 0x05;
+        conn.transmit(cmd);
+        conn.transmit(new byte[]{0x00, (byte) 0xC0, 0x00, 0x00, 0x02});
+        try {
+            conn.transmit(cmd);
+            fail("Expected TerminalException");
+        } catch (TerminalException expected) {
+        }
+        conn.disconnect(false);
+
+        ApduTraceReader reader = new ApduTraceReader(file);
+        try {
+            assertTrue(reader.next());
+            ApduTraceReader.Frame frame = reader.getFrame();
+            assertEquals(0, frame.getFlags());
+            assertArrayEquals(new byte[]{0x00, (byte) 0xB2, 0x01, 0x0C, 0x00}, frame.getCommand());
+            assertEquals(0, frame.getDataLength());
+            assertEquals((short) 0x6C05, frame.getSW());
+
+            assertTrue(reader.next());
+            assertTrue(frame.isResend());
+            assertArrayEquals(new byte[]{1, 2, 3}, frame.getData());
+            assertEquals((short) 0x6102, frame.getSW());
+
+            assertTrue(reader.next());
+            assertTrue(frame.isGetResponse());
+            assertEquals((byte) 0xC0, frame.getCommandByte(1));
+            assertArrayEquals(new byte[]{4, 5}, frame.getData());
+            assertEquals((short) 0x9000, frame.getSW());
+            assertTrue(frame.getLatencyNanos() >= 0);
+
+            assertTrue(reader.next());
+            assertTrue(frame.isFailed());
+            assertEquals(-1, frame.getDataLength());
+            assertNull(frame.getData());
+
+            assertFalse(reader.next());
+        } finally {
+            reader.close();
+        }
+
+        //Append to the existing trace
+        ApduTraceWriter writer = new ApduTraceWriter(file, true, 64);
+        assertEquals(4, writer.getFrameCount());
+        writer.writeFrame(0, 0, 0, new byte[]{0x00, (byte) 0xCA, (byte) 0x9F, 0x36}, new byte[]{0x00, 0x01}, (byte) 0x90, (byte) 0x00);
+        writer.close();
+        reader = new ApduTraceReader(file);
+        int count = 0;
+        while (reader.next()) {
+            count++;
+        }
+        reader.close();
+        assertEquals(5, count);
+    }
+
+    /**
+     * A negative data length other than -1 (no response) is rejected
+     */
+    @Test
+    public void testCorruptDataLength() throws Exception {
+        System.out.println("corruptDataLength");
+        File file = File.createTempFile("apdutrace", ".bin");
+        file.deleteOnExit();
+        byte[] cmd = new byte[]{0x00, (byte) 0xB2, 0x01, 0x0C, 0x00};
+        ApduTraceWriter writer = new ApduTraceWriter(file, false, 64);
+        writer.writeFrame(0, 0, 0, cmd, null, (byte) 0x6F, (byte) 0x00);
+        writer.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(ApduTraceWriter.FILE_HEADER_SIZE + 4 + 19 + cmd.length);
+            assertEquals(-1, raf.readShort());
+            raf.seek(ApduTraceWriter.FILE_HEADER_SIZE + 4 + 19 + cmd.length);
+            raf.writeShort(-2);
+        } finally {
+            raf.close();
+        }
+        ApduTraceReader reader = new ApduTraceReader(file);
+        try {
+            reader.next();
+            fail("Expected IOException");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("position " + ApduTraceWriter.FILE_HEADER_SIZE));
+        } finally {
+            reader.close();
+        }
+    }
+}
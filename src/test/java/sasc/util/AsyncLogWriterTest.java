@@ -0,0 +1,176 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.util;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class AsyncLogWriterTest {
+
+    public AsyncLogWriterTest() {
+    }
+
+    /**
+     * All messages are written, in order, by the background thread
+     */
+    @Test
+    public void testWriteAndFlush() {
+        System.out.println("writeAndFlush");
+        StringWriter out = new StringWriter();
+        AsyncLogWriter writer = new AsyncLogWriter(new PrintWriter(out), 8, AsyncLogWriter.OverflowPolicy.BLOCK, 1);
+        try {
+            for (int i = 0; i < 100; i++) {
+                assertTrue(writer.write("msg" + i, Log.Level.DEBUG));
+            }
+            writer.flush();
+            String[] lines = out.toString().split("\r?\n");
+            assertEquals(100, lines.length);
+            for (int i = 0; i < 100; i++) {
+                assertEquals("msg" + i, lines[i]);
+            }
+            assertEquals(0, writer.getQueueDepth());
+            assertEquals(0, writer.getDroppedCount());
+            assertEquals(100, writer.getWrittenCount());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * With a stalled target, DROP_DEBUG drops debug messages instead of waiting
+     */
+    @Test
+    public void testDropDebug() throws Exception {
+        System.out.println("dropDebug");
+        final CountDownLatch release = new CountDownLatch(1);
+        final StringWriter out = new StringWriter();
+        Writer slow = new Writer() {
+
+            @Override
+            public void write(char[] cbuf, int off, int len) {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                out.write(cbuf, off, len);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        AsyncLogWriter writer = new AsyncLogWriter(new PrintWriter(slow), 4, AsyncLogWriter.OverflowPolicy.DROP_DEBUG, 1);
+        try {
+            int dropped = 0;
+            for (int i = 0; i < 50; i++) {
+                if (!writer.write("debug" + i, Log.Level.DEBUG)) {
+                    dropped++;
+                }
+            }
+            assertTrue(dropped > 0);
+            assertEquals(dropped, writer.getDroppedCount());
+            assertTrue(writer.getQueueDepth() <= writer.getCapacity());
+            release.countDown();
+            assertTrue(writer.write("info", Log.Level.INFO));
+            writer.flush();
+            assertTrue(out.toString().contains("info"));
+            assertTrue(out.toString().contains("log message(s) dropped]"));
+        } finally {
+            release.countDown();
+            writer.close();
+        }
+    }
+
+    /**
+     * Messages written after close() are dropped, even if there is space in the buffer
+     */
+    @Test
+    public void testWriteAfterClose() {
+        System.out.println("writeAfterClose");
+        StringWriter out = new StringWriter();
+        AsyncLogWriter writer = new AsyncLogWriter(new PrintWriter(out), 8, AsyncLogWriter.OverflowPolicy.BLOCK, 1);
+        assertTrue(writer.write("before", Log.Level.INFO));
+        writer.close();
+        assertFalse(writer.write("after", Log.Level.ERROR));
+        assertEquals(1, writer.getDroppedCount());
+        assertEquals(0, writer.getQueueDepth());
+        assertEquals("before", out.toString().trim());
+    }
+
+    /**
+     * Writers racing close(): every message is either written or counted as dropped
+     */
+    @Test
+    public void testWriteRacingClose() throws Exception {
+        System.out.println("writeRacingClose");
+        final int numThreads = 8;
+        final int messagesPerThread = 2000;
+        for (int round = 0; round < 20; round++) {
+            StringWriter out = new StringWriter();
+            final AsyncLogWriter writer = new AsyncLogWriter(new PrintWriter(out), 64, AsyncLogWriter.OverflowPolicy.BLOCK, 1);
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicInteger accepted = new AtomicInteger();
+            Thread[] threads = new Thread[numThreads];
+            for (int t = 0; t < numThreads; t++) {
+                threads[t] = new Thread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                        for (int i = 0; i < messagesPerThread; i++) {
+                            if (writer.write("msg", Log.Level.INFO)) {
+                                accepted.incrementAndGet();
+                            }
+                        }
+                    }
+                });
+                threads[t].start();
+            }
+            start.countDown();
+            Thread.sleep(round % 3);
+            writer.close();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            int lines = 0;
+            for (String line : out.toString().split("\r?\n")) {
+                if (line.equals("msg")) {
+                    lines++;
+                }
+            }
+            assertEquals(accepted.get(), lines);
+            assertEquals(numThreads * messagesPerThread, accepted.get() + writer.getDroppedCount());
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.util;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class LogTest {
+
+    private StringWriter out;
+    private Log.Level savedLevel;
+    private Log.Level savedFlushLevel;
+
+    public LogTest() {
+    }
+
+    @Before
+    public void setUp() {
+        savedLevel = Log.getLevel();
+        savedFlushLevel = Log.getFlushLevel();
+        out = new StringWriter();
+        Log.setPrintWriter(new PrintWriter(out));
+    }
+
+    @After
+    public void tearDown() {
+        Log.flush();
+        Log.setLevel(savedLevel);
+        Log.setFlushLevel(savedFlushLevel);
+        Log.setPrintWriter(new PrintWriter(System.out));
+    }
+
+    /**
+     * Disabled levels must not format (or hex encode) the arguments
+     */
+    @Test
+    public void testDeferredFormatting() {
+        System.out.println("deferredFormatting");
+        Log.setLevel(Log.Level.INFO);
+        assertFalse(Log.isDebugEnabled());
+        assertTrue(Log.isEnabled(Log.Level.COMMAND));
+        final boolean[] formatted = new boolean[1];
+        Object arg = new Object() {
+            @Override
+            public String toString() {
+                formatted[0] = true;
+                return "x";
+            }
+        };
+        Log.debug("value: %s", arg);
+        Log.flush();
+        assertFalse(formatted[0]);
+        assertEquals("", out.toString());
+
+        Log.info("data: %s %02x", Log.hex(new byte[]{0x0a, (byte) 0xff}), (byte) 0x90);
+        assertEquals("data: 0aff 90", out.toString().trim());
+    }
+
+    /**
+     * Messages below the flush level are buffered until a message at the flush level is logged
+     */
+    @Test
+    public void testBufferedFlush() {
+        System.out.println("bufferedFlush");
+        PrintWriter pw = new PrintWriter(new java.io.BufferedWriter(out, 1024));
+        Log.setPrintWriter(pw);
+        Log.setLevel(Log.Level.DEBUG);
+        Log.setFlushLevel(Log.Level.INFO);
+        Log.debug("buffered");
+        assertEquals("", out.toString());
+        Log.info("flushed");
+        assertTrue(out.toString().contains("DEBUG: buffered"));
+        assertTrue(out.toString().contains("flushed"));
+    }
+}
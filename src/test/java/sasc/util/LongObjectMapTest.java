@@ -0,0 +1,141 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.util;
+
+import java.util.Arrays;
+import sasc.iso7816.TLVUtil;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class LongObjectMapTest {
+
+    public LongObjectMapTest() {
+    }
+
+    /**
+     * Test of put, of class LongObjectMap.
+     */
+    @Test
+    public void testPutAndReplace() {
+        System.out.println("putAndReplace");
+        LongObjectMap<String> map = new LongObjectMap<String>();
+        assertNull(map.put(1, "a"));
+        assertNull(map.put(2, "b"));
+        assertEquals("a", map.put(1, "c"));
+        assertEquals(2, map.size());
+        assertEquals("c", map.get(1));
+        assertEquals("b", map.get(2));
+        assertNull(map.get(3));
+        assertFalse(map.containsKey(3));
+        assertEquals(Arrays.asList("c", "b"), map.values());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPutNull() {
+        System.out.println("putNull");
+        new LongObjectMap<String>().put(1, null);
+    }
+
+    /**
+     * Test of putAll, of class LongObjectMap.
+     */
+    @Test
+    public void testPutAll() {
+        System.out.println("putAll");
+        LongObjectMap<String> map = new LongObjectMap<String>();
+        map.put(1, "a");
+        map.put(2, "b");
+        LongObjectMap<String> other = new LongObjectMap<String>();
+        other.put(3, "c");
+        other.put(2, "d");
+        other.put(4, "e");
+        map.putAll(other);
+        assertEquals(4, map.size());
+        assertEquals("d", map.get(2));
+        assertEquals(Arrays.asList("a", "d", "c", "e"), map.values());
+        //The source map is not changed
+        assertEquals(Arrays.asList("c", "d", "e"), other.values());
+    }
+
+    /**
+     * The insertion order is tracked by key, so the same value may be stored under several keys
+     */
+    @Test
+    public void testSameValueUnderTwoKeys() {
+        System.out.println("sameValueUnderTwoKeys");
+        LongObjectMap<String> map = new LongObjectMap<String>();
+        map.put(1, "x");
+        map.put(2, "x");
+        map.put(3, "y");
+        map.put(2, "z");
+        assertEquals(Arrays.asList("x", "z", "y"), map.values());
+
+        LongObjectMap<String> other = new LongObjectMap<String>();
+        other.put(2, "w");
+        map.putAll(other);
+        map.put(1, "v");
+        assertEquals(Arrays.asList("v", "w", "y"), map.values());
+    }
+
+    /**
+     * The table must grow when the load factor passes 0.5
+     */
+    @Test
+    public void testGrowth() {
+        System.out.println("growth");
+        LongObjectMap<Integer> map = new LongObjectMap<Integer>();
+        LongObjectMap<Integer> other = new LongObjectMap<Integer>();
+        for (int i = 0; i < 100; i++) {
+            map.put(i * 31L, i);
+            other.put(-1 - i * 17L, i);
+        }
+        map.putAll(other);
+        assertEquals(200, map.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Integer.valueOf(i), map.get(i * 31L));
+            assertEquals(Integer.valueOf(i), map.get(-1 - i * 17L));
+            assertEquals(Integer.valueOf(i), map.values().get(i));
+            assertEquals(Integer.valueOf(i), map.values().get(100 + i));
+        }
+        assertNull(map.get(1));
+    }
+
+    /**
+     * Keys of 3 and 4 byte tags, as packed by TLVUtil.getTagKey
+     */
+    @Test
+    public void testMultiByteTagKeys() {
+        System.out.println("multiByteTagKeys");
+        int key3 = TLVUtil.getTagKey(Util.fromHexString("df 81 01"));
+        int key4 = TLVUtil.getTagKey(Util.fromHexString("ff 81 82 03"));
+        int key4b = TLVUtil.getTagKey(Util.fromHexString("ff 81 82 04"));
+        assertEquals(0xdf8101, key3);
+        assertEquals(0xff818203, key4);
+        LongObjectMap<String> map = new LongObjectMap<String>();
+        map.put(key3, "3 bytes");
+        map.put(key4, "4 bytes");
+        map.put(TLVUtil.getTagKey(Util.fromHexString("df 01")), "2 bytes");
+        assertEquals("3 bytes", map.get(key3));
+        assertEquals("4 bytes", map.get(key4));
+        assertNull(map.get(key4b));
+        assertNull(map.get(0xdf01L << 8));
+        assertEquals(Arrays.asList("3 bytes", "4 bytes", "2 bytes"), map.values());
+    }
+}
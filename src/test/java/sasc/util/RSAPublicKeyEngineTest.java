@@ -0,0 +1,92 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.util;
+
+import java.math.BigInteger;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class RSAPublicKeyEngineTest {
+
+    public RSAPublicKeyEngineTest() {
+    }
+
+    private static byte[] toUnsignedBytes(BigInteger value, int length) {
+        byte[] bytes = value.toByteArray();
+        byte[] result = new byte[length];
+        int n = Math.min(bytes.length, length);
+        System.arraycopy(bytes, bytes.length - n, result, length - n, n);
+        return result;
+    }
+
+    private static void check(int bits, int exponent, Random random) {
+        BigInteger p = BigInteger.probablePrime(bits / 2, random);
+        BigInteger q = BigInteger.probablePrime(bits - bits / 2, random);
+        BigInteger mod = p.multiply(q);
+        int modLength = (mod.bitLength() + 7) / 8;
+        byte[] modBytes = toUnsignedBytes(mod, modLength);
+        byte[] expBytes = BigInteger.valueOf(exponent).toByteArray();
+        RSAPublicKeyEngine engine = new RSAPublicKeyEngine(expBytes, modBytes);
+        assertEquals(exponent == 3, engine.isFastPath());
+        byte[] out = new byte[modLength + 2];
+        for (int i = 0; i < 20; i++) {
+            BigInteger data = new BigInteger(mod.bitLength() - 1, random);
+            byte[] dataBytes = toUnsignedBytes(data, modLength);
+            byte[] expected = toUnsignedBytes(data.modPow(BigInteger.valueOf(exponent), mod), modLength);
+            assertArrayEquals(expected, engine.recover(dataBytes));
+            assertEquals(modLength, engine.recover(dataBytes, 0, dataBytes.length, out, 1));
+            for (int j = 0; j < modLength; j++) {
+                assertEquals(expected[j], out[j + 1]);
+            }
+            //Same result as the generic path
+            byte[] generic = Util.performRSA(dataBytes, expBytes, modBytes);
+            assertEquals(new BigInteger(1, expected), new BigInteger(1, generic));
+        }
+    }
+
+    /**
+     * Compare against BigInteger.modPow for EMV key sizes
+     */
+    @Test
+    public void testRecover() {
+        System.out.println("recover");
+        Random random = new Random(42);
+        int[] sizes = new int[]{512, 768, 1024, 1152, 1408, 1984};
+        for (int bits : sizes) {
+            check(bits, 3, random);
+            check(bits, 65537, random);
+        }
+        check(1024, 17, random);
+    }
+
+    /**
+     * Input larger than the modulus falls back to the generic path
+     */
+    @Test
+    public void testInputNotReduced() {
+        System.out.println("inputNotReduced");
+        byte[] mod = Util.fromHexString("c5 6b 53 12 ff 4b 8e 0f 2d 33 1a 1c 7b 0e 55 c1");
+        RSAPublicKeyEngine engine = new RSAPublicKeyEngine(new byte[]{0x03}, mod);
+        byte[] data = Util.fromHexString("ff ff ff ff ff ff ff ff ff ff ff ff ff ff ff ff");
+        BigInteger expected = new BigInteger(1, data).modPow(BigInteger.valueOf(3), new BigInteger(1, mod));
+        assertEquals(expected, new BigInteger(1, engine.recover(data)));
+    }
+}
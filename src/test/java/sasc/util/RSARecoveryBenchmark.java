@@ -0,0 +1,81 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.util;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+/**
+ * Microbenchmark of RSA recovery: Util.performRSA (BigInteger.modPow for every call)
+ * compared with a cached RSAPublicKeyEngine, for typical EMV key sizes and exponents.
+ *
+ * Run with: java -cp target/classes:target/test-classes sasc.util.RSARecoveryBenchmark [iterations]
+ *
+ * @author sasc
+ */
+public class RSARecoveryBenchmark {
+
+    private static volatile int sink;
+
+    private static byte[] toUnsignedBytes(BigInteger value, int length) {
+        byte[] bytes = value.toByteArray();
+        byte[] result = new byte[length];
+        int n = Math.min(bytes.length, length);
+        System.arraycopy(bytes, bytes.length - n, result, length - n, n);
+        return result;
+    }
+
+    private static void run(int bits, int exponent, int iterations, Random random, boolean print) {
+        BigInteger mod = BigInteger.probablePrime(bits / 2, random).multiply(BigInteger.probablePrime(bits - bits / 2, random));
+        int modLength = (mod.bitLength() + 7) / 8;
+        byte[] modBytes = toUnsignedBytes(mod, modLength);
+        byte[] expBytes = BigInteger.valueOf(exponent).toByteArray();
+        byte[] data = toUnsignedBytes(new BigInteger(mod.bitLength() - 1, random), modLength);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += Util.performRSA(data, expBytes, modBytes)[0];
+        }
+        long generic = System.nanoTime() - start;
+
+        RSAPublicKeyEngine engine = new RSAPublicKeyEngine(expBytes, modBytes);
+        byte[] out = new byte[modLength];
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            engine.recover(data, 0, data.length, out, 0);
+            sink += out[0];
+        }
+        long cached = System.nanoTime() - start;
+
+        if (print) {
+            System.out.println(String.format("%5d bit, e=%-6d performRSA %9.1f us   RSAPublicKeyEngine %9.1f us   (%.1fx)",
+                    bits, exponent, generic / 1000.0 / iterations, cached / 1000.0 / iterations, (double) generic / cached));
+        }
+    }
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int[] sizes = new int[]{1024, 1408, 1984};
+        for (int round = 0; round < 3; round++) { //The first rounds are warm up
+            Random random = new Random(round);
+            System.out.println("Round " + (round + 1));
+            for (int bits : sizes) {
+                run(bits, 3, iterations, random, true);
+                run(bits, 65537, iterations, random, true);
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.util;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.security.MessageDigest;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class UtilTest {
+
+    public UtilTest() {
+    }
+
+    /**
+     * Test of the hex encode/decode methods, of class Util.
+     */
+    @Test
+    public void testHexRoundTrip() {
+        System.out.println("hexRoundTrip");
+        byte[] data = new byte[256];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        String hex = Util.byteArrayToHexString(data);
+        assertEquals("00010203", hex.substring(0, 8));
+        assertEquals("feff", hex.substring(hex.length() - 4));
+        assertArrayEquals(data, Util.fromHexString(hex));
+        assertArrayEquals(data, Util.fromHexString(hex.toUpperCase()));
+
+        byte[] out = new byte[5];
+        int written = Util.fromHexString("0A 0b  Ff", out, 1);
+        assertEquals(3, written);
+        assertArrayEquals(new byte[]{0x00, 0x0a, 0x0b, (byte) 0xff, 0x00}, out);
+
+        char[] chars = new char[4];
+        assertEquals(4, Util.toHexChars(data, 0x7e, 2, chars, 0));
+        assertEquals("7e7f", new String(chars));
+        assertEquals("a5", Util.byte2Hex((byte) 0xa5));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testFromHexStringInvalidChar() {
+        System.out.println("fromHexStringInvalidChar");
+        Util.fromHexString("0g");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFromHexStringOddLength() {
+        System.out.println("fromHexStringOddLength");
+        Util.fromHexString("012");
+    }
+
+    /**
+     * The byte[] based pretty printing must produce the same output as the String based
+     */
+    @Test
+    public void testPrettyPrintHex() {
+        System.out.println("prettyPrintHex");
+        byte[] data = new byte[40];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 7);
+        }
+        String hex = Util.byteArrayToHexString(data);
+        assertEquals(Util.prettyPrintHex(hex, 4, true), Util.prettyPrintHex(data, 4));
+        assertEquals(Util.prettyPrintHex(hex, 0, false), Util.prettyPrintHexNoWrap(data));
+        assertEquals("", Util.prettyPrintHex((byte[]) null));
+
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        Util.printPrettyHex(pw, data, 4, true);
+        pw.flush();
+        assertEquals(Util.prettyPrintHex(data, 4), sw.toString());
+    }
+
+    /**
+     * calculateSHA1 uses the thread's shared digest, so it must not be affected by an earlier getSHA1Digest() user
+     */
+    @Test
+    public void testCalculateSHA1AfterGetSHA1Digest() throws Exception {
+        System.out.println("calculateSHA1AfterGetSHA1Digest");
+        byte[] data = "abc".getBytes("US-ASCII");
+        byte[] expected = MessageDigest.getInstance("SHA-1").digest(data);
+
+        MessageDigest sha1 = Util.getSHA1Digest();
+        sha1.update(data);
+        assertArrayEquals(expected, sha1.digest());
+        assertArrayEquals(expected, Util.calculateSHA1(data));
+
+        //A digest that was never completed is reset
+        Util.getSHA1Digest().update(new byte[]{1, 2, 3});
+        assertArrayEquals(expected, Util.calculateSHA1(data));
+        assertSame(sha1, Util.getSHA1Digest());
+    }
+}